@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.CentralAuthenticationServiceImpl;
+import org.jasig.cas.authentication.AuthenticationManagerImpl;
+import org.jasig.cas.authentication.handler.AuthenticationHandler;
+import org.jasig.cas.authentication.handler.support.SimpleTestUsernamePasswordAuthenticationHandler;
+import org.jasig.cas.authentication.principal.CredentialsToPrincipalResolver;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentialsToPrincipalResolver;
+import org.jasig.cas.services.DefaultServicesManagerImpl;
+import org.jasig.cas.services.InMemoryServiceRegistryDaoImpl;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.RegisteredServiceImpl;
+import org.jasig.cas.ticket.TicketException;
+import org.jasig.cas.ticket.registry.DefaultTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.jasig.cas.util.DefaultUniqueTicketIdGenerator;
+import org.jasig.cas.util.UniqueTicketIdGenerator;
+import org.jasig.cas.validation.Assertion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The three protocol operations of {@link CentralAuthenticationServiceImpl}
+ * against a {@link DefaultTicketRegistry}.  Tickets that are created are
+ * removed again within the measured operation, so the registry does not grow
+ * during a run.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CentralAuthenticationServiceBenchmark {
+
+    private final TicketRegistry ticketRegistry = new DefaultTicketRegistry();
+
+    private final CentralAuthenticationServiceImpl centralAuthenticationService = new CentralAuthenticationServiceImpl();
+
+    private final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+
+    private final Service service = new SimpleWebApplicationServiceImpl("https://www.example.com/app");
+
+    private String ticketGrantingTicketId;
+
+    private String serviceTicketId;
+
+    @Setup
+    public void setUp() throws TicketException {
+        final AuthenticationManagerImpl authenticationManager = new AuthenticationManagerImpl();
+        authenticationManager.setAuthenticationHandlers(Arrays.<AuthenticationHandler>asList(
+            new SimpleTestUsernamePasswordAuthenticationHandler()));
+        authenticationManager.setCredentialsToPrincipalResolvers(Arrays.<CredentialsToPrincipalResolver>asList(
+            new UsernamePasswordCredentialsToPrincipalResolver()));
+
+        final RegisteredServiceImpl registeredService = new RegisteredServiceImpl();
+        registeredService.setId(1);
+        registeredService.setName("all");
+        registeredService.setServiceId("https://**");
+        final List<RegisteredService> registeredServices = new ArrayList<RegisteredService>();
+        registeredServices.add(registeredService);
+        final InMemoryServiceRegistryDaoImpl serviceRegistryDao = new InMemoryServiceRegistryDaoImpl();
+        serviceRegistryDao.setRegisteredServices(registeredServices);
+
+        final Map<String, UniqueTicketIdGenerator> uniqueTicketIdGenerators = new HashMap<String, UniqueTicketIdGenerator>();
+        uniqueTicketIdGenerators.put(SimpleWebApplicationServiceImpl.class.getName(), new DefaultUniqueTicketIdGenerator());
+
+        this.centralAuthenticationService.setAuthenticationManager(authenticationManager);
+        this.centralAuthenticationService.setServicesManager(new DefaultServicesManagerImpl(serviceRegistryDao));
+        this.centralAuthenticationService.setTicketRegistry(this.ticketRegistry);
+        this.centralAuthenticationService.setServiceTicketRegistry(this.ticketRegistry);
+        this.centralAuthenticationService.setTicketGrantingTicketUniqueTicketIdGenerator(new DefaultUniqueTicketIdGenerator());
+        this.centralAuthenticationService.setUniqueTicketIdGeneratorsForService(uniqueTicketIdGenerators);
+        this.centralAuthenticationService.setTicketGrantingTicketExpirationPolicy(new NeverExpiresExpirationPolicy());
+        // never expires, so the same service ticket can be validated over and over
+        this.centralAuthenticationService.setServiceTicketExpirationPolicy(new NeverExpiresExpirationPolicy());
+
+        this.credentials.setUsername("test");
+        this.credentials.setPassword("test");
+    }
+
+    /**
+     * A fresh TicketGrantingTicket per iteration, since it remembers every
+     * service it granted a ticket for.
+     */
+    @Setup(Level.Iteration)
+    public void setUpTickets() throws TicketException {
+        if (this.ticketGrantingTicketId != null) {
+            this.ticketRegistry.deleteTicket(this.ticketGrantingTicketId);
+            this.ticketRegistry.deleteTicket(this.serviceTicketId);
+        }
+        this.ticketGrantingTicketId = this.centralAuthenticationService.createTicketGrantingTicket(this.credentials);
+        this.serviceTicketId = this.centralAuthenticationService.grantServiceTicket(this.ticketGrantingTicketId, this.service);
+    }
+
+    @Benchmark
+    public String createTicketGrantingTicket() throws TicketException {
+        final String id = this.centralAuthenticationService.createTicketGrantingTicket(this.credentials);
+        this.ticketRegistry.deleteTicket(id);
+        return id;
+    }
+
+    @Benchmark
+    public String grantServiceTicket() throws TicketException {
+        final String id = this.centralAuthenticationService.grantServiceTicket(this.ticketGrantingTicketId, this.service);
+        this.ticketRegistry.deleteTicket(id);
+        return id;
+    }
+
+    @Benchmark
+    public Assertion validateServiceTicket() throws TicketException {
+        return this.centralAuthenticationService.validateServiceTicket(this.serviceTicketId, this.service);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.tomcat.InstanceManager;
+import org.apache.tomcat.SimpleInstanceManager;
+import org.eclipse.jetty.apache.jsp.JettyJasperInitializer;
+import org.eclipse.jetty.jsp.JettyJspServlet;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BufferUtil;
+import org.springframework.web.servlet.View;
+
+/**
+ * Embedded Jetty with Jasper and JSTL that serves Spring views and the CAS
+ * 2.0 protocol JSPs of the web application, both with a fixed model, through
+ * a LocalConnector, without any network.
+ * <p>
+ * The JSPs are copied from the classpath, under protocol/2.0, into a
+ * temporary web root.  Paths are registered before {@link #start()}.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+final class JspContainer {
+
+    private static final String JSP_DIRECTORY = "WEB-INF/view/jsp/protocol/2.0";
+
+    private final File webRoot;
+
+    private final Server server = new Server();
+
+    private final LocalConnector connector = new LocalConnector(this.server);
+
+    private final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+
+    JspContainer() throws IOException {
+        this.webRoot = File.createTempFile("cas-benchmarks", "");
+        this.webRoot.delete();
+        final File scratchDirectory = new File(this.webRoot, "work");
+        new File(this.webRoot, JSP_DIRECTORY).mkdirs();
+        scratchDirectory.mkdirs();
+
+        this.server.addConnector(this.connector);
+        this.context.setContextPath("/cas");
+        this.context.setResourceBase(this.webRoot.getAbsolutePath());
+        this.context.setAttribute("javax.servlet.context.tempdir", scratchDirectory);
+        this.context.setAttribute(InstanceManager.class.getName(), new SimpleInstanceManager());
+        this.context.addEventListener(new JasperInitializer());
+        // Jasper finds the JSTL tag libraries through a URLClassLoader
+        this.context.setClassLoader(new URLClassLoader(new URL[0], getClass().getClassLoader()));
+
+        final ServletHolder jsp = new ServletHolder("jsp", JettyJspServlet.class);
+        jsp.setInitOrder(0);
+        jsp.setInitParameter("development", "false");
+        this.context.addServlet(jsp, "*.jsp");
+        this.server.setHandler(this.context);
+    }
+
+    /**
+     * Serves the view, rendered as the DispatcherServlet would.
+     */
+    void addView(final String path, final View view, final Map<String, ?> model) {
+        this.context.addServlet(new ServletHolder(new ViewServlet(view, model)), path);
+    }
+
+    /**
+     * Serves the JSP of the web application, by exposing the model as
+     * request attributes and forwarding to it, as Spring's
+     * InternalResourceView does.
+     *
+     * @param jsp the name of the JSP, e.g. casServiceValidationSuccess.jsp.
+     */
+    void addJsp(final String path, final String jsp, final Map<String, ?> model) throws IOException {
+        final File file = new File(new File(this.webRoot, JSP_DIRECTORY), jsp);
+        if (!file.exists()) {
+            copy("/protocol/2.0/" + jsp, file);
+        }
+        this.context.addServlet(new ServletHolder(new ForwardingServlet("/" + JSP_DIRECTORY + "/" + jsp, model)), path);
+    }
+
+    void start() throws Exception {
+        this.server.start();
+    }
+
+    void stop() throws Exception {
+        try {
+            this.server.stop();
+        } finally {
+            delete(this.webRoot);
+        }
+    }
+
+    /**
+     * @return the raw HTTP response to a GET of the path, left as bytes since
+     * its charset depends on the content type.
+     */
+    ByteBuffer get(final String path) throws Exception {
+        return this.connector.getResponses(BufferUtil.toBuffer("GET /cas" + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n", StandardCharsets.ISO_8859_1));
+    }
+
+    private static void copy(final String resource, final File file) throws IOException {
+        final InputStream in = JspContainer.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalStateException(resource + " is not on the classpath.");
+        }
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            final byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Starts Jasper, which a web application container would find through
+     * its ServletContainerInitializer, before the JSP servlet starts.
+     */
+    private static final class JasperInitializer implements ServletContextListener {
+
+        public void contextInitialized(final ServletContextEvent event) {
+            try {
+                new JettyJasperInitializer().onStartup(null, event.getServletContext());
+            } catch (final ServletException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void contextDestroyed(final ServletContextEvent event) {
+            // nothing to do
+        }
+    }
+
+    private static final class ViewServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final View view;
+
+        private final Map<String, ?> model;
+
+        private ViewServlet(final View view, final Map<String, ?> model) {
+            this.view = view;
+            this.model = model;
+        }
+
+        protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+            try {
+                this.view.render(this.model, request, response);
+            } catch (final Exception e) {
+                throw new ServletException(e);
+            }
+        }
+    }
+
+    private static final class ForwardingServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        private final Map<String, ?> model;
+
+        private ForwardingServlet(final String path, final Map<String, ?> model) {
+            this.path = path;
+            this.model = model;
+        }
+
+        protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+            for (final Map.Entry<String, ?> entry : this.model.entrySet()) {
+                request.setAttribute(entry.getKey(), entry.getValue());
+            }
+            request.getRequestDispatcher(this.path).forward(request, response);
+        }
+    }
+}
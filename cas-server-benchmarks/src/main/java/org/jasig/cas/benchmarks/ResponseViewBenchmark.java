@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.HttpTester;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.validation.ImmutableAssertionImpl;
+import org.jasig.cas.web.view.Cas10ResponseView;
+import org.jasig.cas.web.view.Cas20ResponseView;
+import org.jasig.cas.web.view.Saml10SuccessResponseView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Rendering of successful validation responses for the CAS 1.0, CAS 2.0 and
+ * SAML 1.1 protocols.
+ * <p>
+ * The CAS 2.0 response is also rendered inside an embedded Jetty, once by
+ * Cas20ResponseView and once by forwarding to casServiceValidationSuccess.jsp
+ * as the web application does, so that both paths pay the same container
+ * overhead and can be compared.  Requests go through a LocalConnector,
+ * without any network.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// Jetty logs through slf4j when it finds it, but needs a newer one than CAS has
+@Fork(value = 1, jvmArgsAppend = {
+    "-Dorg.eclipse.jetty.util.log.class=org.eclipse.jetty.util.log.StdErrLog",
+    "-Dlog.LEVEL=WARN"})
+public class ResponseViewBenchmark {
+
+    private final Cas10ResponseView cas10ResponseView = new Cas10ResponseView();
+
+    private final Cas20ResponseView cas20ResponseView = new Cas20ResponseView();
+
+    private final Saml10SuccessResponseView saml10SuccessResponseView = new Saml10SuccessResponseView();
+
+    private final MockHttpServletRequest request = new MockHttpServletRequest();
+
+    private final Map<String, Object> model = new HashMap<String, Object>();
+
+    private JspContainer container;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.cas10ResponseView.setSuccessResponse(true);
+        this.cas20ResponseView.setSuccessResponse(true);
+        this.cas20ResponseView.setIncludeAttributes(true);
+        this.saml10SuccessResponseView.setIssuer("testIssuer");
+        this.saml10SuccessResponseView.setIssueLength(1000);
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("uid", "test");
+        attributes.put("mail", "test@example.com");
+        final List<Authentication> authentications = Collections.<Authentication>singletonList(
+            new ImmutableAuthentication(new SimplePrincipal("test", attributes)));
+
+        this.model.put("assertion", new ImmutableAssertionImpl(authentications,
+            new SimpleWebApplicationServiceImpl("https://www.example.com/app"), true));
+
+        this.container = new JspContainer();
+        this.container.addView("/view", this.cas20ResponseView, this.model);
+        this.container.addJsp("/jsp", "casServiceValidationSuccess.jsp", this.model);
+        this.container.start();
+
+        // the JSP is compiled by the first request
+        final String response = HttpTester.parseResponse(cas20JspInContainer()).getContent();
+        if (!response.contains("<cas:user>test</cas:user>")) {
+            throw new IllegalStateException("casServiceValidationSuccess.jsp did not render: " + response);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.container.stop();
+    }
+
+    @Benchmark
+    public String cas10Response() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        this.cas10ResponseView.render(this.model, this.request, response);
+        return response.getContentAsString();
+    }
+
+    @Benchmark
+    public String cas20Response() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        this.cas20ResponseView.render(this.model, this.request, response);
+        return response.getContentAsString();
+    }
+
+    @Benchmark
+    public String saml10SuccessResponse() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        this.saml10SuccessResponseView.render(this.model, this.request, response);
+        return response.getContentAsString();
+    }
+
+    @Benchmark
+    public ByteBuffer cas20ResponseInContainer() throws Exception {
+        return this.container.get("/view");
+    }
+
+    @Benchmark
+    public ByteBuffer cas20JspInContainer() throws Exception {
+        return this.container.get("/jsp");
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.services.DefaultServicesManagerImpl;
+import org.jasig.cas.services.InMemoryServiceRegistryDaoImpl;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.RegisteredServiceImpl;
+import org.jasig.cas.services.ServicesManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link DefaultServicesManagerImpl#findServiceBy(Service)} for registries of
+ * different sizes.  Every registered service covers its own host, and one in
+ * ten lookups is for a host that is not registered at all.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServicesManagerBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"10", "1000", "10000"})
+    private int numberOfServices;
+
+    private ServicesManager servicesManager;
+
+    private final Service[] services = new Service[LOOKUPS];
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final List<RegisteredService> registeredServices = new ArrayList<RegisteredService>();
+
+        for (int i = 0; i < this.numberOfServices; i++) {
+            final RegisteredServiceImpl registeredService = new RegisteredServiceImpl();
+            registeredService.setId(i);
+            registeredService.setName("service" + i);
+            registeredService.setServiceId("https://app" + i + ".example.com/**");
+            registeredService.setEvaluationOrder(i);
+            registeredServices.add(registeredService);
+        }
+
+        final InMemoryServiceRegistryDaoImpl serviceRegistryDao = new InMemoryServiceRegistryDaoImpl();
+        serviceRegistryDao.setRegisteredServices(registeredServices);
+        this.servicesManager = new DefaultServicesManagerImpl(serviceRegistryDao);
+
+        final Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            final String host = i % 10 == 0 ? "unknown" : "app" + random.nextInt(this.numberOfServices);
+            this.services[i] = new SimpleWebApplicationServiceImpl("https://" + host + ".example.com/login?x=" + i);
+        }
+    }
+
+    @Benchmark
+    public RegisteredService findServiceBy() {
+        this.next = (this.next + 1) & (LOOKUPS - 1);
+        return this.servicesManager.findServiceBy(this.services[this.next]);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Granting service tickets from a single TicketGrantingTicket shared by all
+ * threads, i.e. one user with many browser tabs.  Run with -t 1, 2, 4... to
+ * see how it scales with the number of threads.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class TicketGrantingTicketContentionBenchmark {
+
+    private static final ExpirationPolicy POLICY = new NeverExpiresExpirationPolicy();
+
+    private final Service service = new SimpleWebApplicationServiceImpl("https://portal.example.com/Login");
+
+    private final AtomicInteger threadNumbers = new AtomicInteger();
+
+    private TicketGrantingTicket ticketGrantingTicket;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        this.ticketGrantingTicket = new TicketGrantingTicketImpl("TGT-1",
+            new ImmutableAuthentication(new SimplePrincipal("jdoe")), POLICY);
+    }
+
+    @Benchmark
+    public ServiceTicket grantServiceTicket(final ServiceTicketId serviceTicketId) {
+        return this.ticketGrantingTicket.grantServiceTicket(serviceTicketId.id, this.service, POLICY, false);
+    }
+
+    /**
+     * One service ticket id per thread, so that the services the
+     * TicketGrantingTicket remembers do not grow during a run.
+     */
+    @State(Scope.Thread)
+    public static class ServiceTicketId {
+
+        private String id;
+
+        @Setup
+        public void setUp(final TicketGrantingTicketContentionBenchmark benchmark) {
+            this.id = "ST-" + benchmark.threadNumbers.incrementAndGet();
+        }
+    }
+}
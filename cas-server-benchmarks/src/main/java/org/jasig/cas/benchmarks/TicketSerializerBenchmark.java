@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.authentication.MutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.TicketSerializer;
+import org.jasig.cas.ticket.registry.support.CompactTicketSerializer;
+import org.jasig.cas.ticket.registry.support.JavaTicketSerializer;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding a ServiceTicket, with its TicketGrantingTicket, using
+ * Java serialization and the compact format.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TicketSerializerBenchmark {
+
+    @Param({"java", "compact"})
+    private String format;
+
+    private TicketSerializer ticketSerializer;
+
+    private TicketGrantingTicket ticketGrantingTicket;
+
+    private ServiceTicket serviceTicket;
+
+    private byte[] serializedTicketGrantingTicket;
+
+    private byte[] serializedServiceTicket;
+
+    @Setup
+    public void setUp() {
+        this.ticketSerializer = "java".equals(this.format) ? new JavaTicketSerializer() : new CompactTicketSerializer();
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final List<String> memberOf = new ArrayList<String>();
+        memberOf.add("cn=staff,ou=groups,dc=example,dc=com");
+        memberOf.add("cn=faculty,ou=groups,dc=example,dc=com");
+        attributes.put("memberOf", memberOf);
+        attributes.put("mail", "jdoe@example.com");
+        attributes.put("displayName", "John Doe");
+
+        final MutableAuthentication authentication = new MutableAuthentication(new SimplePrincipal("jdoe", attributes));
+        authentication.getAttributes().put("samlAuthenticationStatement::authMethod", "urn:oasis:names:tc:SAML:1.0:am:password");
+
+        this.ticketGrantingTicket = new TicketGrantingTicketImpl("TGT-1-4ZsrJyLc6ifEXOEHCKV2NHgHWJrMBc23JNhZIBCSpsyWBXRuYU-cas",
+            authentication, new TimeoutExpirationPolicy(7200000));
+        this.ticketGrantingTicket.grantServiceTicket("ST-1-gRNbdcGf1bSrRBAyJJ9t-cas",
+            new SimpleWebApplicationServiceImpl("https://mail.example.com/login"), new MultiTimeUseOrTimeoutExpirationPolicy(1, 10000), true);
+        this.serviceTicket = this.ticketGrantingTicket.grantServiceTicket("ST-2-bZZcvWqRa4rhyBNTjGHA-cas",
+            new SimpleWebApplicationServiceImpl("https://portal.example.com/Login?refUrl=%2Fhome"), new MultiTimeUseOrTimeoutExpirationPolicy(1, 10000), false);
+
+        this.serializedTicketGrantingTicket = this.ticketSerializer.serialize(this.ticketGrantingTicket);
+        this.serializedServiceTicket = this.ticketSerializer.serialize(this.serviceTicket);
+    }
+
+    @Benchmark
+    public byte[] serializeTicketGrantingTicket() {
+        return this.ticketSerializer.serialize(this.ticketGrantingTicket);
+    }
+
+    @Benchmark
+    public byte[] serializeServiceTicket() {
+        return this.ticketSerializer.serialize(this.serviceTicket);
+    }
+
+    @Benchmark
+    public Ticket deserializeTicketGrantingTicket() {
+        return this.ticketSerializer.deserialize(this.serializedTicketGrantingTicket);
+    }
+
+    @Benchmark
+    public Ticket deserializeServiceTicket() {
+        return this.ticketSerializer.deserialize(this.serializedServiceTicket);
+    }
+}
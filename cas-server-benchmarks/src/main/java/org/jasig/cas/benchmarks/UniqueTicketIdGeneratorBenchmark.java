@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.util.DefaultUniqueTicketIdGenerator;
+import org.jasig.cas.util.PerThreadUniqueTicketIdGenerator;
+import org.jasig.cas.util.UniqueTicketIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ticket id generation with the default and the per-thread generator.  Run
+ * with -t to see how they behave under contention.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniqueTicketIdGeneratorBenchmark {
+
+    private final UniqueTicketIdGenerator defaultGenerator = new DefaultUniqueTicketIdGenerator();
+
+    private final UniqueTicketIdGenerator perThreadGenerator = new PerThreadUniqueTicketIdGenerator();
+
+    @Benchmark
+    public String getNewTicketId() {
+        return this.defaultGenerator.getNewTicketId(ServiceTicket.PREFIX);
+    }
+
+    @Benchmark
+    public String getNewTicketIdPerThread() {
+        return this.perThreadGenerator.getNewTicketId(ServiceTicket.PREFIX);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.http.HttpTester;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.validation.ImmutableAssertionImpl;
+import org.jasig.cas.web.view.Cas20ResponseView;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the output of Cas20ResponseView with the one of the
+ * casServiceValidationSuccess and casServiceValidationFailure JSPs of the web
+ * application, rendered by Jasper.  The JSPs leave blank lines where their
+ * tags were, so whitespace between and around elements is ignored.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class Cas20ResponseViewJspTests extends TestCase {
+
+    private JspContainer container;
+
+    protected void setUp() throws Exception {
+        final Cas20ResponseView successView = new Cas20ResponseView();
+        successView.setSuccessResponse(true);
+        final Cas20ResponseView failureView = new Cas20ResponseView();
+        failureView.setSuccessResponse(false);
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("mail", "test@example.com");
+        final List<Authentication> authentications = new ArrayList<Authentication>();
+        authentications.add(new ImmutableAuthentication(new SimplePrincipal("https://proxy.example.com/<pgt>")));
+        authentications.add(new ImmutableAuthentication(new SimplePrincipal("t\u00e9st & 'co'", attributes)));
+
+        final Map<String, Object> success = new HashMap<String, Object>();
+        success.put("assertion", new ImmutableAssertionImpl(authentications.subList(1, 2),
+            new SimpleWebApplicationServiceImpl("https://www.example.com/app"), true));
+
+        final Map<String, Object> proxied = new HashMap<String, Object>();
+        proxied.put("assertion", new ImmutableAssertionImpl(authentications,
+            new SimpleWebApplicationServiceImpl("https://www.example.com/app"), false));
+        proxied.put("pgtIou", "PGTIOU-1-abc");
+
+        final Map<String, Object> failure = new HashMap<String, Object>();
+        failure.put("code", "INVALID_TICKET");
+        failure.put("description", "ticket 'ST-1' not recognized & <expired>");
+
+        this.container = new JspContainer();
+        this.container.addView("/view/success", successView, success);
+        this.container.addJsp("/jsp/success", "casServiceValidationSuccess.jsp", success);
+        this.container.addView("/view/proxied", successView, proxied);
+        this.container.addJsp("/jsp/proxied", "casServiceValidationSuccess.jsp", proxied);
+        this.container.addView("/view/failure", failureView, failure);
+        this.container.addJsp("/jsp/failure", "casServiceValidationFailure.jsp", failure);
+        this.container.start();
+    }
+
+    protected void tearDown() throws Exception {
+        this.container.stop();
+    }
+
+    public void testSuccessMatchesJsp() throws Exception {
+        assertSameResponse("success");
+    }
+
+    public void testProxiedSuccessMatchesJsp() throws Exception {
+        assertSameResponse("proxied");
+    }
+
+    public void testFailureMatchesJsp() throws Exception {
+        assertSameResponse("failure");
+    }
+
+    /**
+     * The view sends text/xml for both responses, where the failure JSP
+     * sends text/plain.
+     */
+    public void testContentTypeIsXml() throws Exception {
+        assertEquals("text/xml;charset=UTF-8", get("/view/success").get("Content-Type"));
+        assertEquals("text/xml;charset=UTF-8", get("/view/failure").get("Content-Type"));
+        assertTrue(get("/jsp/failure").get("Content-Type").startsWith("text/plain"));
+    }
+
+    private void assertSameResponse(final String name) throws Exception {
+        final HttpTester.Response jsp = get("/jsp/" + name);
+        final HttpTester.Response view = get("/view/" + name);
+
+        assertEquals(200, jsp.getStatus());
+        assertEquals(200, view.getStatus());
+        assertEquals(normalize(jsp.getContent()), normalize(view.getContent()));
+    }
+
+    private HttpTester.Response get(final String path) throws Exception {
+        return HttpTester.parseResponse(this.container.get(path));
+    }
+
+    private static String normalize(final String response) {
+        return response.replaceAll("\\s*([<>])\\s*", "$1").replaceAll("\\s+", " ");
+    }
+}
@@ -8,14 +8,12 @@ package org.jasig.cas;
 import com.github.inspektr.audit.annotation.Audit;
 import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.AuthenticationManager;
-import org.jasig.cas.authentication.MutableAuthentication;
 import org.jasig.cas.authentication.handler.AuthenticationException;
 import org.jasig.cas.authentication.principal.Credentials;
 import org.jasig.cas.authentication.principal.PersistentIdGenerator;
 import org.jasig.cas.authentication.principal.Principal;
 import org.jasig.cas.authentication.principal.Service;
 import org.jasig.cas.authentication.principal.ShibbolethCompatiblePersistentIdGenerator;
-import org.jasig.cas.authentication.principal.SimplePrincipal;
 import org.jasig.cas.services.RegisteredService;
 import org.jasig.cas.services.ServicesManager;
 import org.jasig.cas.services.UnauthorizedProxyingException;
@@ -32,7 +30,7 @@ import org.jasig.cas.ticket.TicketValidationException;
 import org.jasig.cas.ticket.registry.TicketRegistry;
 import org.jasig.cas.util.UniqueTicketIdGenerator;
 import org.jasig.cas.validation.Assertion;
-import org.jasig.cas.validation.ImmutableAssertionImpl;
+import org.jasig.cas.validation.LazyAssertionImpl;
 import org.perf4j.aop.Profiled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,8 +38,6 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 
 import javax.validation.constraints.NotNull;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -175,11 +171,9 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
             throw new InvalidTicketException();
         }
 
-        synchronized (ticketGrantingTicket) {
-            if (ticketGrantingTicket.isExpired()) {
-                this.ticketRegistry.deleteTicket(ticketGrantingTicketId);
-                throw new InvalidTicketException();
-            }
+        if (ticketGrantingTicket.isExpired()) {
+            this.ticketRegistry.deleteTicket(ticketGrantingTicketId);
+            throw new InvalidTicketException();
         }
 
         final RegisteredService registeredService = this.servicesManager
@@ -330,65 +324,31 @@ public final class CentralAuthenticationServiceImpl implements CentralAuthentica
         }
 
         try {
-            synchronized (serviceTicket) {
+            if (serviceTicket.isExpired()) {
+                log.info("ServiceTicket [" + serviceTicketId + "] has expired.");
+                throw new InvalidTicketException();
+            }
+
+            // isValidFor uses the ticket atomically, so a concurrent validation may have used it up by now
+            if (!serviceTicket.isValidFor(service)) {
                 if (serviceTicket.isExpired()) {
                     log.info("ServiceTicket [" + serviceTicketId + "] has expired.");
                     throw new InvalidTicketException();
                 }
-
-                if (!serviceTicket.isValidFor(service)) {
-                    log.error("ServiceTicket [" + serviceTicketId + "] with service [" + serviceTicket.getService().getId() + " does not match supplied service [" + service + "]");
-                    throw new TicketValidationException(serviceTicket.getService());
-                }
+                log.error("ServiceTicket [" + serviceTicketId + "] with service [" + serviceTicket.getService().getId() + " does not match supplied service [" + service + "]");
+                throw new TicketValidationException(serviceTicket.getService());
             }
 
-            final int authenticationChainSize = serviceTicket
-                .getGrantingTicket().getChainedAuthentications().size();
-            final Authentication authentication = serviceTicket
-                .getGrantingTicket().getChainedAuthentications().get(
-                    authenticationChainSize - 1);
-            final Principal principal = authentication.getPrincipal();
+            final List<Authentication> chain = serviceTicket.getGrantingTicket().getChainedAuthentications();
+            final Principal principal = chain.get(chain.size() - 1).getPrincipal();
             final String principalId = registeredService.isAnonymousAccess()
                 ? this.persistentIdGenerator.generate(principal, serviceTicket
                     .getService()) : principal.getId();
-                
-            final Authentication authToUse;
-            
-            if (!registeredService.isIgnoreAttributes()) {
-                final Map<String, Object> attributes = new HashMap<String, Object>();
-    
-                for (final String attribute : registeredService
-                    .getAllowedAttributes()) {
-                    final Object value = principal.getAttributes().get(
-                        attribute);
-    
-                    if (value != null) {
-                        attributes.put(attribute, value);
-                    }
-                }
-
-                final Principal modifiedPrincipal = new SimplePrincipal(
-                    principalId, attributes);
-                final MutableAuthentication mutableAuthentication = new MutableAuthentication(
-                    modifiedPrincipal, authentication.getAuthenticatedDate());
-                mutableAuthentication.getAttributes().putAll(
-                    authentication.getAttributes());
-                mutableAuthentication.getAuthenticatedDate().setTime(
-                    authentication.getAuthenticatedDate().getTime());
-                authToUse = mutableAuthentication;
-            } else {
-                authToUse = authentication;
-            }
-            
-
-            final List<Authentication> authentications = new ArrayList<Authentication>();
-
-            for (int i = 0; i < authenticationChainSize - 1; i++) {
-                authentications.add(serviceTicket.getGrantingTicket().getChainedAuthentications().get(i));
-            }
-            authentications.add(authToUse);
 
-            return new ImmutableAssertionImpl(authentications, serviceTicket.getService(), serviceTicket.isFromNewLogin());
+            // the attributes are filtered when the view asks for them
+            return new LazyAssertionImpl(chain, principalId,
+                registeredService.isIgnoreAttributes() ? null : registeredService.getAttributeReleaseFilter(),
+                serviceTicket.getService(), serviceTicket.isFromNewLogin());
         } finally {
             if (serviceTicket.isExpired()) {
                 this.serviceTicketRegistry.deleteTicket(serviceTicketId);
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.authentication;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.inspektr.audit.annotation.Audit;
+import org.jasig.cas.authentication.handler.AuthenticationException;
+import org.jasig.cas.authentication.principal.Credentials;
+import org.jasig.cas.authentication.principal.RememberMeCredentials;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * {@link AuthenticationManager} remembering, for a short time, the
+ * authentications another manager returned for username and password
+ * credentials, so that clients presenting the same credentials again and again
+ * (e.g. REST clients, or services asking for renew) do not go to the
+ * authentication handlers and principal resolvers each time.
+ * <p>
+ * At most one authentication is kept per username, along with a fingerprint
+ * of the credentials: an iterated, salted SHA-256 digest of the username and
+ * password.  The salt is random per instance and the password itself is never
+ * kept.  A cached authentication is only returned for credentials with the
+ * same fingerprint, as a new authentication of the same principal and
+ * attributes dated now.  Any credentials failing to authenticate remove the
+ * cached authentication of their username, so that a password that has just
+ * been changed or locked out stops working as soon as the new state has been
+ * seen once.  The failure is also recorded, apart from the authentications
+ * and only for a short time, so that an authentication of the same username
+ * that started before the failure but succeeded after it is not cached.  Once
+ * a record of a failure has been removed, no authentication that started
+ * before that failure is cached, whatever its username.
+ * <p>
+ * Other credentials are always passed on to the wrapped manager.  Every
+ * authentication is audited here, cached or not; those passed on to the
+ * wrapped manager are audited by it as well.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class CachingAuthenticationManager implements AuthenticationManager {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int SALT_LENGTH = 16;
+
+    /** How long a failure is recorded, in milliseconds. */
+    private static final long FAILURE_TIME_TO_LIVE = 60000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final AuthenticationManager authenticationManager;
+
+    private final byte[] salt = new byte[SALT_LENGTH];
+
+    private final Map<String, CachedAuthentication> cache;
+
+    /** The latest failure of each username, oldest first, guarded by the cache. */
+    private final Map<String, Failure> failures = new LinkedHashMap<String, Failure>();
+
+    /** Counts the failed authentications, guarded by the cache. */
+    private long failureCount;
+
+    /** The number of the latest failure whose record was removed, guarded by the cache. */
+    private long removedFailure;
+
+    /** How long an authentication is kept, in milliseconds. */
+    private long timeToLive = 30000;
+
+    /** The most usernames whose authentication is kept. */
+    private int maxSize = 10000;
+
+    /** The most usernames whose latest failure is recorded. */
+    private int maxFailures = 1000;
+
+    /** How many times the fingerprint is digested again. */
+    private int iterations = 1000;
+
+    public CachingAuthenticationManager(final AuthenticationManager authenticationManager) {
+        Assert.notNull(authenticationManager, "authenticationManager cannot be null");
+        this.authenticationManager = authenticationManager;
+        new SecureRandom().nextBytes(this.salt);
+        this.cache = new LinkedHashMap<String, CachedAuthentication>(16, 0.75f, true) {
+            private static final long serialVersionUID = -1938204412386542377L;
+
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedAuthentication> eldest) {
+                return size() > CachingAuthenticationManager.this.maxSize;
+            }
+        };
+    }
+
+    @Audit(
+        action="AUTHENTICATION",
+        actionResolverName="AUTHENTICATION_RESOLVER",
+        resourceResolverName="AUTHENTICATION_RESOURCE_RESOLVER")
+    public Authentication authenticate(final Credentials credentials) throws AuthenticationException {
+        if (!(credentials instanceof UsernamePasswordCredentials)) {
+            return this.authenticationManager.authenticate(credentials);
+        }
+
+        final UsernamePasswordCredentials c = (UsernamePasswordCredentials) credentials;
+        final String username = c.getUsername();
+
+        if (username == null || c.getPassword() == null) {
+            return this.authenticationManager.authenticate(credentials);
+        }
+
+        final byte[] fingerprint = fingerprint(c);
+        final CachedAuthentication cached;
+        final long failuresBefore;
+
+        synchronized (this.cache) {
+            cached = this.cache.get(username);
+            failuresBefore = this.failureCount;
+        }
+
+        if (cached != null && cached.expires > System.currentTimeMillis() && MessageDigest.isEqual(cached.fingerprint, fingerprint)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Returning cached authentication of " + username);
+            }
+            return new ImmutableAuthentication(cached.authentication.getPrincipal(), cached.authentication.getAttributes());
+        }
+
+        final Authentication authentication;
+        try {
+            authentication = this.authenticationManager.authenticate(credentials);
+        } catch (final AuthenticationException e) {
+            synchronized (this.cache) {
+                this.cache.remove(username);
+                recordFailure(username);
+            }
+            throw e;
+        }
+
+        final CachedAuthentication entry = new CachedAuthentication(fingerprint, authentication, System.currentTimeMillis() + this.timeToLive);
+        synchronized (this.cache) {
+            if (!failedSince(username, failuresBefore)) {
+                this.cache.put(username, entry);
+            }
+        }
+        return authentication;
+    }
+
+    /**
+     * Removes all cached authentications.
+     */
+    public void clear() {
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    /**
+     * Records the failure as the latest of the username, after removing the
+     * records that are too old or too many.  Expects the cache to be locked.
+     */
+    private void recordFailure(final String username) {
+        final long now = System.currentTimeMillis();
+
+        this.failureCount++;
+        // put again at the end, so the records stay in the order of their failures
+        this.failures.remove(username);
+        this.failures.put(username, new Failure(this.failureCount, now + FAILURE_TIME_TO_LIVE));
+
+        final Iterator<Failure> i = this.failures.values().iterator();
+        while (i.hasNext()) {
+            final Failure oldest = i.next();
+
+            if (oldest.expires > now && this.failures.size() <= this.maxFailures) {
+                break;
+            }
+            this.removedFailure = oldest.number;
+            i.remove();
+        }
+    }
+
+    /**
+     * @return whether the username may have failed to authenticate since
+     * <code>failuresBefore</code> failures had been counted: either its
+     * latest failure is a later one, or the record of a later failure, which
+     * may have been of that username, has been removed.  Expects the cache to
+     * be locked.
+     */
+    private boolean failedSince(final String username, final long failuresBefore) {
+        if (this.removedFailure > failuresBefore) {
+            return true;
+        }
+        final Failure failure = this.failures.get(username);
+        return failure != null && failure.number > failuresBefore;
+    }
+
+    /**
+     * Digests the salt, the type of the credentials, whether they ask to be
+     * remembered, the username and the password, then digests the result
+     * with the salt again for each iteration.
+     */
+    private byte[] fingerprint(final UsernamePasswordCredentials credentials) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(this.salt);
+        digest.update(utf8(credentials.getClass().getName()));
+        digest.update((byte) (credentials instanceof RememberMeCredentials && ((RememberMeCredentials) credentials).isRememberMe() ? 1 : 0));
+        digest.update(utf8(credentials.getUsername()));
+        digest.update((byte) 0);
+        digest.update(utf8(credentials.getPassword()));
+
+        byte[] fingerprint = digest.digest();
+        for (int i = 0; i < this.iterations; i++) {
+            digest.update(fingerprint);
+            digest.update(this.salt);
+            fingerprint = digest.digest();
+        }
+        return fingerprint;
+    }
+
+    private static byte[] utf8(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param timeToLive how long an authentication is kept, in milliseconds.
+     * The default is 30 seconds.
+     */
+    public void setTimeToLive(final long timeToLive) {
+        Assert.isTrue(timeToLive >= 0, "timeToLive cannot be negative.");
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param maxSize the most usernames whose authentication is kept, the
+     * least recently used being removed first.  The default is 10000.
+     */
+    public void setMaxSize(final int maxSize) {
+        Assert.isTrue(maxSize > 0, "maxSize must be greater than zero.");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxFailures the most usernames whose latest failure is recorded,
+     * for at most a minute.  Once a record is removed, authentications that
+     * started before that failure are not cached.  The default is 1000.
+     */
+    public void setMaxFailures(final int maxFailures) {
+        Assert.isTrue(maxFailures > 0, "maxFailures must be greater than zero.");
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * @param iterations how many times the fingerprint of the credentials is
+     * digested again, making guessing passwords from it slower.  The default is
+     * 1000.
+     */
+    public void setIterations(final int iterations) {
+        Assert.isTrue(iterations >= 0, "iterations cannot be negative.");
+        this.iterations = iterations;
+    }
+
+    /**
+     * An authentication and when it expires.
+     */
+    private static final class CachedAuthentication {
+
+        private final byte[] fingerprint;
+
+        private final Authentication authentication;
+
+        private final long expires;
+
+        private CachedAuthentication(final byte[] fingerprint, final Authentication authentication, final long expires) {
+            this.fingerprint = fingerprint;
+            this.authentication = authentication;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A failure, its number among the failures counted and when its record
+     * expires.
+     */
+    private static final class Failure {
+
+        private final long number;
+
+        private final long expires;
+
+        private Failure(final long number, final long expires) {
+            this.number = number;
+            this.expires = expires;
+        }
+    }
+}
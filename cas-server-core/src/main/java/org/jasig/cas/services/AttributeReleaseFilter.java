@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable, precompiled form of the attribute rules of a
+ * {@link RegisteredService}, deciding which attributes of a principal the
+ * service may see.
+ * <p>
+ * A rule is one of:
+ * <ul>
+ * <li>an attribute name, e.g. <code>mail</code>;</li>
+ * <li>a name with <code>*</code> wildcards, e.g. <code>eduPerson*</code>;</li>
+ * <li><code>regex:</code> followed by a regular expression the whole name must
+ * match, e.g. <code>regex:(?i)memberof</code>.</li>
+ * </ul>
+ * Names are kept in a sorted array.  With names only, the filter looks up each
+ * of them in the attributes, however many attributes the principal has.  With
+ * patterns, it checks each attribute of the principal instead, and remembers
+ * the decision for each attribute name so that the patterns are only
+ * evaluated the first time a name is seen.  Each pattern is compiled on its
+ * own, so that groups and backreferences mean what they mean in the rule.
+ * A rule that is not a valid regular expression fails the construction with a
+ * {@link java.util.regex.PatternSyntaxException}.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class AttributeReleaseFilter {
+
+    /** Prefix of the rules that are regular expressions. */
+    public static final String REGEX_PREFIX = "regex:";
+
+    /** The most attribute names whose decision is remembered. */
+    private static final int MAX_DECISIONS = 1024;
+
+    private static final Map<String, Object> NO_ATTRIBUTES = Collections.emptyMap();
+
+    private final String[] names;
+
+    /** The compiled patterns, or null if there are none. */
+    private final Pattern[] patterns;
+
+    private final Map<String, Boolean> decisions;
+
+    public AttributeReleaseFilter(final Collection<String> rules) {
+        final TreeSet<String> exactNames = new TreeSet<String>();
+        final List<String> patterns = new ArrayList<String>();
+
+        for (final String rule : rules) {
+            if (rule == null || rule.length() == 0) {
+                continue;
+            }
+            if (rule.startsWith(REGEX_PREFIX)) {
+                patterns.add(rule.substring(REGEX_PREFIX.length()));
+            } else if (rule.indexOf('*') >= 0) {
+                patterns.add(globToRegex(rule));
+            } else {
+                exactNames.add(rule);
+            }
+        }
+
+        this.names = exactNames.toArray(new String[exactNames.size()]);
+
+        if (patterns.isEmpty()) {
+            this.patterns = null;
+            this.decisions = null;
+        } else {
+            this.patterns = new Pattern[patterns.size()];
+            for (int i = 0; i < this.patterns.length; i++) {
+                this.patterns[i] = Pattern.compile(patterns.get(i));
+            }
+            this.decisions = new ConcurrentHashMap<String, Boolean>();
+        }
+    }
+
+    /**
+     * @return whether the service may see the attribute.
+     */
+    public boolean isReleased(final String name) {
+        if (name == null) {
+            return false;
+        }
+        if (Arrays.binarySearch(this.names, name) >= 0) {
+            return true;
+        }
+        if (this.patterns == null) {
+            return false;
+        }
+
+        final Boolean decision = this.decisions.get(name);
+        if (decision != null) {
+            return decision.booleanValue();
+        }
+
+        boolean released = false;
+        for (int i = 0; i < this.patterns.length && !released; i++) {
+            released = this.patterns[i].matcher(name).matches();
+        }
+        if (this.decisions.size() < MAX_DECISIONS) {
+            this.decisions.put(name, Boolean.valueOf(released));
+        }
+        return released;
+    }
+
+    /**
+     * @return the attributes the service may see, without null values.  An
+     * immutable empty map if there are none.
+     */
+    public Map<String, Object> filter(final Map<String, Object> attributes) {
+        if (attributes.isEmpty()) {
+            return NO_ATTRIBUTES;
+        }
+
+        Map<String, Object> released = null;
+
+        if (this.patterns == null) {
+            for (final String name : this.names) {
+                final Object value = attributes.get(name);
+
+                if (value != null) {
+                    if (released == null) {
+                        released = new HashMap<String, Object>(Math.min(this.names.length, attributes.size()) * 4 / 3 + 1);
+                    }
+                    released.put(name, value);
+                }
+            }
+        } else {
+            for (final Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                if (attribute.getValue() != null && isReleased(attribute.getKey())) {
+                    if (released == null) {
+                        released = new HashMap<String, Object>();
+                    }
+                    released.put(attribute.getKey(), attribute.getValue());
+                }
+            }
+        }
+        return released == null ? NO_ATTRIBUTES : Collections.unmodifiableMap(released);
+    }
+
+    private static String globToRegex(final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        int start = 0;
+
+        for (int i = glob.indexOf('*'); i >= 0; i = glob.indexOf('*', start)) {
+            if (i > start) {
+                regex.append(Pattern.quote(glob.substring(start, i)));
+            }
+            regex.append(".*");
+            start = i + 1;
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return regex.toString();
+    }
+}
@@ -7,6 +7,7 @@ package org.jasig.cas.services;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.PatternSyntaxException;
 
 import com.github.inspektr.audit.annotation.Audit;
 import org.jasig.cas.authentication.principal.Service;
@@ -36,6 +37,12 @@ public final class DefaultServicesManagerImpl implements ReloadableServicesManag
     /** Map to store all services. */
     private ConcurrentHashMap<Long, RegisteredService> services = new ConcurrentHashMap<Long, RegisteredService>();
 
+    /** Precompiled matcher over the services, rebuilt whenever they change. */
+    private volatile RegisteredServiceIndex serviceIndex = new RegisteredServiceIndex(Collections.<RegisteredService>emptyList());
+
+    /** Optional cache of service id to matched service.  Disabled when null. */
+    private volatile ServiceMatchCache matchCache;
+
     /** Default service to return if none have been registered. */
     private RegisteredService disabledRegisteredService;
     
@@ -68,6 +75,7 @@ public final class DefaultServicesManagerImpl implements ReloadableServicesManag
         
         this.serviceRegistryDao.delete(r);
         this.services.remove(id);
+        rebuildIndex();
         
         return r;
     }
@@ -78,19 +86,27 @@ public final class DefaultServicesManagerImpl implements ReloadableServicesManag
      * This preserves default CAS behavior.
      */
     public RegisteredService findServiceBy(final Service service) {
-        final Collection<RegisteredService> c = convertToTreeSet();
+        final RegisteredServiceIndex index = this.serviceIndex;
         
-        if (c.isEmpty()) {
+        if (index.isEmpty()) {
             return this.disabledRegisteredService;
         }
 
-        for (final RegisteredService r : c) {
-            if (r.matches(service)) {
-                return r;
-            }
+        final ServiceMatchCache cache = this.matchCache;
+        final String key = cache == null || service == null ? null : ServiceMatchCache.keyFor(service.getId());
+
+        if (key == null) {
+            return index.findFirstMatch(service);
         }
 
-        return null;
+        final ServiceMatchCache.CachedMatch cachedMatch = cache.get(key, index);
+        if (cachedMatch != null) {
+            return cachedMatch.getRegisteredService();
+        }
+
+        final RegisteredService r = index.findFirstMatch(service);
+        cache.put(key, index, r);
+        return r;
     }
 
     public RegisteredService findServiceBy(final long id) {
@@ -103,6 +119,13 @@ public final class DefaultServicesManagerImpl implements ReloadableServicesManag
         }
     }
     
+    /**
+     * @return the services, in evaluation order.
+     * @deprecated {@link #findServiceBy(Service)} no longer sorts the services
+     * on each call but matches against a {@link RegisteredServiceIndex} built
+     * when they change.  Kept for subclasses only.
+     */
+    @Deprecated
     protected TreeSet<RegisteredService> convertToTreeSet() {
         return new TreeSet<RegisteredService>(this.services.values());
     }
@@ -118,10 +141,18 @@ public final class DefaultServicesManagerImpl implements ReloadableServicesManag
     @Transactional(readOnly = false)
     @Audit(action = "SAVE_SERVICE", actionResolverName = "SAVE_SERVICE_ACTION_RESOLVER", resourceResolverName = "SAVE_SERVICE_RESOURCE_RESOLVER")
     public synchronized void save(final RegisteredService registeredService) {
-        final RegisteredService r = this.serviceRegistryDao.save(registeredService);
+        final RegisteredService validated = compileAttributeRules(registeredService);
+        final RegisteredService r = compileAttributeRules(this.serviceRegistryDao.save(validated));
         this.services.put(r.getId(), r);
+        rebuildIndex();
     }
     
+    /**
+     * Note, if a registered service has allowed attributes that do not compile,
+     * the reload fails with a {@link PatternSyntaxException} and the services
+     * loaded before are kept.  Dropping the service instead could leave no
+     * services at all, which would allow every service to use CAS.
+     */
     public void reload() {
         log.info("Reloading registered services.");
         load();
@@ -131,13 +162,63 @@ public final class DefaultServicesManagerImpl implements ReloadableServicesManag
         final ConcurrentHashMap<Long, RegisteredService> localServices = new ConcurrentHashMap<Long, RegisteredService>();
                 
         for (final RegisteredService r : this.serviceRegistryDao.load()) {
-            log.debug("Adding registered service " + r.getServiceId());
-            localServices.put(r.getId(), r);
+            final RegisteredService compiled;
+            try {
+                compiled = compileAttributeRules(r);
+            } catch (final PatternSyntaxException e) {
+                log.error("Not loading the registered services: the allowed attributes of " + r.getServiceId() + " are invalid: " + e.getMessage());
+                throw e;
+            }
+            log.debug("Adding registered service " + compiled.getServiceId());
+            localServices.put(compiled.getId(), compiled);
         }
         
         this.services = localServices;
+        rebuildIndex();
         log.info(String.format("Loaded %s services.", this.services.size()));
     }
+
+    /**
+     * Compiles the allowed attributes of the service now rather than on the
+     * first validation, so that invalid rules are rejected up front.
+     *
+     * @param registeredService the service to compile.
+     * @return the same service.
+     * @throws PatternSyntaxException if a rule is not a valid regular expression.
+     */
+    private static RegisteredService compileAttributeRules(final RegisteredService registeredService) {
+        registeredService.getAttributeReleaseFilter();
+        return registeredService;
+    }
+
+    private void rebuildIndex() {
+        this.serviceIndex = new RegisteredServiceIndex(this.services.values());
+
+        final ServiceMatchCache cache = this.matchCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Enables caching of the result of {@link #findServiceBy(Service)} for up
+     * to the given number of distinct service ids.  Results are keyed on the
+     * case-insensitive service id, so this should only be enabled when every
+     * RegisteredService matches on the id alone (which is true of
+     * {@link RegisteredServiceImpl}).
+     *
+     * @param matchCacheSize the maximum number of entries, or 0 to disable the cache.
+     */
+    public void setMatchCacheSize(final int matchCacheSize) {
+        this.matchCache = matchCacheSize > 0 ? new ServiceMatchCache(matchCacheSize) : null;
+    }
+
+    /**
+     * @return the match cache, or null if caching is disabled.
+     */
+    public ServiceMatchCache getMatchCache() {
+        return this.matchCache;
+    }
     
     private RegisteredService constructDefaultRegisteredService(final List<String> attributes) {
         final RegisteredServiceImpl r = new RegisteredServiceImpl();
@@ -50,6 +50,14 @@ public interface RegisteredService extends Cloneable, Serializable {
      */
     List<String> getAllowedAttributes();
 
+    /**
+     * Returns the allowed attributes compiled for filtering, which may also
+     * hold wildcard and regular expression rules.
+     *
+     * @return the filter of the attributes released to this service.
+     */
+    AttributeReleaseFilter getAttributeReleaseFilter();
+
     /**
      * Is this application allowed to take part in the proxying capabilities of
      * CAS?
@@ -89,6 +97,14 @@ public interface RegisteredService extends Cloneable, Serializable {
      */
     boolean isSsoEnabled();
 
+    /**
+     * Does this application accept single sign-out requests that carry the
+     * session indexes of several sessions at once?
+     *
+     * @return true if logout requests to it may be coalesced, false otherwise.
+     */
+    boolean isLogoutCoalescingEnabled();
+
     /**
      * Returns the description of the service.
      * 
@@ -54,6 +54,9 @@ public class RegisteredServiceImpl
     @IndexColumn(name = "a_id")
     private List<String> allowedAttributes = new ArrayList<String>();
 
+    /** Compiled from the allowed attributes on first use. */
+    private transient volatile AttributeReleaseFilter attributeReleaseFilter;
+
     private String description;
 
     private String serviceId;
@@ -71,6 +74,8 @@ public class RegisteredServiceImpl
     private boolean anonymousAccess = false;
     
     private boolean ignoreAttributes = false;
+
+    private boolean logoutCoalescingEnabled = false;
    
     @Column(name = "evaluation_order", nullable = false)
     private int evaluationOrder;
@@ -87,6 +92,20 @@ public class RegisteredServiceImpl
         return this.allowedAttributes;
     }
 
+    /**
+     * Compiled once from the allowed attributes; replacing them with
+     * {@link #setAllowedAttributes(List)} compiles them again.
+     */
+    public AttributeReleaseFilter getAttributeReleaseFilter() {
+        AttributeReleaseFilter filter = this.attributeReleaseFilter;
+
+        if (filter == null) {
+            filter = new AttributeReleaseFilter(this.allowedAttributes);
+            this.attributeReleaseFilter = filter;
+        }
+        return filter;
+    }
+
     public long getId() {
         return this.id;
     }
@@ -115,6 +134,10 @@ public class RegisteredServiceImpl
         return this.enabled;
     }
 
+    public boolean isLogoutCoalescingEnabled() {
+        return this.logoutCoalescingEnabled;
+    }
+
     public boolean isSsoEnabled() {
         return this.ssoEnabled;
     }
@@ -136,6 +159,7 @@ public class RegisteredServiceImpl
         if (evaluationOrder != that.evaluationOrder) return false;
         if (ignoreAttributes != that.ignoreAttributes) return false;
         if (ssoEnabled != that.ssoEnabled) return false;
+        if (logoutCoalescingEnabled != that.logoutCoalescingEnabled) return false;
         if (allowedAttributes != null ? !allowedAttributes.equals(that.allowedAttributes) : that.allowedAttributes != null)
             return false;
         if (description != null ? !description.equals(that.description) : that.description != null) return false;
@@ -158,6 +182,7 @@ public class RegisteredServiceImpl
         result = 31 * result + (ssoEnabled ? 1 : 0);
         result = 31 * result + (anonymousAccess ? 1 : 0);
         result = 31 * result + (ignoreAttributes ? 1 : 0);
+        result = 31 * result + (logoutCoalescingEnabled ? 1 : 0);
         result = 31 * result + evaluationOrder;
         return result;
     }
@@ -168,6 +193,7 @@ public class RegisteredServiceImpl
         } else {
             this.allowedAttributes = allowedAttributes;
         }
+        this.attributeReleaseFilter = null;
     }
 
     public void setAllowedToProxy(final boolean allowedToProxy) {
@@ -198,6 +224,10 @@ public class RegisteredServiceImpl
         this.ssoEnabled = ssoEnabled;
     }
 
+    public void setLogoutCoalescingEnabled(final boolean logoutCoalescingEnabled) {
+        this.logoutCoalescingEnabled = logoutCoalescingEnabled;
+    }
+
     public void setTheme(final String theme) {
         this.theme = theme;
     }
@@ -233,6 +263,7 @@ public class RegisteredServiceImpl
         registeredServiceImpl.setAnonymousAccess(this.anonymousAccess);
         registeredServiceImpl.setIgnoreAttributes(this.ignoreAttributes);
         registeredServiceImpl.setEvaluationOrder(this.evaluationOrder);
+        registeredServiceImpl.setLogoutCoalescingEnabled(this.logoutCoalescingEnabled);
 
         return registeredServiceImpl;
     }
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.uportal.org/license.html
+ */
+package org.jasig.cas.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.jasig.cas.authentication.principal.Service;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.util.StringUtils;
+
+/**
+ * Immutable, precompiled view of a set of {@link RegisteredService}s that
+ * answers "which service matches this URL" without evaluating every entry.
+ * <p>
+ * Patterns of {@link RegisteredServiceImpl} are lower-cased once and split on
+ * "/" exactly the way {@link AntPathMatcher} tokenizes them.  The leading
+ * tokens that contain no wildcard (typically the scheme and the host) are
+ * stored in a trie, so a lookup only walks as many nodes as the URL has
+ * segments and collects the few patterns that could possibly match.  Those
+ * candidates, plus any RegisteredService implementation whose matching rules
+ * are unknown to us, are then checked in evaluation order, so the first
+ * match returned is the same one a linear scan of the sorted services would
+ * have found.
+ * <p>
+ * Instances are built when the registry changes and are never mutated
+ * afterwards, which makes them safe to share between threads.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class RegisteredServiceIndex {
+
+    private static final String PATH_SEPARATOR = "/";
+
+    private static final PathMatcher PATH_MATCHER = new AntPathMatcher();
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    /** Root of the literal-prefix trie. */
+    private final Node root = new Node();
+
+    /** Entries we cannot index and that must always be evaluated. */
+    private final Entry[] fallbackEntries;
+
+    private final int size;
+
+    public RegisteredServiceIndex(final Collection<RegisteredService> registeredServices) {
+        final List<Entry> fallback = new ArrayList<Entry>();
+        int rank = 0;
+
+        for (final RegisteredService r : new TreeSet<RegisteredService>(registeredServices)) {
+            final Entry entry = new Entry(r, rank++);
+
+            if (r.getClass() == RegisteredServiceImpl.class && r.getServiceId() != null) {
+                final String pattern = r.getServiceId().toLowerCase();
+                entry.pattern = pattern;
+                this.root.add(pattern.startsWith(PATH_SEPARATOR), literalPrefixOf(pattern), 0, entry);
+            } else {
+                fallback.add(entry);
+            }
+        }
+
+        this.fallbackEntries = fallback.toArray(new Entry[fallback.size()]);
+        this.size = rank;
+        this.root.seal();
+    }
+
+    /**
+     * @return true if no services were indexed.
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return the number of services that were indexed.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Locates the first RegisteredService, in evaluation order, that matches
+     * the supplied service.
+     *
+     * @param service the service to match.
+     * @return the matching RegisteredService or null if there is none.
+     */
+    public RegisteredService findFirstMatch(final Service service) {
+        if (service == null || this.size == 0) {
+            return null;
+        }
+
+        final String path = service.getId() == null ? null : service.getId().toLowerCase();
+        Entry best = null;
+
+        if (path != null) {
+            final String[] tokens = StringUtils.tokenizeToStringArray(path, PATH_SEPARATOR);
+            final boolean absolute = path.startsWith(PATH_SEPARATOR);
+            Node node = this.root;
+            int depth = 0;
+
+            while (node != null) {
+                best = firstMatch(absolute ? node.absoluteEntries : node.relativeEntries, path, service, best);
+
+                if (depth == tokens.length || node.children == null) {
+                    break;
+                }
+                node = node.children.get(tokens[depth++]);
+            }
+        }
+
+        return unwrap(firstMatch(this.fallbackEntries, path, service, best));
+    }
+
+    private static Entry firstMatch(final Entry[] entries, final String path, final Service service, final Entry currentBest) {
+        // entries are sorted by rank, so the first one that matches is the best of this node
+        for (final Entry entry : entries) {
+            if (currentBest != null && entry.rank > currentBest.rank) {
+                return currentBest;
+            }
+
+            if (entry.matches(path, service)) {
+                return entry;
+            }
+        }
+        return currentBest;
+    }
+
+    private static RegisteredService unwrap(final Entry entry) {
+        return entry == null ? null : entry.registeredService;
+    }
+
+    /**
+     * Returns the leading tokens of the pattern that contain no Ant wildcard
+     * or URI template variable.
+     */
+    private static String[] literalPrefixOf(final String pattern) {
+        final String[] tokens = StringUtils.tokenizeToStringArray(pattern, PATH_SEPARATOR);
+        int i = 0;
+
+        while (i < tokens.length && isLiteral(tokens[i])) {
+            i++;
+        }
+
+        final String[] prefix = new String[i];
+        System.arraycopy(tokens, 0, prefix, 0, i);
+        return prefix;
+    }
+
+    private static boolean isLiteral(final String token) {
+        return token.indexOf('*') == -1 && token.indexOf('?') == -1 && token.indexOf('{') == -1;
+    }
+
+    private static final class Entry {
+
+        private final RegisteredService registeredService;
+
+        private final int rank;
+
+        /** Lower-cased Ant pattern, or null if matching is delegated to the service. */
+        private String pattern;
+
+        private Entry(final RegisteredService registeredService, final int rank) {
+            this.registeredService = registeredService;
+            this.rank = rank;
+        }
+
+        private boolean matches(final String path, final Service service) {
+            if (this.pattern == null) {
+                return this.registeredService.matches(service);
+            }
+            return path != null && PATH_MATCHER.match(this.pattern, path);
+        }
+    }
+
+    private static final class Node {
+
+        private Map<String, Node> children;
+
+        private List<Entry> absolute;
+
+        private List<Entry> relative;
+
+        private Entry[] absoluteEntries = NO_ENTRIES;
+
+        private Entry[] relativeEntries = NO_ENTRIES;
+
+        private void add(final boolean isAbsolute, final String[] tokens, final int depth, final Entry entry) {
+            if (depth == tokens.length) {
+                if (isAbsolute) {
+                    this.absolute = append(this.absolute, entry);
+                } else {
+                    this.relative = append(this.relative, entry);
+                }
+                return;
+            }
+
+            if (this.children == null) {
+                this.children = new HashMap<String, Node>();
+            }
+
+            Node child = this.children.get(tokens[depth]);
+            if (child == null) {
+                child = new Node();
+                this.children.put(tokens[depth], child);
+            }
+            child.add(isAbsolute, tokens, depth + 1, entry);
+        }
+
+        private static List<Entry> append(final List<Entry> list, final Entry entry) {
+            final List<Entry> result = list == null ? new ArrayList<Entry>() : list;
+            result.add(entry);
+            return result;
+        }
+
+        private void seal() {
+            this.absoluteEntries = toArray(this.absolute);
+            this.relativeEntries = toArray(this.relative);
+            this.absolute = null;
+            this.relative = null;
+
+            if (this.children != null) {
+                for (final Node child : this.children.values()) {
+                    child.seal();
+                }
+            }
+        }
+
+        /** Entries are added in evaluation order, so the resulting array is already sorted by rank. */
+        private static Entry[] toArray(final List<Entry> list) {
+            return list == null ? NO_ENTRIES : list.toArray(new Entry[list.size()]);
+        }
+    }
+}
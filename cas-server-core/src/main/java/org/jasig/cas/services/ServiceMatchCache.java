@@ -0,0 +1,235 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.uportal.org/license.html
+ */
+package org.jasig.cas.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+/**
+ * Size-bounded, least-recently-used cache of service id to the
+ * {@link RegisteredService} it matched.  Negative results are cached as well,
+ * since unknown services are looked up just as often as known ones.
+ * <p>
+ * The cache is split into segments by the hash of the key, each with its own
+ * lock and an equal share of the maximum size, so that concurrent lookups of
+ * different services seldom wait on each other.  The least recently used
+ * entry is evicted from the segment that is full, so eviction is only least
+ * recently used overall with a single segment.
+ * <p>
+ * Every entry remembers the {@link RegisteredServiceIndex} it was computed
+ * from.  An entry is only returned for the index that is current at lookup
+ * time, so a result computed against an older set of services can never be
+ * served once the registry has changed, even if it was written concurrently
+ * with {@link #clear()}.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class ServiceMatchCache {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final int maxSize;
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+
+    public ServiceMatchCache(final int maxSize) {
+        this(maxSize, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxSize the maximum number of entries.
+     * @param segments the number of independently locked segments.  Rounded
+     * up to a power of two, but no more than maxSize.
+     */
+    public ServiceMatchCache(final int maxSize, final int segments) {
+        Assert.isTrue(maxSize > 0, "maxSize must be greater than zero.");
+        Assert.isTrue(segments > 0, "segments must be greater than zero.");
+        this.maxSize = maxSize;
+
+        int count = 1;
+        int bits = 0;
+        while (count < segments && count * 2 <= maxSize) {
+            count <<= 1;
+            bits++;
+        }
+
+        this.segmentShift = 32 - bits;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+        }
+    }
+
+    /**
+     * Normalizes a service id into the key used by this cache.  Matching is
+     * case insensitive, so the key is too.
+     *
+     * @param serviceId the id of the service.
+     * @return the cache key, or null if the id cannot be cached.
+     */
+    public static String keyFor(final String serviceId) {
+        return serviceId == null ? null : serviceId.toLowerCase();
+    }
+
+    /**
+     * Looks up the cached result for the key.
+     *
+     * @param key the normalized service id.
+     * @param index the index that is current for the caller.
+     * @return the cached match, or null if the result is unknown.  A cached
+     * negative result is returned as a CachedMatch whose service is null.
+     */
+    public CachedMatch get(final String key, final RegisteredServiceIndex index) {
+        return segmentFor(key).get(key, index);
+    }
+
+    public void put(final String key, final RegisteredServiceIndex index, final RegisteredService registeredService) {
+        segmentFor(key).put(key, new CachedMatch(index, registeredService));
+    }
+
+    public void clear() {
+        for (final Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    public long getHitCount() {
+        long hits = 0;
+        for (final Segment segment : this.segments) {
+            hits += segment.getHits();
+        }
+        return hits;
+    }
+
+    public long getMissCount() {
+        long misses = 0;
+        for (final Segment segment : this.segments) {
+            misses += segment.getMisses();
+        }
+        return misses;
+    }
+
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (final Segment segment : this.segments) {
+            evictions += segment.getEvictions();
+        }
+        return evictions;
+    }
+
+    private Segment segmentFor(final String key) {
+        if (this.segments.length == 1) {
+            return this.segments[0];
+        }
+        final int h = key.hashCode() * 0x9E3779B9;
+        return this.segments[(h ^ (h >>> 16)) >>> this.segmentShift];
+    }
+
+    /**
+     * Entries of the keys that hash to one segment, in access order, along
+     * with their statistics.  All guarded by the segment itself.
+     */
+    private static final class Segment {
+
+        private final Map<String, CachedMatch> entries;
+
+        private long hits;
+
+        private long misses;
+
+        private long evictions;
+
+        private Segment(final int maxSize) {
+            this.entries = new LinkedHashMap<String, CachedMatch>(16, 0.75f, true) {
+                private static final long serialVersionUID = 3954129585458154562L;
+
+                protected boolean removeEldestEntry(final Map.Entry<String, CachedMatch> eldest) {
+                    if (size() > maxSize) {
+                        Segment.this.evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private synchronized CachedMatch get(final String key, final RegisteredServiceIndex index) {
+            final CachedMatch match = this.entries.get(key);
+
+            if (match != null && match.index == index) {
+                this.hits++;
+                return match;
+            }
+
+            this.misses++;
+            return null;
+        }
+
+        private synchronized void put(final String key, final CachedMatch match) {
+            this.entries.put(key, match);
+        }
+
+        private synchronized void clear() {
+            this.entries.clear();
+        }
+
+        private synchronized int size() {
+            return this.entries.size();
+        }
+
+        private synchronized long getHits() {
+            return this.hits;
+        }
+
+        private synchronized long getMisses() {
+            return this.misses;
+        }
+
+        private synchronized long getEvictions() {
+            return this.evictions;
+        }
+    }
+
+    /**
+     * Result of a previous lookup.
+     */
+    public static final class CachedMatch {
+
+        private final RegisteredServiceIndex index;
+
+        private final RegisteredService registeredService;
+
+        private CachedMatch(final RegisteredServiceIndex index, final RegisteredService registeredService) {
+            this.index = index;
+            this.registeredService = registeredService;
+        }
+
+        /**
+         * @return the matched service, or null if nothing matched.
+         */
+        public RegisteredService getRegisteredService() {
+            return this.registeredService;
+        }
+    }
+}
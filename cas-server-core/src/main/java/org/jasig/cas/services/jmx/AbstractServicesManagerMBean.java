@@ -1,7 +1,9 @@
 package org.jasig.cas.services.jmx;
 
+import org.jasig.cas.services.DefaultServicesManagerImpl;
 import org.jasig.cas.services.RegisteredService;
 import org.jasig.cas.services.RegisteredServiceImpl;
+import org.jasig.cas.services.ServiceMatchCache;
 import org.jasig.cas.services.ServicesManager;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
@@ -43,6 +45,7 @@ public abstract class AbstractServicesManagerMBean<T extends ServicesManager> {
                 .append(" name: ").append(r.getName())
                 .append(" enabled: ").append(r.isEnabled())
                 .append(" ssoEnabled: ").append(r.isSsoEnabled())
+                .append(" logoutCoalescingEnabled: ").append(r.isLogoutCoalescingEnabled())
                 .append(" serviceId: ").append(r.getServiceId())
                 .toString());
         }
@@ -68,6 +71,37 @@ public abstract class AbstractServicesManagerMBean<T extends ServicesManager> {
         changeEnabledState(id, true);
     }
 
+    @ManagedAttribute(description = "Number of service lookups answered from the match cache.")
+    public final long getMatchCacheHits() {
+        final ServiceMatchCache cache = getMatchCache();
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    @ManagedAttribute(description = "Number of service lookups that had to evaluate the registered services.")
+    public final long getMatchCacheMisses() {
+        final ServiceMatchCache cache = getMatchCache();
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    @ManagedAttribute(description = "Number of entries evicted from the match cache because it was full.")
+    public final long getMatchCacheEvictions() {
+        final ServiceMatchCache cache = getMatchCache();
+        return cache == null ? 0 : cache.getEvictionCount();
+    }
+
+    @ManagedAttribute(description = "Number of service ids currently held in the match cache.")
+    public final int getMatchCacheSize() {
+        final ServiceMatchCache cache = getMatchCache();
+        return cache == null ? 0 : cache.size();
+    }
+
+    private ServiceMatchCache getMatchCache() {
+        if (this.servicesManager instanceof DefaultServicesManagerImpl) {
+            return ((DefaultServicesManagerImpl) this.servicesManager).getMatchCache();
+        }
+        return null;
+    }
+
     private void changeEnabledState(final long id, final boolean newState) {
         final RegisteredService r = this.servicesManager.findServiceBy(id);
         Assert.notNull(r, "invalid RegisteredService id");
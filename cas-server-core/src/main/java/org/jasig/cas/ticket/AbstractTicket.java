@@ -5,11 +5,20 @@
  */
 package org.jasig.cas.ticket;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import javax.persistence.Column;
+import javax.persistence.Embedded;
 import javax.persistence.Id;
 import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
 import javax.persistence.MappedSuperclass;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 
 import org.springframework.util.Assert;
 
@@ -20,6 +29,11 @@ import org.springframework.util.Assert;
  * implementations of the Ticket interface extend the AbstractTicket as it
  * handles common functionality amongst different ticket types (such as state
  * updating).
+ * <p>
+ * The usage state is kept in an immutable {@link TicketUsage} that is replaced
+ * atomically, so tickets can be used concurrently without locking.  It is
+ * serialized along with the fields that held it before, so tickets serialized
+ * by either form can be read by the other.
  * 
  * @author Scott Battaglia
  * @version $Revision: 15367 $ $Date: 2008-03-07 15:29:18 -0500 (Fri, 07 Mar 2008) $
@@ -28,6 +42,28 @@ import org.springframework.util.Assert;
 @MappedSuperclass
 public abstract class AbstractTicket implements Ticket, TicketState {
 
+    /** Unique Id for Serialization, as computed for the fields of 3.4. */
+    private static final long serialVersionUID = -2418635416750736300L;
+
+    /**
+     * The serialized fields: those of the class, then the usage state as it
+     * was serialized before it was kept in a TicketUsage.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("expirationPolicy", ExpirationPolicy.class),
+        new ObjectStreamField("id", String.class),
+        new ObjectStreamField("ticketGrantingTicket", TicketGrantingTicketImpl.class),
+        new ObjectStreamField("usage", TicketUsage.class),
+        new ObjectStreamField("creationTime", Long.TYPE),
+        new ObjectStreamField("expiresAt", Long.class),
+        new ObjectStreamField("lastTimeUsed", Long.TYPE),
+        new ObjectStreamField("previousLastTimeUsed", Long.TYPE),
+        new ObjectStreamField("countOfUses", Integer.TYPE)
+    };
+
+    private static final AtomicReferenceFieldUpdater<AbstractTicket, TicketUsage> USAGE_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(AbstractTicket.class, TicketUsage.class, "usage");
+
     /** The ExpirationPolicy this ticket will be following. */
     // XXX removed final
     @Lob
@@ -43,22 +79,29 @@ public abstract class AbstractTicket implements Ticket, TicketState {
     @ManyToOne
     private TicketGrantingTicketImpl ticketGrantingTicket;
 
-    /** The last time this ticket was used. */
-    @Column(name="LAST_TIME_USED")
-    private long lastTimeUsed;
-
-    /** The previous last time this ticket was used. */
-    @Column(name="PREVIOUS_LAST_TIME_USED")
-    private long previousLastTimeUsed;
+    /** When and how often this ticket was used. */
+    @Embedded
+    private volatile TicketUsage usage = new TicketUsage();
 
     /** The time the ticket was created. */
     @Column(name="CREATION_TIME")
     private long creationTime;
 
-    /** The number of times this was used. */
-    @Column(name="NUMBER_OF_TIMES_USED")
-    private int countOfUses;
-    
+    /**
+     * The earliest time the ticket may expire, as of when it was last
+     * stored, so that a database can find expired tickets by itself.  Null
+     * if its ExpirationPolicy cannot tell.
+     */
+    @Column(name="EXPIRES_AT")
+    private Long expiresAt;
+
+    /**
+     * The hash of the id, as of when the ticket was last stored, so that a
+     * database can split the tickets into shards by itself.
+     */
+    @Column(name="SHARD_KEY")
+    private int shardKey;
+
     protected AbstractTicket() {
         // nothing to do
     }
@@ -79,7 +122,7 @@ public abstract class AbstractTicket implements Ticket, TicketState {
 
         this.id = id;
         this.creationTime = System.currentTimeMillis();
-        this.lastTimeUsed = System.currentTimeMillis();
+        this.usage = new TicketUsage(this.creationTime, 0, 0);
         this.expirationPolicy = expirationPolicy;
         this.ticketGrantingTicket = ticket;
     }
@@ -88,14 +131,50 @@ public abstract class AbstractTicket implements Ticket, TicketState {
         return this.id;
     }
 
-    protected final void updateState() {
-        this.previousLastTimeUsed = this.lastTimeUsed;
-        this.lastTimeUsed = System.currentTimeMillis();
-        this.countOfUses++;
+    /**
+     * Records a use of this ticket.
+     *
+     * @return the usage state before this use.
+     */
+    protected final TicketUsage updateState() {
+        final long now = System.currentTimeMillis();
+
+        while (true) {
+            final TicketUsage current = this.usage;
+
+            if (USAGE_UPDATER.compareAndSet(this, current, current.next(now))) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Records a use of this ticket unless it has expired.  Expiration is
+     * decided against the exact state the use replaces, so of several
+     * concurrent callers only as many succeed as the ExpirationPolicy allows.
+     *
+     * @return true if the use was recorded, false if the ticket has expired.
+     */
+    protected final boolean updateStateIfNotExpired() {
+        while (true) {
+            final TicketUsage current = this.usage;
+
+            if (isExpired()) {
+                // only trust the answer if it was based on the current state
+                if (this.usage == current) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (USAGE_UPDATER.compareAndSet(this, current, current.next(System.currentTimeMillis()))) {
+                return true;
+            }
+        }
     }
 
     public final int getCountOfUses() {
-        return this.countOfUses;
+        return this.usage.getCountOfUses();
     }
 
     public final long getCreationTime() {
@@ -107,11 +186,39 @@ public abstract class AbstractTicket implements Ticket, TicketState {
     }
 
     public final long getLastTimeUsed() {
-        return this.lastTimeUsed;
+        return this.usage.getLastTimeUsed();
     }
 
     public final long getPreviousTimeUsed() {
-        return this.previousLastTimeUsed;
+        return this.usage.getPreviousLastTimeUsed();
+    }
+
+    /**
+     * @return the ExpirationPolicy this ticket follows.
+     */
+    public final ExpirationPolicy getExpirationPolicy() {
+        return this.expirationPolicy;
+    }
+
+    /**
+     * Brings the stored expiration time up to date with the current state
+     * of the ticket, and sets the shard key, before it is written.
+     */
+    @PrePersist
+    @PreUpdate
+    protected void updateIndexedColumns() {
+        this.shardKey = this.id.hashCode() & Integer.MAX_VALUE;
+
+        final long expirationTime = this.expirationPolicy instanceof TimeBasedExpirationPolicy
+            ? ((TimeBasedExpirationPolicy) this.expirationPolicy).getExpirationTime(this) : TimeBasedExpirationPolicy.EXPIRATION_TIME_UNKNOWN;
+
+        if (isExpiredInternal()) {
+            this.expiresAt = Long.valueOf(System.currentTimeMillis());
+        } else if (expirationTime != TimeBasedExpirationPolicy.EXPIRATION_TIME_UNKNOWN) {
+            this.expiresAt = Long.valueOf(expirationTime);
+        } else {
+            this.expiresAt = null;
+        }
     }
 
     public final boolean isExpired() {
@@ -126,6 +233,40 @@ public abstract class AbstractTicket implements Ticket, TicketState {
         return 34 ^ this.getId().hashCode();
     }
 
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final TicketUsage current = this.usage;
+        final ObjectOutputStream.PutField fields = out.putFields();
+
+        fields.put("expirationPolicy", this.expirationPolicy);
+        fields.put("id", this.id);
+        fields.put("ticketGrantingTicket", this.ticketGrantingTicket);
+        fields.put("usage", current);
+        fields.put("creationTime", this.creationTime);
+        fields.put("expiresAt", this.expiresAt);
+        fields.put("lastTimeUsed", current.getLastTimeUsed());
+        fields.put("previousLastTimeUsed", current.getPreviousLastTimeUsed());
+        fields.put("countOfUses", current.getCountOfUses());
+        out.writeFields();
+    }
+
+    /**
+     * Reads tickets serialized before the usage state was kept in a
+     * TicketUsage from the fields that held it then.
+     */
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+
+        this.expirationPolicy = (ExpirationPolicy) fields.get("expirationPolicy", null);
+        this.id = (String) fields.get("id", null);
+        this.ticketGrantingTicket = (TicketGrantingTicketImpl) fields.get("ticketGrantingTicket", null);
+        this.creationTime = fields.get("creationTime", 0L);
+        this.expiresAt = (Long) fields.get("expiresAt", null);
+
+        final TicketUsage stored = (TicketUsage) fields.get("usage", null);
+        this.usage = stored != null ? stored
+            : new TicketUsage(fields.get("lastTimeUsed", 0L), fields.get("previousLastTimeUsed", 0L), fields.get("countOfUses", 0));
+    }
+
     public final String toString() {
         return this.id;
     }
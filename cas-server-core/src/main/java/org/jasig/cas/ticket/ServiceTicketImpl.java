@@ -5,11 +5,14 @@
  */
 package org.jasig.cas.ticket;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Lob;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Index;
 import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.principal.Service;
 import org.springframework.util.Assert;
@@ -26,12 +29,16 @@ import org.springframework.util.Assert;
  */
 @Entity
 @Table(name="SERVICETICKET")
+@org.hibernate.annotations.Table(appliesTo="SERVICETICKET", indexes=@Index(name="ST_EXPIRES_AT_IDX", columnNames="EXPIRES_AT"))
 public final class ServiceTicketImpl extends AbstractTicket implements
     ServiceTicket {
 
     /** Unique Id for serialization. */
     private static final long serialVersionUID = -4223319704861765405L;
 
+    private static final AtomicReferenceFieldUpdater<ServiceTicketImpl, Boolean> GRANTED_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(ServiceTicketImpl.class, Boolean.class, "grantedTicketAlready");
+
     /** The service this ticket is valid for. */
     @Lob
     @Column(name="SERVICE",nullable=false)
@@ -42,7 +49,7 @@ public final class ServiceTicketImpl extends AbstractTicket implements
     private boolean fromNewLogin;
 
     @Column(name="TICKET_ALREADY_GRANTED",nullable=false)
-    private Boolean grantedTicketAlready = false;
+    private volatile Boolean grantedTicketAlready = Boolean.FALSE;
     
     public ServiceTicketImpl() {
         // exists for JPA purposes
@@ -81,20 +88,22 @@ public final class ServiceTicketImpl extends AbstractTicket implements
         return this.service;
     }
 
+    /**
+     * Uses up this ticket, unless it has already expired, and checks the
+     * service.  Concurrent validations can therefore never use the ticket
+     * more often than its ExpirationPolicy allows.
+     */
     public boolean isValidFor(final Service serviceToValidate) {
-        updateState();
-        return serviceToValidate.matches(this.service);
+        return updateStateIfNotExpired() && serviceToValidate.matches(this.service);
     }
 
     public TicketGrantingTicket grantTicketGrantingTicket(
         final String id, final Authentication authentication,
         final ExpirationPolicy expirationPolicy) {
-        synchronized (this) {
-            if(this.grantedTicketAlready) {
-                throw new IllegalStateException(
-                    "TicketGrantingTicket already generated for this ServiceTicket.  Cannot grant more than one TGT for ServiceTicket");
-            }
-            this.grantedTicketAlready = true;
+        final Boolean current = this.grantedTicketAlready;
+        if (current.booleanValue() || !GRANTED_UPDATER.compareAndSet(this, current, Boolean.TRUE)) {
+            throw new IllegalStateException(
+                "TicketGrantingTicket already generated for this ServiceTicket.  Cannot grant more than one TGT for ServiceTicket");
         }
 
         return new TicketGrantingTicketImpl(id, (TicketGrantingTicketImpl) this.getGrantingTicket(),
@@ -9,13 +9,16 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Lob;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Index;
 import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.principal.Service;
 import org.slf4j.Logger;
@@ -35,6 +38,7 @@ import org.springframework.util.Assert;
  */
 @Entity
 @Table(name="TICKETGRANTINGTICKET")
+@org.hibernate.annotations.Table(appliesTo="TICKETGRANTINGTICKET", indexes=@Index(name="TGT_EXPIRES_AT_IDX", columnNames="EXPIRES_AT"))
 public final class TicketGrantingTicketImpl extends AbstractTicket implements
     TicketGrantingTicket {
 
@@ -43,6 +47,9 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
 
     private static final Logger LOG = LoggerFactory.getLogger(TicketGrantingTicketImpl.class);
 
+    private static final AtomicReferenceFieldUpdater<TicketGrantingTicketImpl, Boolean> EXPIRED_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(TicketGrantingTicketImpl.class, Boolean.class, "expired");
+
     /** The authenticated object for which this ticket was generated for. */
     @Lob
     @Column(name="AUTHENTICATION", nullable=false)
@@ -50,8 +57,9 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
 
     /** Flag to enforce manual expiration. */
     @Column(name="EXPIRED", nullable=false)
-    private Boolean expired = false;
-    
+    private volatile Boolean expired = Boolean.FALSE;
+
+    /** Guarded by itself; the lock is only held to update or copy the map. */
     @Lob
     @Column(name="SERVICES_GRANTED_ACCESS_TO", nullable=false)
     private final HashMap<String,Service> services = new HashMap<String, Service>();
@@ -96,25 +104,32 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
         return this.authentication;
     }
 
-    public synchronized ServiceTicket grantServiceTicket(final String id,
+    public ServiceTicket grantServiceTicket(final String id,
         final Service service, final ExpirationPolicy expirationPolicy,
         final boolean credentialsProvided) {
+        // only the grant that moves the count from zero is a new login
+        final TicketUsage previousUsage = updateState();
         final ServiceTicket serviceTicket = new ServiceTicketImpl(id, this,
-            service, this.getCountOfUses() == 0 || credentialsProvided,
+            service, previousUsage.getCountOfUses() == 0 || credentialsProvided,
             expirationPolicy);
 
-        updateState();
-        
         final List<Authentication> authentications = getChainedAuthentications();
         service.setPrincipal(authentications.get(authentications.size()-1).getPrincipal());
         
-        this.services.put(id, service);
+        synchronized (this.services) {
+            this.services.put(id, service);
+        }
 
         return serviceTicket;
     }
     
     private void logOutOfServices() {
-        for (final Entry<String, Service> entry : this.services.entrySet()) {
+        final Map<String, Service> servicesToLogOut;
+        synchronized (this.services) {
+            servicesToLogOut = new HashMap<String, Service>(this.services);
+        }
+
+        for (final Entry<String, Service> entry : servicesToLogOut.entrySet()) {
 
             if (!entry.getValue().logOutOfService(entry.getKey())) {
                 LOG.warn("Logout message not sent to [" + entry.getValue().getId() + "]; Continuing processing...");   
@@ -126,13 +141,24 @@ public final class TicketGrantingTicketImpl extends AbstractTicket implements
         return this.getGrantingTicket() == null;
     }
 
-    public synchronized void expire() {
-        this.expired = true;
+    public void expire() {
+        while (true) {
+            final Boolean current = this.expired;
+
+            if (current.booleanValue()) {
+                // someone else expired this ticket and sent the logout requests
+                return;
+            }
+
+            if (EXPIRED_UPDATER.compareAndSet(this, current, Boolean.TRUE)) {
+                break;
+            }
+        }
         logOutOfServices();
     }
 
     public boolean isExpiredInternal() {
-        return this.expired;
+        return this.expired.booleanValue();
     }
 
     public List<Authentication> getChainedAuthentications() {
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * Immutable record of how often and when a ticket was used.  A ticket moves
+ * from one record to the next with a compare-and-set, so concurrent users of
+ * the same ticket never see the count and the timestamps out of step.
+ * <p>
+ * The fields are only non-final so that JPA can populate them.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@Embeddable
+public final class TicketUsage implements Serializable {
+
+    private static final long serialVersionUID = -2811475431282359387L;
+
+    /** The last time this ticket was used. */
+    @Column(name="LAST_TIME_USED")
+    private long lastTimeUsed;
+
+    /** The previous last time this ticket was used. */
+    @Column(name="PREVIOUS_LAST_TIME_USED")
+    private long previousLastTimeUsed;
+
+    /** The number of times this was used. */
+    @Column(name="NUMBER_OF_TIMES_USED")
+    private int countOfUses;
+
+    public TicketUsage() {
+        // exists for JPA purposes
+    }
+
+    public TicketUsage(final long lastTimeUsed, final long previousLastTimeUsed, final int countOfUses) {
+        this.lastTimeUsed = lastTimeUsed;
+        this.previousLastTimeUsed = previousLastTimeUsed;
+        this.countOfUses = countOfUses;
+    }
+
+    /**
+     * @param time the time of the new use.
+     * @return the record after one more use at the given time.
+     */
+    public TicketUsage next(final long time) {
+        return new TicketUsage(time, this.lastTimeUsed, this.countOfUses + 1);
+    }
+
+    public long getLastTimeUsed() {
+        return this.lastTimeUsed;
+    }
+
+    public long getPreviousLastTimeUsed() {
+        return this.previousLastTimeUsed;
+    }
+
+    public int getCountOfUses() {
+        return this.countOfUses;
+    }
+}
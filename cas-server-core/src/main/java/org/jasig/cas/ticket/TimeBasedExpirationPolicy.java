@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket;
+
+/**
+ * An {@link ExpirationPolicy} that can tell, from the current state of a
+ * ticket, the earliest moment at which that ticket may become expired.
+ * <p>
+ * This allows registries and cleaners to schedule the expiration check of a
+ * ticket instead of evaluating every ticket on every run.  The value is only a
+ * lower bound: a ticket that is used again may live longer than predicted, and
+ * callers must still confirm expiration with {@link #isExpired(TicketState)}.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ * @see org.jasig.cas.ticket.ExpirationPolicy
+ */
+public interface TimeBasedExpirationPolicy extends ExpirationPolicy {
+
+    /** Value returned for tickets that will never expire under this policy. */
+    long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    /**
+     * Value returned when the policy cannot tell, e.g. because it delegates to
+     * a policy that is not time based.  Callers treat the ticket as if its
+     * policy was not time based.
+     */
+    long EXPIRATION_TIME_UNKNOWN = Long.MIN_VALUE;
+
+    /**
+     * Returns the earliest time, in milliseconds since the epoch, at which the
+     * ticket may be considered expired.  A time in the past means the ticket
+     * should be checked right away.
+     *
+     * @param ticketState The snapshot of the current ticket state.
+     * @return the earliest possible expiration time, {@link #NEVER_EXPIRES} or
+     * {@link #EXPIRATION_TIME_UNKNOWN}.
+     */
+    long getExpirationTime(TicketState ticketState);
+}
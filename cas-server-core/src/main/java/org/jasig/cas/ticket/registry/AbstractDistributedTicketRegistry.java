@@ -5,7 +5,19 @@
  */
 package org.jasig.cas.ticket.registry;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.principal.Service;
@@ -15,6 +27,7 @@ import org.jasig.cas.ticket.Ticket;
 import org.jasig.cas.ticket.TicketGrantingTicket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 /**
  * Abstract Implementation that handles some of the commonalities between
@@ -24,19 +37,210 @@ import org.slf4j.LoggerFactory;
  * @version $Revision: 22533 $ $Date: 2010-11-27 15:25:26 -0500 (Sat, 27 Nov 2010) $
  * @since 3.1
  */
-public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRegistry {
+public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRegistry implements DisposableBean {
     
+    /**
+     * How long, in milliseconds, the deletion of a ticket keeps updates of it
+     * from being written behind: longer than a request holding a copy of the
+     * ticket takes.
+     */
+    private static final long TOMBSTONE_TIME_TO_LIVE = 60000;
+
     protected final Logger log = LoggerFactory.getLogger(this.getClass());
 
+    /** Writes the pending updates once writing behind is enabled. */
+    private volatile ScheduledExecutorService flusher;
+
+    /** TicketGrantingTickets recently read; disabled by default. */
+    private final TicketGrantingTicketCache nearCache = new TicketGrantingTicketCache(10000, 0);
+
+    /** The latest copy of each ticket updated but not yet written. */
+    private final ConcurrentHashMap<String, Ticket> pendingUpdates = new ConcurrentHashMap<String, Ticket>();
+
+    /**
+     * The tickets deleted while writing behind, oldest first, with when their
+     * deletion expires; guarded by the flush lock.  An update of one of them
+     * is not written, even if a copy read before the deletion queued it after.
+     */
+    private final Map<String, Long> tombstones = new LinkedHashMap<String, Long>();
+
+    /**
+     * Held while pending updates are written, and while a ticket is evicted,
+     * so a deleted ticket is not written back.
+     */
+    private final Object flushLock = new Object();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    private volatile long writeBehindDelay;
+
+    private volatile int maxPendingUpdates = 1000;
+
     protected abstract void updateTicket(final Ticket ticket);
 
+    /**
+     * Writes the updates pending when writing behind.  Implementations that
+     * can write several tickets at once should override this.
+     */
+    protected void updateTickets(final Collection<Ticket> tickets) {
+        for (final Ticket ticket : tickets) {
+            try {
+                updateTicket(ticket);
+            } catch (final RuntimeException e) {
+                log.error("Error writing update of ticket " + ticket.getId() + " to registry.", e);
+            }
+        }
+    }
+
     protected abstract boolean needsCallback();
 
+    /**
+     * Writes a ServiceTicket that was just validated.  Registries that hand
+     * out a copy of the ticket per lookup override this to write it only if
+     * no other copy was validated since this one was read, so that a
+     * ServiceTicket validated by several requests at once is used only once.
+     *
+     * @param serviceTicket the ticket, not proxied.
+     * @return false if another copy was validated first, which fails this
+     * validation.
+     */
+    protected boolean updateValidatedTicket(final ServiceTicket serviceTicket) {
+        update(serviceTicket);
+        return true;
+    }
+
+    /**
+     * Registries storing tickets through a {@link TicketSerializer} return
+     * it, so that the tickets it stored with only a reference to their
+     * TicketGrantingTicket are relinked to it when they are read.
+     *
+     * @return the serializer, or null if tickets are stored as they are.
+     */
+    protected TicketSerializer getTicketSerializer() {
+        return null;
+    }
+
+    /**
+     * Implementations call this with every ticket they read from their
+     * store.
+     */
     protected final Ticket getProxiedTicketInstance(final Ticket ticket) {
         if (ticket == null) {
             return null;
         }
 
+        // this node's own update has not been written yet
+        final Ticket pending = this.pendingUpdates.get(ticket.getId());
+        if (pending != null) {
+            return proxy(pending);
+        }
+
+        final TicketSerializer ticketSerializer = getTicketSerializer();
+        final String parentId = ticketSerializer == null ? null : ticketSerializer.getGrantingTicketReference(ticket);
+        if (parentId != null) {
+            final TicketGrantingTicket parent = getParent(parentId);
+            if (parent != null) {
+                ticketSerializer.setGrantingTicket(ticket, parent);
+            }
+        }
+
+        if (ticket instanceof TicketGrantingTicket) {
+            this.nearCache.put((TicketGrantingTicket) ticket);
+        }
+        return proxy(ticket);
+    }
+
+    /**
+     * Implementations call this before deleting a ticket, so no copy of it
+     * outlives it on this node and no pending update writes it back.  It
+     * waits for a flush in progress, which may be writing the ticket, to
+     * complete.
+     */
+    protected final void evictTicket(final String ticketId) {
+        this.nearCache.remove(ticketId);
+
+        synchronized (this.flushLock) {
+            if (this.writeBehindDelay > 0) {
+                addTombstone(ticketId);
+            }
+            this.pendingUpdates.remove(ticketId);
+        }
+    }
+
+    /**
+     * Stops writing behind, then writes the updates still pending.  Updates
+     * made after this are written at once.
+     */
+    public void destroy() throws Exception {
+        this.writeBehindDelay = 0;
+
+        final ScheduledExecutorService f = this.flusher;
+        if (f != null) {
+            f.shutdownNow();
+        }
+        flush();
+    }
+
+    /**
+     * Writes every update still pending.  Call it at the end of a request
+     * or transaction to have that request's updates written before it
+     * completes, and before shutting the registry down.
+     */
+    public final void flush() {
+        if (this.pendingUpdates.isEmpty()) {
+            return;
+        }
+
+        synchronized (this.flushLock) {
+            final List<Ticket> tickets = new ArrayList<Ticket>(this.pendingUpdates.size());
+
+            for (final String id : this.pendingUpdates.keySet()) {
+                final Ticket ticket = this.pendingUpdates.remove(id);
+
+                if (ticket != null && !isDeleted(id)) {
+                    tickets.add(ticket);
+                }
+            }
+
+            try {
+                updateTickets(tickets);
+            } catch (final RuntimeException e) {
+                log.error("Error writing updates of " + tickets.size() + " tickets to registry.", e);
+            }
+        }
+    }
+
+    /**
+     * Records the deletion of the ticket, after removing the deletions that
+     * have expired.  Expects the flush lock to be held.
+     */
+    private void addTombstone(final String ticketId) {
+        final long now = System.currentTimeMillis();
+
+        for (final Iterator<Long> i = this.tombstones.values().iterator(); i.hasNext() && i.next().longValue() <= now;) {
+            i.remove();
+        }
+        this.tombstones.remove(ticketId);
+        this.tombstones.put(ticketId, Long.valueOf(now + TOMBSTONE_TIME_TO_LIVE));
+    }
+
+    /**
+     * @return whether the ticket was deleted recently.  Expects the flush
+     * lock to be held.
+     */
+    private boolean isDeleted(final String ticketId) {
+        final Long expires = this.tombstones.get(ticketId);
+        return expires != null && expires.longValue() > System.currentTimeMillis();
+    }
+
+    private Ticket proxy(final Ticket ticket) {
         if (ticket instanceof TicketGrantingTicket) {
             return new TicketGrantingTicketDelegator(this, (TicketGrantingTicket) ticket, needsCallback());
         }
@@ -44,6 +248,166 @@ public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRe
         return new ServiceTicketDelegator(this, (ServiceTicket) ticket, needsCallback());
     }
 
+    private void update(final Ticket ticket) {
+        this.nearCache.remove(ticket.getId());
+
+        final long delay = this.writeBehindDelay;
+        if (delay <= 0) {
+            updateTicket(ticket);
+            return;
+        }
+
+        this.pendingUpdates.put(ticket.getId(), ticket);
+        if (this.pendingUpdates.size() >= this.maxPendingUpdates) {
+            flush();
+        } else if (this.flushScheduled.compareAndSet(false, true)) {
+            try {
+                this.flusher.schedule(this.flushTask, delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                // destroyed meanwhile
+                this.flushScheduled.set(false);
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Looks up the TicketGrantingTickets a ticket descends from with a single
+     * call to the registry.
+     *
+     * @param ids the ids of the ancestors, nearest first.
+     * @return the TicketGrantingTickets, proxied, in the same order, with
+     * null for those no longer in the registry.
+     */
+    private List<TicketGrantingTicket> getGrantingTickets(final List<String> ids) {
+        final List<TicketGrantingTicket> grantingTickets = new ArrayList<TicketGrantingTicket>(ids.size());
+        final List<String> missing = new ArrayList<String>(ids.size());
+
+        for (final String id : ids) {
+            final TicketGrantingTicket cached = this.nearCache.get(id);
+
+            if (cached == null) {
+                missing.add(id);
+            }
+            grantingTickets.add(cached == null ? null : (TicketGrantingTicket) proxy(cached));
+        }
+
+        if (missing.isEmpty()) {
+            return grantingTickets;
+        }
+
+        final Map<String, Ticket> found = getTickets(missing);
+        for (int i = 0; i < ids.size(); i++) {
+            final Ticket ticket = found.get(ids.get(i));
+
+            if (ticket instanceof TicketGrantingTicket) {
+                grantingTickets.set(i, (TicketGrantingTicket) ticket);
+            }
+        }
+        return grantingTickets;
+    }
+
+    /**
+     * @return the TicketGrantingTicket, not proxied, or null if it is no
+     * longer in the registry.
+     */
+    private TicketGrantingTicket getParent(final String id) {
+        final TicketGrantingTicket parent = this.nearCache.get(id);
+        if (parent != null) {
+            return parent;
+        }
+
+        // reading it puts it in the near-cache
+        final Ticket ticket = getTicket(id);
+        if (!(ticket instanceof TicketGrantingTicketDelegator)) {
+            return null;
+        }
+        return ((TicketGrantingTicketDelegator) ticket).getTicket();
+    }
+
+    /**
+     * Enables the near-cache: every TicketGrantingTicket read on this node is
+     * kept for this long, and the parents that tickets look up while
+     * validating and expiring, or that ServiceTickets stored with only a
+     * reference to their parent are relinked to, are taken from it instead of
+     * the store.  Tickets looked up by id are always read from the store.  A ticket this
+     * node updates or deletes is dropped from the cache, but changes made by
+     * other nodes are only seen once the cached copy times out.
+     *
+     * @param nearCacheTimeToLive the time in milliseconds.  Defaults to 0,
+     * which disables the near-cache.
+     */
+    public void setNearCacheTimeToLive(final long nearCacheTimeToLive) {
+        this.nearCache.setTimeToLive(nearCacheTimeToLive);
+    }
+
+    /**
+     * @param nearCacheSize the most TicketGrantingTickets to keep in the
+     * near-cache.  Defaults to 10000.
+     */
+    public void setNearCacheSize(final int nearCacheSize) {
+        this.nearCache.setMaxSize(nearCacheSize);
+    }
+
+    /**
+     * Enables writing behind: a ticket updated by validating it, granting a
+     * ticket from it or expiring it is written once this time has passed,
+     * together with any further updates made to it meanwhile, instead of
+     * once per update.  Tickets this node reads are served from its pending
+     * updates, but other nodes see an update only once it is written, and
+     * updates pending when the node fails are lost.  A ticket deleted through
+     * this node is not written back by copies read before the deletion.  The
+     * thread writing the updates is stopped by {@link #destroy()}.
+     *
+     * @param writeBehindDelay the most time in milliseconds an update may
+     * stay unwritten.  Defaults to 0, which writes every update at once.
+     */
+    public synchronized void setWriteBehindDelay(final long writeBehindDelay) {
+        if (writeBehindDelay > 0 && this.flusher == null) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ticket-registry-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.writeBehindDelay = writeBehindDelay;
+        if (writeBehindDelay <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * @param maxPendingUpdates the most tickets that may have an update
+     * pending; the update that reaches it writes them all.  Defaults to 1000.
+     */
+    public void setMaxPendingUpdates(final int maxPendingUpdates) {
+        this.maxPendingUpdates = maxPendingUpdates;
+    }
+
+    public int getPendingUpdateCount() {
+        return this.pendingUpdates.size();
+    }
+
+    public long getNearCacheHitCount() {
+        return this.nearCache.getHitCount();
+    }
+
+    public long getNearCacheMissCount() {
+        return this.nearCache.getMissCount();
+    }
+
+    /**
+     * @return the fraction of near-cache lookups that were hits, or 0 if
+     * there were none.
+     */
+    public double getNearCacheHitRatio() {
+        final long hits = getNearCacheHitCount();
+        final long lookups = hits + getNearCacheMissCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
     private static class TicketDelegator<T extends Ticket> implements Ticket {
 
         private final AbstractDistributedTicketRegistry ticketRegistry;
@@ -52,6 +416,9 @@ public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRe
 
         private final boolean callback;
 
+        /** The ancestors, nearest first, as first looked up through this instance. */
+        private List<TicketGrantingTicket> grantingTickets;
+
         protected TicketDelegator(final AbstractDistributedTicketRegistry ticketRegistry, final T ticket, final boolean callback) {
             this.ticketRegistry = ticketRegistry;
             this.ticket = ticket;
@@ -59,13 +426,17 @@ public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRe
         }
 
         protected void updateTicket() {
-            this.ticketRegistry.updateTicket(this.ticket);
+            this.ticketRegistry.update(this.ticket);
         }
 
         protected T getTicket() {
             return this.ticket;
         }
 
+        protected AbstractDistributedTicketRegistry getTicketRegistry() {
+            return this.ticketRegistry;
+        }
+
         public final String getId() {
             return this.ticket.getId();
         }
@@ -75,9 +446,19 @@ public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRe
                 return this.ticket.isExpired();
             }
 
-            final TicketGrantingTicket t = getGrantingTicket();
+            if (this.ticket.isExpired()) {
+                return true;
+            }
+
+            // every ancestor is current, so there is no need to call back through theirs
+            for (final TicketGrantingTicket t : getGrantingTickets()) {
+                final TicketGrantingTicket current = t instanceof TicketGrantingTicketDelegator ? ((TicketGrantingTicketDelegator) t).getTicket() : t;
 
-            return this.ticket.isExpired() || (t != null && t.isExpired());
+                if (current != null && current.isExpired()) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         public final TicketGrantingTicket getGrantingTicket() {
@@ -87,7 +468,23 @@ public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRe
                 return old;
             }
 
-            return (TicketGrantingTicket) this.ticketRegistry.getTicket(old.getId(), Ticket.class);
+            return getGrantingTickets().get(0);
+        }
+
+        /**
+         * A proxy lives for one request, so the whole chain of ancestors is
+         * read at most once per request, with a single call to the registry.
+         */
+        private synchronized List<TicketGrantingTicket> getGrantingTickets() {
+            if (this.grantingTickets == null) {
+                final List<String> ids = new ArrayList<String>();
+
+                for (TicketGrantingTicket t = this.ticket.getGrantingTicket(); t != null; t = t.getGrantingTicket()) {
+                    ids.add(t.getId());
+                }
+                this.grantingTickets = this.ticketRegistry.getGrantingTickets(ids);
+            }
+            return this.grantingTickets;
         }
 
         public final long getCreationTime() {
@@ -126,8 +523,7 @@ public abstract class AbstractDistributedTicketRegistry extends AbstractTicketRe
 
         public boolean isValidFor(final Service service) {
             final boolean b = this.getTicket().isValidFor(service);
-            updateTicket();
-            return b;
+            return getTicketRegistry().updateValidatedTicket(getTicket()) && b;
         }
 
         public TicketGrantingTicket grantTicketGrantingTicket(final String id, final Authentication authentication, final ExpirationPolicy expirationPolicy) {
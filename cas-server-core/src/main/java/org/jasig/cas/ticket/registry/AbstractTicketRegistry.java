@@ -5,12 +5,24 @@
  */
 package org.jasig.cas.ticket.registry;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.util.StripedCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
 /**
+ * Keeps the counts of {@link TicketRegistryStatistics} for implementations
+ * that call {@link #ticketAdded(Ticket)}, {@link #ticketDeleted(Ticket)} and
+ * {@link #ticketRetrieved()} for every ticket they store, remove and look up.
+ * Those implementations declare TicketRegistryStatistics; the others are
+ * counted by walking them.
+ *
  * @author Scott Battaglia
  * @version $Revision: 20191 $ $Date: 2010-03-14 00:05:58 -0500 (Sun, 14 Mar 2010) $
  * @since 3.0.4
@@ -18,11 +30,21 @@ import org.springframework.util.Assert;
  * This is a published and supported CAS Server 3 API.
  * </p>
  */
-public abstract class AbstractTicketRegistry implements TicketRegistry {
+public abstract class AbstractTicketRegistry implements StreamingTicketRegistry, BulkTicketRegistry {
 
     /** The Commons Logging log instance. */
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
+    private final StripedCounter ticketGrantingTickets = new StripedCounter();
+
+    private final StripedCounter serviceTickets = new StripedCounter();
+
+    private final StripedCounter addedTickets = new StripedCounter();
+
+    private final StripedCounter deletedTickets = new StripedCounter();
+
+    private final StripedCounter ticketLookups = new StripedCounter();
+
     /**
      * @throws IllegalArgumentException if class is null.
      * @throws ClassCastException if class does not match requested ticket
@@ -46,4 +68,119 @@ public abstract class AbstractTicketRegistry implements TicketRegistry {
 
         return ticket;
     }
+
+    /**
+     * Default implementation that looks each ticket up in turn.  Registries
+     * that can fetch several tickets at once should override this.
+     */
+    public Map<String, Ticket> getTickets(final Collection<String> ticketIds) {
+        final Map<String, Ticket> tickets = new HashMap<String, Ticket>();
+
+        for (final String ticketId : ticketIds) {
+            final Ticket ticket = getTicket(ticketId);
+
+            if (ticket != null) {
+                tickets.put(ticketId, ticket);
+            }
+        }
+        return tickets;
+    }
+
+    /**
+     * Default implementation that deletes each ticket in turn.
+     */
+    public int deleteTickets(final Collection<String> ticketIds) {
+        int deleted = 0;
+
+        for (final String ticketId : ticketIds) {
+            if (deleteTicket(ticketId)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Default implementation that walks {@link #getTickets()}.  Registries
+     * that can page through their backing store should override this.
+     */
+    public void iterateTickets(final Class<? extends Ticket> type, final int pageSize, final TicketCallback callback) {
+        for (final Ticket ticket : getTickets()) {
+            if (isOfType(type, ticket) && !callback.doWithTicket(ticket)) {
+                return;
+            }
+        }
+    }
+
+    protected static boolean isOfType(final Class<? extends Ticket> type, final Ticket ticket) {
+        return type == null || type.isInstance(ticket);
+    }
+
+    public long getTicketGrantingTicketCount() {
+        return this.ticketGrantingTickets.sum();
+    }
+
+    public long getServiceTicketCount() {
+        return this.serviceTickets.sum();
+    }
+
+    public long getAddedTicketCount() {
+        return this.addedTickets.sum();
+    }
+
+    public long getDeletedTicketCount() {
+        return this.deletedTickets.sum();
+    }
+
+    public long getTicketLookupCount() {
+        return this.ticketLookups.sum();
+    }
+
+    /**
+     * Implementations call this once a new ticket has been stored.
+     */
+    protected final void ticketAdded(final Ticket ticket) {
+        this.addedTickets.increment();
+        counterFor(ticket).increment();
+    }
+
+    /**
+     * Persistent registries call this with the number of tickets of a type
+     * already in their store, so the counts include tickets from a previous
+     * run.
+     */
+    protected final void ticketsLoaded(final Class<? extends Ticket> type, final long count) {
+        counterFor(type).add(count);
+    }
+
+    /**
+     * Implementations call this once a ticket has actually been removed.
+     */
+    protected final void ticketDeleted(final Ticket ticket) {
+        ticketDeleted(ticket.getClass());
+    }
+
+    /**
+     * For registries that know the type, but not the instance, of the ticket
+     * they removed.
+     */
+    protected final void ticketDeleted(final Class<? extends Ticket> type) {
+        this.deletedTickets.increment();
+        counterFor(type).decrement();
+    }
+
+    /**
+     * Implementations call this for every lookup by id, found or not.
+     */
+    protected final void ticketRetrieved() {
+        this.ticketLookups.increment();
+    }
+
+    private StripedCounter counterFor(final Ticket ticket) {
+        return counterFor(ticket.getClass());
+    }
+
+    private StripedCounter counterFor(final Class<? extends Ticket> type) {
+        return ServiceTicket.class.isAssignableFrom(type) ? this.serviceTickets : this.ticketGrantingTickets;
+    }
 }
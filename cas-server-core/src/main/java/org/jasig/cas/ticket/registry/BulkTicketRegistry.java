@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * A {@link TicketRegistry} that can look up or remove several tickets at
+ * once, so that a registry on the network can do so in a few round trips.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public interface BulkTicketRegistry extends TicketRegistry {
+
+    /**
+     * Retrieves several tickets from the registry.
+     *
+     * @param ticketIds the ids of the tickets we wish to retrieve.
+     * @return the tickets found, keyed by id.  Ids not in the registry have
+     * no entry.
+     */
+    Map<String, Ticket> getTickets(Collection<String> ticketIds);
+
+    /**
+     * Removes several tickets from the registry, as
+     * {@link #deleteTicket(String)} does for each of them.
+     *
+     * @param ticketIds the ids of the tickets to delete.
+     * @return the number of tickets removed.  Registries that also remove the
+     * tickets granted from them count those too.
+     */
+    int deleteTickets(Collection<String> ticketIds);
+}
@@ -20,7 +20,7 @@ import org.springframework.util.Assert;
  * @version $Revision: 14064 $ $Date: 2007-06-10 09:17:55 -0400 (Sun, 10 Jun 2007) $
  * @since 3.0
  */
-public final class DefaultTicketRegistry extends AbstractTicketRegistry {
+public final class DefaultTicketRegistry extends AbstractTicketRegistry implements TicketRegistryStatistics {
 
     /** A HashMap to contain the tickets. */
     private final Map<String, Ticket> cache;
@@ -55,7 +55,9 @@ public final class DefaultTicketRegistry extends AbstractTicketRegistry {
         if (log.isDebugEnabled()) {
             log.debug("Added ticket [" + ticket.getId() + "] to registry.");
         }
-        this.cache.put(ticket.getId(), ticket);
+        if (this.cache.put(ticket.getId(), ticket) == null) {
+            ticketAdded(ticket);
+        }
     }
 
     public Ticket getTicket(final String ticketId) {
@@ -66,6 +68,7 @@ public final class DefaultTicketRegistry extends AbstractTicketRegistry {
         if (log.isDebugEnabled()) {
             log.debug("Attempting to retrieve ticket [" + ticketId + "]");
         }
+        ticketRetrieved();
         final Ticket ticket = this.cache.get(ticketId);
 
         if (ticket != null) {
@@ -83,7 +86,12 @@ public final class DefaultTicketRegistry extends AbstractTicketRegistry {
             log.debug("Removing ticket [" + ticketId + "] from registry");
         }
 
-        return (this.cache.remove(ticketId) != null);
+        final Ticket ticket = this.cache.remove(ticketId);
+        if (ticket == null) {
+            return false;
+        }
+        ticketDeleted(ticket);
+        return true;
     }
 
     public Collection<Ticket> getTickets() {
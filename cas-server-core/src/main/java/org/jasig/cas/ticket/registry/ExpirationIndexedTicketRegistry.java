@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.List;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * A {@link TicketRegistry} that keeps track of when its tickets are due to
+ * expire, so that expired tickets can be found without scanning the whole
+ * registry.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public interface ExpirationIndexedTicketRegistry extends TicketRegistry {
+
+    /**
+     * Returns tickets whose expiration is due and that are expired.  Tickets
+     * returned are no longer tracked by the index; the caller is expected to
+     * delete them.  Tickets that were due but turned out to be still valid are
+     * scheduled again.
+     *
+     * @param maxTickets the maximum number of tickets to return.
+     * @return the expired tickets, or an empty list once there are no more.
+     */
+    List<Ticket> pollExpiredTickets(int maxTickets);
+}
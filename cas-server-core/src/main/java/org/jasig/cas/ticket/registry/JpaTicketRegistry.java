@@ -7,20 +7,30 @@ package org.jasig.cas.ticket.registry;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.ServiceTicketImpl;
 import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
 import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.springframework.orm.jpa.JpaCallback;
 import org.springframework.orm.jpa.JpaTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * 
@@ -29,13 +39,27 @@ import org.springframework.transaction.annotation.Transactional;
  * @since 3.2.1
  *
  */
-public final class JpaTicketRegistry extends AbstractDistributedTicketRegistry {
+public final class JpaTicketRegistry extends AbstractDistributedTicketRegistry implements ShardedExpirationIndexedTicketRegistry, TicketRegistryStatistics {
+
+    private static final String[] ENTITY_NAMES = {"TicketGrantingTicketImpl", "ServiceTicketImpl"};
     
     @NotNull
     private JpaTemplate jpaTemplate;
         
     @NotNull
     private String ticketGrantingTicketPrefix = "TGT";
+
+    @Min(1)
+    private int maxIdsPerStatement = 500;
+
+    @Min(0)
+    private long recheckIntervalInMilliSeconds = 60000;
+
+    /** The scans of the tickets with no expiration time, by shard. */
+    private final Map<String, Scan> scans = new HashMap<String, Scan>();
+
+    /** Writes the updates pending when writing behind; null to merge each on its own. */
+    private TransactionTemplate transactionTemplate;
     
     public JpaTicketRegistry(final EntityManagerFactory factory) {
         this.jpaTemplate = new JpaTemplate(factory);
@@ -45,57 +69,269 @@ public final class JpaTicketRegistry extends AbstractDistributedTicketRegistry {
         this.jpaTemplate.merge(ticket);
     }
 
+    /**
+     * Merges the updates pending when writing behind in a single transaction
+     * of the transaction manager, joining the caller's transaction if there
+     * is one.  Without a transaction manager, each update is merged as
+     * {@link #updateTicket(Ticket)} does.
+     */
+    @Override
+    protected void updateTickets(final Collection<Ticket> tickets) {
+        if (this.transactionTemplate == null) {
+            super.updateTickets(tickets);
+            return;
+        }
+
+        this.transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                for (final Ticket ticket : tickets) {
+                    JpaTicketRegistry.this.jpaTemplate.merge(ticket);
+                }
+            }
+        });
+    }
+
     public void addTicket(final Ticket ticket) {
         this.jpaTemplate.persist(ticket);
+        ticketAdded(ticket);
     }
 
     @Transactional(readOnly = false)
     public boolean deleteTicket(final String ticketId) {
-        final Ticket ticket = getRawTicket(ticketId);
-        
-        if (ticket == null) {
-            return false;
+        return deleteTickets(Collections.singletonList(ticketId)) > 0;
+    }
+
+    /**
+     * Removes the tickets, and every ticket granted from them, with bulk
+     * deletes over lists of at most {@link #setMaxIdsPerStatement(int)} ids.
+     * The TicketGrantingTickets granted from them are found a generation at
+     * a time, so the number of statements depends on the depth of the proxy
+     * chains rather than on the number of tickets.
+     * <p>
+     * Pending changes are flushed first, and the persistence context is
+     * cleared afterwards, as bulk deletes bypass it.  Tickets loaded earlier
+     * in the transaction are therefore detached.
+     *
+     * @return the number of tickets removed, including the ones granted from
+     * them.
+     */
+    @Transactional(readOnly = false)
+    public int deleteTickets(final Collection<String> ticketIds) {
+        if (ticketIds.isEmpty()) {
+            return 0;
         }
-        
-        if (ticket instanceof ServiceTicket) {
-            removeTicket(ticket);
-            return true;
+
+        return this.jpaTemplate.execute(new JpaCallback<Integer>() {
+            public Integer doInJpa(final EntityManager em) throws PersistenceException {
+                em.flush();
+                for (final String ticketId : ticketIds) {
+                    evictTicket(ticketId);
+                }
+
+                // each generation of TicketGrantingTickets, the requested ids first
+                final List<List<String>> generations = new ArrayList<List<String>>();
+                List<String> generation = new ArrayList<String>(ticketIds);
+                while (!generation.isEmpty()) {
+                    generations.add(generation);
+                    generation = select(em, "select t.id from TicketGrantingTicketImpl t where t.ticketGrantingTicket.id in (:ids)", generation);
+                }
+
+                int serviceTickets = delete(em, "delete from ServiceTicketImpl s where s.id in (:ids)", generations.get(0));
+                int ticketGrantingTickets = 0;
+                for (int i = generations.size() - 1; i >= 0; i--) {
+                    if (i > 0) {
+                        for (final String ticketId : generations.get(i)) {
+                            evictTicket(ticketId);
+                        }
+                    }
+                    serviceTickets += delete(em, "delete from ServiceTicketImpl s where s.ticketGrantingTicket.id in (:ids)", generations.get(i));
+                    ticketGrantingTickets += delete(em, "delete from TicketGrantingTicketImpl t where t.id in (:ids)", generations.get(i));
+                }
+                em.clear();
+
+                for (int i = 0; i < serviceTickets; i++) {
+                    ticketDeleted(ServiceTicket.class);
+                }
+                for (int i = 0; i < ticketGrantingTickets; i++) {
+                    ticketDeleted(TicketGrantingTicket.class);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Removed " + ticketGrantingTickets + " TicketGrantingTickets and " + serviceTickets + " ServiceTickets.");
+                }
+                return Integer.valueOf(serviceTickets + ticketGrantingTickets);
+            }
+        }).intValue();
+    }
+
+    /**
+     * Finds expired tickets by the indexed EXPIRES_AT column, maintained on
+     * every write for the policies that can tell when a ticket expires.
+     * Expired ServiceTickets are deleted by the database in one statement,
+     * and are not returned.  Expired TicketGrantingTickets are returned in
+     * the order they expired, so they can be expired before being deleted.
+     * <p>
+     * Tickets with no expiration time, as their policy cannot tell, are
+     * loaded and checked a page at a time, at most once per
+     * {@link #setRecheckIntervalInMilliSeconds(long)}.
+     */
+    @Transactional(readOnly = false)
+    public List<Ticket> pollExpiredTickets(final int maxTickets) {
+        return pollExpiredTickets(maxTickets, 0, 1);
+    }
+
+    /**
+     * Polls as {@link #pollExpiredTickets(int)} does, restricting every
+     * statement to the tickets whose SHARD_KEY column falls in the shard.
+     */
+    @Transactional(readOnly = false)
+    public List<Ticket> pollExpiredTickets(final int maxTickets, final int shard, final int shards) {
+        final Scan scan = getScan(shard, shards);
+
+        // one poll per shard at a time, as it continues the scan of its shard
+        synchronized (scan) {
+            return this.jpaTemplate.execute(new JpaCallback<List<Ticket>>() {
+                public List<Ticket> doInJpa(final EntityManager em) throws PersistenceException {
+                    return pollExpiredTickets(em, maxTickets, shard, shards, scan);
+                }
+            });
         }
-        
-        deleteTicketAndChildren(ticket);
-        return true;        
     }
-    
-    private void deleteTicketAndChildren(final Ticket ticket) {
-        final Map<String,Object> params = new HashMap<String,Object>();
-        params.put("id", ticket.getId());
-        final List<TicketGrantingTicketImpl> ticketGrantingTicketImpls = this.jpaTemplate.findByNamedParams("select t from TicketGrantingTicketImpl t where t.ticketGrantingTicket.id = :id", params);
-        final List<ServiceTicketImpl> serviceTicketImpls = this.jpaTemplate.findByNamedParams("select s from ServiceTicketImpl s where s.ticketGrantingTicket.id = :id", params);
-        
-        for (final ServiceTicketImpl s : serviceTicketImpls) {
-            removeTicket(s);
+
+    private synchronized Scan getScan(final int shard, final int shards) {
+        final String key = shard + "/" + shards;
+        Scan scan = this.scans.get(key);
+
+        if (scan == null) {
+            scan = new Scan();
+            this.scans.put(key, scan);
         }
-        
-        for (final TicketGrantingTicketImpl t : ticketGrantingTicketImpls) {
-            deleteTicketAndChildren(t);
+        return scan;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Ticket> pollExpiredTickets(final EntityManager em, final int maxTickets, final int shard, final int shards, final Scan scan) {
+        final Long now = Long.valueOf(System.currentTimeMillis());
+        final String inShard = inShard(shard, shards);
+        final List<Ticket> expired = new ArrayList<Ticket>();
+
+        em.flush();
+        // a ServiceTicket whose policy cannot tell when it expires has no expiration time, and is left to the scan
+        final int serviceTickets = em.createQuery("delete from ServiceTicketImpl t where t.expiresAt <= :now" + inShard)
+            .setParameter("now", now).executeUpdate();
+        for (int i = 0; i < serviceTickets; i++) {
+            ticketDeleted(ServiceTicket.class);
         }
-        
-        removeTicket(ticket);
+
+        final List<Ticket> due = em.createQuery("select t from TicketGrantingTicketImpl t where t.expiresAt <= :now" + inShard + " order by t.expiresAt")
+            .setParameter("now", now).setMaxResults(maxTickets).getResultList();
+        final List<String> valid = new ArrayList<String>();
+        for (final Ticket ticket : due) {
+            if (ticket.isExpired()) {
+                expired.add(ticket);
+            } else {
+                valid.add(ticket.getId());
+            }
+        }
+        reschedule(em, valid, now.longValue() + this.recheckIntervalInMilliSeconds);
+
+        if (expired.size() < maxTickets && (scan.entity >= 0 || now.longValue() - scan.started >= this.recheckIntervalInMilliSeconds)) {
+            scan(em, now.longValue(), maxTickets, shard, shards, scan, expired);
+        }
+        em.clear();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Removed " + serviceTickets + " expired ServiceTickets of shard " + shard + "/" + shards + "; found " + expired.size() + " expired tickets to remove.");
+        }
+        return expired;
     }
-    
-    private void removeTicket(final Ticket ticket) {
-        try {
-            if (log.isDebugEnabled()) {
-                final Date creationDate = new Date(ticket.getCreationTime());
-                log.debug("Removing Ticket >" + ticket.getId() + "< created: " + creationDate.toString());
-             }
-            this.jpaTemplate.remove(ticket);
-        } catch (final Exception e) {
-            log.error("Error removing " + ticket + " from registry.", e);
+
+    /**
+     * @return the condition restricting a query to the tickets of the shard,
+     * with the numbers written out as not every database types parameters of
+     * MOD.
+     */
+    private static String inShard(final int shard, final int shards) {
+        return shards > 1 ? " and mod(t.shardKey, " + shards + ") = " + shard : "";
+    }
+
+    /**
+     * Sets the tickets that were due but are still valid to be checked again
+     * later rather than on every poll.
+     */
+    private void reschedule(final EntityManager em, final List<String> ids, final long expiresAt) {
+        for (int i = 0; i < ids.size(); i += this.maxIdsPerStatement) {
+            em.createQuery("update TicketGrantingTicketImpl t set t.expiresAt = :expiresAt where t.id in (:ids)")
+                .setParameter("expiresAt", Long.valueOf(expiresAt))
+                .setParameter("ids", ids.subList(i, Math.min(ids.size(), i + this.maxIdsPerStatement)))
+                .executeUpdate();
         }
     }
-    
+
+    /**
+     * Continues the scan of the tickets with no expiration time until the
+     * batch is full or every entity has been scanned.
+     */
+    @SuppressWarnings("unchecked")
+    private void scan(final EntityManager em, final long now, final int maxTickets, final int shard, final int shards, final Scan scan, final List<Ticket> expired) {
+        final String inShard = inShard(shard, shards);
+
+        if (scan.entity < 0) {
+            scan.entity = 0;
+            scan.lastId = null;
+            scan.started = now;
+        }
+
+        while (expired.size() < maxTickets) {
+            final String entityName = ENTITY_NAMES[scan.entity];
+            final int pageSize = maxTickets - expired.size();
+            final Query query;
+            if (scan.lastId == null) {
+                query = em.createQuery("select t from " + entityName + " t where t.expiresAt is null" + inShard + " order by t.id");
+            } else {
+                query = em.createQuery("select t from " + entityName + " t where t.expiresAt is null and t.id > :lastId" + inShard + " order by t.id");
+                query.setParameter("lastId", scan.lastId);
+            }
+            final List<Ticket> page = query.setMaxResults(pageSize).getResultList();
+
+            for (final Ticket ticket : page) {
+                if (ticket.isExpired()) {
+                    expired.add(ticket);
+                }
+            }
+
+            if (page.size() < pageSize) {
+                scan.lastId = null;
+                if (++scan.entity == ENTITY_NAMES.length) {
+                    scan.entity = -1;
+                    return;
+                }
+            } else {
+                scan.lastId = page.get(page.size() - 1).getId();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> select(final EntityManager em, final String query, final List<String> ids) {
+        final List<String> result = new ArrayList<String>();
+
+        for (int i = 0; i < ids.size(); i += this.maxIdsPerStatement) {
+            result.addAll(em.createQuery(query).setParameter("ids", ids.subList(i, Math.min(ids.size(), i + this.maxIdsPerStatement))).getResultList());
+        }
+        return result;
+    }
+
+    private int delete(final EntityManager em, final String query, final List<String> ids) {
+        int deleted = 0;
+
+        for (int i = 0; i < ids.size(); i += this.maxIdsPerStatement) {
+            deleted += em.createQuery(query).setParameter("ids", ids.subList(i, Math.min(ids.size(), i + this.maxIdsPerStatement))).executeUpdate();
+        }
+        return deleted;
+    }
+
     public Ticket getTicket(final String ticketId) {
+        ticketRetrieved();
         return getProxiedTicketInstance(getRawTicket(ticketId));
     }
     
@@ -124,12 +360,133 @@ public final class JpaTicketRegistry extends AbstractDistributedTicketRegistry {
         return tickets;
     }
     
+    /**
+     * Counted by the database rather than by this node, so that the result
+     * is exact for every node of a cluster.
+     */
+    public long getTicketGrantingTicketCount() {
+        return countEntities("TicketGrantingTicketImpl");
+    }
+
+    /**
+     * Counted by the database rather than by this node, so that the result
+     * is exact for every node of a cluster.
+     */
+    public long getServiceTicketCount() {
+        return countEntities("ServiceTicketImpl");
+    }
+
+    private long countEntities(final String entityName) {
+        final List<?> result = this.jpaTemplate.find("select count(t) from " + entityName + " t");
+        return result.isEmpty() ? 0 : ((Number) result.get(0)).longValue();
+    }
+
+    /**
+     * Pages through each ticket table ordered by id, starting every query after
+     * the last id of the previous page, so deleting tickets from the callback
+     * does not shift later pages.  Every page is loaded with its own
+     * EntityManager unless the caller has a transaction in progress.
+     */
+    public void iterateTickets(final Class<? extends Ticket> type, final int pageSize, final TicketCallback callback) {
+        if (type == null || type.isAssignableFrom(TicketGrantingTicketImpl.class)) {
+            if (!iterateEntities("TicketGrantingTicketImpl", type, pageSize, callback)) {
+                return;
+            }
+        }
+
+        if (type == null || type.isAssignableFrom(ServiceTicketImpl.class)) {
+            iterateEntities("ServiceTicketImpl", type, pageSize, callback);
+        }
+    }
+
+    /**
+     * @return false if the callback asked to stop.
+     */
+    private boolean iterateEntities(final String entityName, final Class<? extends Ticket> type, final int pageSize, final TicketCallback callback) {
+        final int maxResults = Math.max(1, pageSize);
+        String lastId = null;
+
+        while (true) {
+            final List<Ticket> page = findPage(entityName, lastId, maxResults);
+
+            for (final Ticket ticket : page) {
+                if (isOfType(type, ticket) && !callback.doWithTicket(ticket)) {
+                    return false;
+                }
+            }
+
+            if (page.size() < maxResults) {
+                return true;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    private List<Ticket> findPage(final String entityName, final String lastId, final int pageSize) {
+        return this.jpaTemplate.execute(new JpaCallback<List<Ticket>>() {
+            @SuppressWarnings("unchecked")
+            public List<Ticket> doInJpa(final EntityManager em) throws PersistenceException {
+                final Query query;
+                if (lastId == null) {
+                    query = em.createQuery("select t from " + entityName + " t order by t.id");
+                } else {
+                    query = em.createQuery("select t from " + entityName + " t where t.id > :lastId order by t.id");
+                    query.setParameter("lastId", lastId);
+                }
+                query.setMaxResults(pageSize);
+                return query.getResultList();
+            }
+        });
+    }
+
+    /**
+     * @param transactionManager the transaction manager in which the updates
+     * pending when writing behind are written, JTA or resource-local.  It
+     * should be set whenever {@link #setWriteBehindDelay(long)} is, as those
+     * updates are written outside of any request.
+     */
+    public void setTransactionManager(final PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
     public void setTicketGrantingTicketPrefix(final String ticketGrantingTicketPrefix) {
         this.ticketGrantingTicketPrefix = ticketGrantingTicketPrefix;
     }
 
+    /**
+     * @param maxIdsPerStatement the most ids listed in a single statement when
+     * deleting tickets.  Defaults to 500.
+     */
+    public void setMaxIdsPerStatement(final int maxIdsPerStatement) {
+        this.maxIdsPerStatement = maxIdsPerStatement;
+    }
+
+    /**
+     * @param recheckIntervalInMilliSeconds how long to wait before checking
+     * again a ticket that was due but still valid, and between scans of the
+     * tickets with no expiration time.  Defaults to one minute.
+     */
+    public void setRecheckIntervalInMilliSeconds(final long recheckIntervalInMilliSeconds) {
+        this.recheckIntervalInMilliSeconds = recheckIntervalInMilliSeconds;
+    }
+
     @Override
     protected boolean needsCallback() {
         return false;
     }
+
+    /**
+     * Where the scan of the tickets of a shard with no expiration time is.
+     */
+    private static final class Scan {
+
+        /** When the last scan began. */
+        private long started;
+
+        /** The entity reached by the scan in progress, or -1 if there is none. */
+        private int entity = -1;
+
+        /** The last id reached in that entity. */
+        private String lastId;
+    }
 }
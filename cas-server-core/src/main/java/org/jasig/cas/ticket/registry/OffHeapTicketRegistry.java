@@ -0,0 +1,711 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.support.JavaTicketSerializer;
+import org.springframework.util.Assert;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Single-node ticket registry that keeps tickets serialized in direct
+ * (off-heap) memory, so the heap no longer grows with the number of sessions.
+ * <p>
+ * The registry is split into segments, each guarded by its own read-write
+ * lock.  A segment appends serialized tickets to fixed-size slabs of direct
+ * memory and finds them through an open-addressing table of primitive longs
+ * that point at the records; the ticket id is kept in the record itself, so
+ * the only on-heap cost per ticket is one table slot.  Tickets are
+ * deserialized only when they are looked up and, like in the other
+ * registries that serialize, changes are written back through the proxies of
+ * {@link AbstractDistributedTicketRegistry}.
+ * <p>
+ * Updating or deleting a ticket leaves a dead record behind.  A slab whose
+ * records are all dead is released as a whole, and a slab that is mostly dead
+ * has its remaining records copied to the current slab first.  Once a segment
+ * has used all of its slabs, the slab with the least live data is compacted
+ * in place and written to next; the registry is only full when no slab has
+ * room left.  Released slabs are kept for reuse, one per segment, since
+ * direct memory is only returned to the operating system when the buffer is
+ * garbage collected.  The JVM's -XX:MaxDirectMemorySize has to be at least
+ * the configured maximum memory.
+ * <p>
+ * Every lookup deserializes a new copy of the ticket, as in the other
+ * registries that serialize tickets, so two requests validating the same
+ * ServiceTicket at the same time each work on their own copy.  Each record
+ * keeps the count of uses of its ticket, and a validated ServiceTicket is
+ * only written if the record still has the count its copy was read with: the
+ * request whose copy was validated second fails, as it would with
+ * {@link DefaultTicketRegistry}.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class OffHeapTicketRegistry extends AbstractDistributedTicketRegistry implements TicketRegistryStatistics {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private static final long DEFAULT_MAX_MEMORY = 1024L * 1024 * 1024;
+
+    /** A slab is compacted once less than this fraction of it is live. */
+    private static final float COMPACTION_THRESHOLD = 0.25f;
+
+    private static final long EMPTY = 0;
+
+    private static final long TOMBSTONE = -1;
+
+    private static final byte LIVE = 1;
+
+    private static final byte SERVICE_TICKET = 2;
+
+    /* Record layout: int length, byte flags, int hash, int count of uses, short id length, char[] id, serialized ticket. */
+    private static final int FLAGS_OFFSET = 4;
+
+    private static final int HASH_OFFSET = 5;
+
+    private static final int USES_OFFSET = 9;
+
+    private static final int ID_LENGTH_OFFSET = 13;
+
+    private static final int HEADER_LENGTH = 15;
+
+    /** Writes a record whatever the count of uses of the record it replaces. */
+    private static final int ANY_USES = -1;
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+
+    private final int slabSize;
+
+    private final int maxSlabsPerSegment;
+
+    @NotNull
+    private TicketSerializer ticketSerializer = new JavaTicketSerializer();
+
+    public OffHeapTicketRegistry() {
+        this(DEFAULT_SEGMENTS, DEFAULT_SLAB_SIZE, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * @param segments the number of independently locked segments.  Rounded
+     * up to a power of two.
+     * @param slabSize the size in bytes of each slab of direct memory.  It
+     * limits the size of a single serialized ticket.
+     * @param maxMemory the most direct memory, in bytes, the registry may use.
+     */
+    public OffHeapTicketRegistry(final int segments, final int slabSize, final long maxMemory) {
+        Assert.isTrue(segments > 0, "segments must be greater than zero.");
+        Assert.isTrue(slabSize > HEADER_LENGTH, "slabSize is too small.");
+
+        int count = 1;
+        int bits = 0;
+        while (count < segments) {
+            count <<= 1;
+            bits++;
+        }
+
+        this.slabSize = slabSize;
+        this.maxSlabsPerSegment = (int) Math.max(2, maxMemory / count / slabSize);
+        this.segmentShift = 32 - bits;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    public void addTicket(final Ticket ticket) {
+        Assert.notNull(ticket, "ticket cannot be null");
+
+        if (log.isDebugEnabled()) {
+            log.debug("Added ticket [" + ticket.getId() + "] to registry.");
+        }
+        if (store(ticket, ANY_USES) == Segment.ADDED) {
+            ticketAdded(ticket);
+        }
+    }
+
+    protected void updateTicket(final Ticket ticket) {
+        store(ticket, ANY_USES);
+    }
+
+    /**
+     * Writes the ticket only if the record was not updated by the validation
+     * of another copy since this one was read, which is when its count of
+     * uses is still one less than the copy's.  The ticket is written at once
+     * even when writing behind, so that the other nodes' copies see it.
+     */
+    protected boolean updateValidatedTicket(final ServiceTicket serviceTicket) {
+        evictTicket(serviceTicket.getId());
+        return store(serviceTicket, serviceTicket.getCountOfUses() - 1) != Segment.REFUSED;
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+
+        ticketRetrieved();
+        final int hash = hash(ticketId);
+        final byte[] data = segmentFor(hash).get(ticketId, hash);
+
+        return data == null ? null : getProxiedTicketInstance(this.ticketSerializer.deserialize(data));
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Removing ticket [" + ticketId + "] from registry");
+        }
+        evictTicket(ticketId);
+        final int hash = hash(ticketId);
+        final int flags = segmentFor(hash).remove(ticketId, hash);
+
+        if (flags == -1) {
+            return false;
+        }
+
+        ticketDeleted((flags & SERVICE_TICKET) != 0 ? ServiceTicket.class : TicketGrantingTicket.class);
+        return true;
+    }
+
+    public Collection<Ticket> getTickets() {
+        final List<Ticket> tickets = new ArrayList<Ticket>();
+
+        iterateTickets(null, 1000, new TicketCallback() {
+            public boolean doWithTicket(final Ticket ticket) {
+                tickets.add(ticket);
+                return true;
+            }
+        });
+        return tickets;
+    }
+
+    /**
+     * Deserializes one page of tickets at a time, without holding any lock
+     * while the callback runs.  Like the iterators of the concurrent
+     * collections, this may or may not see tickets added or moved while it
+     * runs.
+     */
+    public void iterateTickets(final Class<? extends Ticket> type, final int pageSize, final TicketCallback callback) {
+        final List<byte[]> page = new ArrayList<byte[]>();
+
+        for (final Segment segment : this.segments) {
+            int position = 0;
+
+            while (position >= 0) {
+                page.clear();
+                position = segment.readPage(position, Math.max(1, pageSize), type, page);
+
+                for (final byte[] data : page) {
+                    final Ticket ticket = getProxiedTicketInstance(this.ticketSerializer.deserialize(data));
+                    if (!callback.doWithTicket(ticket)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of direct memory currently held, including
+     * the slabs kept for reuse.
+     */
+    public long getAllocatedMemory() {
+        long total = 0;
+        for (final Segment segment : this.segments) {
+            total += segment.allocatedMemory();
+        }
+        return total;
+    }
+
+    /**
+     * @param ticketSerializer the format tickets are stored in.  Defaults to
+     * Java serialization.
+     */
+    public void setTicketSerializer(final TicketSerializer ticketSerializer) {
+        this.ticketSerializer = ticketSerializer;
+    }
+
+    protected TicketSerializer getTicketSerializer() {
+        return this.ticketSerializer;
+    }
+
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    /**
+     * @param expectedUses the count of uses the record replaced must have, or
+     * {@link #ANY_USES}.
+     * @return whether the ticket was added, replaced a record or was refused.
+     */
+    private int store(final Ticket ticket, final int expectedUses) {
+        final int hash = hash(ticket.getId());
+        final byte flags = ticket instanceof ServiceTicket ? LIVE | SERVICE_TICKET : LIVE;
+        return segmentFor(hash).put(ticket.getId(), hash, flags, ticket.getCountOfUses(), expectedUses, this.ticketSerializer.serialize(ticket));
+    }
+
+    private Segment segmentFor(final int hash) {
+        return this.segments.length == 1 ? this.segments[0] : this.segments[hash >>> this.segmentShift];
+    }
+
+    private static int hash(final String id) {
+        final int h = id.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long location(final int slab, final int offset) {
+        return ((long) (slab + 1) << 32) | offset;
+    }
+
+    private static int slabOf(final long location) {
+        return (int) (location >>> 32) - 1;
+    }
+
+    private static int offsetOf(final long location) {
+        return (int) location;
+    }
+
+    /**
+     * Slabs and index for the tickets whose ids hash to one segment.  All
+     * methods except those taking the lock expect it to be held.
+     */
+    private final class Segment {
+
+        private static final int ADDED = 0;
+
+        private static final int REPLACED = 1;
+
+        private static final int REFUSED = 2;
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private final ByteBuffer[] slabs = new ByteBuffer[maxSlabsPerSegment];
+
+        /** Bytes of live records per slab. */
+        private final int[] liveBytes = new int[maxSlabsPerSegment];
+
+        /** End of the last record written per slab. */
+        private final int[] limits = new int[maxSlabsPerSegment];
+
+        private ByteBuffer spareSlab;
+
+        private int activeSlab = -1;
+
+        private long[] slots = new long[64];
+
+        private int size;
+
+        /** Live slots plus tombstones. */
+        private int used;
+
+        private byte[] get(final String id, final int hash) {
+            this.lock.readLock().lock();
+            try {
+                final int index = find(id, hash);
+                if (index == -1) {
+                    return null;
+                }
+
+                final long location = this.slots[index];
+                final ByteBuffer buffer = this.slabs[slabOf(location)].duplicate();
+                final int offset = offsetOf(location);
+                final int dataOffset = HEADER_LENGTH + 2 * buffer.getShort(offset + ID_LENGTH_OFFSET);
+                final byte[] data = new byte[buffer.getInt(offset) - dataOffset];
+
+                buffer.position(offset + dataOffset);
+                buffer.get(data);
+                return data;
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return {@link #ADDED} or {@link #REPLACED}, or {@link #REFUSED} if
+         * a count of uses was expected and the record is not there or has
+         * another one.
+         */
+        private int put(final String id, final int hash, final byte flags, final int uses, final int expectedUses, final byte[] data) {
+            this.lock.writeLock().lock();
+            try {
+                final int length = HEADER_LENGTH + 2 * id.length() + data.length;
+                Assert.isTrue(length <= slabSize, "Ticket [" + id + "] is larger than a slab.");
+
+                if (expectedUses != ANY_USES) {
+                    final int current = find(id, hash);
+                    if (current == -1 || usesOf(this.slots[current]) != expectedUses) {
+                        return REFUSED;
+                    }
+                }
+
+                final long location = reserve(length);
+                final ByteBuffer buffer = this.slabs[slabOf(location)];
+                int position = offsetOf(location);
+
+                buffer.putInt(position, length);
+                buffer.put(position + FLAGS_OFFSET, flags);
+                buffer.putInt(position + HASH_OFFSET, hash);
+                buffer.putInt(position + USES_OFFSET, uses);
+                buffer.putShort(position + ID_LENGTH_OFFSET, (short) id.length());
+                position += HEADER_LENGTH;
+                for (int i = 0; i < id.length(); i++, position += 2) {
+                    buffer.putChar(position, id.charAt(i));
+                }
+                final ByteBuffer target = buffer.duplicate();
+                target.position(position);
+                target.put(data);
+
+                final int index = find(id, hash);
+                if (index != -1) {
+                    final long previous = this.slots[index];
+                    this.slots[index] = location;
+                    release(previous);
+                    return REPLACED;
+                }
+
+                insert(hash, location);
+                return ADDED;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        private int usesOf(final long location) {
+            return this.slabs[slabOf(location)].getInt(offsetOf(location) + USES_OFFSET);
+        }
+
+        /**
+         * @return the flags of the removed record, or -1 if there was none.
+         */
+        private int remove(final String id, final int hash) {
+            this.lock.writeLock().lock();
+            try {
+                final int index = find(id, hash);
+                if (index == -1) {
+                    return -1;
+                }
+
+                final long location = this.slots[index];
+                final int flags = this.slabs[slabOf(location)].get(offsetOf(location) + FLAGS_OFFSET);
+                this.slots[index] = TOMBSTONE;
+                this.size--;
+                release(location);
+                return flags;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Copies up to pageSize records, starting at the given slot.
+         *
+         * @return the slot to continue from, or -1 if the segment is done.
+         */
+        private int readPage(final int start, final int pageSize, final Class<? extends Ticket> type, final List<byte[]> page) {
+            this.lock.readLock().lock();
+            try {
+                int index = start;
+                for (; index < this.slots.length && page.size() < pageSize; index++) {
+                    final long location = this.slots[index];
+                    if (location == EMPTY || location == TOMBSTONE) {
+                        continue;
+                    }
+
+                    final ByteBuffer buffer = this.slabs[slabOf(location)].duplicate();
+                    final int offset = offsetOf(location);
+                    if (!isOfType(type, buffer.get(offset + FLAGS_OFFSET))) {
+                        continue;
+                    }
+
+                    final int dataOffset = HEADER_LENGTH + 2 * buffer.getShort(offset + ID_LENGTH_OFFSET);
+                    final byte[] data = new byte[buffer.getInt(offset) - dataOffset];
+                    buffer.position(offset + dataOffset);
+                    buffer.get(data);
+                    page.add(data);
+                }
+                return index < this.slots.length ? index : -1;
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        private boolean isOfType(final Class<? extends Ticket> type, final byte flags) {
+            if (type == null) {
+                return true;
+            }
+            // a ticket is either a service ticket or a ticket granting ticket
+            return (flags & SERVICE_TICKET) != 0
+                ? type.isAssignableFrom(ServiceTicket.class) || ServiceTicket.class.isAssignableFrom(type)
+                : type.isAssignableFrom(TicketGrantingTicket.class) || TicketGrantingTicket.class.isAssignableFrom(type);
+        }
+
+        private long allocatedMemory() {
+            this.lock.readLock().lock();
+            try {
+                long total = this.spareSlab != null ? slabSize : 0;
+                for (final ByteBuffer slab : this.slabs) {
+                    if (slab != null) {
+                        total += slab.capacity();
+                    }
+                }
+                return total;
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        private int find(final String id, final int hash) {
+            final int mask = this.slots.length - 1;
+
+            for (int index = hash & mask;; index = (index + 1) & mask) {
+                final long location = this.slots[index];
+
+                if (location == EMPTY) {
+                    return -1;
+                }
+
+                if (location != TOMBSTONE && matches(location, id, hash)) {
+                    return index;
+                }
+            }
+        }
+
+        private boolean matches(final long location, final String id, final int hash) {
+            final ByteBuffer buffer = this.slabs[slabOf(location)];
+            int position = offsetOf(location);
+
+            if (buffer.getInt(position + HASH_OFFSET) != hash || buffer.getShort(position + ID_LENGTH_OFFSET) != id.length()) {
+                return false;
+            }
+
+            position += HEADER_LENGTH;
+            for (int i = 0; i < id.length(); i++, position += 2) {
+                if (buffer.getChar(position) != id.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(final int hash, final long location) {
+            if ((this.used + 1) * 4 > this.slots.length * 3) {
+                // grow if mostly live, otherwise just clear out the tombstones
+                rehash(this.size * 2 >= this.slots.length ? this.slots.length * 2 : this.slots.length);
+            }
+
+            final int mask = this.slots.length - 1;
+            int index = hash & mask;
+            while (this.slots[index] != EMPTY && this.slots[index] != TOMBSTONE) {
+                index = (index + 1) & mask;
+            }
+
+            if (this.slots[index] == EMPTY) {
+                this.used++;
+            }
+            this.slots[index] = location;
+            this.size++;
+        }
+
+        private void rehash(final int capacity) {
+            final long[] old = this.slots;
+            this.slots = new long[capacity];
+            this.used = 0;
+            this.size = 0;
+
+            for (final long location : old) {
+                if (location != EMPTY && location != TOMBSTONE) {
+                    insert(this.slabs[slabOf(location)].getInt(offsetOf(location) + HASH_OFFSET), location);
+                }
+            }
+        }
+
+        /** Finds room for a record of the given length in the active slab. */
+        private long reserve(final int length) {
+            if (this.activeSlab == -1 || this.limits[this.activeSlab] + length > slabSize) {
+                openSlab(length);
+            }
+
+            final long location = location(this.activeSlab, this.limits[this.activeSlab]);
+            this.limits[this.activeSlab] += length;
+            this.liveBytes[this.activeSlab] += length;
+            return location;
+        }
+
+        /**
+         * Makes a slab with room for a record of the given length the active
+         * one: a free slab if there is one, otherwise the slab with the least
+         * live data, compacted in place.
+         */
+        private void openSlab(final int length) {
+            final int previous = this.activeSlab;
+            int free = -1;
+
+            for (int i = 0; i < this.slabs.length && free == -1; i++) {
+                if (this.slabs[i] == null) {
+                    free = i;
+                }
+            }
+
+            if (free == -1) {
+                final int emptiest = emptiestSlab();
+
+                if (slabSize - this.liveBytes[emptiest] < length) {
+                    throw new IllegalStateException("The off-heap ticket registry is full.");
+                }
+                compactInPlace(emptiest);
+                this.activeSlab = emptiest;
+                return;
+            }
+
+            this.slabs[free] = this.spareSlab != null ? this.spareSlab : ByteBuffer.allocateDirect(slabSize);
+            this.spareSlab = null;
+            this.limits[free] = 0;
+            this.liveBytes[free] = 0;
+            this.activeSlab = free;
+
+            if (previous != -1 && this.liveBytes[previous] == 0) {
+                freeSlab(previous);
+            }
+        }
+
+        private int emptiestSlab() {
+            int emptiest = 0;
+
+            for (int i = 1; i < this.slabs.length; i++) {
+                if (this.liveBytes[i] < this.liveBytes[emptiest]) {
+                    emptiest = i;
+                }
+            }
+            return emptiest;
+        }
+
+        /**
+         * Moves the live records of the slab to its start, leaving the room
+         * taken by dead records free at its end.
+         */
+        private void compactInPlace(final int slab) {
+            final ByteBuffer buffer = this.slabs[slab];
+            final byte[] record = new byte[slabSize];
+            int offset = 0;
+            int end = 0;
+
+            while (offset < this.limits[slab]) {
+                final int length = buffer.getInt(offset);
+
+                if ((buffer.get(offset + FLAGS_OFFSET) & LIVE) != 0) {
+                    if (offset != end) {
+                        // copied through the heap, as the source and target may overlap
+                        final ByteBuffer source = buffer.duplicate();
+                        source.position(offset);
+                        source.get(record, 0, length);
+                        final ByteBuffer target = buffer.duplicate();
+                        target.position(end);
+                        target.put(record, 0, length);
+
+                        final int index = findLocation(buffer.getInt(end + HASH_OFFSET), location(slab, offset));
+                        this.slots[index] = location(slab, end);
+                    }
+                    end += length;
+                }
+                offset += length;
+            }
+
+            this.limits[slab] = end;
+        }
+
+        /** Marks the record dead and reclaims its slab if that is worth it. */
+        private void release(final long location) {
+            final int slab = slabOf(location);
+            final ByteBuffer buffer = this.slabs[slab];
+            final int offset = offsetOf(location);
+
+            buffer.put(offset + FLAGS_OFFSET, (byte) (buffer.get(offset + FLAGS_OFFSET) & ~LIVE));
+            this.liveBytes[slab] -= buffer.getInt(offset);
+
+            if (slab == this.activeSlab) {
+                return;
+            }
+
+            if (this.liveBytes[slab] == 0) {
+                freeSlab(slab);
+            } else if (this.liveBytes[slab] < slabSize * COMPACTION_THRESHOLD && canCompact(slab)) {
+                compact(slab);
+            }
+        }
+
+        private boolean canCompact(final int slab) {
+            if (this.limits[this.activeSlab] + this.liveBytes[slab] <= slabSize) {
+                return true;
+            }
+            for (final ByteBuffer b : this.slabs) {
+                if (b == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Moves the live records of the slab to the active slab, then frees it. */
+        private void compact(final int slab) {
+            final ByteBuffer buffer = this.slabs[slab];
+            final ByteBuffer source = buffer.duplicate();
+            int offset = 0;
+
+            while (offset < this.limits[slab]) {
+                final int length = buffer.getInt(offset);
+
+                if ((buffer.get(offset + FLAGS_OFFSET) & LIVE) != 0) {
+                    final long location = reserve(length);
+                    final ByteBuffer target = this.slabs[slabOf(location)].duplicate();
+                    source.limit(offset + length).position(offset);
+                    target.position(offsetOf(location));
+                    target.put(source);
+
+                    final int index = findLocation(buffer.getInt(offset + HASH_OFFSET), location(slab, offset));
+                    this.slots[index] = location;
+                }
+                offset += length;
+            }
+
+            freeSlab(slab);
+        }
+
+        private int findLocation(final int hash, final long location) {
+            final int mask = this.slots.length - 1;
+            int index = hash & mask;
+            while (this.slots[index] != location) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private void freeSlab(final int slab) {
+            if (this.spareSlab == null) {
+                this.spareSlab = this.slabs[slab];
+            }
+            this.slabs[slab] = null;
+            this.liveBytes[slab] = 0;
+            this.limits[slab] = 0;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.List;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * An {@link ExpirationIndexedTicketRegistry} whose expired tickets can be
+ * polled a shard at a time, so that the nodes sharing the registry can each
+ * clean a part of it.  The shard of a ticket is
+ * <code>(ticketId.hashCode() &amp; Integer.MAX_VALUE) % shards</code>.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public interface ShardedExpirationIndexedTicketRegistry extends ExpirationIndexedTicketRegistry {
+
+    /**
+     * Returns, as {@link #pollExpiredTickets(int)} does, the expired tickets
+     * of a single shard.  Different shards may be polled at the same time.
+     *
+     * @param maxTickets the maximum number of tickets to return.
+     * @param shard the shard to poll, from 0 to <code>shards - 1</code>.
+     * @param shards the number of shards.
+     * @return the expired tickets of the shard, or an empty list once there
+     * are no more.
+     */
+    List<Ticket> pollExpiredTickets(int maxTickets, int shard, int shards);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * A {@link TicketRegistry} that can hand its tickets to a callback one at a
+ * time instead of returning them all in a single collection, so that callers
+ * such as registry cleaners and statistics only ever hold a page of tickets in
+ * memory.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public interface StreamingTicketRegistry extends TicketRegistry {
+
+    /**
+     * Visits the tickets of the registry.  Tickets added or removed while the
+     * iteration is in progress may or may not be visited.
+     *
+     * @param type only tickets that are instances of this type are visited,
+     * e.g. {@link org.jasig.cas.ticket.TicketGrantingTicket} or
+     * {@link org.jasig.cas.ticket.ServiceTicket}.  Null visits every ticket.
+     * @param pageSize the number of tickets the registry may load at once.
+     * @param callback the callback invoked for each ticket.  Returning false
+     * stops the iteration.
+     */
+    void iterateTickets(Class<? extends Ticket> type, int pageSize, TicketCallback callback);
+}
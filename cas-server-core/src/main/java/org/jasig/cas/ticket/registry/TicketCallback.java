@@ -0,0 +1,27 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * Callback invoked for each ticket visited by
+ * {@link StreamingTicketRegistry#iterateTickets(Class, int, TicketCallback)}.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public interface TicketCallback {
+
+    /**
+     * Handles a single ticket.
+     *
+     * @param ticket the ticket.  Tickets might or might not be expired.
+     * @return true to continue with the next ticket, false to stop the iteration.
+     */
+    boolean doWithTicket(Ticket ticket);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.util.StripedCounter;
+
+/**
+ * Size-bounded cache of TicketGrantingTickets read from a distributed
+ * registry, each kept for a fixed time after it was read.  The least
+ * recently used ticket is dropped first.  A time to live of 0 disables the
+ * cache.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+final class TicketGrantingTicketCache {
+
+    private final StripedCounter hits = new StripedCounter();
+
+    private final StripedCounter misses = new StripedCounter();
+
+    private volatile int maxSize;
+
+    private volatile long timeToLive;
+
+    /** Guarded by itself. */
+    private final Map<String, CachedTicket> tickets = new LinkedHashMap<String, CachedTicket>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedTicket> eldest) {
+            return size() > TicketGrantingTicketCache.this.maxSize;
+        }
+    };
+
+    TicketGrantingTicketCache(final int maxSize, final long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the ticket, not proxied, or null if it is not cached or was
+     * read too long ago.
+     */
+    TicketGrantingTicket get(final String id) {
+        if (this.timeToLive <= 0) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+
+        synchronized (this.tickets) {
+            final CachedTicket cached = this.tickets.get(id);
+
+            if (cached != null && now - cached.readTime < this.timeToLive) {
+                this.hits.increment();
+                return cached.ticket;
+            }
+            if (cached != null) {
+                this.tickets.remove(id);
+            }
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * @param ticket a ticket just read from the registry, not proxied.
+     */
+    void put(final TicketGrantingTicket ticket) {
+        if (this.timeToLive <= 0) {
+            return;
+        }
+        final CachedTicket cached = new CachedTicket(ticket, System.currentTimeMillis());
+
+        synchronized (this.tickets) {
+            this.tickets.put(ticket.getId(), cached);
+        }
+    }
+
+    void remove(final String id) {
+        synchronized (this.tickets) {
+            this.tickets.remove(id);
+        }
+    }
+
+    void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    void setTimeToLive(final long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    long getHitCount() {
+        return this.hits.sum();
+    }
+
+    long getMissCount() {
+        return this.misses.sum();
+    }
+
+    private static final class CachedTicket {
+
+        private final TicketGrantingTicket ticket;
+
+        private final long readTime;
+
+        private CachedTicket(final TicketGrantingTicket ticket, final long readTime) {
+            this.ticket = ticket;
+            this.readTime = readTime;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+/**
+ * Running counts kept by a ticket registry so that statistics can be reported
+ * without walking the registry.  Distributed registries may only be able to
+ * report what the local node has seen, in which case the counts are
+ * approximate.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public interface TicketRegistryStatistics {
+
+    /**
+     * @return the number of TicketGrantingTickets currently held, expired or not.
+     */
+    long getTicketGrantingTicketCount();
+
+    /**
+     * @return the number of ServiceTickets currently held, expired or not.
+     */
+    long getServiceTicketCount();
+
+    /**
+     * @return the number of tickets added since start up.
+     */
+    long getAddedTicketCount();
+
+    /**
+     * @return the number of tickets removed since start up.
+     */
+    long getDeletedTicketCount();
+
+    /**
+     * @return the number of ticket lookups since start up.
+     */
+    long getTicketLookupCount();
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+
+/**
+ * Strategy for turning tickets into bytes and back, for registries that keep
+ * tickets outside of the heap or outside of the JVM.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public interface TicketSerializer {
+
+    /**
+     * @param ticket the ticket to serialize.  Never a proxied instance.
+     * @return the serialized form of the ticket.
+     * @throws IllegalArgumentException if the ticket cannot be serialized.
+     */
+    byte[] serialize(Ticket ticket);
+
+    /**
+     * @param data the serialized form of a ticket.
+     * @return the ticket.
+     * @throws IllegalStateException if the data cannot be read.
+     */
+    Ticket deserialize(byte[] data);
+
+    /**
+     * @param ticket a ticket this serializer read.
+     * @return the id of its TicketGrantingTicket if only a reference to it was
+     * stored and {@link #setGrantingTicket(Ticket, TicketGrantingTicket)} has
+     * not been called yet, otherwise null.
+     */
+    String getGrantingTicketReference(Ticket ticket);
+
+    /**
+     * Replaces the reference to the TicketGrantingTicket of a ticket this
+     * serializer read with the TicketGrantingTicket itself.
+     *
+     * @param ticket the ticket as it was read, not a proxied instance.
+     * @param ticketGrantingTicket its parent, not a proxied instance.
+     * @throws UnsupportedOperationException if this serializer never stores
+     * references.
+     */
+    void setGrantingTicket(Ticket ticket, TicketGrantingTicket ticketGrantingTicket);
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jasig.cas.ticket.AbstractTicket;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
+import org.springframework.util.Assert;
+
+/**
+ * Ticket registry that decorates another {@link TicketRegistry} (by default a
+ * {@link DefaultTicketRegistry}) with an expiration index, so that the
+ * {@link org.jasig.cas.ticket.registry.support.DefaultTicketRegistryCleaner}
+ * only looks at tickets that are due instead of scanning every ticket.
+ * <p>
+ * Time is divided into ticks of {@link #setTickInMilliSeconds(long)}.  Each
+ * ticket is placed in the bucket of the tick in which its
+ * {@link TimeBasedExpirationPolicy} says it may first expire.  Polling walks
+ * the buckets from the last processed tick up to the current one, confirms
+ * each ticket with {@link Ticket#isExpired()} and reschedules the ones that
+ * were used in the meantime.
+ * <p>
+ * Tickets whose policy cannot predict an expiration time are checked every
+ * {@link #setRecheckIntervalInMilliSeconds(long)}.  Tickets that never expire
+ * under their policy are not indexed at all, and are only removed when they
+ * are explicitly deleted.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class TimingWheelTicketRegistry extends AbstractTicketRegistry implements ExpirationIndexedTicketRegistry, TicketRegistryStatistics {
+
+    /** The registry that actually stores the tickets. */
+    private final TicketRegistry ticketRegistry;
+
+    /** Statistics of the wrapped registry, or null if we have to keep our own. */
+    private final TicketRegistryStatistics statistics;
+
+    /** Tick number to the ids of the tickets due in that tick. */
+    private final ConcurrentMap<Long, Map<String, Boolean>> buckets = new ConcurrentHashMap<Long, Map<String, Boolean>>();
+
+    /** Ticket id to the tick it is currently scheduled in. */
+    private final Map<String, Long> scheduledTicks = new ConcurrentHashMap<String, Long>();
+
+    /** Tickets that are due but were scheduled behind the cursor or left over from a previous poll. */
+    private final Queue<String> overdue = new ConcurrentLinkedQueue<String>();
+
+    private long tickInMilliSeconds = 1000;
+
+    /** The first tick that has not been processed yet. */
+    private volatile long cursor = tickOf(System.currentTimeMillis());
+
+    private long recheckIntervalInMilliSeconds = 60000;
+
+    public TimingWheelTicketRegistry() {
+        this(new DefaultTicketRegistry());
+    }
+
+    public TimingWheelTicketRegistry(final TicketRegistry ticketRegistry) {
+        Assert.notNull(ticketRegistry, "ticketRegistry cannot be null");
+        this.ticketRegistry = ticketRegistry;
+        this.statistics = ticketRegistry instanceof TicketRegistryStatistics ? (TicketRegistryStatistics) ticketRegistry : null;
+    }
+
+    public void addTicket(final Ticket ticket) {
+        this.ticketRegistry.addTicket(ticket);
+        schedule(ticket, System.currentTimeMillis(), false);
+
+        if (this.statistics == null) {
+            ticketAdded(ticket);
+        }
+    }
+
+    public Ticket getTicket(final String ticketId) {
+        if (this.statistics == null) {
+            ticketRetrieved();
+        }
+        return this.ticketRegistry.getTicket(ticketId);
+    }
+
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+        unschedule(ticketId);
+
+        if (this.statistics != null) {
+            return this.ticketRegistry.deleteTicket(ticketId);
+        }
+
+        // we need the type of the ticket to keep our own counts
+        final Ticket ticket = this.ticketRegistry.getTicket(ticketId);
+        if (ticket != null && this.ticketRegistry.deleteTicket(ticketId)) {
+            ticketDeleted(ticket);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hands the ids to the wrapped registry at once if it keeps its own
+     * counts and can delete several tickets.
+     */
+    public int deleteTickets(final Collection<String> ticketIds) {
+        if (this.statistics == null || !(this.ticketRegistry instanceof BulkTicketRegistry)) {
+            return super.deleteTickets(ticketIds);
+        }
+
+        for (final String ticketId : ticketIds) {
+            unschedule(ticketId);
+        }
+        return ((BulkTicketRegistry) this.ticketRegistry).deleteTickets(ticketIds);
+    }
+
+    public Collection<Ticket> getTickets() {
+        return this.ticketRegistry.getTickets();
+    }
+
+    public long getTicketGrantingTicketCount() {
+        return this.statistics != null ? this.statistics.getTicketGrantingTicketCount() : super.getTicketGrantingTicketCount();
+    }
+
+    public long getServiceTicketCount() {
+        return this.statistics != null ? this.statistics.getServiceTicketCount() : super.getServiceTicketCount();
+    }
+
+    public long getAddedTicketCount() {
+        return this.statistics != null ? this.statistics.getAddedTicketCount() : super.getAddedTicketCount();
+    }
+
+    public long getDeletedTicketCount() {
+        return this.statistics != null ? this.statistics.getDeletedTicketCount() : super.getDeletedTicketCount();
+    }
+
+    public long getTicketLookupCount() {
+        return this.statistics != null ? this.statistics.getTicketLookupCount() : super.getTicketLookupCount();
+    }
+
+    public void iterateTickets(final Class<? extends Ticket> type, final int pageSize, final TicketCallback callback) {
+        if (this.ticketRegistry instanceof StreamingTicketRegistry) {
+            ((StreamingTicketRegistry) this.ticketRegistry).iterateTickets(type, pageSize, callback);
+        } else {
+            super.iterateTickets(type, pageSize, callback);
+        }
+    }
+
+    public synchronized List<Ticket> pollExpiredTickets(final int maxTickets) {
+        final List<Ticket> expired = new ArrayList<Ticket>();
+        final long now = System.currentTimeMillis();
+        final long currentTick = tickOf(now);
+
+        drain(this.overdue, expired, maxTickets, now);
+
+        while (expired.size() < maxTickets && this.cursor <= currentTick) {
+            final long tick = this.cursor;
+            // advance first, so that concurrent schedulers divert to the overdue queue
+            this.cursor = tick + 1;
+
+            final Map<String, Boolean> bucket = this.buckets.remove(Long.valueOf(tick));
+            if (bucket == null) {
+                continue;
+            }
+
+            final Queue<String> due = new LinkedList<String>();
+            for (final String ticketId : bucket.keySet()) {
+                if (Long.valueOf(tick).equals(this.scheduledTicks.get(ticketId))) {
+                    due.add(ticketId);
+                }
+            }
+
+            drain(due, expired, maxTickets, now);
+            this.overdue.addAll(due);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Found " + expired.size() + " expired tickets in the expiration index.");
+        }
+        return expired;
+    }
+
+    /**
+     * Checks due tickets until the batch is full.  Whatever could not be
+     * checked is left in the queue.
+     */
+    private void drain(final Queue<String> due, final List<Ticket> expired, final int maxTickets, final long now) {
+        while (expired.size() < maxTickets) {
+            final String ticketId = due.poll();
+            if (ticketId == null) {
+                return;
+            }
+
+            final Ticket ticket = this.ticketRegistry.getTicket(ticketId);
+            if (ticket == null) {
+                this.scheduledTicks.remove(ticketId);
+            } else if (ticket.isExpired()) {
+                this.scheduledTicks.remove(ticketId);
+                expired.add(ticket);
+            } else {
+                schedule(ticket, now, true);
+            }
+        }
+    }
+
+    /**
+     * Places the ticket in the bucket of the tick in which it may first
+     * expire.
+     *
+     * @param ticket the ticket to schedule.
+     * @param now the current time.
+     * @param polling true when called by the poller, which never needs to
+     * divert a ticket to the overdue queue since it owns the cursor.
+     */
+    private void schedule(final Ticket ticket, final long now, final boolean polling) {
+        long expirationTime = getExpirationTime(ticket);
+
+        if (expirationTime == TimeBasedExpirationPolicy.NEVER_EXPIRES) {
+            unschedule(ticket.getId());
+            return;
+        }
+
+        if (expirationTime <= now) {
+            // unknown, or still valid although the policy said it could be expired.
+            expirationTime = now + this.recheckIntervalInMilliSeconds;
+        }
+
+        final String ticketId = ticket.getId();
+        final Long tick = Long.valueOf(polling ? Math.max(tickOf(expirationTime), this.cursor) : tickOf(expirationTime));
+        final Long previousTick = this.scheduledTicks.put(ticketId, tick);
+
+        if (previousTick != null && !previousTick.equals(tick)) {
+            removeFromBucket(previousTick, ticketId);
+        }
+
+        Map<String, Boolean> bucket = this.buckets.get(tick);
+        if (bucket == null) {
+            final Map<String, Boolean> newBucket = new ConcurrentHashMap<String, Boolean>();
+            bucket = this.buckets.putIfAbsent(tick, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        bucket.put(ticketId, Boolean.TRUE);
+
+        if (tick.longValue() < this.cursor) {
+            // the poller has already moved past this tick and will never see this bucket
+            this.overdue.add(ticketId);
+            this.buckets.remove(tick);
+        }
+    }
+
+    private void unschedule(final String ticketId) {
+        final Long tick = this.scheduledTicks.remove(ticketId);
+
+        if (tick != null) {
+            removeFromBucket(tick, ticketId);
+        }
+    }
+
+    private void removeFromBucket(final Long tick, final String ticketId) {
+        final Map<String, Boolean> bucket = this.buckets.get(tick);
+
+        if (bucket != null) {
+            bucket.remove(ticketId);
+        }
+    }
+
+    private long getExpirationTime(final Ticket ticket) {
+        if (ticket instanceof AbstractTicket) {
+            final ExpirationPolicy policy = ((AbstractTicket) ticket).getExpirationPolicy();
+
+            if (policy instanceof TimeBasedExpirationPolicy) {
+                return ((TimeBasedExpirationPolicy) policy).getExpirationTime((AbstractTicket) ticket);
+            }
+        }
+
+        return 0;
+    }
+
+    private long tickOf(final long time) {
+        return time / this.tickInMilliSeconds;
+    }
+
+    /**
+     * @return the number of tickets currently tracked by the expiration index.
+     */
+    public int getScheduledTicketCount() {
+        return this.scheduledTicks.size();
+    }
+
+    /**
+     * @param tickInMilliSeconds the granularity of the expiration index.  Must
+     * be set before any ticket is added.
+     */
+    public void setTickInMilliSeconds(final long tickInMilliSeconds) {
+        Assert.isTrue(tickInMilliSeconds > 0, "tickInMilliSeconds must be greater than zero.");
+        this.tickInMilliSeconds = tickInMilliSeconds;
+        this.cursor = tickOf(System.currentTimeMillis());
+    }
+
+    /**
+     * @param recheckIntervalInMilliSeconds how long to wait before checking
+     * again a ticket whose expiration time cannot be predicted.
+     */
+    public void setRecheckIntervalInMilliSeconds(final long recheckIntervalInMilliSeconds) {
+        this.recheckIntervalInMilliSeconds = recheckIntervalInMilliSeconds;
+    }
+}
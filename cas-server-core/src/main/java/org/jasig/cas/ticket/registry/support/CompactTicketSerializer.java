@@ -0,0 +1,798 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.MutableAuthentication;
+import org.jasig.cas.authentication.principal.AbstractWebApplicationService;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.Response.ResponseType;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.AbstractTicket;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.ServiceTicketImpl;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.TicketUsage;
+import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketSerializer;
+import org.jasig.cas.ticket.support.HardTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.jasig.cas.ticket.support.ThrottledUseAndTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.jasig.cas.util.HttpClient;
+
+/**
+ * {@link TicketSerializer} with a compact binary format for the ticket,
+ * authentication, principal, service and expiration policy types that come
+ * with CAS.  Other types, such as custom services or attribute values, are
+ * embedded in Java serialized form, so every ticket can be written.
+ * <p>
+ * Compared to Java serialization no class descriptors are written, numbers
+ * are variable-length and an object or string that occurs more than once in
+ * a ticket, such as the service of a ServiceTicket that is also in the
+ * services of its TicketGrantingTicket, is written once and referenced after
+ * that.  Attribute names are interned when read, and expiration policies
+ * are read back as shared instances: either one of the named policies given
+ * to {@link #setExpirationPolicies(Map)}, which should be the policies the
+ * tickets are created with, or a cached instance of a bundled policy.
+ * <p>
+ * The first byte is the format version.  Data written by Java serialization
+ * is recognized and still read, so a registry can be switched over without
+ * being emptied first.  The {@link HttpClient} of a service is not stored;
+ * services are read back with the one given to {@link #setHttpClient(HttpClient)}.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class CompactTicketSerializer implements TicketSerializer {
+
+    /** The version of the format that is written. */
+    public static final int VERSION = 1;
+
+    private static final int MAX_INTERNED = 4096;
+
+    private static final byte TICKET_GRANTING_TICKET = 1;
+
+    private static final byte SERVICE_TICKET = 2;
+
+    private static final byte IMMUTABLE_AUTHENTICATION = 3;
+
+    private static final byte MUTABLE_AUTHENTICATION = 4;
+
+    private static final byte SIMPLE_PRINCIPAL = 5;
+
+    private static final byte SIMPLE_WEB_APPLICATION_SERVICE = 6;
+
+    private static final byte NAMED_POLICY = 7;
+
+    private static final byte NEVER_EXPIRES_POLICY = 8;
+
+    private static final byte TIMEOUT_POLICY = 9;
+
+    private static final byte HARD_TIMEOUT_POLICY = 10;
+
+    private static final byte MULTI_TIME_USE_POLICY = 11;
+
+    private static final byte THROTTLED_POLICY = 12;
+
+    private static final byte TICKET_REFERENCE = 13;
+
+    private static final byte SERIALIZED = 127;
+
+    private static final byte VALUE_NULL = 0;
+
+    private static final byte VALUE_STRING = 1;
+
+    private static final byte VALUE_LIST = 2;
+
+    private static final byte VALUE_OBJECT = 3;
+
+    private static final Field TICKET_ID = field(AbstractTicket.class, "id");
+
+    private static final Field TICKET_CREATION_TIME = field(AbstractTicket.class, "creationTime");
+
+    private static final Field TICKET_USAGE = field(AbstractTicket.class, "usage");
+
+    private static final Field TICKET_EXPIRATION_POLICY = field(AbstractTicket.class, "expirationPolicy");
+
+    private static final Field TICKET_PARENT = field(AbstractTicket.class, "ticketGrantingTicket");
+
+    private static final Field TGT_AUTHENTICATION = field(TicketGrantingTicketImpl.class, "authentication");
+
+    private static final Field TGT_EXPIRED = field(TicketGrantingTicketImpl.class, "expired");
+
+    private static final Field TGT_SERVICES = field(TicketGrantingTicketImpl.class, "services");
+
+    private static final Field ST_SERVICE = field(ServiceTicketImpl.class, "service");
+
+    private static final Field ST_FROM_NEW_LOGIN = field(ServiceTicketImpl.class, "fromNewLogin");
+
+    private static final Field ST_GRANTED_TICKET_ALREADY = field(ServiceTicketImpl.class, "grantedTicketAlready");
+
+    private static final Field AUTHENTICATION_DATE = field(ImmutableAuthentication.class, "authenticatedDate");
+
+    private static final Field SERVICE_ORIGINAL_URL = field(AbstractWebApplicationService.class, "originalUrl");
+
+    private static final Field SERVICE_PRINCIPAL = field(AbstractWebApplicationService.class, "principal");
+
+    private static final Field SERVICE_LOGGED_OUT_ALREADY = field(AbstractWebApplicationService.class, "loggedOutAlready");
+
+    private static final Field SERVICE_RESPONSE_TYPE = field(SimpleWebApplicationServiceImpl.class, "responseType");
+
+    private static final Field TIMEOUT_TIME_TO_KILL = field(TimeoutExpirationPolicy.class, "timeToKillInMilliSeconds");
+
+    private static final Field HARD_TIMEOUT_TIME_TO_KILL = field(HardTimeoutExpirationPolicy.class, "timeToKillInMilliSeconds");
+
+    private static final Field MULTI_TIME_USE_TIME_TO_KILL = field(MultiTimeUseOrTimeoutExpirationPolicy.class, "timeToKillInMilliSeconds");
+
+    private static final Field MULTI_TIME_USE_USES = field(MultiTimeUseOrTimeoutExpirationPolicy.class, "numberOfUses");
+
+    private static final Field THROTTLED_TIME_TO_KILL = field(ThrottledUseAndTimeoutExpirationPolicy.class, "timeToKillInMilliSeconds");
+
+    private static final Field THROTTLED_TIME_BETWEEN_USES = field(ThrottledUseAndTimeoutExpirationPolicy.class, "timeInBetweenUsesInMilliSeconds");
+
+    private static final Constructor<SimpleWebApplicationServiceImpl> SERVICE_CONSTRUCTOR;
+
+    private static final ResponseType[] RESPONSE_TYPES = ResponseType.values();
+
+    /** Marks the placeholders read in place of parents stored by reference. */
+    private static final ExpirationPolicy REFERENCE_POLICY = new NeverExpiresExpirationPolicy();
+
+    static {
+        try {
+            SERVICE_CONSTRUCTOR = SimpleWebApplicationServiceImpl.class.getDeclaredConstructor(
+                String.class, String.class, String.class, ResponseType.class, HttpClient.class);
+            SERVICE_CONSTRUCTOR.setAccessible(true);
+        } catch (final NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final ConcurrentHashMap<String, String> internedStrings = new ConcurrentHashMap<String, String>();
+
+    /** Bundled policies read so far, by type and settings. */
+    private final ConcurrentHashMap<String, ExpirationPolicy> internedPolicies = new ConcurrentHashMap<String, ExpirationPolicy>();
+
+    private Map<String, ExpirationPolicy> namedPolicies = Collections.emptyMap();
+
+    private Map<ExpirationPolicy, String> policyNames = Collections.emptyMap();
+
+    private HttpClient httpClient;
+
+    private boolean serviceTicketParentsByReference;
+
+    public byte[] serialize(final Ticket ticket) {
+        final Output out = new Output();
+        out.writeByte(VERSION);
+        try {
+            writeObject(out, ticket);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Ticket [" + ticket.getId() + "] could not be serialized: " + e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    public Ticket deserialize(final byte[] data) {
+        if (data.length > 1 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED) {
+            // written by Java serialization
+            return (Ticket) JavaTicketSerializer.fromBytes(data, 0, data.length);
+        }
+        if (data.length == 0 || data[0] != VERSION) {
+            throw new IllegalStateException("Ticket could not be deserialized: unknown format version.");
+        }
+
+        try {
+            return (Ticket) readObject(new Input(data, 1));
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Ticket could not be deserialized: data is truncated.");
+        }
+    }
+
+    private void writeObject(final Output out, final Object o) throws IOException {
+        if (o == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        final Integer reference = out.objects.get(o);
+        if (reference != null) {
+            out.writeVarInt(reference.intValue() + 2);
+            return;
+        }
+        out.objects.put(o, Integer.valueOf(out.objects.size()));
+        out.writeVarInt(1);
+
+        final Class<?> type = o.getClass();
+        final String policyName = o instanceof ExpirationPolicy ? this.policyNames.get(o) : null;
+
+        if (policyName != null) {
+            out.writeByte(NAMED_POLICY);
+            out.writeString(policyName);
+        } else if (type == TicketGrantingTicketImpl.class) {
+            out.writeByte(TICKET_GRANTING_TICKET);
+            writeTicketGrantingTicket(out, (TicketGrantingTicketImpl) o);
+        } else if (type == ServiceTicketImpl.class) {
+            out.writeByte(SERVICE_TICKET);
+            writeServiceTicket(out, (ServiceTicketImpl) o);
+        } else if (type == ImmutableAuthentication.class || type == MutableAuthentication.class) {
+            final Authentication authentication = (Authentication) o;
+            out.writeByte(type == ImmutableAuthentication.class ? IMMUTABLE_AUTHENTICATION : MUTABLE_AUTHENTICATION);
+            writeObject(out, authentication.getPrincipal());
+            writeAttributes(out, authentication.getAttributes());
+            out.writeVarLong(authentication.getAuthenticatedDate().getTime());
+        } else if (type == SimplePrincipal.class) {
+            final Principal principal = (Principal) o;
+            out.writeByte(SIMPLE_PRINCIPAL);
+            out.writeString(principal.getId());
+            writeAttributes(out, principal.getAttributes());
+        } else if (type == SimpleWebApplicationServiceImpl.class) {
+            final SimpleWebApplicationServiceImpl service = (SimpleWebApplicationServiceImpl) o;
+            final ResponseType responseType = (ResponseType) get(SERVICE_RESPONSE_TYPE, service);
+            out.writeByte(SIMPLE_WEB_APPLICATION_SERVICE);
+            out.writeString(service.getId());
+            out.writeString((String) get(SERVICE_ORIGINAL_URL, service));
+            out.writeString(service.getArtifactId());
+            out.writeVarInt(responseType == null ? 0 : responseType.ordinal() + 1);
+            out.writeBoolean(((Boolean) get(SERVICE_LOGGED_OUT_ALREADY, service)).booleanValue());
+            writeObject(out, get(SERVICE_PRINCIPAL, service));
+        } else if (type == NeverExpiresExpirationPolicy.class) {
+            out.writeByte(NEVER_EXPIRES_POLICY);
+        } else if (type == TimeoutExpirationPolicy.class) {
+            out.writeByte(TIMEOUT_POLICY);
+            out.writeVarLong(((Long) get(TIMEOUT_TIME_TO_KILL, o)).longValue());
+        } else if (type == HardTimeoutExpirationPolicy.class) {
+            out.writeByte(HARD_TIMEOUT_POLICY);
+            out.writeVarLong(((Long) get(HARD_TIMEOUT_TIME_TO_KILL, o)).longValue());
+        } else if (type == MultiTimeUseOrTimeoutExpirationPolicy.class) {
+            out.writeByte(MULTI_TIME_USE_POLICY);
+            out.writeVarInt(((Integer) get(MULTI_TIME_USE_USES, o)).intValue());
+            out.writeVarLong(((Long) get(MULTI_TIME_USE_TIME_TO_KILL, o)).longValue());
+        } else if (type == ThrottledUseAndTimeoutExpirationPolicy.class) {
+            out.writeByte(THROTTLED_POLICY);
+            out.writeVarLong(((Long) get(THROTTLED_TIME_TO_KILL, o)).longValue());
+            out.writeVarLong(((Long) get(THROTTLED_TIME_BETWEEN_USES, o)).longValue());
+        } else {
+            out.writeByte(SERIALIZED);
+            final byte[] bytes = JavaTicketSerializer.toBytes(o);
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    private void writeTicket(final Output out, final AbstractTicket ticket, final boolean parentByReference) throws IOException {
+        final TicketUsage usage = (TicketUsage) get(TICKET_USAGE, ticket);
+        out.writeString(ticket.getId());
+        out.writeVarLong(ticket.getCreationTime());
+        out.writeVarLong(usage.getLastTimeUsed());
+        out.writeVarLong(usage.getPreviousLastTimeUsed());
+        out.writeVarInt(usage.getCountOfUses());
+        writeObject(out, ticket.getExpirationPolicy());
+
+        final TicketGrantingTicket parent = ticket.getGrantingTicket();
+        if (parentByReference && parent != null) {
+            out.objects.put(parent, Integer.valueOf(out.objects.size()));
+            out.writeVarInt(1);
+            out.writeByte(TICKET_REFERENCE);
+            out.writeString(parent.getId());
+        } else {
+            writeObject(out, parent);
+        }
+    }
+
+    private void writeTicketGrantingTicket(final Output out, final TicketGrantingTicketImpl ticket) throws IOException {
+        writeTicket(out, ticket, false);
+        writeObject(out, ticket.getAuthentication());
+        out.writeBoolean(((Boolean) get(TGT_EXPIRED, ticket)).booleanValue());
+
+        final Map<?, ?> services = (Map<?, ?>) get(TGT_SERVICES, ticket);
+        final List<Map.Entry<?, ?>> entries;
+        synchronized (services) {
+            entries = new ArrayList<Map.Entry<?, ?>>(services.entrySet());
+        }
+        out.writeVarInt(entries.size());
+        for (final Map.Entry<?, ?> entry : entries) {
+            out.writeString((String) entry.getKey());
+            writeObject(out, entry.getValue());
+        }
+    }
+
+    private void writeServiceTicket(final Output out, final ServiceTicketImpl ticket) throws IOException {
+        writeTicket(out, ticket, this.serviceTicketParentsByReference);
+        writeObject(out, ticket.getService());
+        out.writeBoolean(ticket.isFromNewLogin());
+        out.writeBoolean(((Boolean) get(ST_GRANTED_TICKET_ALREADY, ticket)).booleanValue());
+    }
+
+    private void writeAttributes(final Output out, final Map<String, Object> attributes) throws IOException {
+        out.writeVarInt(attributes.size());
+        for (final Map.Entry<String, Object> entry : attributes.entrySet()) {
+            out.writeString(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private void writeValue(final Output out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            out.writeString((String) value);
+        } else if (value.getClass() == ArrayList.class) {
+            final List<?> list = (List<?>) value;
+            out.writeByte(VALUE_LIST);
+            out.writeVarInt(list.size());
+            for (final Object element : list) {
+                writeValue(out, element);
+            }
+        } else {
+            out.writeByte(VALUE_OBJECT);
+            writeObject(out, value);
+        }
+    }
+
+    private Object readObject(final Input in) {
+        final int slot = in.readVarInt();
+        if (slot == 0) {
+            return null;
+        }
+        if (slot > 1) {
+            return in.objects.get(slot - 2);
+        }
+        // claim the index before any nested object does, as the writer did
+        final int index = in.objects.size();
+        in.objects.add(null);
+        final Object o = readNewObject(in);
+        in.objects.set(index, o);
+        return o;
+    }
+
+    private Object readNewObject(final Input in) {
+        final byte type = in.readByte();
+
+        switch (type) {
+            case NAMED_POLICY:
+                final String name = in.readString();
+                final ExpirationPolicy policy = this.namedPolicies.get(name);
+                if (policy == null) {
+                    throw new IllegalStateException("Ticket could not be deserialized: unknown expiration policy [" + name + "].");
+                }
+                return policy;
+            case TICKET_GRANTING_TICKET:
+                final TicketGrantingTicketImpl ticketGrantingTicket = new TicketGrantingTicketImpl();
+                readTicket(in, ticketGrantingTicket);
+                set(TGT_AUTHENTICATION, ticketGrantingTicket, readObject(in));
+                set(TGT_EXPIRED, ticketGrantingTicket, Boolean.valueOf(in.readBoolean()));
+                readServices(in, ticketGrantingTicket);
+                return ticketGrantingTicket;
+            case SERVICE_TICKET:
+                final ServiceTicketImpl serviceTicket = new ServiceTicketImpl();
+                readTicket(in, serviceTicket);
+                set(ST_SERVICE, serviceTicket, readObject(in));
+                set(ST_FROM_NEW_LOGIN, serviceTicket, Boolean.valueOf(in.readBoolean()));
+                set(ST_GRANTED_TICKET_ALREADY, serviceTicket, Boolean.valueOf(in.readBoolean()));
+                return serviceTicket;
+            case IMMUTABLE_AUTHENTICATION:
+                final ImmutableAuthentication immutableAuthentication =
+                    new ImmutableAuthentication((Principal) readObject(in), readAttributes(in));
+                set(AUTHENTICATION_DATE, immutableAuthentication, new Date(in.readVarLong()));
+                return immutableAuthentication;
+            case MUTABLE_AUTHENTICATION:
+                final Principal principal = (Principal) readObject(in);
+                final Map<String, Object> attributes = readAttributes(in);
+                final MutableAuthentication mutableAuthentication = new MutableAuthentication(principal, new Date(in.readVarLong()));
+                if (attributes != null) {
+                    mutableAuthentication.getAttributes().putAll(attributes);
+                }
+                return mutableAuthentication;
+            case SIMPLE_PRINCIPAL:
+                return new SimplePrincipal(in.readString(), readAttributes(in));
+            case SIMPLE_WEB_APPLICATION_SERVICE:
+                return readService(in);
+            case NEVER_EXPIRES_POLICY:
+                return internPolicy("never", new NeverExpiresExpirationPolicy());
+            case TIMEOUT_POLICY:
+                final long timeout = in.readVarLong();
+                return internPolicy("timeout:" + timeout, new TimeoutExpirationPolicy(timeout));
+            case HARD_TIMEOUT_POLICY:
+                final long hardTimeout = in.readVarLong();
+                return internPolicy("hard:" + hardTimeout, new HardTimeoutExpirationPolicy(hardTimeout));
+            case MULTI_TIME_USE_POLICY:
+                final int uses = in.readVarInt();
+                final long multiTimeout = in.readVarLong();
+                return internPolicy("multi:" + uses + ":" + multiTimeout, new MultiTimeUseOrTimeoutExpirationPolicy(uses, multiTimeout));
+            case THROTTLED_POLICY:
+                final long throttledTimeout = in.readVarLong();
+                final long timeBetweenUses = in.readVarLong();
+                final ThrottledUseAndTimeoutExpirationPolicy throttledPolicy = new ThrottledUseAndTimeoutExpirationPolicy();
+                throttledPolicy.setTimeToKillInMilliSeconds(throttledTimeout);
+                throttledPolicy.setTimeInBetweenUsesInMilliSeconds(timeBetweenUses);
+                return internPolicy("throttled:" + throttledTimeout + ":" + timeBetweenUses, throttledPolicy);
+            case TICKET_REFERENCE:
+                // expired until the registry puts the actual parent in its place
+                final TicketGrantingTicketImpl reference = new TicketGrantingTicketImpl();
+                set(TICKET_ID, reference, in.readString());
+                set(TICKET_EXPIRATION_POLICY, reference, REFERENCE_POLICY);
+                set(TGT_EXPIRED, reference, Boolean.TRUE);
+                return reference;
+            case SERIALIZED:
+                final int length = in.readVarInt();
+                final Object o = JavaTicketSerializer.fromBytes(in.data, in.position, length);
+                in.position += length;
+                return o;
+            default:
+                throw new IllegalStateException("Ticket could not be deserialized: unknown type " + type + ".");
+        }
+    }
+
+    private void readTicket(final Input in, final AbstractTicket ticket) {
+        set(TICKET_ID, ticket, in.readString());
+        set(TICKET_CREATION_TIME, ticket, Long.valueOf(in.readVarLong()));
+        set(TICKET_USAGE, ticket, new TicketUsage(in.readVarLong(), in.readVarLong(), in.readVarInt()));
+        set(TICKET_EXPIRATION_POLICY, ticket, readObject(in));
+        set(TICKET_PARENT, ticket, readObject(in));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readServices(final Input in, final TicketGrantingTicketImpl ticket) {
+        final Map<String, Service> services = (Map<String, Service>) get(TGT_SERVICES, ticket);
+        for (int i = in.readVarInt(); i > 0; i--) {
+            services.put(in.readString(), (Service) readObject(in));
+        }
+    }
+
+    private SimpleWebApplicationServiceImpl readService(final Input in) {
+        final String id = in.readString();
+        final String originalUrl = in.readString();
+        final String artifactId = in.readString();
+        final int responseType = in.readVarInt();
+        final boolean loggedOutAlready = in.readBoolean();
+
+        final SimpleWebApplicationServiceImpl service;
+        try {
+            service = SERVICE_CONSTRUCTOR.newInstance(id, originalUrl, artifactId,
+                responseType == 0 ? null : RESPONSE_TYPES[responseType - 1], this.httpClient);
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+        set(SERVICE_LOGGED_OUT_ALREADY, service, Boolean.valueOf(loggedOutAlready));
+        service.setPrincipal((Principal) readObject(in));
+        return service;
+    }
+
+    /**
+     * @return the attributes, or null if there are none.
+     */
+    private Map<String, Object> readAttributes(final Input in) {
+        final int size = in.readVarInt();
+        if (size == 0) {
+            return null;
+        }
+        final Map<String, Object> attributes = new HashMap<String, Object>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            attributes.put(intern(in.readString()), readValue(in));
+        }
+        return attributes;
+    }
+
+    private Object readValue(final Input in) {
+        final byte type = in.readByte();
+
+        switch (type) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return in.readString();
+            case VALUE_LIST:
+                final int size = in.readVarInt();
+                final List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case VALUE_OBJECT:
+                return readObject(in);
+            default:
+                throw new IllegalStateException("Ticket could not be deserialized: unknown attribute type " + type + ".");
+        }
+    }
+
+    private String intern(final String s) {
+        final String interned = this.internedStrings.get(s);
+        if (interned != null) {
+            return interned;
+        }
+        if (this.internedStrings.size() < MAX_INTERNED) {
+            final String previous = this.internedStrings.putIfAbsent(s, s);
+            return previous != null ? previous : s;
+        }
+        return s;
+    }
+
+    /**
+     * @return the cached policy with the given key, or the given policy if
+     * there is none yet.
+     */
+    private ExpirationPolicy internPolicy(final String key, final ExpirationPolicy policy) {
+        final ExpirationPolicy interned = this.internedPolicies.get(key);
+        if (interned != null) {
+            return interned;
+        }
+        if (this.internedPolicies.size() < MAX_INTERNED) {
+            final ExpirationPolicy previous = this.internedPolicies.putIfAbsent(key, policy);
+            return previous != null ? previous : policy;
+        }
+        return policy;
+    }
+
+    /**
+     * @param expirationPolicies the policies tickets are created with, by
+     * name.  A ticket with one of these policies stores only its name, and
+     * gets the same instance back when it is read, so the names must be the
+     * same on every node.
+     */
+    public void setExpirationPolicies(final Map<String, ExpirationPolicy> expirationPolicies) {
+        final Map<ExpirationPolicy, String> names = new IdentityHashMap<ExpirationPolicy, String>();
+        for (final Map.Entry<String, ExpirationPolicy> entry : expirationPolicies.entrySet()) {
+            names.put(entry.getValue(), entry.getKey());
+        }
+        this.namedPolicies = new HashMap<String, ExpirationPolicy>(expirationPolicies);
+        this.policyNames = names;
+    }
+
+    /**
+     * @param httpClient the HttpClient given to the services that are read.
+     */
+    public void setHttpClient(final HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @param serviceTicketParentsByReference true to store only the id of
+     * the TicketGrantingTicket of a ServiceTicket, instead of a copy of it.
+     * The ServiceTicket is read back with an expired placeholder as its
+     * parent, which {@link AbstractDistributedTicketRegistry} replaces with
+     * the TicketGrantingTicket from the registry when the registry returns
+     * this serializer from its getTicketSerializer method.
+     */
+    public void setServiceTicketParentsByReference(final boolean serviceTicketParentsByReference) {
+        this.serviceTicketParentsByReference = serviceTicketParentsByReference;
+    }
+
+    public String getGrantingTicketReference(final Ticket ticket) {
+        final TicketGrantingTicket parent = ticket.getGrantingTicket();
+
+        if (parent instanceof AbstractTicket && ((AbstractTicket) parent).getExpirationPolicy() == REFERENCE_POLICY) {
+            return parent.getId();
+        }
+        return null;
+    }
+
+    public void setGrantingTicket(final Ticket ticket, final TicketGrantingTicket ticketGrantingTicket) {
+        set(TICKET_PARENT, ticket, ticketGrantingTicket);
+    }
+
+    private static Field field(final Class<?> type, final String name) {
+        try {
+            final Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (final NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object get(final Field field, final Object o) {
+        try {
+            return field.get(o);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(final Field field, final Object o, final Object value) {
+        try {
+            field.set(o, value);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Growable buffer, with the objects and strings written so far.
+     */
+    private static final class Output {
+
+        private final Map<Object, Integer> objects = new IdentityHashMap<Object, Integer>();
+
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        private byte[] buffer = new byte[256];
+
+        private int size;
+
+        private void ensureCapacity(final int length) {
+            if (this.size + length > this.buffer.length) {
+                final byte[] newBuffer = new byte[Math.max(this.buffer.length * 2, this.size + length)];
+                System.arraycopy(this.buffer, 0, newBuffer, 0, this.size);
+                this.buffer = newBuffer;
+            }
+        }
+
+        private void writeByte(final int b) {
+            ensureCapacity(1);
+            this.buffer[this.size++] = (byte) b;
+        }
+
+        private void writeBoolean(final boolean b) {
+            writeByte(b ? 1 : 0);
+        }
+
+        private void writeBytes(final byte[] bytes, final int offset, final int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, this.buffer, this.size, length);
+            this.size += length;
+        }
+
+        private void writeVarInt(final int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(final long value) {
+            ensureCapacity(10);
+            long remaining = value;
+            while ((remaining & ~0x7FL) != 0) {
+                this.buffer[this.size++] = (byte) ((remaining & 0x7F) | 0x80);
+                remaining >>>= 7;
+            }
+            this.buffer[this.size++] = (byte) remaining;
+        }
+
+        /**
+         * Strings are written as 0 for null, 1 followed by the UTF-8 length
+         * and bytes for a new string, or 2 + n for the n-th string written.
+         */
+        private void writeString(final String s) {
+            if (s == null) {
+                writeVarInt(0);
+                return;
+            }
+            final Integer reference = this.strings.get(s);
+            if (reference != null) {
+                writeVarInt(reference.intValue() + 2);
+                return;
+            }
+            this.strings.put(s, Integer.valueOf(this.strings.size()));
+            writeVarInt(1);
+
+            final int length = s.length();
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) >= 0x80) {
+                    try {
+                        final byte[] bytes = s.getBytes("UTF-8");
+                        writeVarInt(bytes.length);
+                        writeBytes(bytes, 0, bytes.length);
+                        return;
+                    } catch (final UnsupportedEncodingException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+            writeVarInt(length);
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                this.buffer[this.size++] = (byte) s.charAt(i);
+            }
+        }
+
+        private byte[] toByteArray() {
+            final byte[] bytes = new byte[this.size];
+            System.arraycopy(this.buffer, 0, bytes, 0, this.size);
+            return bytes;
+        }
+    }
+
+    /**
+     * Read position, with the objects and strings read so far.
+     */
+    private static final class Input {
+
+        private final List<Object> objects = new ArrayList<Object>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        private final byte[] data;
+
+        private int position;
+
+        private Input(final byte[] data, final int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        private byte readByte() {
+            return this.data[this.position++];
+        }
+
+        private boolean readBoolean() {
+            return readByte() != 0;
+        }
+
+        private int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Ticket could not be deserialized: malformed number.");
+        }
+
+        private String readString() {
+            final int slot = readVarInt();
+            if (slot == 0) {
+                return null;
+            }
+            if (slot > 1) {
+                return this.strings.get(slot - 2);
+            }
+
+            final int length = readVarInt();
+            if (length < 0 || this.position + length > this.data.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            final char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                final byte b = this.data[this.position + i];
+                if (b < 0) {
+                    return addString(decodeUtf8(length));
+                }
+                chars[i] = (char) b;
+            }
+            this.position += length;
+            return addString(new String(chars));
+        }
+
+        private String decodeUtf8(final int length) {
+            try {
+                final String s = new String(this.data, this.position, length, "UTF-8");
+                this.position += length;
+                return s;
+            } catch (final UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private String addString(final String s) {
+            this.strings.add(s);
+            return s;
+        }
+    }
+}
@@ -11,11 +11,17 @@ import java.util.List;
 
 import org.jasig.cas.ticket.Ticket;
 import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.BulkTicketRegistry;
+import org.jasig.cas.ticket.registry.ExpirationIndexedTicketRegistry;
 import org.jasig.cas.ticket.registry.RegistryCleaner;
+import org.jasig.cas.ticket.registry.StreamingTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketCallback;
 import org.jasig.cas.ticket.registry.TicketRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 /**
@@ -36,6 +42,14 @@ import javax.validation.constraints.NotNull;
  * should be used with {@link org.jasig.cas.ticket.registry.JpaTicketRegistry}
  * in a clustered CAS environment.
  * </p>
+ * <p>
+ * If the registry is an {@link ExpirationIndexedTicketRegistry}, only tickets
+ * that are due are examined, and they are removed in batches of
+ * {@link #setBatchSize(int)} instead of loading the whole registry.
+ * Otherwise a {@link StreamingTicketRegistry} is walked a page at a time and
+ * expired tickets are removed as soon as a batch has been collected.  A
+ * {@link BulkTicketRegistry} removes each batch at once.
+ * </p>
  * <p>The following property is required.</p>
  * <ul>
  * <li>ticketRegistry - CAS ticket registry.</li>
@@ -63,6 +77,10 @@ public final class DefaultTicketRegistryCleaner implements RegistryCleaner {
 
     private boolean logUserOutOfServices = true;
 
+    /** Maximum number of tickets loaded or removed per batch. */
+    @Min(1)
+    private int batchSize = 1000;
+
 
     /**
      * @see org.jasig.cas.ticket.registry.RegistryCleaner#clean()
@@ -76,22 +94,12 @@ public final class DefaultTicketRegistryCleaner implements RegistryCleaner {
         }
         this.log.debug("Acquired lock.  Proceeding with cleanup.");
         try {
-            final List<Ticket> ticketsToRemove = new ArrayList<Ticket>();
-            final Collection<Ticket> ticketsInCache;
-            ticketsInCache = this.ticketRegistry.getTickets();
-            for (final Ticket ticket : ticketsInCache) {
-                if (ticket.isExpired()) {
-                    ticketsToRemove.add(ticket);
-                }
-            }
-
-            this.log.info(ticketsToRemove.size() + " tickets found to be removed.");
-            for (final Ticket ticket : ticketsToRemove) {
-                // CAS-686: Expire TGT to trigger single sign-out
-                if (this.logUserOutOfServices && ticket instanceof TicketGrantingTicket) {
-                    ((TicketGrantingTicket) ticket).expire();
-                }
-                this.ticketRegistry.deleteTicket(ticket.getId());
+            if (this.ticketRegistry instanceof ExpirationIndexedTicketRegistry) {
+                cleanIndexedRegistry((ExpirationIndexedTicketRegistry) this.ticketRegistry);
+            } else if (this.ticketRegistry instanceof StreamingTicketRegistry) {
+                cleanStreamingRegistry((StreamingTicketRegistry) this.ticketRegistry);
+            } else {
+                cleanRegistry();
             }
         } finally {
             this.log.debug("Releasing ticket cleanup lock.");
@@ -101,6 +109,77 @@ public final class DefaultTicketRegistryCleaner implements RegistryCleaner {
         this.log.info("Finished ticket cleanup.");
     }
 
+    private void cleanRegistry() {
+        final List<Ticket> ticketsToRemove = new ArrayList<Ticket>();
+        final Collection<Ticket> ticketsInCache;
+        ticketsInCache = this.ticketRegistry.getTickets();
+        for (final Ticket ticket : ticketsInCache) {
+            if (ticket.isExpired()) {
+                ticketsToRemove.add(ticket);
+            }
+        }
+
+        this.log.info(ticketsToRemove.size() + " tickets found to be removed.");
+        removeTickets(ticketsToRemove);
+    }
+
+    private void cleanIndexedRegistry(final ExpirationIndexedTicketRegistry registry) {
+        int removed = 0;
+        List<Ticket> batch = registry.pollExpiredTickets(this.batchSize);
+
+        while (!batch.isEmpty()) {
+            removeTickets(batch);
+            removed += batch.size();
+            batch = registry.pollExpiredTickets(this.batchSize);
+        }
+
+        this.log.info(removed + " expired tickets removed.");
+    }
+
+    private void cleanStreamingRegistry(final StreamingTicketRegistry registry) {
+        final List<Ticket> batch = new ArrayList<Ticket>();
+        final int[] removed = new int[1];
+
+        registry.iterateTickets(null, this.batchSize, new TicketCallback() {
+            public boolean doWithTicket(final Ticket ticket) {
+                if (ticket.isExpired()) {
+                    batch.add(ticket);
+                    if (batch.size() >= DefaultTicketRegistryCleaner.this.batchSize) {
+                        removeTickets(batch);
+                        removed[0] += batch.size();
+                        batch.clear();
+                    }
+                }
+                return true;
+            }
+        });
+
+        removeTickets(batch);
+        removed[0] += batch.size();
+        this.log.info(removed[0] + " expired tickets removed.");
+    }
+
+    private void removeTickets(final Collection<Ticket> ticketsToRemove) {
+        final List<String> ticketIds = new ArrayList<String>(ticketsToRemove.size());
+
+        for (final Ticket ticket : ticketsToRemove) {
+            // CAS-686: Expire TGT to trigger single sign-out
+            if (this.logUserOutOfServices && ticket instanceof TicketGrantingTicket) {
+                ((TicketGrantingTicket) ticket).expire();
+            }
+            ticketIds.add(ticket.getId());
+        }
+
+        if (this.ticketRegistry instanceof BulkTicketRegistry) {
+            ((BulkTicketRegistry) this.ticketRegistry).deleteTickets(ticketIds);
+            return;
+        }
+
+        for (final String ticketId : ticketIds) {
+            this.ticketRegistry.deleteTicket(ticketId);
+        }
+    }
+
 
     /**
      * @param ticketRegistry The ticketRegistry to set.
@@ -130,4 +209,13 @@ public final class DefaultTicketRegistryCleaner implements RegistryCleaner {
     public void setLogUserOutOfServices(final boolean logUserOutOfServices) {
         this.logUserOutOfServices = logUserOutOfServices;
     }
+
+    /**
+     * @param batchSize the maximum number of tickets to load or remove at
+     * once.  The default is 1000.
+     */
+    public void setBatchSize(final int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be greater than zero.");
+        this.batchSize = batchSize;
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.TicketSerializer;
+
+/**
+ * {@link TicketSerializer} using standard Java serialization, which is what
+ * the registries have always stored.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class JavaTicketSerializer implements TicketSerializer {
+
+    public byte[] serialize(final Ticket ticket) {
+        try {
+            return toBytes(ticket);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Ticket [" + ticket.getId() + "] could not be serialized: " + e.getMessage());
+        }
+    }
+
+    public Ticket deserialize(final byte[] data) {
+        return (Ticket) fromBytes(data, 0, data.length);
+    }
+
+    /**
+     * Java serialization always stores the TicketGrantingTicket itself.
+     */
+    public String getGrantingTicketReference(final Ticket ticket) {
+        return null;
+    }
+
+    public void setGrantingTicket(final Ticket ticket, final TicketGrantingTicket ticketGrantingTicket) {
+        throw new UnsupportedOperationException("Java serialization does not store references.");
+    }
+
+    static byte[] toBytes(final Object o) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Object fromBytes(final byte[] data, final int offset, final int length) {
+        try {
+            return new ObjectInputStream(new ByteArrayInputStream(data, offset, length)).readObject();
+        } catch (final IOException e) {
+            throw new IllegalStateException("Ticket could not be deserialized: " + e.getMessage());
+        } catch (final ClassNotFoundException e) {
+            throw new IllegalStateException("Ticket could not be deserialized: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.BulkTicketRegistry;
+import org.jasig.cas.ticket.registry.ExpirationIndexedTicketRegistry;
+import org.jasig.cas.ticket.registry.RegistryCleaner;
+import org.jasig.cas.ticket.registry.ShardedExpirationIndexedTicketRegistry;
+import org.jasig.cas.ticket.registry.StreamingTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketCallback;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Registry cleaner that splits the tickets into shards by the hash of their
+ * id, each with its own lease, so that several CAS nodes, and several
+ * threads on each node, clean the registry at once.
+ * <p>
+ * Every run tries to lease each shard, starting from a random one, and
+ * cleans only the shards it got.  The registry is walked once; the expired
+ * tickets of the leased shards are collected in batches of
+ * {@link #setBatchSize(int)}, which the worker threads expire and remove.
+ * {@link #setMaxRemovalsPerSecond(int)} bounds the pace of the workers, and
+ * their threads run at minimum priority, so that cleanup does not starve the
+ * threads serving requests.  At most two batches per worker wait to be
+ * removed; the walk waits for the workers beyond that.
+ * </p>
+ * <p>
+ * A {@link ShardedExpirationIndexedTicketRegistry}, such as the
+ * JpaTicketRegistry, is polled instead of walked, each leased shard on its
+ * own, so the nodes of a cluster share the cleanup.  Any other
+ * {@link ExpirationIndexedTicketRegistry} can only be polled as a whole, so
+ * only the first shard is leased, and only by the node getting it.
+ * </p>
+ * <p>
+ * Other registries are walked by each node that leased a shard, keeping the
+ * tickets of its shards.  Those are the registries holding their tickets in
+ * memory, where walking is cheap.
+ * </p>
+ * <p>
+ * In a cluster, each lease is a {@link JdbcLockingStrategy} with its own
+ * application id, i.e. its own row of the LOCKS table.  Their lock timeout
+ * should exceed the longest run.  For example:
+ * <pre>
+ * &lt;bean id="shardLock" abstract="true" class="org.jasig.cas.ticket.registry.support.JdbcLockingStrategy"
+ *     p:dataSource-ref="dataSource" p:uniqueId="${host.name}" p:lockTimeout="3600" /&gt;
+ *
+ * &lt;bean id="ticketRegistryCleaner" class="org.jasig.cas.ticket.registry.support.PartitionedTicketRegistryCleaner"
+ *     p:ticketRegistry-ref="ticketRegistry" p:workers="4" p:maxShardsPerRun="2"&gt;
+ *   &lt;property name="shardLocks"&gt;
+ *     &lt;list&gt;
+ *       &lt;bean parent="shardLock" p:applicationId="cas-ticket-cleaner-0" /&gt;
+ *       &lt;bean parent="shardLock" p:applicationId="cas-ticket-cleaner-1" /&gt;
+ *       ...
+ *     &lt;/list&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * </p>
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ * @see DefaultTicketRegistryCleaner
+ */
+public final class PartitionedTicketRegistryCleaner implements RegistryCleaner {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @NotNull
+    private TicketRegistry ticketRegistry;
+
+    /** One lease per shard. */
+    @NotNull
+    @Size(min = 1)
+    private List<LockingStrategy> shardLocks = createNoOpLocks(16);
+
+    @Min(1)
+    private int workers = 2;
+
+    @Min(1)
+    private int maxShardsPerRun = Integer.MAX_VALUE;
+
+    @Min(1)
+    private int batchSize = 1000;
+
+    @Min(0)
+    private int maxRemovalsPerSecond = 0;
+
+    private boolean logUserOutOfServices = true;
+
+    private final Random random = new Random();
+
+    public void clean() {
+        this.log.info("Beginning partitioned ticket cleanup.");
+        final boolean indexed = this.ticketRegistry instanceof ExpirationIndexedTicketRegistry;
+        final boolean sharded = this.ticketRegistry instanceof ShardedExpirationIndexedTicketRegistry;
+        final boolean[] leased = indexed && !sharded ? acquireFirstShard() : acquireShards();
+        final List<Integer> leasedShards = new ArrayList<Integer>();
+        for (int shard = 0; shard < leased.length; shard++) {
+            if (leased[shard]) {
+                leasedShards.add(Integer.valueOf(shard));
+            }
+        }
+
+        if (leasedShards.isEmpty()) {
+            this.log.info("Could not lease any shard.  Aborting cleanup.");
+            return;
+        }
+        this.log.debug("Leased shards " + leasedShards + ".  Proceeding with cleanup.");
+
+        final Workers pool = new Workers();
+        try {
+            int removed = 0;
+            if (indexed) {
+                for (final Integer shard : leasedShards) {
+                    removed += cleanIndexedRegistry((ExpirationIndexedTicketRegistry) this.ticketRegistry, shard.intValue(), pool);
+                }
+            } else {
+                removed = cleanRegistry(leased, pool);
+            }
+            this.log.info(removed + " expired tickets removed.");
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.log.warn("Ticket cleanup interrupted.");
+        } finally {
+            pool.shutdown();
+            for (final Integer shard : leasedShards) {
+                this.shardLocks.get(shard.intValue()).release();
+            }
+        }
+
+        this.log.info("Finished partitioned ticket cleanup.");
+    }
+
+    /**
+     * @return whether each shard was leased.
+     */
+    private boolean[] acquireShards() {
+        final int shards = this.shardLocks.size();
+        final boolean[] leased = new boolean[shards];
+        final int first = this.random.nextInt(shards);
+        int count = 0;
+
+        for (int i = 0; i < shards && count < this.maxShardsPerRun; i++) {
+            final int shard = (first + i) % shards;
+            if (acquire(shard)) {
+                leased[shard] = true;
+                count++;
+            }
+        }
+        return leased;
+    }
+
+    /**
+     * @return whether each shard was leased, of which only the first is tried.
+     */
+    private boolean[] acquireFirstShard() {
+        final boolean[] leased = new boolean[this.shardLocks.size()];
+        leased[0] = acquire(0);
+        return leased;
+    }
+
+    private boolean acquire(final int shard) {
+        try {
+            return this.shardLocks.get(shard).acquire();
+        } catch (final Exception e) {
+            this.log.warn("Could not lease shard " + shard + ".", e);
+            return false;
+        }
+    }
+
+    private int cleanIndexedRegistry(final ExpirationIndexedTicketRegistry registry, final int shard, final Workers pool) throws InterruptedException {
+        int removed = 0;
+        List<Ticket> batch = poll(registry, shard);
+
+        // the tickets polled stay in the registry until removed, so each
+        // batch is removed before polling the next
+        while (!batch.isEmpty()) {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            final int chunkSize = Math.max(1, (batch.size() + this.workers - 1) / this.workers);
+            for (int i = 0; i < batch.size(); i += chunkSize) {
+                futures.add(pool.submit(batch.subList(i, Math.min(batch.size(), i + chunkSize))));
+            }
+            final int batchRemoved = await(futures);
+            if (batchRemoved == 0) {
+                // every removal failed; polling again would return them again
+                break;
+            }
+            removed += batchRemoved;
+            batch = poll(registry, shard);
+        }
+        return removed;
+    }
+
+    /**
+     * @return the next batch of expired tickets of the shard, or of the
+     * whole registry if it cannot be polled by shard.
+     */
+    private List<Ticket> poll(final ExpirationIndexedTicketRegistry registry, final int shard) {
+        if (registry instanceof ShardedExpirationIndexedTicketRegistry) {
+            return ((ShardedExpirationIndexedTicketRegistry) registry).pollExpiredTickets(this.batchSize, shard, this.shardLocks.size());
+        }
+        return registry.pollExpiredTickets(this.batchSize);
+    }
+
+    private int cleanRegistry(final boolean[] leased, final Workers pool) throws InterruptedException {
+        final List<List<Ticket>> batches = new ArrayList<List<Ticket>>(leased.length);
+        final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int shard = 0; shard < leased.length; shard++) {
+            batches.add(new ArrayList<Ticket>());
+        }
+
+        final TicketCallback callback = new TicketCallback() {
+            public boolean doWithTicket(final Ticket ticket) {
+                final int shard = getShard(ticket.getId());
+                if (leased[shard] && ticket.isExpired()) {
+                    final List<Ticket> batch = batches.get(shard);
+                    batch.add(ticket);
+                    if (batch.size() >= PartitionedTicketRegistryCleaner.this.batchSize) {
+                        try {
+                            futures.add(pool.submit(new ArrayList<Ticket>(batch)));
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                        batch.clear();
+                    }
+                }
+                return true;
+            }
+        };
+
+        if (this.ticketRegistry instanceof StreamingTicketRegistry) {
+            ((StreamingTicketRegistry) this.ticketRegistry).iterateTickets(null, this.batchSize, callback);
+        } else {
+            for (final Ticket ticket : this.ticketRegistry.getTickets()) {
+                if (!callback.doWithTicket(ticket)) {
+                    break;
+                }
+            }
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        for (final List<Ticket> batch : batches) {
+            if (!batch.isEmpty()) {
+                futures.add(pool.submit(batch));
+            }
+        }
+        return await(futures);
+    }
+
+    /**
+     * @return the number of tickets removed by the batches that succeeded.
+     */
+    private int await(final List<Future<Integer>> futures) throws InterruptedException {
+        int removed = 0;
+
+        for (final Future<Integer> future : futures) {
+            try {
+                removed += future.get().intValue();
+            } catch (final ExecutionException e) {
+                this.log.error("Error removing a batch of expired tickets.", e.getCause());
+            }
+        }
+        return removed;
+    }
+
+    private void removeTickets(final Collection<Ticket> ticketsToRemove) {
+        final List<String> ticketIds = new ArrayList<String>(ticketsToRemove.size());
+
+        for (final Ticket ticket : ticketsToRemove) {
+            // CAS-686: Expire TGT to trigger single sign-out
+            if (this.logUserOutOfServices && ticket instanceof TicketGrantingTicket) {
+                ((TicketGrantingTicket) ticket).expire();
+            }
+            ticketIds.add(ticket.getId());
+        }
+
+        if (this.ticketRegistry instanceof BulkTicketRegistry) {
+            ((BulkTicketRegistry) this.ticketRegistry).deleteTickets(ticketIds);
+            return;
+        }
+
+        for (final String ticketId : ticketIds) {
+            this.ticketRegistry.deleteTicket(ticketId);
+        }
+    }
+
+    private int getShard(final String ticketId) {
+        return (ticketId.hashCode() & Integer.MAX_VALUE) % this.shardLocks.size();
+    }
+
+    private static List<LockingStrategy> createNoOpLocks(final int shards) {
+        final List<LockingStrategy> locks = new ArrayList<LockingStrategy>(shards);
+        for (int i = 0; i < shards; i++) {
+            locks.add(new NoOpLockingStrategy());
+        }
+        return Collections.unmodifiableList(locks);
+    }
+
+    /**
+     * @param ticketRegistry the registry to clean.
+     */
+    public void setTicketRegistry(final TicketRegistry ticketRegistry) {
+        this.ticketRegistry = ticketRegistry;
+    }
+
+    /**
+     * @param shardLocks the lease of each shard, whose number sets the number
+     * of shards.  Every node must list the same number of shards.
+     */
+    public void setShardLocks(final List<LockingStrategy> shardLocks) {
+        this.shardLocks = shardLocks;
+    }
+
+    /**
+     * @param shards the number of shards, leased with a
+     * {@link NoOpLockingStrategy} each, for a single node.  The default is 16.
+     */
+    public void setShards(final int shards) {
+        this.shardLocks = createNoOpLocks(shards);
+    }
+
+    /**
+     * @param workers the number of threads removing tickets.  The default is 2.
+     */
+    public void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * @param maxShardsPerRun the most shards a node leases per run, to leave
+     * the others to the other nodes.  By default, every free shard.
+     */
+    public void setMaxShardsPerRun(final int maxShardsPerRun) {
+        this.maxShardsPerRun = maxShardsPerRun;
+    }
+
+    /**
+     * @param batchSize the maximum number of tickets to load or remove at
+     * once.  The default is 1000.
+     */
+    public void setBatchSize(final int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be greater than zero.");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxRemovalsPerSecond the most tickets removed per second by all
+     * the workers, or 0, the default, for no limit.
+     */
+    public void setMaxRemovalsPerSecond(final int maxRemovalsPerSecond) {
+        this.maxRemovalsPerSecond = maxRemovalsPerSecond;
+    }
+
+    /**
+     * @param logUserOutOfServices whether to log users out of services when
+     * removing their expired TicketGrantingTicket.  The default is true.
+     */
+    public void setLogUserOutOfServices(final boolean logUserOutOfServices) {
+        this.logUserOutOfServices = logUserOutOfServices;
+    }
+
+    /**
+     * The worker threads of a run.  Submitting a batch waits while two
+     * batches per worker are already waiting or being removed, so that a
+     * paced run does not hold the expired tickets of the whole registry.
+     */
+    private final class Workers {
+
+        private final ExecutorService executor = Executors.newFixedThreadPool(PartitionedTicketRegistryCleaner.this.workers, new CleanerThreadFactory());
+
+        private final Semaphore pending = new Semaphore(2 * PartitionedTicketRegistryCleaner.this.workers);
+
+        private final Pace pace = new Pace(PartitionedTicketRegistryCleaner.this.maxRemovalsPerSecond, System.nanoTime());
+
+        public Future<Integer> submit(final List<Ticket> batch) throws InterruptedException {
+            this.pending.acquire();
+            try {
+                return this.executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        try {
+                            // wait until removing the batch keeps within the maximum removals per second
+                            TimeUnit.NANOSECONDS.sleep(Workers.this.pace.reserve(batch.size(), System.nanoTime()));
+                            removeTickets(batch);
+                            return Integer.valueOf(batch.size());
+                        } finally {
+                            Workers.this.pending.release();
+                        }
+                    }
+                });
+            } catch (final RuntimeException e) {
+                this.pending.release();
+                throw e;
+            }
+        }
+
+        public void shutdown() {
+            this.executor.shutdownNow();
+        }
+    }
+
+    private static final class CleanerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "ticket-cleaner-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+
+    /**
+     * Schedule of the batches removed during a run, spacing them so that
+     * the workers remove at most the given number of tickets per second.
+     */
+    static final class Pace {
+
+        private final int maxRemovalsPerSecond;
+
+        /** The earliest time, in nanoseconds, the next batch may be removed. */
+        private long nextRemovalTime;
+
+        /**
+         * @param maxRemovalsPerSecond the most tickets removed per second, or
+         * 0 for no limit.
+         * @param start the time, in nanoseconds, the first batch may be removed.
+         */
+        Pace(final int maxRemovalsPerSecond, final long start) {
+            this.maxRemovalsPerSecond = maxRemovalsPerSecond;
+            this.nextRemovalTime = start;
+        }
+
+        /**
+         * Books the time a batch is removed at, after the batches booked
+         * before it.
+         *
+         * @param removals the number of tickets in the batch.
+         * @param now the current time, in nanoseconds.
+         * @return how long to wait from now before removing the batch, in
+         * nanoseconds.
+         */
+        synchronized long reserve(final int removals, final long now) {
+            if (this.maxRemovalsPerSecond <= 0) {
+                return 0;
+            }
+
+            final long start = Math.max(now, this.nextRemovalTime);
+            this.nextRemovalTime = start + removals * 1000000000L / this.maxRemovalsPerSecond;
+            return start - now;
+        }
+    }
+}
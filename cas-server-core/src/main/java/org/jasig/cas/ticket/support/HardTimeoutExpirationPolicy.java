@@ -5,8 +5,8 @@
  */
 package org.jasig.cas.ticket.support;
 
-import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
 
 /**
  * Ticket expiration policy based on a hard timeout from ticket creation time rather than the
@@ -16,7 +16,7 @@ import org.jasig.cas.ticket.TicketState;
  * @version $Revision$ $Date$
  * @since 3.1.2
  */
-public final class HardTimeoutExpirationPolicy implements ExpirationPolicy {
+public final class HardTimeoutExpirationPolicy implements TimeBasedExpirationPolicy {
 
 	/** Unique Id for serialization. */
     private static final long serialVersionUID = -1465997330804816888L;
@@ -32,4 +32,8 @@ public final class HardTimeoutExpirationPolicy implements ExpirationPolicy {
 		return (ticketState == null)
 					|| (System.currentTimeMillis() - ticketState.getCreationTime() >= this.timeToKillInMilliSeconds);
 	}
+
+	public long getExpirationTime(final TicketState ticketState) {
+		return ticketState.getCreationTime() + this.timeToKillInMilliSeconds;
+	}
 }
@@ -5,8 +5,8 @@
  */
 package org.jasig.cas.ticket.support;
 
-import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
 import org.springframework.util.Assert;
 
 /**
@@ -18,7 +18,7 @@ import org.springframework.util.Assert;
  * @since 3.0
  */
 public final class MultiTimeUseOrTimeoutExpirationPolicy implements
-    ExpirationPolicy {
+    TimeBasedExpirationPolicy {
 
     /** Serializable Unique ID. */
     private static final long serialVersionUID = 3257844372614558261L;
@@ -43,4 +43,11 @@ public final class MultiTimeUseOrTimeoutExpirationPolicy implements
             || (ticketState.getCountOfUses() >= this.numberOfUses)
             || (System.currentTimeMillis() - ticketState.getLastTimeUsed() >= this.timeToKillInMilliSeconds);
     }
+
+    public long getExpirationTime(final TicketState ticketState) {
+        if (ticketState.getCountOfUses() >= this.numberOfUses) {
+            return ticketState.getLastTimeUsed();
+        }
+        return ticketState.getLastTimeUsed() + this.timeToKillInMilliSeconds;
+    }
 }
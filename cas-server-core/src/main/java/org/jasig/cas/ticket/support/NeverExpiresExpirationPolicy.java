@@ -5,8 +5,8 @@
  */
 package org.jasig.cas.ticket.support;
 
-import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
 
 /**
  * NeverExpiresExpirationPolicy always answers false when asked if a Ticket is
@@ -17,7 +17,7 @@ import org.jasig.cas.ticket.TicketState;
  * @version $Revision: 14064 $ $Date: 2007-06-10 09:17:55 -0400 (Sun, 10 Jun 2007) $
  * @since 3.0
  */
-public final class NeverExpiresExpirationPolicy implements ExpirationPolicy {
+public final class NeverExpiresExpirationPolicy implements TimeBasedExpirationPolicy {
 
     /** Serializable Unique ID. */
     private static final long serialVersionUID = 3833747698242303540L;
@@ -25,4 +25,8 @@ public final class NeverExpiresExpirationPolicy implements ExpirationPolicy {
     public boolean isExpired(final TicketState ticketState) {
         return false;
     }
+
+    public long getExpirationTime(final TicketState ticketState) {
+        return NEVER_EXPIRES;
+    }
 }
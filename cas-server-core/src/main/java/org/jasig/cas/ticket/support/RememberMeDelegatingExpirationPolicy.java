@@ -8,6 +8,7 @@ package org.jasig.cas.ticket.support;
 import org.jasig.cas.authentication.principal.RememberMeCredentials;
 import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
 
 import javax.validation.constraints.NotNull;
 
@@ -20,7 +21,7 @@ import javax.validation.constraints.NotNull;
  * @since 3.2.1
  *
  */
-public final class RememberMeDelegatingExpirationPolicy implements ExpirationPolicy {
+public final class RememberMeDelegatingExpirationPolicy implements TimeBasedExpirationPolicy {
     
     /** Unique Id for Serialization */
     private static final long serialVersionUID = -575145836880428365L;
@@ -32,13 +33,31 @@ public final class RememberMeDelegatingExpirationPolicy implements ExpirationPol
     private ExpirationPolicy sessionExpirationPolicy;
 
     public boolean isExpired(TicketState ticketState) {
+        return getDelegate(ticketState).isExpired(ticketState);
+    }
+
+    /**
+     * Delegates to the selected policy when it is time based.  Otherwise the
+     * expiration time is unknown.
+     */
+    public long getExpirationTime(final TicketState ticketState) {
+        final ExpirationPolicy delegate = getDelegate(ticketState);
+
+        if (delegate instanceof TimeBasedExpirationPolicy) {
+            return ((TimeBasedExpirationPolicy) delegate).getExpirationTime(ticketState);
+        }
+
+        return EXPIRATION_TIME_UNKNOWN;
+    }
+
+    private ExpirationPolicy getDelegate(final TicketState ticketState) {
         final Boolean b = (Boolean) ticketState.getAuthentication().getAttributes().get(RememberMeCredentials.AUTHENTICATION_ATTRIBUTE_REMEMBER_ME);
         
         if (b == null || b.equals(Boolean.FALSE)) {
-            return this.sessionExpirationPolicy.isExpired(ticketState);
+            return this.sessionExpirationPolicy;
         }
         
-        return this.rememberMeExpirationPolicy.isExpired(ticketState);
+        return this.rememberMeExpirationPolicy;
     }
     
     public void setRememberMeExpirationPolicy(
@@ -5,8 +5,8 @@
  */
 package org.jasig.cas.ticket.support;
 
-import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
 
 /**
  * Expiration policy that is based on a certain time period for a ticket to
@@ -19,7 +19,7 @@ import org.jasig.cas.ticket.TicketState;
  * @version $Revision: 14741 $ $Date: 2007-12-17 08:59:54 -0500 (Mon, 17 Dec 2007) $
  * @since 3.0
  */
-public final class TimeoutExpirationPolicy implements ExpirationPolicy {
+public final class TimeoutExpirationPolicy implements TimeBasedExpirationPolicy {
 
     /** Serializable ID. */
     private static final long serialVersionUID = 3545511790222979383L;
@@ -35,4 +35,8 @@ public final class TimeoutExpirationPolicy implements ExpirationPolicy {
         return (ticketState == null)
             || (System.currentTimeMillis() - ticketState.getLastTimeUsed() >= this.timeToKillInMilliSeconds);
     }
+
+    public long getExpirationTime(final TicketState ticketState) {
+        return ticketState.getLastTimeUsed() + this.timeToKillInMilliSeconds;
+    }
 }
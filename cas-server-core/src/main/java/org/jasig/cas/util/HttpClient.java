@@ -6,6 +6,7 @@
 package org.jasig.cas.util;
 
 import org.apache.commons.io.IOUtils;
+import org.jasig.cas.authentication.principal.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
@@ -16,6 +17,7 @@ import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 import java.io.*;
 import java.net.*;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Callable;
@@ -32,7 +34,7 @@ public final class HttpClient implements Serializable, DisposableBean {
     private static final long serialVersionUID = -5306738686476129516L;
 
     /** The default status codes we accept. */
-    private static final int[] DEFAULT_ACCEPTABLE_CODES = new int[] {
+    static final int[] DEFAULT_ACCEPTABLE_CODES = new int[] {
         HttpURLConnection.HTTP_OK, HttpURLConnection.HTTP_NOT_MODIFIED,
         HttpURLConnection.HTTP_MOVED_TEMP, HttpURLConnection.HTTP_MOVED_PERM,
         HttpURLConnection.HTTP_ACCEPTED};
@@ -41,6 +43,8 @@ public final class HttpClient implements Serializable, DisposableBean {
 
     private static ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(100);
 
+    private static volatile LogoutMessageDispatcher LOGOUT_MESSAGE_DISPATCHER;
+
 
     /** List of HTTP status codes considered valid by this AuthenticationHandler. */
     @NotNull
@@ -64,6 +68,15 @@ public final class HttpClient implements Serializable, DisposableBean {
         EXECUTOR_SERVICE = executorService;
     }
 
+    /**
+     * Hands asynchronous messages to the dispatcher instead of the executor.  Like the executor, this is shared by all
+     * httpClients.
+     * @param logoutMessageDispatcher
+     */
+    public void setLogoutMessageDispatcher(final LogoutMessageDispatcher logoutMessageDispatcher) {
+        LOGOUT_MESSAGE_DISPATCHER = logoutMessageDispatcher;
+    }
+
     /**
      * Sends a message to a particular endpoint.  Option of sending it without waiting to ensure a response was returned.
      * <p>
@@ -75,6 +88,11 @@ public final class HttpClient implements Serializable, DisposableBean {
      * @return boolean if the message was sent, or async was used.  false if the message failed.
      */
     public boolean sendMessageToEndPoint(final String url, final String message, final boolean async) {
+        final LogoutMessageDispatcher dispatcher = LOGOUT_MESSAGE_DISPATCHER;
+        if (async && dispatcher != null) {
+            return dispatcher.dispatch(url, message, this.acceptableCodes);
+        }
+
         final Future<Boolean> result = EXECUTOR_SERVICE.submit(new MessageSender(url, message, this.readTimeout, this.connectionTimeout));
 
         if (async) {
@@ -88,6 +106,24 @@ public final class HttpClient implements Serializable, DisposableBean {
         }
     }
 
+    /**
+     * Sends a single sign-out message to the service, asynchronously.  If a
+     * {@link LogoutMessageDispatcher} is set it decides how and when the
+     * message is delivered.
+     *
+     * @param service the service being logged out.
+     * @param url the url to send the message to.
+     * @param sessionIdentifier the service ticket the session was created with.
+     * @return true if the message was accepted for delivery.
+     */
+    public boolean sendLogoutRequest(final Service service, final String url, final String sessionIdentifier) {
+        final LogoutMessageDispatcher dispatcher = LOGOUT_MESSAGE_DISPATCHER;
+        if (dispatcher != null) {
+            return dispatcher.dispatchLogout(service, url, sessionIdentifier, this.acceptableCodes);
+        }
+        return sendMessageToEndPoint(url, SamlUtils.createLogoutRequest(Collections.singletonList(sessionIdentifier)), true);
+    }
+
     public boolean isValidEndPoint(final String url) {
         try {
             final URL u = new URL(url);
@@ -0,0 +1,754 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.uportal.org/license.html
+ */
+package org.jasig.cas.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.validation.constraints.Min;
+
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.ServicesManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Delivers single sign-out messages in the background.
+ * <p>
+ * {@link #dispatch(String, String)} never blocks: it only records the message
+ * and returns.  At most {@link #setQueueCapacity(int) queueCapacity} messages
+ * are outstanding at any time; anything beyond that is dropped and counted.
+ * A message that is already outstanding for the same endpoint, or a logout
+ * request for a session that is already being logged out there, is not queued
+ * a second time.
+ * <p>
+ * Messages are sent by a fixed pool of worker threads, with no more than
+ * {@link #setMaxConcurrentRequestsPerHost(int) maxConcurrentRequestsPerHost}
+ * requests in flight per host, so one slow application cannot occupy every
+ * worker.  The response is read completely and the connection is left open,
+ * which lets the JVM's keep-alive cache reuse it for the next message to the
+ * same host.  A message is delivered when the response has one of the
+ * acceptable status codes of the {@link HttpClient} that dispatched it.
+ * Failed deliveries (I/O errors and 5xx responses) are retried with
+ * exponential backoff; retries still waiting when the dispatcher is destroyed
+ * are dropped, logged and counted as failed.
+ * <p>
+ * If a {@link ServicesManager} and a {@link #setCoalescingWindow(long)
+ * coalescingWindow} are set, logout requests for applications whose
+ * {@link RegisteredService#isLogoutCoalescingEnabled()} is true are collected
+ * per endpoint for that many milliseconds and sent as one LogoutRequest
+ * carrying several SessionIndex elements.  This keeps a cleaner run that
+ * expires thousands of tickets from sending thousands of requests to the same
+ * application.  A batch takes a place in the queue when it is opened, and
+ * logout requests are dropped if there is none left.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class LogoutMessageDispatcher implements InitializingBean, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LogoutMessageDispatcher.class);
+
+    private static final String SESSION_INDEX_START = "<samlp:SessionIndex>";
+
+    private static final String SESSION_INDEX_END = "</samlp:SessionIndex>";
+
+    @Min(1)
+    private int threads = 20;
+
+    @Min(1)
+    private int queueCapacity = 10000;
+
+    @Min(1)
+    private int maxConcurrentRequestsPerHost = 2;
+
+    @Min(0)
+    private int maxRetries = 3;
+
+    @Min(1)
+    private long initialRetryDelay = 1000;
+
+    @Min(0)
+    private int connectionTimeout = 5000;
+
+    @Min(0)
+    private int readTimeout = 5000;
+
+    @Min(0)
+    private long coalescingWindow;
+
+    @Min(1)
+    private int maxSessionIndexesPerRequest = 100;
+
+    private ServicesManager servicesManager;
+
+    private ThreadPoolExecutor workers;
+
+    private ScheduledExecutorService scheduler;
+
+    private final ConcurrentMap<String, LogoutBatch> batches = new ConcurrentHashMap<String, LogoutBatch>();
+
+    /** Keys of the messages that are outstanding, for deduplication. */
+    private final ConcurrentMap<String, Boolean> outstanding = new ConcurrentHashMap<String, Boolean>();
+
+    private final ConcurrentMap<String, HostQueue> hosts = new ConcurrentHashMap<String, HostQueue>();
+
+    /** Messages waiting for a retry, which are dropped on shutdown. */
+    private final ConcurrentMap<LogoutMessage, Boolean> retrying = new ConcurrentHashMap<LogoutMessage, Boolean>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public void afterPropertiesSet() {
+        this.workers = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("logout-dispatcher-"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("logout-scheduler-"));
+    }
+
+    public void destroy() {
+        for (final String url : this.batches.keySet()) {
+            final LogoutBatch batch = this.batches.get(url);
+            if (batch != null) {
+                flush(url, batch);
+            }
+        }
+        this.scheduler.shutdownNow();
+        this.workers.shutdown();
+
+        int dropped = 0;
+        for (final LogoutMessage message : this.retrying.keySet()) {
+            if (this.retrying.remove(message) != null) {
+                this.failedCount.incrementAndGet();
+                finished(message);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            LOG.warn("Dropped " + dropped + " logout messages waiting for a retry on shutdown.");
+        }
+    }
+
+    /**
+     * Queues a logout request ending the session of the service, coalescing
+     * it with other requests to the same url if the service allows that.
+     *
+     * @param service the service being logged out.
+     * @param url the endpoint to post the request to.
+     * @param sessionIndex the service ticket the session was created with.
+     * @return true if the request was queued, false if it was dropped.
+     */
+    public boolean dispatchLogout(final Service service, final String url, final String sessionIndex) {
+        return dispatchLogout(service, url, sessionIndex, HttpClient.DEFAULT_ACCEPTABLE_CODES);
+    }
+
+    /**
+     * @param acceptableCodes the status codes of a delivered request.  A
+     * coalesced request is checked against those of its first session index.
+     * @see #dispatchLogout(Service, String, String)
+     */
+    public boolean dispatchLogout(final Service service, final String url, final String sessionIndex, final int[] acceptableCodes) {
+        // the services are only looked up once coalescing has been configured
+        if (this.coalescingWindow > 0 && this.servicesManager != null) {
+            final RegisteredService registeredService = this.servicesManager.findServiceBy(service);
+
+            if (registeredService != null && registeredService.isLogoutCoalescingEnabled()) {
+                return coalesce(url, sessionIndex, acceptableCodes);
+            }
+        }
+        return dispatch(url + '\n' + sessionIndex, url, SamlUtils.createLogoutRequest(Collections.singletonList(sessionIndex)), acceptableCodes);
+    }
+
+    /**
+     * Queues the logout message for delivery to the url.  A LogoutRequest is
+     * a duplicate of one outstanding for the same url and session indexes,
+     * whatever its ID and IssueInstant.
+     *
+     * @param url the endpoint to post the message to.
+     * @param message the logout request.
+     * @return true if the message was queued or is already queued, false if
+     * it was dropped.
+     */
+    public boolean dispatch(final String url, final String message) {
+        return dispatch(url, message, HttpClient.DEFAULT_ACCEPTABLE_CODES);
+    }
+
+    /**
+     * @param acceptableCodes the status codes of a delivered message.
+     * @see #dispatch(String, String)
+     */
+    public boolean dispatch(final String url, final String message, final int[] acceptableCodes) {
+        return dispatch(keyFor(url, message), url, message, acceptableCodes);
+    }
+
+    /**
+     * @return the url and the session indexes of the message, or the url and
+     * the whole message if it has none.
+     */
+    private static String keyFor(final String url, final String message) {
+        final StringBuilder key = new StringBuilder(url);
+        int start = message.indexOf(SESSION_INDEX_START);
+        if (start < 0) {
+            return key.append('\n').append(message).toString();
+        }
+
+        while (start >= 0) {
+            start += SESSION_INDEX_START.length();
+            final int end = message.indexOf(SESSION_INDEX_END, start);
+            if (end < 0) {
+                break;
+            }
+            key.append('\n').append(message, start, end);
+            start = message.indexOf(SESSION_INDEX_START, end);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key identifies the message for deduplication.
+     */
+    private boolean dispatch(final String key, final String url, final String message, final int[] acceptableCodes) {
+        final String host = hostOf(url);
+        if (host == null) {
+            LOG.warn("Not sending logout message to invalid url [" + url + "].");
+            this.rejectedCount.incrementAndGet();
+            return false;
+        }
+
+        if (this.outstanding.putIfAbsent(key, Boolean.TRUE) != null) {
+            this.duplicateCount.incrementAndGet();
+            return true;
+        }
+
+        if (!reserve()) {
+            this.outstanding.remove(key);
+            this.rejectedCount.incrementAndGet();
+            LOG.warn("Logout queue is full; dropping logout message for [" + url + "].");
+            return false;
+        }
+
+        this.acceptedCount.incrementAndGet();
+        schedule(new LogoutMessage(key, host, url, message, acceptableCodes));
+        return true;
+    }
+
+    /**
+     * @return whether a place in the queue was taken.
+     */
+    private boolean reserve() {
+        if (this.pending.incrementAndGet() > this.queueCapacity) {
+            this.pending.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Posts the message to the url.  The connection is not disconnected on
+     * success so that it can be reused.
+     *
+     * @return the HTTP status code of the response.
+     */
+    protected int send(final String url, final String message) throws IOException {
+        final byte[] body = ("logoutRequest=" + URLEncoder.encode(message, "UTF-8")).getBytes("UTF-8");
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(this.connectionTimeout);
+            connection.setReadTimeout(this.readTimeout);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+
+            final OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            final int responseCode = connection.getResponseCode();
+            final InputStream in = responseCode < HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                drain(in);
+            }
+            return responseCode;
+        } catch (final IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static void drain(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[512];
+        try {
+            while (in.read(buffer) != -1) {
+                // the body has to be consumed for the connection to be reused
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hostOf(final String url) {
+        try {
+            final URL u = new URL(url);
+            return u.getProtocol() + "://" + u.getHost() + ":" + u.getPort();
+        } catch (final MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return false if the request was dropped, as there was no place in the
+     * queue for a new batch.
+     */
+    private boolean coalesce(final String url, final String sessionIndex, final int[] acceptableCodes) {
+        while (true) {
+            LogoutBatch batch = this.batches.get(url);
+            if (batch == null) {
+                if (!reserve()) {
+                    this.rejectedCount.incrementAndGet();
+                    LOG.warn("Logout queue is full; dropping logout request for [" + url + "].");
+                    return false;
+                }
+
+                final LogoutBatch newBatch = new LogoutBatch(acceptableCodes);
+                batch = this.batches.putIfAbsent(url, newBatch);
+                if (batch == null) {
+                    batch = newBatch;
+                    scheduleFlush(url, newBatch);
+                } else {
+                    this.pending.decrementAndGet();
+                }
+            }
+
+            final boolean added;
+            final boolean full;
+            synchronized (batch) {
+                if (batch.closed) {
+                    continue;
+                }
+                added = batch.sessionIndexes.add(sessionIndex);
+                full = batch.sessionIndexes.size() >= this.maxSessionIndexesPerRequest;
+            }
+
+            if (added) {
+                this.coalescedCount.incrementAndGet();
+            } else {
+                this.duplicateCount.incrementAndGet();
+            }
+            if (full) {
+                flush(url, batch);
+            }
+            return true;
+        }
+    }
+
+    private void scheduleFlush(final String url, final LogoutBatch batch) {
+        try {
+            this.scheduler.schedule(new Runnable() {
+                public void run() {
+                    flush(url, batch);
+                }
+            }, this.coalescingWindow, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            // shutting down; destroy() flushes what is left
+        }
+    }
+
+    /**
+     * Sends the session indexes collected so far as a single request, in the
+     * place the batch took in the queue when it was opened.
+     */
+    private void flush(final String url, final LogoutBatch batch) {
+        final Set<String> sessionIndexes;
+        synchronized (batch) {
+            if (batch.closed) {
+                return;
+            }
+            batch.closed = true;
+            sessionIndexes = batch.sessionIndexes;
+        }
+        this.batches.remove(url, batch);
+
+        final String message = SamlUtils.createLogoutRequest(new ArrayList<String>(sessionIndexes));
+        final String host = hostOf(url);
+        if (host == null) {
+            LOG.warn("Not sending logout message to invalid url [" + url + "].");
+            this.rejectedCount.addAndGet(sessionIndexes.size());
+            this.pending.decrementAndGet();
+            return;
+        }
+
+        final String key = keyFor(url, message);
+        if (this.outstanding.putIfAbsent(key, Boolean.TRUE) != null) {
+            this.duplicateCount.incrementAndGet();
+            this.pending.decrementAndGet();
+            return;
+        }
+
+        this.acceptedCount.incrementAndGet();
+        schedule(new LogoutMessage(key, host, url, message, batch.acceptableCodes));
+    }
+
+    /** Runs the message now if its host has a free slot, otherwise parks it with the host. */
+    private void schedule(final LogoutMessage message) {
+        while (true) {
+            HostQueue hostQueue = this.hosts.get(message.host);
+            if (hostQueue == null) {
+                final HostQueue newQueue = new HostQueue();
+                hostQueue = this.hosts.putIfAbsent(message.host, newQueue);
+                if (hostQueue == null) {
+                    hostQueue = newQueue;
+                }
+            }
+
+            synchronized (hostQueue) {
+                if (hostQueue.removed) {
+                    continue;
+                }
+                if (hostQueue.active < this.maxConcurrentRequestsPerHost) {
+                    hostQueue.active++;
+                } else {
+                    hostQueue.waiting.add(message);
+                    return;
+                }
+            }
+            execute(message);
+            return;
+        }
+    }
+
+    /** Hands the host's slot to its next waiting message, or frees it. */
+    private void release(final String host) {
+        final LogoutMessage next = nextFor(host);
+
+        if (next != null) {
+            execute(next);
+        }
+    }
+
+    /**
+     * @return the next message waiting for the host, which takes over the
+     * slot, or null if the slot was freed.
+     */
+    private LogoutMessage nextFor(final String host) {
+        final HostQueue hostQueue = this.hosts.get(host);
+
+        synchronized (hostQueue) {
+            final LogoutMessage next = hostQueue.waiting.poll();
+            if (next == null) {
+                hostQueue.active--;
+                if (hostQueue.active == 0) {
+                    hostQueue.removed = true;
+                    this.hosts.remove(host);
+                }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Runs the message, which holds a slot of its host.  When shutting down,
+     * the message and those waiting for the host are dropped and the slot is
+     * freed.
+     */
+    private void execute(final LogoutMessage message) {
+        LogoutMessage next = message;
+
+        while (next != null) {
+            try {
+                this.workers.execute(next);
+                return;
+            } catch (final RejectedExecutionException e) {
+                finished(next);
+                next = nextFor(next.host);
+            }
+        }
+    }
+
+    private void finished(final LogoutMessage message) {
+        this.outstanding.remove(message.key);
+        this.pending.decrementAndGet();
+    }
+
+    private void retryOrFail(final LogoutMessage message) {
+        if (message.attempt >= this.maxRetries) {
+            LOG.warn("Giving up sending logout message to [" + message.url + "] after " + (message.attempt + 1) + " attempts.");
+            this.failedCount.incrementAndGet();
+            finished(message);
+            return;
+        }
+
+        final long delay = this.initialRetryDelay << message.attempt;
+        message.attempt++;
+        this.retrying.put(message, Boolean.TRUE);
+        this.retryCount.incrementAndGet();
+
+        try {
+            this.scheduler.schedule(new Runnable() {
+                public void run() {
+                    // unless destroy() dropped it in the meantime
+                    if (LogoutMessageDispatcher.this.retrying.remove(message) != null) {
+                        schedule(message);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            if (this.retrying.remove(message) != null) {
+                LOG.warn("Dropping logout message to [" + message.url + "] on shutdown instead of retrying it.");
+                this.failedCount.incrementAndGet();
+                finished(message);
+            }
+        }
+    }
+
+    private static boolean isAcceptable(final int responseCode, final int[] acceptableCodes) {
+        for (final int acceptableCode : acceptableCodes) {
+            if (responseCode == acceptableCode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of messages queued, in flight or waiting for a retry.
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    public long getAcceptedCount() {
+        return this.acceptedCount.get();
+    }
+
+    public long getDuplicateCount() {
+        return this.duplicateCount.get();
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    public long getSentCount() {
+        return this.sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    public long getRetryCount() {
+        return this.retryCount.get();
+    }
+
+    /**
+     * @return the number of logout requests that were sent as part of a
+     * coalesced request.
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    /**
+     * @param threads the number of messages sent concurrently.
+     */
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param queueCapacity the maximum number of outstanding messages.
+     */
+    public void setQueueCapacity(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setMaxConcurrentRequestsPerHost(final int maxConcurrentRequestsPerHost) {
+        this.maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+    }
+
+    /**
+     * @param maxRetries the number of times a failed message is sent again.
+     */
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param initialRetryDelay milliseconds before the first retry.  The delay
+     * doubles with each further retry.
+     */
+    public void setInitialRetryDelay(final long initialRetryDelay) {
+        this.initialRetryDelay = initialRetryDelay;
+    }
+
+    public void setConnectionTimeout(final int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public void setReadTimeout(final int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @param servicesManager used to find the applications that accept
+     * coalesced logout requests.  Without it nothing is coalesced.
+     */
+    public void setServicesManager(final ServicesManager servicesManager) {
+        this.servicesManager = servicesManager;
+    }
+
+    /**
+     * @param coalescingWindow milliseconds to collect logout requests for one
+     * endpoint before sending them.  Defaults to 0, which disables coalescing
+     * and spares looking up the service of every logout request.
+     */
+    public void setCoalescingWindow(final long coalescingWindow) {
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    public void setMaxSessionIndexesPerRequest(final int maxSessionIndexesPerRequest) {
+        this.maxSessionIndexesPerRequest = maxSessionIndexesPerRequest;
+    }
+
+    private final class LogoutMessage implements Runnable {
+
+        private final String key;
+
+        private final String host;
+
+        private final String url;
+
+        private final String message;
+
+        private final int[] acceptableCodes;
+
+        private int attempt;
+
+        private LogoutMessage(final String key, final String host, final String url, final String message, final int[] acceptableCodes) {
+            this.key = key;
+            this.host = host;
+            this.url = url;
+            this.message = message;
+            this.acceptableCodes = acceptableCodes;
+        }
+
+        public void run() {
+            boolean retry = false;
+            try {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Sending logout message to " + this.url);
+                }
+                final int responseCode = send(this.url, this.message);
+
+                if (isAcceptable(responseCode, this.acceptableCodes)) {
+                    sentCount.incrementAndGet();
+                } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    retry = true;
+                } else {
+                    LOG.warn("Logout message to [" + this.url + "] was refused with status " + responseCode + ".");
+                    failedCount.incrementAndGet();
+                }
+            } catch (final Exception e) {
+                LOG.warn("Error sending logout message to [" + this.url + "].  Error is [" + e.getMessage() + "]");
+                retry = true;
+            } finally {
+                release(this.host);
+            }
+
+            if (retry) {
+                retryOrFail(this);
+            } else {
+                finished(this);
+            }
+        }
+    }
+
+    /** Session indexes waiting to be sent to one endpoint. */
+    private static final class LogoutBatch {
+
+        private final Set<String> sessionIndexes = new LinkedHashSet<String>();
+
+        private final int[] acceptableCodes;
+
+        /** Set once the batch has been sent and must not be added to. */
+        private boolean closed;
+
+        private LogoutBatch(final int[] acceptableCodes) {
+            this.acceptableCodes = acceptableCodes;
+        }
+    }
+
+    /** Messages for one host and the number of them in flight. */
+    private static final class HostQueue {
+
+        private final LinkedList<LogoutMessage> waiting = new LinkedList<LogoutMessage>();
+
+        private int active;
+
+        /** Set once the queue is no longer in the map and must not be used. */
+        private boolean removed;
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, this.prefix + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * {@link UniqueTicketIdGenerator} for busy servers.  It produces ids of the
+ * same form as {@link DefaultUniqueTicketIdGenerator},
+ * [PREFIX]-[SEQUENCE NUMBER]-[RANDOM STRING]-[SUFFIX], but without funnelling
+ * every request through one shared {@link SecureRandom}.
+ * <p>
+ * Every thread gets its own SHA1PRNG instance, seeded with 256 bits from a
+ * shared SecureRandom and reseeded after every {@link #RESEED_INTERVAL} bytes
+ * of output, so the shared source is only touched a few times per thread.
+ * Random bytes are drawn in batches and mapped onto the 62 alphanumeric
+ * characters by rejection sampling, which makes every character uniformly
+ * distributed (about 5.95 bits each, against the slightly biased mapping of
+ * {@link DefaultRandomStringGenerator}).  The id is assembled in a per-thread
+ * buffer, so the only allocation per id is the resulting String.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class PerThreadUniqueTicketIdGenerator implements UniqueTicketIdGenerator {
+
+    /** Number of random bytes after which a thread's generator is reseeded. */
+    public static final int RESEED_INTERVAL = 1024 * 1024;
+
+    private static final char[] ALPHANUMERIC_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789"
+        .toCharArray();
+
+    private static final int DEFAULT_MAX_RANDOM_LENGTH = 35;
+
+    private static final int SEED_LENGTH = 32;
+
+    private static final int RANDOM_BATCH_SIZE = 512;
+
+    private static final String ALGORITHM = "SHA1PRNG";
+
+    /** Shared source used only to seed the per-thread generators. */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    private final LongNumericGenerator numericGenerator = new DefaultLongNumericGenerator(1);
+
+    private final int randomLength;
+
+    /** Optional suffix, including the leading separator. */
+    private final char[] suffix;
+
+    private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    public PerThreadUniqueTicketIdGenerator() {
+        this(DEFAULT_MAX_RANDOM_LENGTH, null);
+    }
+
+    /**
+     * @param maxLength the length of the random portion of the id.
+     */
+    public PerThreadUniqueTicketIdGenerator(final int maxLength) {
+        this(maxLength, null);
+    }
+
+    /**
+     * @param suffix the value to append at the end of the unique id to ensure
+     * uniqueness across JVMs.
+     */
+    public PerThreadUniqueTicketIdGenerator(final String suffix) {
+        this(DEFAULT_MAX_RANDOM_LENGTH, suffix);
+    }
+
+    /**
+     * @param maxLength the length of the random portion of the id.
+     * @param suffix the value to append at the end of the unique id to ensure
+     * uniqueness across JVMs.
+     */
+    public PerThreadUniqueTicketIdGenerator(final int maxLength, final String suffix) {
+        this.randomLength = maxLength;
+        this.suffix = suffix != null ? ("-" + suffix).toCharArray() : new char[0];
+    }
+
+    public String getNewTicketId(final String prefix) {
+        final ThreadState state = this.threadState.get();
+        final long number = this.numericGenerator.getNextLong();
+        final int numberLength = digitsOf(number);
+        final int length = prefix.length() + 1 + numberLength + 1 + this.randomLength + this.suffix.length;
+        final char[] buffer = state.buffer(length);
+
+        int position = prefix.length();
+        prefix.getChars(0, position, buffer, 0);
+        buffer[position++] = '-';
+
+        long remaining = number;
+        for (int i = position + numberLength - 1; i >= position; i--) {
+            buffer[i] = (char) ('0' + (int) (remaining % 10));
+            remaining /= 10;
+        }
+        position += numberLength;
+        buffer[position++] = '-';
+
+        for (final int end = position + this.randomLength; position < end;) {
+            // 62 of the 64 values of the low six bits are kept, so each character is uniform
+            final int value = state.nextByte() & 0x3F;
+            if (value < ALPHANUMERIC_CHARACTERS.length) {
+                buffer[position++] = ALPHANUMERIC_CHARACTERS[value];
+            }
+        }
+
+        System.arraycopy(this.suffix, 0, buffer, position, this.suffix.length);
+
+        return new String(buffer, 0, length);
+    }
+
+    private static int digitsOf(final long number) {
+        int digits = 1;
+        for (long n = number / 10; n > 0; n /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static byte[] newSeed() {
+        final byte[] seed = new byte[SEED_LENGTH];
+        synchronized (SEED_SOURCE) {
+            SEED_SOURCE.nextBytes(seed);
+        }
+        return seed;
+    }
+
+    /**
+     * Random generator and scratch space owned by a single thread.
+     */
+    private static final class ThreadState {
+
+        private final SecureRandom random;
+
+        private final byte[] randomBytes = new byte[RANDOM_BATCH_SIZE];
+
+        private int randomPosition = RANDOM_BATCH_SIZE;
+
+        private int bytesSinceSeed;
+
+        private char[] buffer = new char[128];
+
+        private ThreadState() {
+            try {
+                this.random = SecureRandom.getInstance(ALGORITHM);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available.", e);
+            }
+            // seeding before first use replaces the self-seeding of SHA1PRNG
+            this.random.setSeed(newSeed());
+        }
+
+        private byte nextByte() {
+            if (this.randomPosition == RANDOM_BATCH_SIZE) {
+                if (this.bytesSinceSeed >= RESEED_INTERVAL) {
+                    this.random.setSeed(newSeed());
+                    this.bytesSinceSeed = 0;
+                }
+                this.random.nextBytes(this.randomBytes);
+                this.bytesSinceSeed += RANDOM_BATCH_SIZE;
+                this.randomPosition = 0;
+            }
+            return this.randomBytes[this.randomPosition++];
+        }
+
+        private char[] buffer(final int length) {
+            if (this.buffer.length < length) {
+                this.buffer = new char[length];
+            }
+            return this.buffer;
+        }
+    }
+}
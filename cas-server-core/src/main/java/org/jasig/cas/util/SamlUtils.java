@@ -55,10 +55,33 @@ public final class SamlUtils {
 
     private static final String SAML_PROTOCOL_NS_URI_V20 = "urn:oasis:names:tc:SAML:2.0:protocol";
 
+    private static final UniqueTicketIdGenerator LOGOUT_REQUEST_ID_GENERATOR = new DefaultUniqueTicketIdGenerator();
+
     private SamlUtils() {
         // nothing to do
     }
 
+    /**
+     * Creates the SAML 2 LogoutRequest sent to applications for single sign-out.
+     *
+     * @param sessionIndexes the service tickets the application should end
+     * the sessions of.
+     * @return the LogoutRequest.
+     */
+    public static String createLogoutRequest(final List<String> sessionIndexes) {
+        final StringBuilder builder = new StringBuilder(256 + 48 * sessionIndexes.size());
+        builder.append("<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"")
+            .append(LOGOUT_REQUEST_ID_GENERATOR.getNewTicketId("LR"))
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(getCurrentDateAndTime())
+            .append("\"><saml:NameID xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">@NOT_USED@</saml:NameID>");
+
+        for (final String sessionIndex : sessionIndexes) {
+            builder.append("<samlp:SessionIndex>").append(sessionIndex).append("</samlp:SessionIndex>");
+        }
+
+        return builder.append("</samlp:LogoutRequest>").toString();
+    }
+
     public static String getCurrentDateAndTime() {
         return getFormattedDateAndTime(new Date());
     }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates over several cells, each on its own cache
+ * line, so that threads incrementing it concurrently rarely contend.  Reading
+ * the value sums the cells and is therefore only a snapshot while updates are
+ * in progress.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class StripedCounter {
+
+    /** Number of longs in a 64-byte cache line. */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+
+    private final int mask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes the expected number of concurrently updating threads.
+     * Rounded up to a power of two.
+     */
+    public StripedCounter(final int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.cells = new AtomicLongArray(size * PADDING);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    public void add(final long delta) {
+        this.cells.getAndAdd(cellIndex(), delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            sum += this.cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            this.cells.set(i, 0);
+        }
+    }
+
+    private int cellIndex() {
+        return ((int) Thread.currentThread().getId() & this.mask) * PADDING;
+    }
+}
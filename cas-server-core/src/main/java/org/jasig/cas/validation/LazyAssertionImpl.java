@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.validation;
+
+import java.io.ObjectStreamException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.MutableAuthentication;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.services.AttributeReleaseFilter;
+import org.springframework.util.Assert;
+
+/**
+ * Assertion over the chain of authentications of a granting ticket, in which
+ * the last authentication is released to the service with the principal id
+ * and the attributes it may see.  That authentication is only built when it
+ * is asked for, and the attributes of its principal only when they are, so a
+ * view printing the principal id does not copy any of them.
+ * <p>
+ * The assertion is serialized as an {@link ImmutableAssertionImpl} holding
+ * the released authentication.
+ * <p>
+ * As ImmutableAssertionImpl, MutableAuthentication and SimplePrincipal, the
+ * assertion, the released authentication and its principal are only equal to
+ * instances of their own class, so that equality stays symmetric.  An
+ * assertion is therefore not equal to its serialized form, while it is equal
+ * to another assertion over the same chain.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class LazyAssertionImpl implements Assertion {
+
+    /** Unique Id for Serialization. */
+    private static final long serialVersionUID = 5231478614315628843L;
+
+    /** The authentications of the granting tickets, as stored. */
+    private final List<Authentication> chain;
+
+    /** The id of the principal released to the service. */
+    private final String principalId;
+
+    /**
+     * The attributes of the principal the service may see, or null to
+     * release the last authentication as is.
+     */
+    private final AttributeReleaseFilter attributeReleaseFilter;
+
+    private final Service service;
+
+    private final boolean fromNewLogin;
+
+    private volatile Authentication releasedAuthentication;
+
+    /**
+     * @param chain the chained authentications of the granting ticket.
+     * @param principalId the id of the principal released to the service.
+     * @param attributeReleaseFilter the attributes of the principal released
+     * to the service, or null to release the last authentication of the chain
+     * as is, principal id included.
+     * @param service the service we are asserting this ticket for.
+     * @param fromNewLogin was the service ticket from a new login.
+     */
+    public LazyAssertionImpl(final List<Authentication> chain, final String principalId,
+        final AttributeReleaseFilter attributeReleaseFilter, final Service service, final boolean fromNewLogin) {
+        Assert.notEmpty(chain, "chain cannot be empty");
+        Assert.notNull(principalId, "principalId cannot be null");
+        Assert.notNull(service, "service cannot be null");
+
+        this.chain = chain;
+        this.principalId = principalId;
+        this.attributeReleaseFilter = attributeReleaseFilter;
+        this.service = service;
+        this.fromNewLogin = fromNewLogin;
+    }
+
+    public List<Authentication> getChainedAuthentications() {
+        return new ChainedAuthentications();
+    }
+
+    public boolean isFromNewLogin() {
+        return this.fromNewLogin;
+    }
+
+    public Service getService() {
+        return this.service;
+    }
+
+    private Authentication getReleasedAuthentication() {
+        Authentication authentication = this.releasedAuthentication;
+
+        if (authentication == null) {
+            final Authentication last = this.chain.get(this.chain.size() - 1);
+            authentication = this.attributeReleaseFilter == null ? last : new ReleasedAuthentication(last, new ReleasedPrincipal(this.principalId, last.getPrincipal(), this.attributeReleaseFilter));
+            this.releasedAuthentication = authentication;
+        }
+        return authentication;
+    }
+
+    public boolean equals(final Object o) {
+        if (!(o instanceof LazyAssertionImpl)) {
+            return false;
+        }
+
+        final LazyAssertionImpl a = (LazyAssertionImpl) o;
+
+        return this.service.equals(a.getService()) && this.fromNewLogin == a.isFromNewLogin() && getChainedAuthentications().equals(a.getChainedAuthentications());
+    }
+
+    public int hashCode() {
+        return 15 * this.service.hashCode() ^ getChainedAuthentications().hashCode();
+    }
+
+    public String toString() {
+        return "[principals={" + getChainedAuthentications().toString() + "} for service=" + this.service.toString() + "]";
+    }
+
+    /**
+     * Serializes the assertion as the one CentralAuthenticationService
+     * returned before it was built lazily, so remote clients need not know
+     * this class.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        final List<Authentication> authentications = new ArrayList<Authentication>(this.chain.subList(0, this.chain.size() - 1));
+        final Authentication released = getReleasedAuthentication();
+
+        if (released instanceof ReleasedAuthentication) {
+            final Principal principal = released.getPrincipal();
+            final MutableAuthentication authentication = new MutableAuthentication(
+                new SimplePrincipal(principal.getId(), new HashMap<String, Object>(principal.getAttributes())),
+                released.getAuthenticatedDate());
+            authentication.getAttributes().putAll(released.getAttributes());
+            authentications.add(authentication);
+        } else {
+            authentications.add(released);
+        }
+        return new ImmutableAssertionImpl(authentications, this.service, this.fromNewLogin);
+    }
+
+    private final class ChainedAuthentications extends AbstractList<Authentication> implements RandomAccess {
+
+        public Authentication get(final int index) {
+            if (index == LazyAssertionImpl.this.chain.size() - 1) {
+                return getReleasedAuthentication();
+            }
+            return LazyAssertionImpl.this.chain.get(index);
+        }
+
+        public int size() {
+            return LazyAssertionImpl.this.chain.size();
+        }
+    }
+
+    /**
+     * The authentication released to the service, sharing the date and
+     * attributes of the one it was made from.
+     */
+    private static final class ReleasedAuthentication implements Authentication {
+
+        private static final long serialVersionUID = -6052939432375476404L;
+
+        private final Authentication authentication;
+
+        private final Principal principal;
+
+        private ReleasedAuthentication(final Authentication authentication, final Principal principal) {
+            this.authentication = authentication;
+            this.principal = principal;
+        }
+
+        public Principal getPrincipal() {
+            return this.principal;
+        }
+
+        public Date getAuthenticatedDate() {
+            return this.authentication.getAuthenticatedDate();
+        }
+
+        public Map<String, Object> getAttributes() {
+            return Collections.unmodifiableMap(this.authentication.getAttributes());
+        }
+
+        public boolean equals(final Object o) {
+            if (!(o instanceof ReleasedAuthentication)) {
+                return false;
+            }
+
+            final ReleasedAuthentication a = (ReleasedAuthentication) o;
+
+            return this.principal.equals(a.getPrincipal())
+                && getAuthenticatedDate().equals(a.getAuthenticatedDate()) && getAttributes().equals(a.getAttributes());
+        }
+
+        public int hashCode() {
+            return 49 * this.principal.hashCode() ^ getAuthenticatedDate().hashCode();
+        }
+
+        public String toString() {
+            return "[Principal=" + this.principal.getId() + ", attributes=" + getAttributes().toString() + "]";
+        }
+    }
+
+    /**
+     * The principal released to the service, whose attributes are filtered
+     * from the original principal on first access.
+     */
+    private static final class ReleasedPrincipal implements Principal {
+
+        private static final long serialVersionUID = 2717412906370542788L;
+
+        private final String id;
+
+        private final Principal principal;
+
+        private final AttributeReleaseFilter attributeReleaseFilter;
+
+        private volatile Map<String, Object> attributes;
+
+        private ReleasedPrincipal(final String id, final Principal principal, final AttributeReleaseFilter attributeReleaseFilter) {
+            this.id = id;
+            this.principal = principal;
+            this.attributeReleaseFilter = attributeReleaseFilter;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        public Map<String, Object> getAttributes() {
+            Map<String, Object> released = this.attributes;
+
+            if (released == null) {
+                released = this.attributeReleaseFilter.filter(this.principal.getAttributes());
+                this.attributes = released;
+            }
+            return released;
+        }
+
+        public boolean equals(final Object o) {
+            return o instanceof ReleasedPrincipal && this.id.equals(((ReleasedPrincipal) o).getId());
+        }
+
+        public int hashCode() {
+            return this.id.hashCode();
+        }
+
+        public String toString() {
+            return this.id;
+        }
+    }
+}
@@ -5,6 +5,7 @@
  */
 package org.jasig.cas.web;
 
+import java.beans.PropertyDescriptor;
 import java.net.URL;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,10 +19,13 @@ import org.jasig.cas.services.UnauthorizedServiceException;
 import org.jasig.cas.ticket.TicketException;
 import org.jasig.cas.ticket.TicketValidationException;
 import org.jasig.cas.ticket.proxy.ProxyHandler;
+import org.jasig.cas.validation.AbstractCasProtocolValidationSpecification;
 import org.jasig.cas.validation.Assertion;
 import org.jasig.cas.validation.ValidationSpecification;
 import org.jasig.cas.validation.Cas20ProtocolValidationSpecification;
 import org.jasig.cas.web.support.ArgumentExtractor;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ReflectionUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.ServletRequestDataBinder;
 import org.springframework.web.servlet.ModelAndView;
@@ -35,6 +39,12 @@ import org.springframework.web.servlet.mvc.AbstractController;
  * and (possibly) a chain of Proxy Principals. Store the Assertion in the Model
  * and chain to a View to generate the appropriate response (CAS 1, CAS 2 XML,
  * SAML, ...).
+ * <p>
+ * The specifications that extend
+ * {@link AbstractCasProtocolValidationSpecification} and only take the renew
+ * parameter from the request are created once, with and without renew, and
+ * shared by every request.  Other specifications are created and bound to
+ * the request for each validation.
  * 
  * @author Scott Battaglia
  * @version $Revision: 22374 $ $Date: 2010-11-14 22:48:14 -0500 (Sun, 14 Nov 2010) $
@@ -62,6 +72,12 @@ public class ServiceValidateController extends AbstractController {
     @NotNull
     private Class<?> validationSpecificationClass = Cas20ProtocolValidationSpecification.class;
 
+    /**
+     * The specifications shared by every request, without and with renew, or
+     * null if the specification must be bound to each request.
+     */
+    private ValidationSpecification[] sharedSpecifications = createSharedSpecifications(Cas20ProtocolValidationSpecification.class);
+
     /** The proxy handler we want to use with the controller. */
     @NotNull
     private ProxyHandler proxyHandler;
@@ -134,10 +150,7 @@ public class ServiceValidateController extends AbstractController {
 
             final Assertion assertion = this.centralAuthenticationService.validateServiceTicket(serviceTicketId, service);
 
-            final ValidationSpecification validationSpecification = this.getCommandClass();
-            final ServletRequestDataBinder binder = new ServletRequestDataBinder(validationSpecification, "validationSpecification");
-            initBinder(request, binder);
-            binder.bind(request);
+            final ValidationSpecification validationSpecification = getValidationSpecification(request);
 
             if (!validationSpecification.isSatisfiedBy(assertion)) {
                 if (logger.isDebugEnabled()) {
@@ -178,6 +191,59 @@ public class ServiceValidateController extends AbstractController {
         return modelAndView;
     }
 
+    private ValidationSpecification getValidationSpecification(final HttpServletRequest request) {
+        final ValidationSpecification[] shared = this.sharedSpecifications;
+        if (shared != null) {
+            return shared[isRenew(request.getParameter("renew")) ? 1 : 0];
+        }
+
+        final ValidationSpecification validationSpecification = this.getCommandClass();
+        final ServletRequestDataBinder binder = new ServletRequestDataBinder(validationSpecification, "validationSpecification");
+        initBinder(request, binder);
+        binder.bind(request);
+        return validationSpecification;
+    }
+
+    /**
+     * @return whether the value is one the data binder converts to true.
+     */
+    private static boolean isRenew(final String parameter) {
+        if (parameter == null) {
+            return false;
+        }
+        final String renew = parameter.trim();
+        return "true".equalsIgnoreCase(renew) || "on".equalsIgnoreCase(renew)
+            || "yes".equalsIgnoreCase(renew) || "1".equals(renew);
+    }
+
+    /**
+     * @return the specifications without and with renew, or null if the class
+     * may take other parameters from the request, or a subclass binds the
+     * request differently.
+     */
+    private ValidationSpecification[] createSharedSpecifications(final Class<?> specificationClass) {
+        if (!AbstractCasProtocolValidationSpecification.class.isAssignableFrom(specificationClass)
+            || ReflectionUtils.findMethod(getClass(), "initBinder", HttpServletRequest.class, ServletRequestDataBinder.class).getDeclaringClass() != ServiceValidateController.class) {
+            return null;
+        }
+
+        for (final PropertyDescriptor property : BeanUtils.getPropertyDescriptors(specificationClass)) {
+            if (property.getWriteMethod() != null && !"renew".equals(property.getName())) {
+                return null;
+            }
+        }
+
+        try {
+            final AbstractCasProtocolValidationSpecification withoutRenew = (AbstractCasProtocolValidationSpecification) specificationClass.newInstance();
+            final AbstractCasProtocolValidationSpecification withRenew = (AbstractCasProtocolValidationSpecification) specificationClass.newInstance();
+            withRenew.setRenew(true);
+            return new ValidationSpecification[] {withoutRenew, withRenew};
+        } catch (final Exception e) {
+            // left to fail on each request, as before
+            return null;
+        }
+    }
+
     private ValidationSpecification getCommandClass() {
         try {
             return (ValidationSpecification) this.validationSpecificationClass.newInstance();
@@ -207,6 +273,7 @@ public class ServiceValidateController extends AbstractController {
     public void setValidationSpecificationClass(
         final Class<?> validationSpecificationClass) {
         this.validationSpecificationClass = validationSpecificationClass;
+        this.sharedSpecifications = createSharedSpecifications(validationSpecificationClass);
     }
 
     /**
@@ -7,7 +7,10 @@ package org.jasig.cas.web;
 
 import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.StreamingTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketCallback;
 import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistryStatistics;
 import org.perf4j.log4j.GraphingStatisticsAppender;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.AbstractController;
@@ -17,6 +20,14 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.*;
 
 /**
+ * Shows the uptime, memory and ticket registry statistics of this server.
+ * <p>
+ * Registries that keep {@link TicketRegistryStatistics} are not read: their
+ * counts of TicketGrantingTickets and ServiceTickets include the expired
+ * tickets the registry cleaner has not removed yet, and are shown with the
+ * rates at which tickets are added, deleted and looked up.  Other registries
+ * are walked, and their tickets counted as expired or not.
+ *
  * @author Scott Battaglia
  * @version $Revision$ $Date$
  * @since 3.3.5
@@ -31,12 +42,23 @@ public final class StatisticsController extends AbstractController {
 
     private static final int NUMBER_OF_MILLISECONDS_IN_A_SECOND = 1000;
 
+    private static final int PAGE_SIZE = 500;
+
+    /** The least time between two samples of the registry counts. */
+    private static final int SAMPLE_INTERVAL = 1000;
+
     private final TicketRegistry ticketRegistry;
 
     private final Date upTimeStartDate = new Date();
 
     private String casTicketSuffix;
 
+    /** Samples of the registry counts, oldest first; guarded by itself. */
+    private final LinkedList<Sample> samples = new LinkedList<Sample>();
+
+    /** The time in milliseconds the rates are averaged over. */
+    private long rateWindow = NUMBER_OF_MILLISECONDS_IN_A_MINUTE;
+
     public StatisticsController(final TicketRegistry ticketRegistry) {
         this.ticketRegistry = ticketRegistry;
     }
@@ -45,6 +67,14 @@ public final class StatisticsController extends AbstractController {
         this.casTicketSuffix = casTicketSuffix;
     }
 
+    /**
+     * @param rateWindow the time in milliseconds the ticket rates are averaged
+     * over.  Defaults to one minute.
+     */
+    public void setRateWindow(final long rateWindow) {
+        this.rateWindow = rateWindow;
+    }
+
     @Override
     protected ModelAndView handleRequestInternal(final HttpServletRequest httpServletRequest, final HttpServletResponse httpServletResponse) throws Exception {
         final ModelAndView modelAndView = new ModelAndView("viewStatisticsView");
@@ -60,45 +90,78 @@ public final class StatisticsController extends AbstractController {
         modelAndView.addObject("serverIpAddress", httpServletRequest.getLocalAddr());
         modelAndView.addObject("casTicketSuffix", this.casTicketSuffix);
 
-        int unexpiredTgts = 0;
-        int unexpiredSts = 0;
-        int expiredTgts = 0;
-        int expiredSts = 0;
+        if (this.ticketRegistry instanceof TicketRegistryStatistics) {
+            final TicketRegistryStatistics statistics = (TicketRegistryStatistics) this.ticketRegistry;
 
-        try {
-            final Collection<Ticket> tickets = this.ticketRegistry.getTickets();
-
-            for (final Ticket ticket : tickets) {
-                if (ticket instanceof ServiceTicket) {
-                    if (ticket.isExpired()) {
-                        expiredSts++;
-                    } else {
-                        unexpiredSts++;
-                    }
-                } else {
-                    if (ticket.isExpired()) {
-                        expiredTgts++;
-                    } else {
-                        unexpiredTgts++;
-                    }
-                }
-            }
-        } catch (final UnsupportedOperationException e) {
-            // this means the ticket registry doesn't support this information.
+            modelAndView.addObject("tgtCount", statistics.getTicketGrantingTicketCount());
+            modelAndView.addObject("stCount", statistics.getServiceTicketCount());
+            addTicketRates(modelAndView, statistics, System.currentTimeMillis());
+        } else {
+            addTicketCounts(modelAndView);
         }
 
         final Collection<GraphingStatisticsAppender> appenders = GraphingStatisticsAppender.getAllGraphingStatisticsAppenders();
 
-        modelAndView.addObject("unexpiredTgts", unexpiredTgts);
-        modelAndView.addObject("unexpiredSts", unexpiredSts);
-        modelAndView.addObject("expiredTgts", expiredTgts);
-        modelAndView.addObject("expiredSts", expiredSts);
         modelAndView.addObject("pageTitle", modelAndView.getViewName());
         modelAndView.addObject("graphingStatisticAppenders", appenders);
 
         return modelAndView;
     }
 
+    /**
+     * Adds the rates at which tickets were added, deleted and looked up
+     * since the newest sample at least the rate window old, or since the
+     * oldest sample if there is none, and samples the counts again.
+     */
+    void addTicketRates(final ModelAndView modelAndView, final TicketRegistryStatistics statistics, final long now) {
+        final Sample current = new Sample(now, statistics.getAddedTicketCount(),
+            statistics.getDeletedTicketCount(), statistics.getTicketLookupCount());
+        final Sample base;
+
+        synchronized (this.samples) {
+            if (this.samples.isEmpty()) {
+                this.samples.add(new Sample(this.upTimeStartDate.getTime(), 0, 0, 0));
+            }
+            while (this.samples.size() > 1 && now - this.samples.get(1).time >= this.rateWindow) {
+                this.samples.removeFirst();
+            }
+            base = this.samples.getFirst();
+
+            if (now - this.samples.getLast().time >= SAMPLE_INTERVAL) {
+                this.samples.addLast(current);
+            }
+        }
+
+        final double seconds = Math.max(1, (double) (now - base.time) / NUMBER_OF_MILLISECONDS_IN_A_SECOND);
+        modelAndView.addObject("addRate", (current.added - base.added) / seconds);
+        modelAndView.addObject("deleteRate", (current.deleted - base.deleted) / seconds);
+        modelAndView.addObject("lookupRate", (current.lookups - base.lookups) / seconds);
+    }
+
+    /**
+     * Walks the registry to count tickets, for registries that keep no statistics.
+     */
+    private void addTicketCounts(final ModelAndView modelAndView) {
+        final TicketCounter counter = new TicketCounter();
+
+        try {
+            if (this.ticketRegistry instanceof StreamingTicketRegistry) {
+                ((StreamingTicketRegistry) this.ticketRegistry).iterateTickets(null, PAGE_SIZE, counter);
+            } else {
+                for (final Ticket ticket : this.ticketRegistry.getTickets()) {
+                    counter.doWithTicket(ticket);
+                }
+            }
+        } catch (final UnsupportedOperationException e) {
+            // this means the ticket registry doesn't support this information.
+        }
+
+        modelAndView.addObject("unexpiredTgts", counter.unexpiredTgts);
+        modelAndView.addObject("unexpiredSts", counter.unexpiredSts);
+        modelAndView.addObject("expiredTgts", counter.expiredTgts);
+        modelAndView.addObject("expiredSts", counter.expiredSts);
+    }
+
     protected String calculateUptime(final double difference, final Queue<Integer> calculations, final Queue<String> labels) {
         if (calculations.isEmpty()) {
             return "";
@@ -113,4 +176,50 @@ public final class StatisticsController extends AbstractController {
         return Integer.toString(new Double(time).intValue()) + " "+ label + " " + calculateUptime(newDifference, calculations, labels);
         
     }
+
+    private static final class Sample {
+
+        private final long time;
+
+        private final long added;
+
+        private final long deleted;
+
+        private final long lookups;
+
+        private Sample(final long time, final long added, final long deleted, final long lookups) {
+            this.time = time;
+            this.added = added;
+            this.deleted = deleted;
+            this.lookups = lookups;
+        }
+    }
+
+    private static final class TicketCounter implements TicketCallback {
+
+        private int unexpiredTgts;
+
+        private int unexpiredSts;
+
+        private int expiredTgts;
+
+        private int expiredSts;
+
+        public boolean doWithTicket(final Ticket ticket) {
+            if (ticket instanceof ServiceTicket) {
+                if (ticket.isExpired()) {
+                    this.expiredSts++;
+                } else {
+                    this.unexpiredSts++;
+                }
+            } else {
+                if (ticket.isExpired()) {
+                    this.expiredTgts++;
+                } else {
+                    this.unexpiredTgts++;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.web.support;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Writes the updates a registry writing behind has pending once the handler
+ * is done, before the view is rendered, so the updates made by a request
+ * are stored before its response reaches the client.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class TicketRegistryFlushingHandlerInterceptorAdapter extends HandlerInterceptorAdapter {
+
+    @NotNull
+    private final AbstractDistributedTicketRegistry ticketRegistry;
+
+    public TicketRegistryFlushingHandlerInterceptorAdapter(final AbstractDistributedTicketRegistry ticketRegistry) {
+        this.ticketRegistry = ticketRegistry;
+    }
+
+    @Override
+    public void postHandle(final HttpServletRequest request, final HttpServletResponse response, final Object handler, final ModelAndView modelAndView) throws Exception {
+        this.ticketRegistry.flush();
+    }
+
+    @Override
+    public void afterCompletion(final HttpServletRequest request, final HttpServletResponse response, final Object handler, final Exception ex) throws Exception {
+        // postHandle is skipped when the handler fails
+        this.ticketRegistry.flush();
+    }
+}
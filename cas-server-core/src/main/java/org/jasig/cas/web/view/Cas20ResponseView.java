@@ -0,0 +1,278 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.web.view;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.validation.Assertion;
+
+/**
+ * Custom View to Return the CAS 2.0 Protocol Response, written straight to
+ * the response stream instead of through a JSP.  The markup is encoded once,
+ * and only the values of the assertion are escaped and encoded per request.
+ * <p>
+ * The elements and values are those of the casServiceValidationSuccess and
+ * casServiceValidationFailure JSPs, but not the whitespace between them: the
+ * JSPs leave blank lines where their tags were.  Both responses are sent as
+ * text/xml;charset=UTF-8, where the failure JSP sends text/plain, and the
+ * error code and proxy-granting ticket IOU are escaped as well.  The
+ * attributes of the principal may also be released, as a cas:attributes
+ * element.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class Cas20ResponseView extends AbstractCasView {
+
+    private static final byte[] SERVICE_RESPONSE_START = bytes("<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>\n");
+
+    private static final byte[] SERVICE_RESPONSE_END = bytes("</cas:serviceResponse>\n");
+
+    private static final byte[] SUCCESS_START = bytes("\t<cas:authenticationSuccess>\n\t\t<cas:user>");
+
+    private static final byte[] USER_END = bytes("</cas:user>\n");
+
+    private static final byte[] ATTRIBUTES_START = bytes("\t\t<cas:attributes>\n");
+
+    private static final byte[] ATTRIBUTES_END = bytes("\t\t</cas:attributes>\n");
+
+    private static final byte[] PROXY_GRANTING_TICKET_START = bytes("\t\t<cas:proxyGrantingTicket>");
+
+    private static final byte[] PROXY_GRANTING_TICKET_END = bytes("</cas:proxyGrantingTicket>\n");
+
+    private static final byte[] PROXIES_START = bytes("\t\t<cas:proxies>\n");
+
+    private static final byte[] PROXY_START = bytes("\t\t\t<cas:proxy>");
+
+    private static final byte[] PROXY_END = bytes("</cas:proxy>\n");
+
+    private static final byte[] PROXIES_END = bytes("\t\t</cas:proxies>\n");
+
+    private static final byte[] SUCCESS_END = bytes("\t</cas:authenticationSuccess>\n");
+
+    private static final byte[] FAILURE_START = bytes("\t<cas:authenticationFailure code='");
+
+    private static final byte[] FAILURE_DESCRIPTION = bytes("'>\n\t\t");
+
+    private static final byte[] FAILURE_END = bytes("\n\t</cas:authenticationFailure>\n");
+
+    /**
+     * Indicate whether this view will be generating the success response or
+     * not.
+     */
+    private boolean successResponse;
+
+    /** Whether to release the attributes of the principal. */
+    private boolean includeAttributes;
+
+    public Cas20ResponseView() {
+        setContentType("text/xml;charset=UTF-8");
+    }
+
+    protected void renderMergedOutputModel(final Map model,
+        final HttpServletRequest request, final HttpServletResponse response)
+        throws Exception {
+        response.setContentType(getContentType());
+        final OutputStream out = response.getOutputStream();
+
+        out.write(SERVICE_RESPONSE_START);
+        if (this.successResponse) {
+            writeSuccess(out, getAssertionFrom(model), (String) model.get("pgtIou"));
+        } else {
+            out.write(FAILURE_START);
+            writeEscaped(out, (String) model.get("code"));
+            out.write(FAILURE_DESCRIPTION);
+            writeEscaped(out, (String) model.get("description"));
+            out.write(FAILURE_END);
+        }
+        out.write(SERVICE_RESPONSE_END);
+    }
+
+    private void writeSuccess(final OutputStream out, final Assertion assertion, final String proxyGrantingTicketIou) throws IOException {
+        final List<Authentication> authentications = assertion.getChainedAuthentications();
+        final Principal principal = authentications.get(authentications.size() - 1).getPrincipal();
+
+        out.write(SUCCESS_START);
+        writeEscaped(out, principal.getId());
+        out.write(USER_END);
+
+        if (this.includeAttributes && !principal.getAttributes().isEmpty()) {
+            out.write(ATTRIBUTES_START);
+            for (final Map.Entry<String, Object> attribute : principal.getAttributes().entrySet()) {
+                writeAttribute(out, attribute.getKey(), attribute.getValue());
+            }
+            out.write(ATTRIBUTES_END);
+        }
+
+        if (proxyGrantingTicketIou != null && proxyGrantingTicketIou.length() > 0) {
+            out.write(PROXY_GRANTING_TICKET_START);
+            writeEscaped(out, proxyGrantingTicketIou);
+            out.write(PROXY_GRANTING_TICKET_END);
+        }
+
+        if (authentications.size() > 1) {
+            out.write(PROXIES_START);
+            for (int i = 0; i < authentications.size() - 1; i++) {
+                out.write(PROXY_START);
+                writeEscaped(out, authentications.get(i).getPrincipal().getId());
+                out.write(PROXY_END);
+            }
+            out.write(PROXIES_END);
+        }
+        out.write(SUCCESS_END);
+    }
+
+    /**
+     * Writes one element per value, named after the attribute.  Attributes
+     * whose name is not a valid element name are left out.
+     */
+    private void writeAttribute(final OutputStream out, final String name, final Object value) throws IOException {
+        if (!isElementName(name)) {
+            log.debug("Not releasing attribute [" + name + "], as its name is not a valid element name.");
+            return;
+        }
+
+        if (value instanceof Collection<?>) {
+            for (final Object v : (Collection<?>) value) {
+                writeAttribute(out, name, v);
+            }
+        } else if (value instanceof Object[]) {
+            for (final Object v : (Object[]) value) {
+                writeAttribute(out, name, v);
+            }
+        } else if (value != null) {
+            writeEncoded(out, "\t\t\t<cas:" + name + ">");
+            writeEscaped(out, value.toString());
+            writeEncoded(out, "</cas:" + name + ">\n");
+        }
+    }
+
+    private static boolean isElementName(final String name) {
+        if (name == null || name.length() == 0 || !Character.isLetter(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the value in UTF-8, escaped as fn:escapeXml does.
+     */
+    private static void writeEscaped(final OutputStream out, final String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    writeAscii(out, "&amp;");
+                    break;
+                case '<':
+                    writeAscii(out, "&lt;");
+                    break;
+                case '>':
+                    writeAscii(out, "&gt;");
+                    break;
+                case '\'':
+                    writeAscii(out, "&#039;");
+                    break;
+                case '"':
+                    writeAscii(out, "&#034;");
+                    break;
+                default:
+                    i = writeChar(out, value, i);
+            }
+        }
+    }
+
+    private static void writeEncoded(final OutputStream out, final String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            i = writeChar(out, value, i);
+        }
+    }
+
+    private static void writeAscii(final OutputStream out, final String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            out.write(value.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the character at the index in UTF-8.
+     *
+     * @return the index of the last char written, which is the next one for a
+     * surrogate pair.
+     */
+    private static int writeChar(final OutputStream out, final String value, final int i) throws IOException {
+        int c = value.charAt(i);
+
+        if (c < 0x80) {
+            out.write(c);
+            return i;
+        }
+        if (c < 0x800) {
+            out.write(0xC0 | (c >> 6));
+            out.write(0x80 | (c & 0x3F));
+            return i;
+        }
+        if (Character.isHighSurrogate((char) c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+            c = Character.toCodePoint((char) c, value.charAt(i + 1));
+            out.write(0xF0 | (c >> 18));
+            out.write(0x80 | ((c >> 12) & 0x3F));
+            out.write(0x80 | ((c >> 6) & 0x3F));
+            out.write(0x80 | (c & 0x3F));
+            return i + 1;
+        }
+        if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            // unpaired surrogate
+            c = '?';
+            out.write(c);
+            return i;
+        }
+        out.write(0xE0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3F));
+        out.write(0x80 | (c & 0x3F));
+        return i;
+    }
+
+    private static byte[] bytes(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setSuccessResponse(final boolean successResponse) {
+        this.successResponse = successResponse;
+    }
+
+    /**
+     * @param includeAttributes whether to release the attributes of the
+     * principal in the success response.  The default is false.
+     */
+    public void setIncludeAttributes(final boolean includeAttributes) {
+        this.includeAttributes = includeAttributes;
+    }
+}
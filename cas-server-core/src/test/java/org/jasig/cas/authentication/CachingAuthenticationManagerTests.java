@@ -0,0 +1,207 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.authentication;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.authentication.handler.AuthenticationException;
+import org.jasig.cas.authentication.handler.BadCredentialsAuthenticationException;
+import org.jasig.cas.authentication.principal.Credentials;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class CachingAuthenticationManagerTests extends TestCase {
+
+    private CountingAuthenticationManager delegate;
+
+    private CachingAuthenticationManager manager;
+
+    protected void setUp() throws Exception {
+        this.delegate = new CountingAuthenticationManager();
+        this.manager = new CachingAuthenticationManager(this.delegate);
+        this.manager.setIterations(10);
+    }
+
+    public void testRepeatedAuthenticationIsCached() throws Exception {
+        final Authentication first = this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+        final Authentication second = this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        assertEquals(1, this.delegate.calls);
+        assertEquals(first.getPrincipal(), second.getPrincipal());
+        assertEquals(first.getAttributes(), second.getAttributes());
+    }
+
+    public void testOtherPasswordIsNotCached() throws Exception {
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        try {
+            this.manager.authenticate(TestUtils.getCredentialsWithDifferentUsernameAndPassword("test", "other"));
+            fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+        } catch (final AuthenticationException e) {
+            // expected
+        }
+        assertEquals(2, this.delegate.calls);
+    }
+
+    public void testFailureRemovesCachedAuthentication() throws Exception {
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+        this.delegate.failing = true;
+
+        try {
+            this.manager.authenticate(TestUtils.getCredentialsWithDifferentUsernameAndPassword("test", "other"));
+            fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+        } catch (final AuthenticationException e) {
+            // expected
+        }
+
+        try {
+            this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+            fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+        } catch (final AuthenticationException e) {
+            // expected
+        }
+        assertEquals(3, this.delegate.calls);
+    }
+
+    public void testSuccessRacingAFailureIsNotCached() throws Exception {
+        this.delegate.duringNextCall = new Runnable() {
+            public void run() {
+                try {
+                    CachingAuthenticationManagerTests.this.manager.authenticate(TestUtils.getCredentialsWithDifferentUsernameAndPassword("test", "other"));
+                    fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+                } catch (final AuthenticationException e) {
+                    // expected
+                }
+            }
+        };
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        assertEquals(3, this.delegate.calls);
+    }
+
+    public void testFailureOfAnotherUsernameDoesNotPreventCaching() throws Exception {
+        this.delegate.duringNextCall = new Runnable() {
+            public void run() {
+                try {
+                    CachingAuthenticationManagerTests.this.manager.authenticate(TestUtils.getCredentialsWithDifferentUsernameAndPassword("other", "wrong"));
+                    fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+                } catch (final AuthenticationException e) {
+                    // expected
+                }
+            }
+        };
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        assertEquals(2, this.delegate.calls);
+    }
+
+    public void testFailuresDoNotTakeTheRoomOfAuthentications() throws Exception {
+        this.manager.setMaxSize(1);
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                this.manager.authenticate(TestUtils.getCredentialsWithDifferentUsernameAndPassword("other" + i, "wrong"));
+                fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+            } catch (final AuthenticationException e) {
+                // expected
+            }
+        }
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        assertEquals(4, this.delegate.calls);
+    }
+
+    public void testSuccessRacingARemovedFailureIsNotCached() throws Exception {
+        this.manager.setMaxFailures(1);
+        this.delegate.duringNextCall = new Runnable() {
+            public void run() {
+                for (final String username : new String[] {"test", "other"}) {
+                    try {
+                        CachingAuthenticationManagerTests.this.manager.authenticate(TestUtils.getCredentialsWithDifferentUsernameAndPassword(username, "wrong"));
+                        fail(TestUtils.CONST_EXCEPTION_EXPECTED);
+                    } catch (final AuthenticationException e) {
+                        // expected
+                    }
+                }
+            }
+        };
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        assertEquals(4, this.delegate.calls);
+    }
+
+    public void testNegativeTimeToLiveIsRejected() {
+        try {
+            this.manager.setTimeToLive(-1);
+            fail("IllegalArgumentException expected.");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testExpiredAuthenticationIsNotReturned() throws Exception {
+        this.manager.setTimeToLive(0);
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("test"));
+
+        assertEquals(2, this.delegate.calls);
+    }
+
+    public void testLeastRecentlyUsedIsRemoved() throws Exception {
+        this.manager.setMaxSize(1);
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("a"));
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("b"));
+        this.manager.authenticate(TestUtils.getCredentialsWithSameUsernameAndPassword("a"));
+
+        assertEquals(3, this.delegate.calls);
+    }
+
+    public void testOtherCredentialsAreNotCached() throws Exception {
+        this.manager.authenticate(TestUtils.getHttpBasedServiceCredentials());
+        this.manager.authenticate(TestUtils.getHttpBasedServiceCredentials());
+
+        assertEquals(2, this.delegate.calls);
+    }
+
+    private static final class CountingAuthenticationManager implements AuthenticationManager {
+
+        private int calls;
+
+        private boolean failing;
+
+        /** Run once, by the next call, before it authenticates. */
+        private Runnable duringNextCall;
+
+        public Authentication authenticate(final Credentials credentials) throws AuthenticationException {
+            this.calls++;
+
+            if (this.duringNextCall != null) {
+                final Runnable runnable = this.duringNextCall;
+                this.duringNextCall = null;
+                runnable.run();
+            }
+
+            if (credentials instanceof UsernamePasswordCredentials) {
+                final UsernamePasswordCredentials c = (UsernamePasswordCredentials) credentials;
+                if (this.failing || !c.getUsername().equals(c.getPassword())) {
+                    throw BadCredentialsAuthenticationException.ERROR;
+                }
+                return new ImmutableAuthentication(new SimplePrincipal(c.getUsername()));
+            }
+            return TestUtils.getAuthentication();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.services;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class AttributeReleaseFilterTests extends TestCase {
+
+    private Map<String, Object> attributes;
+
+    protected void setUp() throws Exception {
+        this.attributes = new HashMap<String, Object>();
+        this.attributes.put("uid", "u1");
+        this.attributes.put("mail", "u1@example.org");
+        this.attributes.put("eduPersonAffiliation", "staff");
+        this.attributes.put("eduPersonPrincipalName", "u1@example.org");
+        this.attributes.put("memberOf", "cn=staff");
+        this.attributes.put("phone", null);
+    }
+
+    public void testExactNames() {
+        final AttributeReleaseFilter filter = new AttributeReleaseFilter(Arrays.asList("mail", "uid", "cn"));
+        final Map<String, Object> released = filter.filter(this.attributes);
+
+        assertEquals(2, released.size());
+        assertEquals("u1", released.get("uid"));
+        assertEquals("u1@example.org", released.get("mail"));
+        assertFalse(filter.isReleased("eduPersonAffiliation"));
+        assertFalse(filter.isReleased(null));
+    }
+
+    public void testWildcard() {
+        final AttributeReleaseFilter filter = new AttributeReleaseFilter(Arrays.asList("eduPerson*"));
+        final Map<String, Object> released = filter.filter(this.attributes);
+
+        assertEquals(2, released.size());
+        assertTrue(released.containsKey("eduPersonAffiliation"));
+        assertTrue(released.containsKey("eduPersonPrincipalName"));
+        assertFalse(filter.isReleased("xeduPerson"));
+    }
+
+    public void testRegularExpression() {
+        final AttributeReleaseFilter filter = new AttributeReleaseFilter(Arrays.asList("uid", "regex:(?i)memberof"));
+        final Map<String, Object> released = filter.filter(this.attributes);
+
+        assertEquals(2, released.size());
+        assertTrue(released.containsKey("uid"));
+        assertTrue(released.containsKey("memberOf"));
+        assertTrue(filter.isReleased("MEMBEROF"));
+        assertFalse(filter.isReleased("memberOfGroup"));
+    }
+
+    public void testNullValuesAreNotReleased() {
+        assertTrue(new AttributeReleaseFilter(Arrays.asList("phone")).filter(this.attributes).isEmpty());
+        assertTrue(new AttributeReleaseFilter(Arrays.asList("ph*")).filter(this.attributes).isEmpty());
+    }
+
+    public void testNothingReleased() {
+        assertTrue(new AttributeReleaseFilter(Collections.<String>emptyList()).filter(this.attributes).isEmpty());
+    }
+
+    public void testBackreferencesAreLocalToTheirRule() {
+        final AttributeReleaseFilter filter = new AttributeReleaseFilter(Arrays.asList("regex:(x)y", "regex:(a)\\1"));
+
+        assertTrue(filter.isReleased("xy"));
+        assertTrue(filter.isReleased("aa"));
+        assertFalse(filter.isReleased("ax"));
+    }
+
+    public void testInvalidRegularExpressionIsRejected() {
+        try {
+            new AttributeReleaseFilter(Arrays.asList("uid", "regex:(unclosed"));
+            fail("PatternSyntaxException expected.");
+        } catch (final PatternSyntaxException e) {
+            // expected
+        }
+    }
+
+    public void testRegisteredServiceRecompilesOnSet() {
+        final RegisteredServiceImpl r = new RegisteredServiceImpl();
+        r.setAllowedAttributes(Arrays.asList("uid"));
+        assertTrue(r.getAttributeReleaseFilter().isReleased("uid"));
+
+        r.setAllowedAttributes(Arrays.asList("mail"));
+        assertFalse(r.getAttributeReleaseFilter().isReleased("uid"));
+        assertTrue(r.getAttributeReleaseFilter().isReleased("mail"));
+    }
+}
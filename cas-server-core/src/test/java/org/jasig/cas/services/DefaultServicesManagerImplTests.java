@@ -6,8 +6,10 @@
 package org.jasig.cas.services;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
 import org.jasig.cas.authentication.principal.Principal;
 import org.jasig.cas.authentication.principal.Service;
@@ -97,6 +99,92 @@ public class DefaultServicesManagerImplTests extends TestCase {
         assertTrue(this.defaultServicesManagerImpl.getAllServices().contains(r));
     }
     
+    public void testMatchCacheIsInvalidatedOnSave() {
+        this.defaultServicesManagerImpl.setMatchCacheSize(10);
+        final Service service = new SimpleService("test");
+
+        assertNull(this.defaultServicesManagerImpl.findServiceBy(service));
+        assertNull(this.defaultServicesManagerImpl.findServiceBy(service));
+        assertEquals(1, this.defaultServicesManagerImpl.getMatchCache().getHitCount());
+
+        final RegisteredServiceImpl r = new RegisteredServiceImpl();
+        r.setId(1000);
+        r.setName("test");
+        r.setServiceId("test");
+        this.defaultServicesManagerImpl.save(r);
+
+        assertEquals(r, this.defaultServicesManagerImpl.findServiceBy(service));
+    }
+
+    public void testMatchCacheIsInvalidatedOnDelete() {
+        this.defaultServicesManagerImpl.setMatchCacheSize(10);
+        final Service service = new SimpleService("serviceId");
+
+        assertNotNull(this.defaultServicesManagerImpl.findServiceBy(service));
+        this.defaultServicesManagerImpl.delete(2500);
+        assertFalse(2500 == this.defaultServicesManagerImpl.findServiceBy(service).getId());
+    }
+
+    public void testServiceWithInvalidAttributeRulesIsNotSaved() {
+        final RegisteredServiceImpl r = new RegisteredServiceImpl();
+        r.setId(1000);
+        r.setName("test");
+        r.setServiceId("test");
+        r.setAllowedAttributes(Arrays.asList("regex:(unclosed"));
+
+        try {
+            this.defaultServicesManagerImpl.save(r);
+            fail("PatternSyntaxException expected.");
+        } catch (final PatternSyntaxException e) {
+            // expected
+        }
+        assertNull(this.defaultServicesManagerImpl.findServiceBy(1000));
+    }
+
+    public void testServiceWithInvalidAttributeRulesFailsTheLoad() {
+        final RegisteredServiceImpl invalid = new RegisteredServiceImpl();
+        invalid.setId(1001);
+        invalid.setServiceId("invalid");
+        invalid.setAllowedAttributes(Arrays.asList("regex:(unclosed"));
+
+        final InMemoryServiceRegistryDaoImpl dao = new InMemoryServiceRegistryDaoImpl();
+        dao.setRegisteredServices(Arrays.<RegisteredService>asList(invalid));
+
+        try {
+            new DefaultServicesManagerImpl(dao);
+            fail("PatternSyntaxException expected.");
+        } catch (final PatternSyntaxException e) {
+            // expected
+        }
+    }
+
+    public void testServiceWithInvalidAttributeRulesKeepsThePreviousServicesOnReload() {
+        final RegisteredServiceImpl valid = new RegisteredServiceImpl();
+        valid.setId(1000);
+        valid.setServiceId("valid");
+
+        final RegisteredServiceImpl invalid = new RegisteredServiceImpl();
+        invalid.setId(1001);
+        invalid.setServiceId("invalid");
+        invalid.setAllowedAttributes(Arrays.asList("regex:(unclosed"));
+
+        final InMemoryServiceRegistryDaoImpl dao = new InMemoryServiceRegistryDaoImpl();
+        dao.setRegisteredServices(Arrays.<RegisteredService>asList(valid));
+        final DefaultServicesManagerImpl servicesManager = new DefaultServicesManagerImpl(dao);
+
+        dao.setRegisteredServices(Arrays.<RegisteredService>asList(invalid));
+        try {
+            servicesManager.reload();
+            fail("PatternSyntaxException expected.");
+        } catch (final PatternSyntaxException e) {
+            // expected
+        }
+
+        assertNotNull(servicesManager.findServiceBy(1000));
+        assertNull(servicesManager.findServiceBy(1001));
+        assertNull(servicesManager.findServiceBy(new SimpleService("https://www.example.org")));
+    }
+
     protected class SimpleService implements Service {
         
         /**
@@ -31,6 +31,7 @@ public class RegisteredServiceImplTests extends TestCase {
         final boolean ALLOWED_TO_PROXY = false;
         final boolean ANONYMOUS_ACCESS = true;
         final boolean SSO_ENABLED = false;
+        final boolean LOGOUT_COALESCING_ENABLED = true;
         final List<String> ALLOWED_ATTRIBUTES = Arrays.asList("Test");
         
         this.r.setAllowedAttributes(ALLOWED_ATTRIBUTES);
@@ -43,6 +44,7 @@ public class RegisteredServiceImplTests extends TestCase {
         this.r.setServiceId(SERVICEID);
         this.r.setSsoEnabled(SSO_ENABLED);
         this.r.setTheme(THEME);
+        this.r.setLogoutCoalescingEnabled(LOGOUT_COALESCING_ENABLED);
         
         assertEquals(ALLOWED_ATTRIBUTES, this.r.getAllowedAttributes());
         assertEquals(ALLOWED_TO_PROXY, this.r.isAllowedToProxy());
@@ -54,6 +56,7 @@ public class RegisteredServiceImplTests extends TestCase {
         assertEquals(SERVICEID, this.r.getServiceId());
         assertEquals(SSO_ENABLED, this.r.isSsoEnabled());
         assertEquals(THEME, this.r.getTheme());
+        assertEquals(LOGOUT_COALESCING_ENABLED, this.r.isLogoutCoalescingEnabled());
         
         assertFalse(this.r.equals(null));
         assertFalse(this.r.equals(new Object()));
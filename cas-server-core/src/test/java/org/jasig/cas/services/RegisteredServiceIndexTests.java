@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.uportal.org/license.html
+ */
+package org.jasig.cas.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.authentication.principal.Service;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class RegisteredServiceIndexTests extends TestCase {
+
+    private final List<RegisteredService> services = new ArrayList<RegisteredService>();
+
+    private RegisteredServiceImpl add(final long id, final String serviceId, final int evaluationOrder) {
+        final RegisteredServiceImpl r = new RegisteredServiceImpl();
+        r.setId(id);
+        r.setServiceId(serviceId);
+        r.setName(serviceId);
+        r.setEvaluationOrder(evaluationOrder);
+        this.services.add(r);
+        return r;
+    }
+
+    private RegisteredService find(final String url) {
+        return new RegisteredServiceIndex(this.services).findFirstMatch(TestUtils.getService(url));
+    }
+
+    public void testEmptyIndex() {
+        final RegisteredServiceIndex index = new RegisteredServiceIndex(Collections.<RegisteredService>emptyList());
+        assertTrue(index.isEmpty());
+        assertNull(index.findFirstMatch(TestUtils.getService("https://www.example.com")));
+    }
+
+    public void testLiteralHostMatch() {
+        final RegisteredService r = add(1, "https://www.example.com/**", 0);
+        add(2, "https://www.other.com/**", 0);
+
+        assertSame(r, find("https://www.example.com/app?x=1"));
+        assertNull(find("https://www.unknown.com/app"));
+    }
+
+    public void testMatchIsCaseInsensitive() {
+        final RegisteredService r = add(1, "HTTPS://WWW.Example.com/**", 0);
+
+        assertSame(r, find("https://www.EXAMPLE.com/App"));
+    }
+
+    public void testEvaluationOrderIsHonoredAcrossPrefixes() {
+        final RegisteredService catchAll = add(1, "**", 0);
+        add(2, "https://www.example.com/**", 1);
+
+        assertSame(catchAll, find("https://www.example.com/app"));
+    }
+
+    public void testMoreSpecificPrefixWinsWhenEvaluatedFirst() {
+        add(1, "https://**", 10);
+        final RegisteredService specific = add(2, "https://www.example.com/secure/**", 1);
+
+        assertSame(specific, find("https://www.example.com/secure/page"));
+        assertEquals(1, find("https://www.example.com/public").getId());
+    }
+
+    public void testWildcardInHost() {
+        final RegisteredService r = add(1, "https://*.example.com/**", 0);
+
+        assertSame(r, find("https://app.example.com/login"));
+        assertNull(find("http://app.example.com/login"));
+    }
+
+    public void testTieBreakOnId() {
+        add(5, "https://www.example.com/**", 0);
+        final RegisteredService lower = add(3, "https://www.example.com/app/**", 0);
+
+        assertSame(lower, find("https://www.example.com/app/x"));
+    }
+
+    public void testCustomRegisteredServiceIsAlwaysEvaluated() {
+        final RegisteredServiceImpl custom = new RegisteredServiceImpl() {
+            private static final long serialVersionUID = 1L;
+
+            public boolean matches(final Service service) {
+                return service.getId().endsWith("custom");
+            }
+        };
+        custom.setId(1);
+        custom.setServiceId("https://never.example.com");
+        this.services.add(custom);
+        add(2, "https://www.example.com/**", 1);
+
+        assertSame(custom, find("https://www.example.com/custom"));
+        assertEquals(2, find("https://www.example.com/other").getId());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.uportal.org/license.html
+ */
+package org.jasig.cas.services;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class ServiceMatchCacheTests extends TestCase {
+
+    private final RegisteredServiceIndex index = new RegisteredServiceIndex(Collections.<RegisteredService>emptyList());
+
+    public void testInvalidSize() {
+        try {
+            new ServiceMatchCache(0);
+            fail("Exception expected.");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testHitAndMiss() {
+        final ServiceMatchCache cache = new ServiceMatchCache(10);
+        final RegisteredServiceImpl r = new RegisteredServiceImpl();
+
+        assertNull(cache.get("a", this.index));
+        cache.put("a", this.index, r);
+        assertSame(r, cache.get("a", this.index).getRegisteredService());
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testNegativeResultIsCached() {
+        final ServiceMatchCache cache = new ServiceMatchCache(10);
+
+        cache.put("a", this.index, null);
+        assertNotNull(cache.get("a", this.index));
+        assertNull(cache.get("a", this.index).getRegisteredService());
+    }
+
+    public void testEntryFromOlderIndexIsIgnored() {
+        final ServiceMatchCache cache = new ServiceMatchCache(10);
+        final RegisteredServiceIndex newIndex = new RegisteredServiceIndex(Collections.<RegisteredService>emptyList());
+
+        cache.put("a", this.index, new RegisteredServiceImpl());
+        assertNull(cache.get("a", newIndex));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        final ServiceMatchCache cache = new ServiceMatchCache(2, 1);
+
+        cache.put("a", this.index, null);
+        cache.put("b", this.index, null);
+        cache.get("a", this.index);
+        cache.put("c", this.index, null);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get("a", this.index));
+        assertNull(cache.get("b", this.index));
+    }
+
+    public void testSegmentsDoNotExceedMaxSize() {
+        final ServiceMatchCache cache = new ServiceMatchCache(10, 4);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put("https://www.example.com/" + i, this.index, null);
+        }
+
+        assertTrue(cache.size() <= 10);
+        assertEquals(100 - cache.size(), cache.getEvictionCount());
+    }
+
+    public void testMoreSegmentsThanEntries() {
+        final ServiceMatchCache cache = new ServiceMatchCache(3, 16);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("https://www.example.com/" + i, this.index, null);
+        }
+
+        assertTrue(cache.size() > 0);
+        assertTrue(cache.size() <= 3);
+    }
+
+    public void testHitsAndMissesAreCountedAcrossSegments() {
+        final ServiceMatchCache cache = new ServiceMatchCache(100);
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("https://www.example.com/" + i, this.index, null);
+        }
+        for (int i = 0; i < 30; i++) {
+            cache.get("https://www.example.com/" + i, this.index);
+        }
+
+        assertEquals(20, cache.getHitCount());
+        assertEquals(10, cache.getMissCount());
+        assertEquals(20, cache.size());
+    }
+
+    public void testKeyIsCaseInsensitive() {
+        assertEquals(ServiceMatchCache.keyFor("HTTPS://Example.com"), ServiceMatchCache.keyFor("https://example.COM"));
+        assertNull(ServiceMatchCache.keyFor(null));
+    }
+}
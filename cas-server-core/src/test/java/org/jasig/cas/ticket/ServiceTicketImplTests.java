@@ -5,6 +5,9 @@
  */
 package org.jasig.cas.ticket;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.jasig.cas.TestUtils;
 import org.jasig.cas.authentication.Authentication;
 import org.jasig.cas.authentication.principal.Service;
@@ -134,4 +137,38 @@ public class ServiceTicketImplTests extends TestCase {
             return;
         }
     }
+
+    public void testConcurrentValidationsHonorExpirationPolicy() throws Exception {
+        final ServiceTicket s = new ServiceTicketImpl("stest1",
+            this.ticketGrantingTicket, TestUtils.getService(), false,
+            new MultiTimeUseOrTimeoutExpirationPolicy(1, 60000));
+        final AtomicInteger valid = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    if (s.isValidFor(TestUtils.getService())) {
+                        valid.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, valid.get());
+        assertEquals(1, s.getCountOfUses());
+        assertTrue(s.isExpired());
+    }
 }
@@ -5,9 +5,15 @@
  */
 package org.jasig.cas.ticket;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jasig.cas.TestUtils;
 import org.jasig.cas.authentication.Authentication;
@@ -137,6 +143,81 @@ public class TicketGrantingTicketImplTests extends TestCase {
         assertFalse(s.isFromNewLogin());
     }
     
+    public void testConcurrentGrantsCountEveryUse() throws Exception {
+        final TicketGrantingTicket t = new TicketGrantingTicketImpl("test", null,
+            TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        final AtomicInteger newLogins = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 500; j++) {
+                        final ServiceTicket s = t.grantServiceTicket(TicketGrantingTicketImplTests.this.uniqueTicketIdGenerator
+                            .getNewTicketId(ServiceTicket.PREFIX), TestUtils.getService(),
+                            new NeverExpiresExpirationPolicy(), false);
+                        if (s.isFromNewLogin()) {
+                            newLogins.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4000, t.getCountOfUses());
+        assertEquals(1, newLogins.get());
+    }
+
+    public void testSerializationKeepsUsage() throws Exception {
+        final TicketGrantingTicketImpl t = new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        t.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        t.grantServiceTicket("ST-2", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(t);
+        out.close();
+        final TicketGrantingTicketImpl read = (TicketGrantingTicketImpl) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(t.getId(), read.getId());
+        assertEquals(2, read.getCountOfUses());
+        assertEquals(t.getLastTimeUsed(), read.getLastTimeUsed());
+        assertEquals(t.getPreviousTimeUsed(), read.getPreviousTimeUsed());
+        assertEquals(t.getCreationTime(), read.getCreationTime());
+    }
+
+    /**
+     * Reads a ticket serialized by 3.4, with its usage state in the fields of
+     * AbstractTicket.
+     */
+    public void testTicketsSerializedBeforeTicketUsageCanBeRead() throws Exception {
+        final ObjectInputStream in = new ObjectInputStream(getClass().getResourceAsStream("ticketGrantingTicket-3.4.ser"));
+        final TicketGrantingTicketImpl t = (TicketGrantingTicketImpl) in.readObject();
+        in.close();
+
+        assertEquals("TGT-1", t.getId());
+        assertEquals(3, t.getCountOfUses());
+        assertEquals(1300000002000L, t.getLastTimeUsed());
+        assertEquals(1300000001000L, t.getPreviousTimeUsed());
+        assertEquals(1300000000000L, t.getCreationTime());
+        assertFalse(t.isExpired());
+
+        t.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        assertEquals(4, t.getCountOfUses());
+    }
+
     public void testWebApplicationSignOut() {
         final TestService testService = new TestService();
         TicketGrantingTicket t = new TicketGrantingTicketImpl("test", null,
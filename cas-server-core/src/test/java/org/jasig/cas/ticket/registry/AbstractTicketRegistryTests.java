@@ -203,4 +203,74 @@ public abstract class AbstractTicketRegistryTests extends TestCase {
             fail("Caught an exception. But no exception should have been thrown.");
         }
     }
+
+    public void testIterateTicketsOfType() {
+        if (!(this.ticketRegistry instanceof StreamingTicketRegistry)) {
+            return;
+        }
+
+        for (int i = 0; i < TICKETS_IN_REGISTRY; i++) {
+            final TicketGrantingTicket ticketGrantingTicket = new TicketGrantingTicketImpl(
+                "TEST" + i, TestUtils.getAuthentication(),
+                new NeverExpiresExpirationPolicy());
+            this.ticketRegistry.addTicket(ticketGrantingTicket);
+            this.ticketRegistry.addTicket(ticketGrantingTicket.grantServiceTicket("tests" + i, TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        }
+
+        final Collection<String> ids = new ArrayList<String>();
+        ((StreamingTicketRegistry) this.ticketRegistry).iterateTickets(ServiceTicket.class, 3, new TicketCallback() {
+            public boolean doWithTicket(final Ticket ticket) {
+                assertTrue(ticket instanceof ServiceTicket);
+                ids.add(ticket.getId());
+                return true;
+            }
+        });
+
+        assertEquals(TICKETS_IN_REGISTRY, ids.size());
+        assertTrue(ids.contains("tests0"));
+    }
+
+    public void testIterateTicketsStopsWhenCallbackReturnsFalse() {
+        if (!(this.ticketRegistry instanceof StreamingTicketRegistry)) {
+            return;
+        }
+
+        for (int i = 0; i < TICKETS_IN_REGISTRY; i++) {
+            this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("TEST" + i,
+                TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+        }
+
+        final int[] visited = new int[1];
+        ((StreamingTicketRegistry) this.ticketRegistry).iterateTickets(null, 2, new TicketCallback() {
+            public boolean doWithTicket(final Ticket ticket) {
+                return ++visited[0] < 3;
+            }
+        });
+
+        assertEquals(3, visited[0]);
+    }
+
+    public void testStatisticsFollowAddsAndDeletes() {
+        if (!(this.ticketRegistry instanceof TicketRegistryStatistics)) {
+            return;
+        }
+        final TicketRegistryStatistics statistics = (TicketRegistryStatistics) this.ticketRegistry;
+
+        final TicketGrantingTicket ticketGrantingTicket = new TicketGrantingTicketImpl("TEST",
+            TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        this.ticketRegistry.addTicket(ticketGrantingTicket);
+        this.ticketRegistry.addTicket(ticketGrantingTicket.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        this.ticketRegistry.getTicket("ST-1");
+
+        assertEquals(1, statistics.getTicketGrantingTicketCount());
+        assertEquals(1, statistics.getServiceTicketCount());
+        assertEquals(2, statistics.getAddedTicketCount());
+        assertEquals(1, statistics.getTicketLookupCount());
+
+        this.ticketRegistry.deleteTicket("ST-1");
+        this.ticketRegistry.deleteTicket("ST-1");
+
+        assertEquals(0, statistics.getServiceTicketCount());
+        assertEquals(1, statistics.getDeletedTicketCount());
+    }
 }
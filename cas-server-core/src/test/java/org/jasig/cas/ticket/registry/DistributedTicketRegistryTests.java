@@ -6,8 +6,9 @@
 package org.jasig.cas.ticket.registry;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 import org.jasig.cas.TestUtils;
 import org.jasig.cas.ticket.ServiceTicket;
@@ -87,16 +88,175 @@ public class DistributedTicketRegistryTests extends TestCase {
         assertTrue(t.isExpired());
     }
     
+    public void testGrantingTicketIsReadOncePerProxy() {
+        final TicketGrantingTicket t = new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        this.ticketRegistry.addTicket(t);
+        this.ticketRegistry.addTicket(t.grantServiceTicket("stest", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+
+        final ServiceTicket s = (ServiceTicket) this.ticketRegistry.getTicket("stest");
+        assertFalse(s.isExpired());
+        assertEquals(t, s.getGrantingTicket());
+        assertEquals(t.getChainedAuthentications(), s.getGrantingTicket().getChainedAuthentications());
+
+        assertEquals(2, this.ticketRegistry.lookups);
+    }
+
+    public void testProxyChainIsReadInOneCall() {
+        final TicketGrantingTicket t = new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        final ServiceTicket s = t.grantServiceTicket("stest", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        final TicketGrantingTicket p = s.grantTicketGrantingTicket("ptest", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        this.ticketRegistry.addTicket(t);
+        this.ticketRegistry.addTicket(p);
+        this.ticketRegistry.addTicket(p.grantServiceTicket("pstest", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+
+        final ServiceTicket returned = (ServiceTicket) this.ticketRegistry.getTicket("pstest");
+        assertFalse(returned.isExpired());
+        assertEquals(p, returned.getGrantingTicket());
+        assertEquals(1, this.ticketRegistry.bulkLookups);
+
+        t.expire();
+        assertTrue(this.ticketRegistry.getTicket("pstest").isExpired());
+    }
+
+    public void testNearCache() {
+        this.ticketRegistry.setNearCacheTimeToLive(60000);
+        final TicketGrantingTicket t = new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        this.ticketRegistry.addTicket(t);
+        this.ticketRegistry.addTicket(t.grantServiceTicket("stest", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+
+        this.ticketRegistry.getTicket("test");
+        assertFalse(this.ticketRegistry.getTicket("stest").isExpired());
+        assertFalse(this.ticketRegistry.getTicket("stest").isExpired());
+        assertEquals(3, this.ticketRegistry.lookups);
+        assertEquals(2, this.ticketRegistry.getNearCacheHitCount());
+        assertEquals(1.0, this.ticketRegistry.getNearCacheHitRatio(), 0.0);
+
+        this.ticketRegistry.deleteTicket("test");
+        assertNull(this.ticketRegistry.getTicket("stest").getGrantingTicket());
+        assertEquals(1, this.ticketRegistry.getNearCacheMissCount());
+    }
+
+    public void testUpdatesAreWrittenBehind() {
+        this.ticketRegistry.setWriteBehindDelay(60000);
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+
+        final TicketGrantingTicket t = (TicketGrantingTicket) this.ticketRegistry.getTicket("test");
+        t.grantServiceTicket("stest1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        t.grantServiceTicket("stest2", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        assertEquals(0, this.ticketRegistry.updates);
+        assertEquals(1, this.ticketRegistry.getPendingUpdateCount());
+
+        // this node reads its own pending update
+        assertEquals(2, this.ticketRegistry.getTicket("test").getCountOfUses());
+
+        this.ticketRegistry.flush();
+        assertEquals(1, this.ticketRegistry.updates);
+        assertEquals(0, this.ticketRegistry.getPendingUpdateCount());
+    }
+
+    public void testDeletedTicketsAreNotWrittenBack() {
+        this.ticketRegistry.setWriteBehindDelay(60000);
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+
+        ((TicketGrantingTicket) this.ticketRegistry.getTicket("test")).expire();
+        this.ticketRegistry.deleteTicket("test");
+
+        this.ticketRegistry.flush();
+        assertFalse(this.wasTicketUpdated);
+    }
+
+    public void testUpdatesOfADeletedTicketAreNotWrittenBack() {
+        this.ticketRegistry.setWriteBehindDelay(60000);
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+
+        final TicketGrantingTicket t = (TicketGrantingTicket) this.ticketRegistry.getTicket("test");
+        this.ticketRegistry.deleteTicket("test");
+        t.expire();
+
+        this.ticketRegistry.flush();
+        assertFalse(this.wasTicketUpdated);
+        assertNull(this.ticketRegistry.getTicket("test"));
+    }
+
+    public void testDestroyWritesPendingUpdatesAndStopsWritingBehind() throws Exception {
+        this.ticketRegistry.setWriteBehindDelay(60000);
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+        ((TicketGrantingTicket) this.ticketRegistry.getTicket("test")).grantServiceTicket("stest1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+
+        this.ticketRegistry.destroy();
+        assertEquals(1, this.ticketRegistry.updates);
+
+        ((TicketGrantingTicket) this.ticketRegistry.getTicket("test")).grantServiceTicket("stest2", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        assertEquals(2, this.ticketRegistry.updates);
+        assertEquals(0, this.ticketRegistry.getPendingUpdateCount());
+    }
+
+    public void testTicketDeletedDuringFlushIsNotWrittenBack() throws Exception {
+        this.ticketRegistry.setWriteBehindDelay(60000);
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("test", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+        ((TicketGrantingTicket) this.ticketRegistry.getTicket("test")).grantServiceTicket("stest", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        this.ticketRegistry.writing = writing;
+        this.ticketRegistry.written = written;
+
+        final Thread flusher = new Thread() {
+            public void run() {
+                DistributedTicketRegistryTests.this.ticketRegistry.flush();
+            }
+        };
+        flusher.start();
+        writing.await();
+
+        final Thread deleter = new Thread() {
+            public void run() {
+                DistributedTicketRegistryTests.this.ticketRegistry.deleteTicket("test");
+            }
+        };
+        deleter.start();
+        // give the delete the chance to run before the write completes
+        Thread.sleep(100);
+        written.countDown();
+
+        flusher.join();
+        deleter.join();
+        assertNull(this.ticketRegistry.getTicket("test"));
+    }
+
     public void testTicketDoesntExist() {
         assertNull(this.ticketRegistry.getTicket("fdfas"));
     }
     
     protected class TestDistributedTicketRegistry extends AbstractDistributedTicketRegistry {
 
-        private Map<String, Ticket> tickets = new HashMap<String, Ticket>();
+        private Map<String, Ticket> tickets = new ConcurrentHashMap<String, Ticket>();
+
+        private int lookups;
+
+        private int updates;
+
+        private int bulkLookups;
+
+        /** Counted down when an update starts to be written, if set. */
+        private volatile CountDownLatch writing;
+
+        /** Awaited before an update is written, if set. */
+        private volatile CountDownLatch written;
         
         protected void updateTicket(final Ticket ticket) {
             DistributedTicketRegistryTests.this.wasTicketUpdated = true;
+            this.updates++;
+
+            if (this.writing != null) {
+                this.writing.countDown();
+                try {
+                    this.written.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            this.tickets.put(ticket.getId(), ticket);
         }
 
         public void addTicket(final Ticket ticket) {
@@ -104,10 +264,12 @@ public class DistributedTicketRegistryTests extends TestCase {
         }
 
         public boolean deleteTicket(final String ticketId) {
+            evictTicket(ticketId);
             return this.tickets.remove(ticketId) != null;
         }
 
         public Ticket getTicket(final String ticketId) {
+            this.lookups++;
             return getProxiedTicketInstance(this.tickets.get(ticketId));
         }
 
@@ -115,6 +277,11 @@ public class DistributedTicketRegistryTests extends TestCase {
             return this.tickets.values();
         }
 
+        public Map<String, Ticket> getTickets(final Collection<String> ticketIds) {
+            this.bulkLookups++;
+            return super.getTickets(ticketIds);
+        }
+
         @Override
         protected boolean needsCallback() {
             return true;
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.jasig.cas.ticket.support.RememberMeDelegatingExpirationPolicy;
+import org.jasig.cas.ticket.support.ThrottledUseAndTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractTransactionalJUnit4SpringContextTests;
+import static org.junit.Assert.*;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+@ContextConfiguration(locations= {"classpath:jpaTestApplicationContext.xml"})
+public class JpaTicketRegistryTests extends AbstractTransactionalJUnit4SpringContextTests {
+
+    @Autowired(required=true)
+    private JpaTicketRegistry ticketRegistry;
+
+    /**
+     * Adds TGT-1 with ST-1, proxy granting ticket TGT-2 granted from ST-1,
+     * ST-2 granted from TGT-2, and TGT-3 with ST-3.
+     */
+    private void addTickets() {
+        final TicketGrantingTicket root = new TicketGrantingTicketImpl("TGT-1", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        final ServiceTicket serviceTicket = root.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        final TicketGrantingTicket proxyGrantingTicket = serviceTicket.grantTicketGrantingTicket("TGT-2", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+        final TicketGrantingTicket other = new TicketGrantingTicketImpl("TGT-3", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+
+        this.ticketRegistry.addTicket(root);
+        this.ticketRegistry.addTicket(serviceTicket);
+        this.ticketRegistry.addTicket(proxyGrantingTicket);
+        this.ticketRegistry.addTicket(proxyGrantingTicket.grantServiceTicket("ST-2", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        this.ticketRegistry.addTicket(other);
+        this.ticketRegistry.addTicket(other.grantServiceTicket("ST-3", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+    }
+
+    @Test
+    public void testDeletingTicketGrantingTicketDeletesDescendants() {
+        addTickets();
+
+        assertTrue(this.ticketRegistry.deleteTicket("TGT-1"));
+
+        assertNull(this.ticketRegistry.getTicket("TGT-1"));
+        assertNull(this.ticketRegistry.getTicket("ST-1"));
+        assertNull(this.ticketRegistry.getTicket("TGT-2"));
+        assertNull(this.ticketRegistry.getTicket("ST-2"));
+        assertNotNull(this.ticketRegistry.getTicket("TGT-3"));
+        assertEquals(1, this.ticketRegistry.getTicketGrantingTicketCount());
+        assertEquals(1, this.ticketRegistry.getServiceTicketCount());
+    }
+
+    @Test
+    public void testDeletingServiceTicket() {
+        addTickets();
+
+        assertTrue(this.ticketRegistry.deleteTicket("ST-3"));
+        assertFalse(this.ticketRegistry.deleteTicket("ST-3"));
+
+        assertNotNull(this.ticketRegistry.getTicket("TGT-3"));
+        assertEquals(2, this.ticketRegistry.getServiceTicketCount());
+    }
+
+    @Test
+    public void testDeletingSeveralTickets() {
+        addTickets();
+
+        assertEquals(6, this.ticketRegistry.deleteTickets(Arrays.asList("TGT-1", "TGT-3", "ST-3", "TGT-4")));
+
+        assertEquals(0, this.ticketRegistry.getTicketGrantingTicketCount());
+        assertEquals(0, this.ticketRegistry.getServiceTicketCount());
+    }
+
+    @Test
+    public void testUpdatesWrittenBehindJoinTheTransaction() {
+        addTickets();
+        this.ticketRegistry.setWriteBehindDelay(60000);
+        try {
+            ((TicketGrantingTicket) this.ticketRegistry.getTicket("TGT-3")).grantServiceTicket("ST-4", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+            assertEquals(1, this.ticketRegistry.getPendingUpdateCount());
+
+            this.ticketRegistry.flush();
+            assertEquals(0, this.ticketRegistry.getPendingUpdateCount());
+            assertEquals(2, this.ticketRegistry.getTicket("TGT-3").getCountOfUses());
+        } finally {
+            this.ticketRegistry.setWriteBehindDelay(0);
+        }
+    }
+
+    @Test
+    public void testPollingDeletesExpiredServiceTickets() {
+        addTickets();
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) this.ticketRegistry.getTicket("TGT-3");
+        this.ticketRegistry.addTicket(ticketGrantingTicket.grantServiceTicket("ST-4", TestUtils.getService(), new TimeoutExpirationPolicy(-1000), false));
+
+        assertTrue(this.ticketRegistry.pollExpiredTickets(10).isEmpty());
+
+        assertNull(this.ticketRegistry.getTicket("ST-4"));
+        assertNotNull(this.ticketRegistry.getTicket("ST-3"));
+        assertEquals(3, this.ticketRegistry.getServiceTicketCount());
+    }
+
+    @Test
+    public void testPollingChecksTicketsWhosePolicyCannotTellWhenTheyExpire() {
+        final ThrottledUseAndTimeoutExpirationPolicy validPolicy = new ThrottledUseAndTimeoutExpirationPolicy();
+        validPolicy.setTimeToKillInMilliSeconds(60000);
+        final RememberMeDelegatingExpirationPolicy policy = new RememberMeDelegatingExpirationPolicy();
+        policy.setRememberMeExpirationPolicy(new TimeoutExpirationPolicy(60000));
+        policy.setSessionExpirationPolicy(validPolicy);
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("TGT-4", TestUtils.getAuthentication(), policy));
+
+        assertTrue(this.ticketRegistry.pollExpiredTickets(10).isEmpty());
+
+        assertNotNull(this.ticketRegistry.getTicket("TGT-4"));
+        // left to the scan rather than stored as due
+        assertEquals(1, this.simpleJdbcTemplate.queryForInt("select count(*) from TICKETGRANTINGTICKET where ID = 'TGT-4' and EXPIRES_AT is null"));
+    }
+
+    @Test
+    public void testPollingReturnsExpiredTicketGrantingTickets() {
+        addTickets();
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("TGT-4", TestUtils.getAuthentication(), new TimeoutExpirationPolicy(-1000)));
+
+        final List<Ticket> expired = this.ticketRegistry.pollExpiredTickets(10);
+
+        assertEquals(1, expired.size());
+        assertEquals("TGT-4", expired.get(0).getId());
+        assertEquals(4, this.ticketRegistry.getTicketGrantingTicketCount());
+    }
+
+    @Test
+    public void testPollingByShardReturnsTheTicketsOfTheShard() {
+        this.ticketRegistry.setRecheckIntervalInMilliSeconds(0);
+        final ThrottledUseAndTimeoutExpirationPolicy customPolicy = new ThrottledUseAndTimeoutExpirationPolicy();
+        customPolicy.setTimeToKillInMilliSeconds(-1000);
+        for (int i = 0; i < 10; i++) {
+            this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("TGT-" + i, TestUtils.getAuthentication(), i % 2 == 0 ? new TimeoutExpirationPolicy(-1000) : customPolicy));
+        }
+
+        final List<Ticket> expired = new ArrayList<Ticket>();
+        for (int shard = 0; shard < 3; shard++) {
+            for (final Ticket ticket : this.ticketRegistry.pollExpiredTickets(10, shard, 3)) {
+                assertEquals(shard, (ticket.getId().hashCode() & Integer.MAX_VALUE) % 3);
+                expired.add(ticket);
+            }
+        }
+        assertEquals(10, expired.size());
+    }
+
+    @Test
+    public void testPollingChecksTicketsWithCustomPolicies() {
+        this.ticketRegistry.setRecheckIntervalInMilliSeconds(0);
+        addTickets();
+        final ThrottledUseAndTimeoutExpirationPolicy expiredPolicy = new ThrottledUseAndTimeoutExpirationPolicy();
+        expiredPolicy.setTimeToKillInMilliSeconds(-1000);
+        final ThrottledUseAndTimeoutExpirationPolicy validPolicy = new ThrottledUseAndTimeoutExpirationPolicy();
+        validPolicy.setTimeToKillInMilliSeconds(60000);
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("TGT-4", TestUtils.getAuthentication(), expiredPolicy));
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl("TGT-5", TestUtils.getAuthentication(), validPolicy));
+
+        final List<Ticket> expired = this.ticketRegistry.pollExpiredTickets(10);
+
+        assertEquals(1, expired.size());
+        assertEquals("TGT-4", expired.get(0).getId());
+        this.ticketRegistry.deleteTicket("TGT-4");
+        assertTrue(this.ticketRegistry.pollExpiredTickets(10).isEmpty());
+    }
+}
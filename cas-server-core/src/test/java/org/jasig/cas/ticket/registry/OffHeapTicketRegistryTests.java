@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.support.CompactTicketSerializer;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class OffHeapTicketRegistryTests extends AbstractTicketRegistryTests {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    public TicketRegistry getNewTicketRegistry() throws Exception {
+        return new OffHeapTicketRegistry();
+    }
+
+    private static TicketGrantingTicket newTicketGrantingTicket(final String id) {
+        return new TicketGrantingTicketImpl(id, TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+    }
+
+    public void testUpdatesAreWrittenBack() {
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry();
+        registry.addTicket(newTicketGrantingTicket("TGT-1"));
+
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) registry.getTicket("TGT-1");
+        final ServiceTicket serviceTicket = ticketGrantingTicket.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        registry.addTicket(serviceTicket);
+        ((TicketGrantingTicket) registry.getTicket("TGT-1", TicketGrantingTicket.class)).expire();
+
+        assertEquals(1, registry.getTicket("TGT-1").getCountOfUses());
+        assertTrue(registry.getTicket("ST-1").isExpired());
+    }
+
+    public void testServiceTicketIsValidatedOnceAcrossCopies() {
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry();
+        registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) registry.getTicket("TGT-1");
+        registry.addTicket(ticketGrantingTicket.grantServiceTicket("ST-1", TestUtils.getService(), new MultiTimeUseOrTimeoutExpirationPolicy(1, 60000), false));
+
+        final ServiceTicket first = (ServiceTicket) registry.getTicket("ST-1");
+        final ServiceTicket second = (ServiceTicket) registry.getTicket("ST-1");
+
+        assertTrue(first.isValidFor(TestUtils.getService()));
+        assertFalse(second.isValidFor(TestUtils.getService()));
+        assertEquals(1, registry.getTicket("ST-1").getCountOfUses());
+    }
+
+    public void testServiceTicketIsValidatedOnceWhenWritingBehind() {
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry();
+        registry.setWriteBehindDelay(60000);
+        registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) registry.getTicket("TGT-1");
+        registry.addTicket(ticketGrantingTicket.grantServiceTicket("ST-1", TestUtils.getService(), new MultiTimeUseOrTimeoutExpirationPolicy(2, 60000), false));
+
+        final ServiceTicket first = (ServiceTicket) registry.getTicket("ST-1");
+        final ServiceTicket second = (ServiceTicket) registry.getTicket("ST-1");
+
+        assertTrue(first.isValidFor(TestUtils.getService()));
+        assertFalse(second.isValidFor(TestUtils.getService()));
+        assertTrue(((ServiceTicket) registry.getTicket("ST-1")).isValidFor(TestUtils.getService()));
+        registry.flush();
+        assertEquals(2, registry.getTicket("ST-1").getCountOfUses());
+    }
+
+    public void testServiceTicketsAreRelinkedToTheirParent() {
+        final CompactTicketSerializer ticketSerializer = new CompactTicketSerializer();
+        ticketSerializer.setServiceTicketParentsByReference(true);
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry();
+        registry.setTicketSerializer(ticketSerializer);
+        registry.addTicket(newTicketGrantingTicket("TGT-1"));
+
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) registry.getTicket("TGT-1");
+        registry.addTicket(ticketGrantingTicket.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        final ServiceTicket serviceTicket = (ServiceTicket) registry.getTicket("ST-1");
+
+        assertFalse(serviceTicket.isExpired());
+        assertEquals(TestUtils.getPrincipal(), serviceTicket.getGrantingTicket().getAuthentication().getPrincipal());
+
+        registry.deleteTicket("TGT-1");
+        assertTrue(registry.getTicket("ST-1").isExpired());
+    }
+
+    public void testServiceTicketsAreRelinkedFromTheNearCache() {
+        final CompactTicketSerializer ticketSerializer = new CompactTicketSerializer();
+        ticketSerializer.setServiceTicketParentsByReference(true);
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry();
+        registry.setTicketSerializer(ticketSerializer);
+        registry.setNearCacheTimeToLive(60000);
+        registry.addTicket(newTicketGrantingTicket("TGT-1"));
+
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) registry.getTicket("TGT-1");
+        registry.addTicket(ticketGrantingTicket.grantServiceTicket("ST-1", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        final long hits = registry.getNearCacheHitCount();
+
+        assertFalse(registry.getTicket("ST-1").isExpired());
+        assertEquals(hits + 1, registry.getNearCacheHitCount());
+    }
+
+    public void testSlabsAreReclaimedAsTicketsAreDeleted() {
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry(1, SLAB_SIZE, 64 * SLAB_SIZE);
+
+        for (int i = 0; i < 2000; i++) {
+            registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        final long allocated = registry.getAllocatedMemory();
+        assertTrue(allocated > 4 * SLAB_SIZE);
+
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(registry.deleteTicket("TGT-" + i));
+        }
+
+        // the active slab and one spare remain
+        assertTrue(registry.getAllocatedMemory() <= 2 * SLAB_SIZE);
+        assertEquals(0, registry.getTickets().size());
+    }
+
+    public void testCompactionKeepsLiveTickets() {
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry(1, SLAB_SIZE, 8 * SLAB_SIZE);
+
+        // far more writes than fit in eight slabs, but only 100 live tickets at a time
+        for (int i = 0; i < 5000; i++) {
+            registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+            if (i >= 100) {
+                assertTrue(registry.deleteTicket("TGT-" + (i - 100)));
+            }
+            if (i % 7 == 0) {
+                // replacing a live ticket leaves a dead record behind
+                registry.addTicket(newTicketGrantingTicket("TGT-" + (i - i % 50)));
+            }
+        }
+
+        assertEquals(100, registry.getTickets().size());
+        for (int i = 4900; i < 5000; i++) {
+            assertNotNull(registry.getTicket("TGT-" + i));
+        }
+        assertEquals(100, registry.getTicketGrantingTicketCount());
+    }
+
+    public void testDeadRecordsAreReclaimedBeforeTheRegistryIsFull() {
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry(1, SLAB_SIZE, 2 * SLAB_SIZE);
+        int count = 0;
+
+        try {
+            while (true) {
+                registry.addTicket(newTicketGrantingTicket("TGT-" + (10000 + count)));
+                count++;
+            }
+        } catch (final IllegalStateException e) {
+            // full
+        }
+
+        // every slab is now about half dead, too live to be compacted on release
+        for (int i = 0; i < count; i += 2) {
+            assertTrue(registry.deleteTicket("TGT-" + (10000 + i)));
+        }
+        for (int i = 0; i < count / 2 - 10; i++) {
+            registry.addTicket(newTicketGrantingTicket("TGT-" + (20000 + i)));
+        }
+
+        for (int i = 1; i < count; i += 2) {
+            assertNotNull(registry.getTicket("TGT-" + (10000 + i)));
+        }
+        for (int i = 0; i < count / 2 - 10; i++) {
+            assertNotNull(registry.getTicket("TGT-" + (20000 + i)));
+        }
+        assertEquals(count - (count + 1) / 2 + count / 2 - 10, registry.getTickets().size());
+    }
+
+    public void testFullRegistryRejectsTickets() {
+        final OffHeapTicketRegistry registry = new OffHeapTicketRegistry(1, SLAB_SIZE, 2 * SLAB_SIZE);
+
+        try {
+            for (int i = 0; i < 10000; i++) {
+                registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+            }
+            fail("IllegalStateException expected.");
+        } catch (final IllegalStateException e) {
+            assertNotNull(registry.getTicket("TGT-0"));
+        }
+    }
+}
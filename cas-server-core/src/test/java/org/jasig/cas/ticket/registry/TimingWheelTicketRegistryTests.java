@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.List;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.jasig.cas.ticket.registry.support.DefaultTicketRegistryCleaner;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class TimingWheelTicketRegistryTests extends AbstractTicketRegistryTests {
+
+    public TicketRegistry getNewTicketRegistry() throws Exception {
+        return new TimingWheelTicketRegistry();
+    }
+
+    private TimingWheelTicketRegistry newRegistry() {
+        final TimingWheelTicketRegistry registry = new TimingWheelTicketRegistry();
+        registry.setTickInMilliSeconds(10);
+        return registry;
+    }
+
+    public void testNeverExpiringTicketsAreNotIndexed() {
+        final TimingWheelTicketRegistry registry = newRegistry();
+        registry.addTicket(new TicketGrantingTicketImpl("TGT", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+
+        assertEquals(0, registry.getScheduledTicketCount());
+        assertTrue(registry.pollExpiredTickets(10).isEmpty());
+    }
+
+    public void testOnlyDueTicketsAreReturned() throws Exception {
+        final TimingWheelTicketRegistry registry = newRegistry();
+        registry.addTicket(new TicketGrantingTicketImpl("short", TestUtils.getAuthentication(), new TimeoutExpirationPolicy(20)));
+        registry.addTicket(new TicketGrantingTicketImpl("long", TestUtils.getAuthentication(), new TimeoutExpirationPolicy(60000)));
+
+        assertEquals(2, registry.getScheduledTicketCount());
+        assertTrue(registry.pollExpiredTickets(10).isEmpty());
+
+        Thread.sleep(50);
+
+        final List<Ticket> expired = registry.pollExpiredTickets(10);
+        assertEquals(1, expired.size());
+        assertEquals("short", expired.get(0).getId());
+        assertEquals(1, registry.getScheduledTicketCount());
+    }
+
+    public void testPollIsBounded() throws Exception {
+        final TimingWheelTicketRegistry registry = newRegistry();
+        for (int i = 0; i < 5; i++) {
+            registry.addTicket(new TicketGrantingTicketImpl("TGT" + i, TestUtils.getAuthentication(), new TimeoutExpirationPolicy(10)));
+        }
+
+        Thread.sleep(30);
+
+        assertEquals(2, registry.pollExpiredTickets(2).size());
+        assertEquals(2, registry.pollExpiredTickets(2).size());
+        assertEquals(1, registry.pollExpiredTickets(2).size());
+        assertTrue(registry.pollExpiredTickets(2).isEmpty());
+    }
+
+    public void testUsedTicketIsRescheduled() throws Exception {
+        final TimingWheelTicketRegistry registry = newRegistry();
+        final TicketGrantingTicket ticket = new TicketGrantingTicketImpl("TGT", TestUtils.getAuthentication(), new TimeoutExpirationPolicy(100));
+        registry.addTicket(ticket);
+
+        Thread.sleep(60);
+        ticket.grantServiceTicket("ST", TestUtils.getService(), new NeverExpiresExpirationPolicy(), false);
+        Thread.sleep(60);
+
+        assertTrue(registry.pollExpiredTickets(10).isEmpty());
+        assertEquals(1, registry.getScheduledTicketCount());
+    }
+
+    public void testDeletedTicketIsUnscheduled() {
+        final TimingWheelTicketRegistry registry = newRegistry();
+        registry.addTicket(new TicketGrantingTicketImpl("TGT", TestUtils.getAuthentication(), new TimeoutExpirationPolicy(10)));
+
+        assertTrue(registry.deleteTicket("TGT"));
+        assertEquals(0, registry.getScheduledTicketCount());
+    }
+
+    public void testCleanerUsesIndex() throws Exception {
+        final TimingWheelTicketRegistry registry = newRegistry();
+        final DefaultTicketRegistryCleaner cleaner = new DefaultTicketRegistryCleaner();
+        cleaner.setTicketRegistry(registry);
+        cleaner.setBatchSize(2);
+
+        for (int i = 0; i < 5; i++) {
+            registry.addTicket(new TicketGrantingTicketImpl("TGT" + i, TestUtils.getAuthentication(), new TimeoutExpirationPolicy(10)));
+        }
+        registry.addTicket(new TicketGrantingTicketImpl("valid", TestUtils.getAuthentication(), new TimeoutExpirationPolicy(60000)));
+
+        Thread.sleep(30);
+        cleaner.clean();
+
+        assertEquals(1, registry.getTickets().size());
+        assertNotNull(registry.getTicket("valid"));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.MutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.AbstractTicket;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class CompactTicketSerializerTests extends TestCase {
+
+    private final CompactTicketSerializer serializer = new CompactTicketSerializer();
+
+    private final ExpirationPolicy grantingTicketPolicy = new TimeoutExpirationPolicy(7200000);
+
+    private final ExpirationPolicy serviceTicketPolicy = new MultiTimeUseOrTimeoutExpirationPolicy(1, 10000);
+
+    private ServiceTicket newServiceTicket() {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final List<Object> memberOf = new ArrayList<Object>();
+        memberOf.add("staff");
+        memberOf.add("faculty");
+        attributes.put("memberOf", memberOf);
+        attributes.put("mail", "test@example.com");
+        attributes.put("lastLogin", new Date(1000));
+        final Authentication authentication = new ImmutableAuthentication(new SimplePrincipal("test", attributes));
+
+        final TicketGrantingTicket ticketGrantingTicket = new TicketGrantingTicketImpl("TGT-1", authentication, this.grantingTicketPolicy);
+        ticketGrantingTicket.grantServiceTicket("ST-1", new SimpleWebApplicationServiceImpl("https://app.example.com/"), this.serviceTicketPolicy, false);
+        return ticketGrantingTicket.grantServiceTicket("ST-2", new SimpleWebApplicationServiceImpl("https://app.example.com/"), this.serviceTicketPolicy, true);
+    }
+
+    private static ExpirationPolicy policyOf(final Ticket ticket) {
+        return ((AbstractTicket) ticket).getExpirationPolicy();
+    }
+
+    public void testServiceTicketRoundTrip() {
+        final ServiceTicket serviceTicket = newServiceTicket();
+
+        final ServiceTicket copy = (ServiceTicket) this.serializer.deserialize(this.serializer.serialize(serviceTicket));
+
+        assertEquals(serviceTicket, copy);
+        assertEquals(serviceTicket.getCreationTime(), copy.getCreationTime());
+        assertEquals(((AbstractTicket) serviceTicket).getLastTimeUsed(), ((AbstractTicket) copy).getLastTimeUsed());
+        assertEquals(serviceTicket.getCountOfUses(), copy.getCountOfUses());
+        assertTrue(copy.isFromNewLogin());
+        assertEquals(serviceTicket.getService(), copy.getService());
+        assertFalse(copy.isExpired());
+
+        final TicketGrantingTicket ticketGrantingTicket = copy.getGrantingTicket();
+        assertEquals("TGT-1", ticketGrantingTicket.getId());
+        assertEquals(2, ticketGrantingTicket.getCountOfUses());
+        assertEquals(serviceTicket.getGrantingTicket().getAuthentication(), ticketGrantingTicket.getAuthentication());
+        assertEquals(serviceTicket.getGrantingTicket().getAuthentication().getAuthenticatedDate(),
+            ticketGrantingTicket.getAuthentication().getAuthenticatedDate());
+
+        final Map<String, Object> attributes = ticketGrantingTicket.getAuthentication().getPrincipal().getAttributes();
+        assertEquals(serviceTicket.getGrantingTicket().getAuthentication().getPrincipal().getAttributes(), attributes);
+        assertEquals(new Date(1000), attributes.get("lastLogin"));
+
+        // the granted services are still logged out of
+        ticketGrantingTicket.expire();
+        assertTrue(copy.isExpired());
+    }
+
+    public void testMutableAuthenticationWithoutAttributesRoundTrip() {
+        final MutableAuthentication authentication = new MutableAuthentication(new SimplePrincipal("test"), new Date(1000));
+        final TicketGrantingTicket ticketGrantingTicket = new TicketGrantingTicketImpl("TGT-1", authentication, this.grantingTicketPolicy);
+
+        final TicketGrantingTicket copy = (TicketGrantingTicket) this.serializer.deserialize(this.serializer.serialize(ticketGrantingTicket));
+
+        assertEquals(authentication.getPrincipal(), copy.getAuthentication().getPrincipal());
+        assertTrue(copy.getAuthentication().getAttributes().isEmpty());
+        assertEquals(new Date(1000), copy.getAuthentication().getAuthenticatedDate());
+    }
+
+    public void testCompactFormIsSmallerThanJavaSerialization() {
+        final ServiceTicket serviceTicket = newServiceTicket();
+
+        final int compact = this.serializer.serialize(serviceTicket).length;
+        final int java = new JavaTicketSerializer().serialize(serviceTicket).length;
+
+        assertTrue("compact " + compact + " bytes, java " + java + " bytes", compact * 3 < java);
+    }
+
+    public void testNamedPoliciesAreShared() {
+        final Map<String, ExpirationPolicy> policies = new HashMap<String, ExpirationPolicy>();
+        policies.put("grantingTicketExpirationPolicy", this.grantingTicketPolicy);
+        policies.put("serviceTicketExpirationPolicy", this.serviceTicketPolicy);
+        this.serializer.setExpirationPolicies(policies);
+
+        final ServiceTicket copy = (ServiceTicket) this.serializer.deserialize(this.serializer.serialize(newServiceTicket()));
+
+        assertSame(this.serviceTicketPolicy, policyOf(copy));
+        assertSame(this.grantingTicketPolicy, policyOf(copy.getGrantingTicket()));
+    }
+
+    public void testBundledPoliciesAreInterned() {
+        final ServiceTicket first = (ServiceTicket) this.serializer.deserialize(this.serializer.serialize(newServiceTicket()));
+        final ServiceTicket second = (ServiceTicket) this.serializer.deserialize(this.serializer.serialize(newServiceTicket()));
+
+        assertNotSame(this.serviceTicketPolicy, policyOf(first));
+        assertSame(policyOf(first), policyOf(second));
+    }
+
+    public void testParentsCanBeStoredByReference() {
+        final ServiceTicket serviceTicket = newServiceTicket();
+        final int embedded = this.serializer.serialize(serviceTicket).length;
+        this.serializer.setServiceTicketParentsByReference(true);
+
+        final byte[] data = this.serializer.serialize(serviceTicket);
+        final ServiceTicket copy = (ServiceTicket) this.serializer.deserialize(data);
+
+        assertTrue(data.length < embedded);
+        assertEquals("TGT-1", this.serializer.getGrantingTicketReference(copy));
+        // until the parent is relinked the ticket cannot be used
+        assertTrue(copy.isExpired());
+
+        this.serializer.setGrantingTicket(copy, serviceTicket.getGrantingTicket());
+        assertNull(this.serializer.getGrantingTicketReference(copy));
+        assertFalse(copy.isExpired());
+    }
+
+    public void testJavaSerializedTicketsAreRead() {
+        final ServiceTicket serviceTicket = newServiceTicket();
+
+        assertEquals(serviceTicket, this.serializer.deserialize(new JavaTicketSerializer().serialize(serviceTicket)));
+    }
+
+    public void testTruncatedDataIsRejected() {
+        final byte[] data = this.serializer.serialize(newServiceTicket());
+        final byte[] truncated = new byte[data.length / 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        try {
+            this.serializer.deserialize(truncated);
+            fail("IllegalStateException expected.");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+}
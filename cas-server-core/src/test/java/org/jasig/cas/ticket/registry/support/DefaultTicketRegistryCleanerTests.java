@@ -29,4 +29,13 @@ public class DefaultTicketRegistryCleanerTests extends
     public TicketRegistry getNewTicketRegistry() {
         return new DefaultTicketRegistry();
     }
+
+    public void testZeroBatchSizeIsRejected() {
+        try {
+            new DefaultTicketRegistryCleaner().setBatchSize(0);
+            fail("IllegalArgumentException expected.");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry.support;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.AbstractRegistryCleanerTests;
+import org.jasig.cas.ticket.registry.DefaultTicketRegistry;
+import org.jasig.cas.ticket.registry.RegistryCleaner;
+import org.jasig.cas.ticket.registry.ShardedExpirationIndexedTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.registry.TimingWheelTicketRegistry;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class PartitionedTicketRegistryCleanerTests extends AbstractRegistryCleanerTests {
+
+    private static final long MILLISECOND = 1000000L;
+
+    public RegistryCleaner getNewRegistryCleaner(final TicketRegistry ticketRegistry) {
+        final PartitionedTicketRegistryCleaner cleaner = new PartitionedTicketRegistryCleaner();
+        cleaner.setTicketRegistry(ticketRegistry);
+        cleaner.setShards(4);
+        cleaner.setWorkers(3);
+        cleaner.setBatchSize(2);
+
+        return cleaner;
+    }
+
+    public TicketRegistry getNewTicketRegistry() {
+        return new DefaultTicketRegistry();
+    }
+
+    public void testShardsLeasedElsewhereAreSkipped() {
+        final TicketRegistry registry = new DefaultTicketRegistry();
+        final PartitionedTicketRegistryCleaner cleaner = new PartitionedTicketRegistryCleaner();
+        final List<LockingStrategy> locks = new ArrayList<LockingStrategy>();
+        final int[] releases = new int[1];
+        locks.add(new LockingStrategy() {
+            public boolean acquire() {
+                return true;
+            }
+
+            public void release() {
+                releases[0]++;
+            }
+        });
+        locks.add(new LockingStrategy() {
+            public boolean acquire() {
+                return false;
+            }
+
+            public void release() {
+                fail("Released a shard that was not leased.");
+            }
+        });
+        cleaner.setTicketRegistry(registry);
+        cleaner.setShardLocks(locks);
+
+        for (int i = 0; i < 20; i++) {
+            final TicketGrantingTicket ticket = new TicketGrantingTicketImpl("test" + i, TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+            ticket.expire();
+            registry.addTicket(ticket);
+        }
+
+        cleaner.clean();
+
+        assertEquals(1, releases[0]);
+        for (int i = 0; i < 20; i++) {
+            final String ticketId = "test" + i;
+            assertEquals((ticketId.hashCode() & Integer.MAX_VALUE) % 2 == 1, registry.getTicket(ticketId) != null);
+        }
+    }
+
+    public void testIndexedRegistryLeasesTheFirstShardOnly() throws Exception {
+        final TimingWheelTicketRegistry registry = new TimingWheelTicketRegistry();
+        final PartitionedTicketRegistryCleaner cleaner = new PartitionedTicketRegistryCleaner();
+        final List<LockingStrategy> locks = new ArrayList<LockingStrategy>();
+        final int[] releases = new int[1];
+        locks.add(new LockingStrategy() {
+            public boolean acquire() {
+                return true;
+            }
+
+            public void release() {
+                releases[0]++;
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            locks.add(new LockingStrategy() {
+                public boolean acquire() {
+                    fail("Leased a shard the indexed registry does not use.");
+                    return false;
+                }
+
+                public void release() {
+                    fail("Released a shard that was not leased.");
+                }
+            });
+        }
+        registry.setTickInMilliSeconds(10);
+        cleaner.setTicketRegistry(registry);
+        cleaner.setShardLocks(locks);
+
+        for (int i = 0; i < 5; i++) {
+            registry.addTicket(new TicketGrantingTicketImpl("test" + i, TestUtils.getAuthentication(), new TimeoutExpirationPolicy(10)));
+        }
+        Thread.sleep(30);
+
+        cleaner.clean();
+
+        assertEquals(1, releases[0]);
+        assertTrue(registry.getTickets().isEmpty());
+    }
+
+    public void testShardedRegistryIsPolledByLeasedShard() {
+        final ShardedRegistry registry = new ShardedRegistry();
+        final PartitionedTicketRegistryCleaner cleaner = new PartitionedTicketRegistryCleaner();
+        final List<LockingStrategy> locks = new ArrayList<LockingStrategy>();
+        for (int i = 0; i < 3; i++) {
+            final boolean free = i != 1;
+            locks.add(new LockingStrategy() {
+                public boolean acquire() {
+                    return free;
+                }
+
+                public void release() {
+                    // nothing to do
+                }
+            });
+        }
+        cleaner.setTicketRegistry(registry);
+        cleaner.setShardLocks(locks);
+
+        for (int i = 0; i < 30; i++) {
+            final TicketGrantingTicket ticket = new TicketGrantingTicketImpl("test" + i, TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+            ticket.expire();
+            registry.addTicket(ticket);
+        }
+
+        cleaner.clean();
+
+        assertEquals(Arrays.asList(Integer.valueOf(0), Integer.valueOf(2)), new ArrayList<Integer>(new TreeSet<Integer>(registry.polledShards)));
+        for (int i = 0; i < 30; i++) {
+            final String ticketId = "test" + i;
+            assertEquals((ticketId.hashCode() & Integer.MAX_VALUE) % 3 == 1, registry.getTicket(ticketId) != null);
+        }
+    }
+
+    public void testWalkWaitsForTheWorkers() throws Exception {
+        final CountDownLatch removing = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final AtomicInteger walked = new AtomicInteger();
+        final TicketRegistry tickets = new DefaultTicketRegistry();
+        final TicketRegistry registry = new DelegatingRegistry(tickets) {
+            public boolean deleteTicket(final String ticketId) {
+                removing.countDown();
+                try {
+                    resume.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.deleteTicket(ticketId);
+            }
+
+            public Collection<Ticket> getTickets() {
+                final Collection<Ticket> all = super.getTickets();
+                return new AbstractCollection<Ticket>() {
+                    public Iterator<Ticket> iterator() {
+                        final Iterator<Ticket> iterator = all.iterator();
+                        return new Iterator<Ticket>() {
+                            public boolean hasNext() {
+                                return iterator.hasNext();
+                            }
+
+                            public Ticket next() {
+                                walked.incrementAndGet();
+                                return iterator.next();
+                            }
+
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    public int size() {
+                        return all.size();
+                    }
+                };
+            }
+        };
+        final PartitionedTicketRegistryCleaner cleaner = new PartitionedTicketRegistryCleaner();
+        cleaner.setTicketRegistry(registry);
+        cleaner.setShards(1);
+        cleaner.setWorkers(1);
+        cleaner.setBatchSize(1);
+
+        for (int i = 0; i < 10; i++) {
+            final TicketGrantingTicket ticket = new TicketGrantingTicketImpl("test" + i, TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+            ticket.expire();
+            tickets.addTicket(ticket);
+        }
+
+        final Thread thread = new Thread() {
+            public void run() {
+                cleaner.clean();
+            }
+        };
+        thread.start();
+        assertTrue(removing.await(10, TimeUnit.SECONDS));
+        // give the walk time to run ahead if it could
+        Thread.sleep(100);
+
+        // the batch being removed, one waiting and one waiting to be submitted
+        assertTrue(walked.get() <= 3);
+        resume.countDown();
+        thread.join(10000);
+        assertTrue(tickets.getTickets().isEmpty());
+    }
+
+    public void testZeroBatchSizeIsRejected() {
+        try {
+            new PartitionedTicketRegistryCleaner().setBatchSize(0);
+            fail("IllegalArgumentException expected.");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testPacedRemovalsAreSpaced() {
+        final PartitionedTicketRegistryCleaner.Pace pace = new PartitionedTicketRegistryCleaner.Pace(20, 0);
+
+        assertEquals(0, pace.reserve(1, 0));
+        assertEquals(MILLISECOND * 50, pace.reserve(1, 0));
+        assertEquals(MILLISECOND * 90, pace.reserve(2, MILLISECOND * 10));
+        assertEquals(MILLISECOND * 50, pace.reserve(1, MILLISECOND * 150));
+        // idle since the last batch, so the next one starts right away
+        assertEquals(0, pace.reserve(1, MILLISECOND * 1000));
+    }
+
+    public void testUnpacedRemovalsDoNotWait() {
+        final PartitionedTicketRegistryCleaner.Pace pace = new PartitionedTicketRegistryCleaner.Pace(0, 0);
+
+        assertEquals(0, pace.reserve(1000, 0));
+        assertEquals(0, pace.reserve(1000, 0));
+    }
+
+    public void testPacedCleanerRemovesEveryTicket() {
+        final TicketRegistry registry = new DefaultTicketRegistry();
+        final PartitionedTicketRegistryCleaner cleaner = new PartitionedTicketRegistryCleaner();
+        cleaner.setTicketRegistry(registry);
+        cleaner.setBatchSize(1);
+        cleaner.setMaxRemovalsPerSecond(1000);
+
+        for (int i = 0; i < 10; i++) {
+            final TicketGrantingTicket ticket = new TicketGrantingTicketImpl("test" + i, TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy());
+            ticket.expire();
+            registry.addTicket(ticket);
+        }
+
+        cleaner.clean();
+
+        assertTrue(registry.getTickets().isEmpty());
+    }
+
+    private static class DelegatingRegistry implements TicketRegistry {
+
+        private final TicketRegistry ticketRegistry;
+
+        protected DelegatingRegistry(final TicketRegistry ticketRegistry) {
+            this.ticketRegistry = ticketRegistry;
+        }
+
+        public void addTicket(final Ticket ticket) {
+            this.ticketRegistry.addTicket(ticket);
+        }
+
+        public Ticket getTicket(final String ticketId, final Class<? extends Ticket> clazz) {
+            return this.ticketRegistry.getTicket(ticketId, clazz);
+        }
+
+        public Ticket getTicket(final String ticketId) {
+            return this.ticketRegistry.getTicket(ticketId);
+        }
+
+        public boolean deleteTicket(final String ticketId) {
+            return this.ticketRegistry.deleteTicket(ticketId);
+        }
+
+        public Collection<Ticket> getTickets() {
+            return this.ticketRegistry.getTickets();
+        }
+    }
+
+    /**
+     * Returns the expired tickets of the shard polled, recording which shards
+     * were polled.
+     */
+    private static final class ShardedRegistry extends DelegatingRegistry implements ShardedExpirationIndexedTicketRegistry {
+
+        private final List<Integer> polledShards = Collections.synchronizedList(new ArrayList<Integer>());
+
+        private ShardedRegistry() {
+            super(new DefaultTicketRegistry());
+        }
+
+        public List<Ticket> pollExpiredTickets(final int maxTickets) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<Ticket> pollExpiredTickets(final int maxTickets, final int shard, final int shards) {
+            this.polledShards.add(Integer.valueOf(shard));
+            final List<Ticket> expired = new ArrayList<Ticket>();
+            for (final Ticket ticket : getTickets()) {
+                if (expired.size() < maxTickets && ticket.isExpired() && (ticket.getId().hashCode() & Integer.MAX_VALUE) % shards == shard) {
+                    expired.add(ticket);
+                }
+            }
+            return expired;
+        }
+    }
+}
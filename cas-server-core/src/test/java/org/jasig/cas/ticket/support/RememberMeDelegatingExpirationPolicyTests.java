@@ -9,6 +9,7 @@ import org.jasig.cas.TestUtils;
 import org.jasig.cas.authentication.MutableAuthentication;
 import org.jasig.cas.authentication.principal.RememberMeCredentials;
 import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
 
 import junit.framework.TestCase;
 
@@ -48,5 +49,12 @@ public final class RememberMeDelegatingExpirationPolicyTests extends TestCase {
         assertFalse(t.isExpired());
         
     }
+
+    public void testExpirationTimeIsUnknownWithoutTimeBasedDelegate() {
+        this.p.setSessionExpirationPolicy(new ThrottledUseAndTimeoutExpirationPolicy());
+        final TicketGrantingTicketImpl t = new TicketGrantingTicketImpl("111", new MutableAuthentication(TestUtils.getPrincipal()), this.p);
+
+        assertEquals(TimeBasedExpirationPolicy.EXPIRATION_TIME_UNKNOWN, this.p.getExpirationTime(t));
+    }
     
 }
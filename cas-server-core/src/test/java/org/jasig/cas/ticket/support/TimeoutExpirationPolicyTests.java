@@ -9,6 +9,7 @@ import org.jasig.cas.TestUtils;
 import org.jasig.cas.ticket.ExpirationPolicy;
 import org.jasig.cas.ticket.Ticket;
 import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.TimeBasedExpirationPolicy;
 
 import junit.framework.TestCase;
 
@@ -51,4 +52,9 @@ public class TimeoutExpirationPolicyTests extends TestCase {
             fail(e.getMessage());
         }
     }
+
+    public void testExpirationTimeIsLastUsePlusTimeout() {
+        final TicketGrantingTicketImpl t = (TicketGrantingTicketImpl) this.ticket;
+        assertEquals(t.getLastTimeUsed() + TIMEOUT, ((TimeBasedExpirationPolicy) this.expirationPolicy).getExpirationTime(t));
+    }
 }
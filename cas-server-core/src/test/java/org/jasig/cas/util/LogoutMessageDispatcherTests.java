@@ -0,0 +1,253 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.uportal.org/license.html
+ */
+package org.jasig.cas.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.services.DefaultServicesManagerImpl;
+import org.jasig.cas.services.InMemoryServiceRegistryDaoImpl;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.RegisteredServiceImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class LogoutMessageDispatcherTests extends TestCase {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    private final AtomicInteger responseCode = new AtomicInteger(200);
+
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+    private final LogoutMessageDispatcher dispatcher = new LogoutMessageDispatcher() {
+        protected int send(final String url, final String message) throws IOException {
+            messages.add(message);
+            final int current = inFlight.incrementAndGet();
+            synchronized (maxInFlight) {
+                maxInFlight.set(Math.max(maxInFlight.get(), current));
+            }
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                throw new IOException("interrupted");
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            if (failuresLeft.getAndDecrement() > 0) {
+                throw new IOException("unavailable");
+            }
+            return responseCode.get();
+        }
+    };
+
+    protected void setUp() throws Exception {
+        this.dispatcher.setThreads(8);
+        this.dispatcher.setMaxConcurrentRequestsPerHost(2);
+        this.dispatcher.setInitialRetryDelay(1);
+        this.dispatcher.afterPropertiesSet();
+    }
+
+    protected void tearDown() throws Exception {
+        this.dispatcher.destroy();
+    }
+
+    private void awaitCompletion() throws InterruptedException {
+        for (int i = 0; i < 500 && this.dispatcher.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, this.dispatcher.getPendingCount());
+    }
+
+    public void testDuplicateMessagesAreSentOnce() throws Exception {
+        assertTrue(this.dispatcher.dispatch("https://app.example.com/logout", "message"));
+        assertTrue(this.dispatcher.dispatch("https://app.example.com/logout", "message"));
+        this.release.countDown();
+        awaitCompletion();
+
+        assertEquals(1, this.dispatcher.getSentCount());
+        assertEquals(1, this.dispatcher.getDuplicateCount());
+    }
+
+    public void testLogoutRequestsForTheSameSessionAreSentOnce() throws Exception {
+        assertTrue(this.dispatcher.dispatch("https://app.example.com/logout", SamlUtils.createLogoutRequest(Collections.singletonList("ST-1"))));
+        assertTrue(this.dispatcher.dispatch("https://app.example.com/logout", SamlUtils.createLogoutRequest(Collections.singletonList("ST-1"))));
+        assertTrue(this.dispatcher.dispatch("https://app.example.com/logout", SamlUtils.createLogoutRequest(Collections.singletonList("ST-2"))));
+        this.release.countDown();
+        awaitCompletion();
+
+        assertEquals(2, this.dispatcher.getSentCount());
+        assertEquals(1, this.dispatcher.getDuplicateCount());
+    }
+
+    public void testConcurrencyIsLimitedPerHost() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            this.dispatcher.dispatch("https://app.example.com/logout", "message" + i);
+        }
+        Thread.sleep(200);
+        assertEquals(2, this.inFlight.get());
+
+        this.release.countDown();
+        awaitCompletion();
+
+        assertEquals(2, this.maxInFlight.get());
+        assertEquals(10, this.dispatcher.getSentCount());
+    }
+
+    public void testFailedMessagesAreRetried() throws Exception {
+        this.failuresLeft.set(2);
+        this.release.countDown();
+        this.dispatcher.dispatch("https://app.example.com/logout", "message");
+        awaitCompletion();
+
+        assertEquals(1, this.dispatcher.getSentCount());
+        assertEquals(2, this.dispatcher.getRetryCount());
+        assertEquals(0, this.dispatcher.getFailedCount());
+    }
+
+    public void testResponseCodeMustBeAcceptable() throws Exception {
+        this.responseCode.set(204);
+        this.release.countDown();
+        this.dispatcher.dispatch("https://app.example.com/logout", "message");
+        awaitCompletion();
+
+        assertEquals(0, this.dispatcher.getSentCount());
+        assertEquals(1, this.dispatcher.getFailedCount());
+        assertEquals(0, this.dispatcher.getRetryCount());
+
+        this.dispatcher.dispatch("https://app.example.com/logout", "message", new int[] {204});
+        awaitCompletion();
+
+        assertEquals(1, this.dispatcher.getSentCount());
+    }
+
+    public void testServerErrorIsRetriedEvenIfAcceptable() throws Exception {
+        this.dispatcher.setMaxRetries(1);
+        this.responseCode.set(503);
+        this.release.countDown();
+        this.dispatcher.dispatch("https://app.example.com/logout", "message", new int[] {200});
+        awaitCompletion();
+
+        assertEquals(1, this.dispatcher.getRetryCount());
+        assertEquals(1, this.dispatcher.getFailedCount());
+    }
+
+    public void testRetriesAreDroppedOnDestroy() throws Exception {
+        this.failuresLeft.set(10);
+        this.dispatcher.setInitialRetryDelay(60000);
+        this.release.countDown();
+        this.dispatcher.dispatch("https://app.example.com/logout", "message");
+        for (int i = 0; i < 500 && this.dispatcher.getRetryCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, this.dispatcher.getPendingCount());
+
+        this.dispatcher.destroy();
+
+        assertEquals(0, this.dispatcher.getPendingCount());
+        assertEquals(1, this.dispatcher.getFailedCount());
+        assertEquals(0, this.dispatcher.getSentCount());
+    }
+
+    public void testLogoutOfTheSameSessionIsSentOnce() throws Exception {
+        this.dispatcher.dispatchLogout(TestUtils.getService(), "https://app.example.com/logout", "ST-1");
+        this.dispatcher.dispatchLogout(TestUtils.getService(), "https://app.example.com/logout", "ST-1");
+        this.release.countDown();
+        awaitCompletion();
+
+        assertEquals(1, this.dispatcher.getSentCount());
+        assertEquals(1, this.dispatcher.getDuplicateCount());
+    }
+
+    private void setUpCoalescing() {
+        final RegisteredServiceImpl coalescing = new RegisteredServiceImpl();
+        coalescing.setId(1);
+        coalescing.setServiceId("https://batch*.example.com/**");
+        coalescing.setLogoutCoalescingEnabled(true);
+        final RegisteredServiceImpl other = new RegisteredServiceImpl();
+        other.setId(2);
+        other.setServiceId("https://single.example.com/**");
+        final List<RegisteredService> registeredServices = new ArrayList<RegisteredService>();
+        registeredServices.add(coalescing);
+        registeredServices.add(other);
+        final InMemoryServiceRegistryDaoImpl dao = new InMemoryServiceRegistryDaoImpl();
+        dao.setRegisteredServices(registeredServices);
+        this.dispatcher.setServicesManager(new DefaultServicesManagerImpl(dao));
+    }
+
+    public void testLogoutRequestsAreCoalescedForServicesThatOptIn() throws Exception {
+        setUpCoalescing();
+        this.dispatcher.setCoalescingWindow(50);
+        this.dispatcher.setMaxSessionIndexesPerRequest(3);
+        this.release.countDown();
+
+        for (int i = 0; i < 4; i++) {
+            this.dispatcher.dispatchLogout(TestUtils.getService("https://batch.example.com/app"), "https://batch.example.com/app", "ST-" + i);
+            this.dispatcher.dispatchLogout(TestUtils.getService("https://single.example.com/app"), "https://single.example.com/app", "ST-" + i);
+        }
+        Thread.sleep(200);
+        awaitCompletion();
+
+        // three session indexes fill the first request, the fourth goes out when the window closes
+        assertEquals(6, this.dispatcher.getSentCount());
+        assertEquals(4, this.dispatcher.getCoalescedCount());
+        int sessionIndexes = 0;
+        for (final String message : this.messages) {
+            sessionIndexes += message.split("SessionIndex>ST-").length - 1;
+        }
+        assertEquals(8, sessionIndexes);
+    }
+
+    public void testCoalescedRequestsBeyondCapacityAreDropped() throws Exception {
+        this.dispatcher.destroy();
+        this.dispatcher.setQueueCapacity(1);
+        this.dispatcher.afterPropertiesSet();
+        setUpCoalescing();
+        this.dispatcher.setCoalescingWindow(50);
+        this.release.countDown();
+
+        assertTrue(this.dispatcher.dispatchLogout(TestUtils.getService("https://batch1.example.com/app"), "https://batch1.example.com/app", "ST-1"));
+        assertTrue(this.dispatcher.dispatchLogout(TestUtils.getService("https://batch1.example.com/app"), "https://batch1.example.com/app", "ST-2"));
+        assertFalse(this.dispatcher.dispatchLogout(TestUtils.getService("https://batch2.example.com/app"), "https://batch2.example.com/app", "ST-3"));
+        Thread.sleep(200);
+        awaitCompletion();
+
+        assertEquals(1, this.dispatcher.getSentCount());
+        assertEquals(1, this.dispatcher.getRejectedCount());
+    }
+
+    public void testMessagesBeyondCapacityAreDropped() throws Exception {
+        this.dispatcher.destroy();
+        this.dispatcher.setQueueCapacity(3);
+        this.dispatcher.afterPropertiesSet();
+
+        for (int i = 0; i < 5; i++) {
+            this.dispatcher.dispatch("https://app" + i + ".example.com/logout", "message");
+        }
+        this.release.countDown();
+        awaitCompletion();
+
+        assertEquals(3, this.dispatcher.getSentCount());
+        assertEquals(2, this.dispatcher.getRejectedCount());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class PerThreadUniqueTicketIdGeneratorTests extends TestCase {
+
+    public void testFormatMatchesDefaultGenerator() {
+        final PerThreadUniqueTicketIdGenerator generator = new PerThreadUniqueTicketIdGenerator(20, "host");
+
+        assertTrue(generator.getNewTicketId("ST").matches("ST-1-[a-zA-Z0-9]{20}-host"));
+        assertTrue(generator.getNewTicketId("ST").matches("ST-2-[a-zA-Z0-9]{20}-host"));
+        assertTrue(new PerThreadUniqueTicketIdGenerator().getNewTicketId("TGT").matches("TGT-1-[a-zA-Z0-9]{35}"));
+    }
+
+    public void testUniqueAcrossThreads() throws Exception {
+        final PerThreadUniqueTicketIdGenerator generator = new PerThreadUniqueTicketIdGenerator(10);
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> randomParts = Collections.synchronizedSet(new HashSet<String>());
+        final Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 5000; j++) {
+                        final String id = generator.getNewTicketId("ST");
+                        ids.add(id);
+                        randomParts.add(id.substring(id.lastIndexOf('-') + 1));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(20000, ids.size());
+        assertEquals(20000, randomParts.size());
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class StripedCounterTests extends TestCase {
+
+    public void testIncrementAndDecrement() {
+        final StripedCounter counter = new StripedCounter(3);
+        counter.increment();
+        counter.increment();
+        counter.decrement();
+        counter.add(5);
+
+        assertEquals(6, counter.sum());
+
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final Thread[] threads = new Thread[8];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80000, counter.sum());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.validation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.services.AttributeReleaseFilter;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class LazyAssertionImplTests extends TestCase {
+
+    private List<Authentication> chain;
+
+    protected void setUp() throws Exception {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("mail", "test@example.com");
+        attributes.put("phone", "555-0100");
+
+        this.chain = new ArrayList<Authentication>();
+        this.chain.add(TestUtils.getAuthentication("proxy"));
+        this.chain.add(new ImmutableAuthentication(new SimplePrincipal("test", attributes)));
+    }
+
+    public void testReleasesAllowedAttributesOfLastAuthentication() {
+        final Assertion assertion = new LazyAssertionImpl(this.chain, "anonymous", new AttributeReleaseFilter(Arrays.asList("mail", "uid")), TestUtils.getService(), true);
+
+        final List<Authentication> authentications = assertion.getChainedAuthentications();
+        assertEquals(2, authentications.size());
+        assertSame(this.chain.get(0), authentications.get(0));
+
+        final Principal principal = authentications.get(1).getPrincipal();
+        assertEquals("anonymous", principal.getId());
+        assertEquals(1, principal.getAttributes().size());
+        assertEquals("test@example.com", principal.getAttributes().get("mail"));
+        assertEquals(this.chain.get(1).getAuthenticatedDate(), authentications.get(1).getAuthenticatedDate());
+        assertTrue(assertion.isFromNewLogin());
+    }
+
+    public void testIgnoringAttributesReleasesAuthenticationAsIs() {
+        final Assertion assertion = new LazyAssertionImpl(this.chain, "anonymous", null, TestUtils.getService(), false);
+
+        assertSame(this.chain.get(1), assertion.getChainedAuthentications().get(1));
+    }
+
+    public void testSerializedAsImmutableAssertion() throws Exception {
+        final Assertion assertion = new LazyAssertionImpl(this.chain, "test", new AttributeReleaseFilter(Arrays.asList("phone")), TestUtils.getService(), true);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(assertion);
+        out.close();
+        final Object read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertTrue(read instanceof ImmutableAssertionImpl);
+        final Principal principal = ((Assertion) read).getChainedAuthentications().get(1).getPrincipal();
+        assertTrue(principal instanceof SimplePrincipal);
+        assertEquals("test", principal.getId());
+        assertEquals("555-0100", principal.getAttributes().get("phone"));
+        assertEquals(1, principal.getAttributes().size());
+        assertEquals(read, serialize(new LazyAssertionImpl(this.chain, "test", new AttributeReleaseFilter(Arrays.asList("phone")), TestUtils.getService(), true)));
+    }
+
+    public void testEqualToAssertionOverSameChain() {
+        final Assertion assertion = new LazyAssertionImpl(this.chain, "test", new AttributeReleaseFilter(Arrays.asList("phone")), TestUtils.getService(), true);
+        final Assertion other = new LazyAssertionImpl(new ArrayList<Authentication>(this.chain), "test", new AttributeReleaseFilter(Arrays.asList("phone")), TestUtils.getService(), true);
+
+        assertEquals(assertion, other);
+        assertEquals(other, assertion);
+        assertEquals(assertion.hashCode(), other.hashCode());
+        assertEquals(assertion.getChainedAuthentications().get(1).getPrincipal(), other.getChainedAuthentications().get(1).getPrincipal());
+        assertFalse(assertion.equals(new LazyAssertionImpl(this.chain, "other", new AttributeReleaseFilter(Arrays.asList("phone")), TestUtils.getService(), true)));
+    }
+
+    public void testEqualityIsSymmetricWithSerializedForm() throws Exception {
+        final Assertion assertion = new LazyAssertionImpl(this.chain, "test", new AttributeReleaseFilter(Arrays.asList("phone")), TestUtils.getService(), true);
+        final Assertion read = serialize(assertion);
+
+        assertFalse(assertion.equals(read));
+        assertFalse(read.equals(assertion));
+
+        final Authentication released = assertion.getChainedAuthentications().get(1);
+        final Authentication readReleased = read.getChainedAuthentications().get(1);
+        assertFalse(released.equals(readReleased));
+        assertFalse(readReleased.equals(released));
+        assertFalse(released.getPrincipal().equals(readReleased.getPrincipal()));
+        assertFalse(readReleased.getPrincipal().equals(released.getPrincipal()));
+    }
+
+    private static Assertion serialize(final Assertion assertion) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(assertion);
+        out.close();
+        return (Assertion) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+}
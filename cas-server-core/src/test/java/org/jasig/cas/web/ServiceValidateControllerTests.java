@@ -112,6 +112,23 @@ public class ServiceValidateControllerTests extends AbstractCentralAuthenticatio
                 .getViewName());
     }
 
+    @Test
+    public void testRenewIsReadFromEachRequest() throws Exception {
+        final MockHttpServletRequest renewRequest = (MockHttpServletRequest) getHttpServletRequest();
+        renewRequest.setParameter("renew", "on");
+
+        assertEquals(CONST_FAILURE_VIEW,
+            this.serviceValidateController.handleRequestInternal(
+                renewRequest, new MockHttpServletResponse()).getViewName());
+
+        final MockHttpServletRequest request = (MockHttpServletRequest) getHttpServletRequest();
+        request.removeParameter("renew");
+
+        assertEquals(CONST_SUCCESS_VIEW,
+            this.serviceValidateController.handleRequestInternal(
+                request, new MockHttpServletResponse()).getViewName());
+    }
+
     @Test
     public void testValidServiceTicketRuntimeExceptionWithSpec()
         throws Exception {
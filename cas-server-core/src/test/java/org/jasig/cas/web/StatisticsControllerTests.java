@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.web;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.AbstractTicketRegistry;
+import org.jasig.cas.ticket.registry.DefaultTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistryStatistics;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.ModelAndView;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class StatisticsControllerTests extends TestCase {
+
+    public void testRegistryKeepingStatisticsIsNotWalked() throws Exception {
+        final DefaultTicketRegistry ticketRegistry = new DefaultTicketRegistry();
+        ticketRegistry.addTicket(new TicketGrantingTicketImpl("TGT-1", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+
+        final ModelAndView modelAndView = handleRequest(new StatisticsController(ticketRegistry));
+
+        assertEquals(Long.valueOf(1), modelAndView.getModel().get("tgtCount"));
+        assertNull(modelAndView.getModel().get("unexpiredTgts"));
+    }
+
+    public void testRegistryWithoutStatisticsIsWalked() throws Exception {
+        final UncountedTicketRegistry ticketRegistry = new UncountedTicketRegistry();
+        ticketRegistry.addTicket(new TicketGrantingTicketImpl("TGT-1", TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+
+        final ModelAndView modelAndView = handleRequest(new StatisticsController(ticketRegistry));
+
+        assertEquals(Integer.valueOf(1), modelAndView.getModel().get("unexpiredTgts"));
+        assertNull(modelAndView.getModel().get("tgtCount"));
+    }
+
+    public void testRatesAreAveragedOverTheWindow() {
+        final StatisticsController controller = new StatisticsController(new DefaultTicketRegistry());
+        final FixedStatistics statistics = new FixedStatistics();
+        final long start = System.currentTimeMillis();
+
+        statistics.added = 120;
+        controller.addTicketRates(new ModelAndView(), statistics, start + 120000);
+
+        statistics.added = 240;
+        final ModelAndView oneWindowLater = new ModelAndView();
+        controller.addTicketRates(oneWindowLater, statistics, start + 180000);
+        assertEquals(2.0, ((Double) oneWindowLater.getModel().get("addRate")).doubleValue(), 0.0);
+
+        statistics.added = 250;
+        final ModelAndView withinTheWindow = new ModelAndView();
+        controller.addTicketRates(withinTheWindow, statistics, start + 190000);
+        assertEquals(130.0 / 70, ((Double) withinTheWindow.getModel().get("addRate")).doubleValue(), 0.0001);
+        assertEquals(0.0, ((Double) withinTheWindow.getModel().get("deleteRate")).doubleValue(), 0.0);
+    }
+
+    private static ModelAndView handleRequest(final StatisticsController controller) throws Exception {
+        return controller.handleRequestInternal(new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    private static final class FixedStatistics implements TicketRegistryStatistics {
+
+        private long added;
+
+        public long getTicketGrantingTicketCount() {
+            return 0;
+        }
+
+        public long getServiceTicketCount() {
+            return 0;
+        }
+
+        public long getAddedTicketCount() {
+            return this.added;
+        }
+
+        public long getDeletedTicketCount() {
+            return 0;
+        }
+
+        public long getTicketLookupCount() {
+            return 0;
+        }
+    }
+
+    private static final class UncountedTicketRegistry extends AbstractTicketRegistry {
+
+        private final Map<String, Ticket> tickets = new HashMap<String, Ticket>();
+
+        public void addTicket(final Ticket ticket) {
+            this.tickets.put(ticket.getId(), ticket);
+        }
+
+        public Ticket getTicket(final String ticketId) {
+            return this.tickets.get(ticketId);
+        }
+
+        public boolean deleteTicket(final String ticketId) {
+            return this.tickets.remove(ticketId) != null;
+        }
+
+        public Collection<Ticket> getTickets() {
+            return this.tickets.values();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.web.view;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.validation.ImmutableAssertionImpl;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class Cas20ResponseViewTests extends TestCase {
+
+    private final Cas20ResponseView view = new Cas20ResponseView();
+
+    private Map<String, Object> model;
+
+    protected void setUp() throws Exception {
+        final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("mail", "test@example.com");
+        attributes.put("memberOf", Arrays.asList("staff", "R&D"));
+        attributes.put("not valid", "x");
+
+        final List<Authentication> list = new ArrayList<Authentication>();
+        list.add(new ImmutableAuthentication(new SimplePrincipal("https://proxy.example.com/pgt")));
+        list.add(new ImmutableAuthentication(new SimplePrincipal("t\u00e9st<'\">", attributes)));
+
+        this.model = new HashMap<String, Object>();
+        this.model.put("assertion", new ImmutableAssertionImpl(list, TestUtils.getService("TestService"), false));
+    }
+
+    public void testSuccessView() throws Exception {
+        this.view.setSuccessResponse(true);
+        this.model.put("pgtIou", "PGTIOU-1");
+
+        assertEquals("<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>\n"
+            + "\t<cas:authenticationSuccess>\n"
+            + "\t\t<cas:user>t\u00e9st&lt;&#039;&#034;&gt;</cas:user>\n"
+            + "\t\t<cas:proxyGrantingTicket>PGTIOU-1</cas:proxyGrantingTicket>\n"
+            + "\t\t<cas:proxies>\n"
+            + "\t\t\t<cas:proxy>https://proxy.example.com/pgt</cas:proxy>\n"
+            + "\t\t</cas:proxies>\n"
+            + "\t</cas:authenticationSuccess>\n"
+            + "</cas:serviceResponse>\n", render());
+    }
+
+    public void testSuccessViewWithAttributes() throws Exception {
+        this.view.setSuccessResponse(true);
+        this.view.setIncludeAttributes(true);
+
+        assertEquals("<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>\n"
+            + "\t<cas:authenticationSuccess>\n"
+            + "\t\t<cas:user>t\u00e9st&lt;&#039;&#034;&gt;</cas:user>\n"
+            + "\t\t<cas:attributes>\n"
+            + "\t\t\t<cas:mail>test@example.com</cas:mail>\n"
+            + "\t\t\t<cas:memberOf>staff</cas:memberOf>\n"
+            + "\t\t\t<cas:memberOf>R&amp;D</cas:memberOf>\n"
+            + "\t\t</cas:attributes>\n"
+            + "\t\t<cas:proxies>\n"
+            + "\t\t\t<cas:proxy>https://proxy.example.com/pgt</cas:proxy>\n"
+            + "\t\t</cas:proxies>\n"
+            + "\t</cas:authenticationSuccess>\n"
+            + "</cas:serviceResponse>\n", render());
+    }
+
+    public void testFailureView() throws Exception {
+        this.view.setSuccessResponse(false);
+        this.model.put("code", "INVALID_TICKET");
+        this.model.put("description", "ticket 'ST-1' not recognized");
+
+        assertEquals("<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>\n"
+            + "\t<cas:authenticationFailure code='INVALID_TICKET'>\n"
+            + "\t\tticket &#039;ST-1&#039; not recognized\n"
+            + "\t</cas:authenticationFailure>\n"
+            + "</cas:serviceResponse>\n", render());
+    }
+
+    private String render() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        this.view.render(this.model, new MockHttpServletRequest(), response);
+        assertEquals("text/xml;charset=UTF-8", response.getContentType());
+        return new String(response.getContentAsByteArray(), "UTF-8");
+    }
+}
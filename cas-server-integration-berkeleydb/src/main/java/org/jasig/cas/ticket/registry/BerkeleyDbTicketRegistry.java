@@ -9,7 +9,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.core.io.FileSystemResource;
@@ -35,6 +37,10 @@ import javax.validation.constraints.NotNull;
 
 /**
  * Implementation of the TicketRegistry that is backed by a BerkeleyDb.
+ * <p>
+ * The tickets left from a previous run are counted from their keys, without
+ * reading the tickets, the first time the counts are asked for rather than at
+ * startup.
  * 
  * @author Andres March
  * @author Scott Battaglia
@@ -43,7 +49,7 @@ import javax.validation.constraints.NotNull;
  */
 public final class BerkeleyDbTicketRegistry extends
     AbstractDistributedTicketRegistry implements InitializingBean,
-    DisposableBean {
+    DisposableBean, TicketRegistryStatistics {
 
     private EntryBinding ticketBinding;
 
@@ -56,6 +62,13 @@ public final class BerkeleyDbTicketRegistry extends
     @NotNull
     private Resource dbHome = new FileSystemResource(".");
 
+    private TicketSerializer ticketSerializer;
+
+    private String serviceTicketPrefix = ServiceTicket.PREFIX;
+
+    /** Whether the tickets left from a previous run have been counted. */
+    private volatile boolean countsLoaded;
+
     public BerkeleyDbTicketRegistry() {
         // nothing to do
     }
@@ -76,14 +89,23 @@ public final class BerkeleyDbTicketRegistry extends
             dbConfig);
         this.catalogDb = this.environment.openDatabase(null, "catalogDb",
             dbConfig);
-        StoredClassCatalog catalog = new StoredClassCatalog(this.catalogDb);
-        this.ticketBinding = new SerialBinding(catalog, Ticket.class);
+        if (this.ticketSerializer != null) {
+            this.ticketBinding = new TicketSerializerBinding(this.ticketSerializer);
+        } else {
+            StoredClassCatalog catalog = new StoredClassCatalog(this.catalogDb);
+            this.ticketBinding = new SerialBinding(catalog, Ticket.class);
+        }
     }
 
     /**
      * @throws IllegalArgumentException if the Ticket is null.
      */
     public void addTicket(final Ticket ticket) {
+        storeTicket(ticket);
+        ticketAdded(ticket);
+    }
+
+    private void storeTicket(final Ticket ticket) {
         Assert.notNull(ticket, "ticket cannot be null");
 
         if (log.isDebugEnabled()) {
@@ -109,6 +131,7 @@ public final class BerkeleyDbTicketRegistry extends
     }
 
     public Ticket getTicket(final String ticketId) {
+        ticketRetrieved();
         if (log.isDebugEnabled()) {
             log.debug("Attempting to retrieve ticket [" + ticketId + "]");
         }
@@ -136,9 +159,14 @@ public final class BerkeleyDbTicketRegistry extends
         if (log.isDebugEnabled()) {
             log.debug("Removing ticket [" + ticketId + "] from registry");
         }
+        evictTicket(ticketId);
 
         try {
-            return this.ticketDb.delete(null, getKeyFromString(ticketId)) == OperationStatus.SUCCESS;
+            if (this.ticketDb.delete(null, getKeyFromString(ticketId)) != OperationStatus.SUCCESS) {
+                return false;
+            }
+            ticketDeleted(typeOf(ticketId));
+            return true;
         } catch (final DatabaseException e) {
             log.error(e.getMessage(), e);
             throw new RuntimeException(e);
@@ -186,6 +214,155 @@ public final class BerkeleyDbTicketRegistry extends
         return tickets;
     }
 
+    /**
+     * Reads the database a page at a time, reopening the cursor after the last
+     * key of the previous page.  No cursor is open while the callback runs, so
+     * it is free to update or delete tickets.
+     */
+    public void iterateTickets(final Class<? extends Ticket> type, final int pageSize, final TicketCallback callback) {
+        final List<Ticket> page = new ArrayList<Ticket>();
+        String lastKey = null;
+
+        do {
+            page.clear();
+            lastKey = readPage(lastKey, pageSize, page);
+
+            for (final Ticket ticket : page) {
+                if (isOfType(type, ticket) && !callback.doWithTicket(getProxiedTicketInstance(ticket))) {
+                    return;
+                }
+            }
+        } while (lastKey != null);
+    }
+
+    /**
+     * Reads up to pageSize tickets whose keys follow afterKey.
+     *
+     * @return the key of the last entry read, or null if the end of the
+     * database was reached.
+     */
+    private String readPage(final String afterKey, final int pageSize, final List<Ticket> page) {
+        Cursor cursor = null;
+
+        try {
+            final CursorConfig cconfig = new CursorConfig();
+            cconfig.setReadUncommitted(true);
+            cursor = this.ticketDb.openCursor(null, cconfig);
+
+            final DatabaseEntry foundKey = afterKey == null ? new DatabaseEntry() : getKeyFromString(afterKey);
+            final DatabaseEntry foundData = new DatabaseEntry();
+            OperationStatus status;
+
+            if (afterKey == null) {
+                status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+            } else {
+                status = cursor.getSearchKeyRange(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+                if (status == OperationStatus.SUCCESS && afterKey.equals(StringBinding.entryToString(foundKey))) {
+                    status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+                }
+            }
+
+            int read = 0;
+            while (status == OperationStatus.SUCCESS) {
+                if (foundData.getData() != null) {
+                    page.add((Ticket) this.ticketBinding.entryToObject(foundData));
+                }
+
+                if (++read >= pageSize) {
+                    return StringBinding.entryToString(foundKey);
+                }
+                status = cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED);
+            }
+            return null;
+        } catch (final DatabaseException de) {
+            throw new RuntimeException(de);
+        } finally {
+            try {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            } catch (final DatabaseException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    public long getTicketGrantingTicketCount() {
+        loadCounts();
+        return super.getTicketGrantingTicketCount();
+    }
+
+    public long getServiceTicketCount() {
+        loadCounts();
+        return super.getServiceTicketCount();
+    }
+
+    /**
+     * Counts the tickets in the database from their keys, less those this
+     * run has counted already.  Tickets added or deleted while the keys are
+     * read may be counted twice or not at all.
+     */
+    private synchronized void loadCounts() {
+        if (this.countsLoaded) {
+            return;
+        }
+        this.countsLoaded = true;
+
+        final long ticketGrantingTicketsCounted = super.getTicketGrantingTicketCount();
+        final long serviceTicketsCounted = super.getServiceTicketCount();
+        long ticketGrantingTickets = 0;
+        long serviceTickets = 0;
+        Cursor cursor = null;
+
+        try {
+            final CursorConfig cconfig = new CursorConfig();
+            cconfig.setReadUncommitted(true);
+            cursor = this.ticketDb.openCursor(null, cconfig);
+
+            final DatabaseEntry foundKey = new DatabaseEntry();
+            final DatabaseEntry foundData = new DatabaseEntry();
+            // only the keys are read
+            foundData.setPartial(0, 0, true);
+
+            while (cursor.getNext(foundKey, foundData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+                if (typeOf(StringBinding.entryToString(foundKey)) == ServiceTicket.class) {
+                    serviceTickets++;
+                } else {
+                    ticketGrantingTickets++;
+                }
+            }
+        } catch (final DatabaseException e) {
+            log.error("Error counting the tickets in the registry.", e);
+            return;
+        } finally {
+            try {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            } catch (final DatabaseException e) {
+                // nothing to do
+            }
+        }
+
+        ticketsLoaded(TicketGrantingTicket.class, ticketGrantingTickets - ticketGrantingTicketsCounted);
+        ticketsLoaded(ServiceTicket.class, serviceTickets - serviceTicketsCounted);
+    }
+
+    /**
+     * We only have the id, so the type is guessed from its prefix.
+     */
+    private Class<? extends Ticket> typeOf(final String ticketId) {
+        return ticketId.startsWith(this.serviceTicketPrefix) ? ServiceTicket.class : TicketGrantingTicket.class;
+    }
+
+    /**
+     * @param serviceTicketPrefix the prefix of ServiceTicket ids, used to tell
+     * which count a ticket belongs to.  Defaults to "ST".
+     */
+    public void setServiceTicketPrefix(final String serviceTicketPrefix) {
+        this.serviceTicketPrefix = serviceTicketPrefix;
+    }
+
     /**
      * @param dbHome the dbHome to set
      */
@@ -193,14 +370,29 @@ public final class BerkeleyDbTicketRegistry extends
         this.dbHome = dbHome;
     }
 
+    /**
+     * @param ticketSerializer the format tickets are stored in.  Without one
+     * they are stored with Berkeley DB's serial binding, which cannot be read
+     * by a serializer, so changing this requires an empty database.
+     */
+    public void setTicketSerializer(final TicketSerializer ticketSerializer) {
+        this.ticketSerializer = ticketSerializer;
+    }
+
+    @Override
+    protected TicketSerializer getTicketSerializer() {
+        return this.ticketSerializer;
+    }
+
     public void destroy() throws Exception {
+        flush();
         this.catalogDb.close();
         this.ticketDb.close();
         this.environment.close();
     }
 
     protected void updateTicket(final Ticket ticket) {
-        addTicket(ticket);
+        storeTicket(ticket);
     }
 
     private DatabaseEntry getKeyFromString(final String key) {
@@ -214,4 +406,28 @@ public final class BerkeleyDbTicketRegistry extends
     protected boolean needsCallback() {
         return false;
     }
+
+    private static final class TicketSerializerBinding implements EntryBinding {
+
+        private final TicketSerializer ticketSerializer;
+
+        private TicketSerializerBinding(final TicketSerializer ticketSerializer) {
+            this.ticketSerializer = ticketSerializer;
+        }
+
+        public Object entryToObject(final DatabaseEntry entry) {
+            final byte[] data = entry.getData();
+
+            if (entry.getOffset() == 0 && entry.getSize() == data.length) {
+                return this.ticketSerializer.deserialize(data);
+            }
+            final byte[] copy = new byte[entry.getSize()];
+            System.arraycopy(data, entry.getOffset(), copy, 0, copy.length);
+            return this.ticketSerializer.deserialize(copy);
+        }
+
+        public void objectToEntry(final Object o, final DatabaseEntry entry) {
+            entry.setData(this.ticketSerializer.serialize((Ticket) o));
+        }
+    }
 }
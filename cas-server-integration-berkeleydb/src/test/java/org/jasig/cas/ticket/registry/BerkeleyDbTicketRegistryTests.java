@@ -155,4 +155,19 @@ public class BerkeleyDbTicketRegistryTests extends TestCase {
 	public BerkeleyDbTicketRegistry getReg() {
 		return this.reg;
 	}
+
+	public void testCountsIncludeTicketsOfAPreviousRun() throws Exception {
+		this.reg.addTicket(getTicket("TGT-1"));
+		this.reg.addTicket(getTicket("TGT-2"));
+		this.reg.destroy();
+
+		this.reg = new BerkeleyDbTicketRegistry();
+		this.reg.afterPropertiesSet();
+		this.reg.addTicket(getTicket("TGT-3"));
+		assertEquals(3, this.reg.getTicketGrantingTicketCount());
+
+		this.reg.deleteTicket("TGT-1");
+		assertEquals(2, this.reg.getTicketGrantingTicketCount());
+		assertEquals(0, this.reg.getServiceTicketCount());
+	}
 }
@@ -26,20 +26,21 @@ import javax.validation.constraints.NotNull;
  * @since 3.1
  *
  */
-public final class JBossCacheTicketRegistry extends AbstractDistributedTicketRegistry {
+public final class JBossCacheTicketRegistry extends AbstractDistributedTicketRegistry implements TicketRegistryStatistics {
     
     /** Indicator of what tree branch to put tickets in. */
     private static final String FQN_TICKET = "ticket";
 
     /** Instance of JBoss TreeCache. */
     @NotNull
-    private Cache<String, Ticket> cache;
-    
+    private Cache<String, Object> cache;
+
+    private TicketSerializer ticketSerializer;
     
     
     protected void updateTicket(Ticket ticket) {
         try {
-            this.cache.put(FQN_TICKET, ticket.getId(), ticket);
+            this.cache.put(FQN_TICKET, ticket.getId(), toStoredForm(ticket));
         } catch (final CacheException e) {
             throw new RuntimeException(e);
         }
@@ -50,7 +51,9 @@ public final class JBossCacheTicketRegistry extends AbstractDistributedTicketReg
             if (log.isDebugEnabled()){
                 log.debug("Adding ticket to registry for: " + ticket.getId());
             }
-            this.cache.put(FQN_TICKET, ticket.getId(), ticket);
+            if (this.cache.put(FQN_TICKET, ticket.getId(), toStoredForm(ticket)) == null) {
+                ticketAdded(ticket);
+            }
         } catch (final CacheException e) {
             log.error(e.getMessage(), e);
             throw new RuntimeException(e);
@@ -62,7 +65,13 @@ public final class JBossCacheTicketRegistry extends AbstractDistributedTicketReg
             if (log.isDebugEnabled()){
                 log.debug("Removing ticket from registry for: " + ticketId);
             }
-            return this.cache.remove(FQN_TICKET, ticketId) != null;
+            evictTicket(ticketId);
+            final Ticket ticket = fromStoredForm(this.cache.remove(FQN_TICKET, ticketId));
+            if (ticket == null) {
+                return false;
+            }
+            ticketDeleted(ticket);
+            return true;
         } catch (final CacheException e) {
             log.error(e.getMessage(), e);
             return false;
@@ -79,7 +88,8 @@ public final class JBossCacheTicketRegistry extends AbstractDistributedTicketReg
             if (log.isDebugEnabled()){
                 log.debug("Retrieving ticket from registry for: " + ticketId);
             }
-            return getProxiedTicketInstance(this.cache.get(FQN_TICKET, ticketId));
+            ticketRetrieved();
+            return getProxiedTicketInstance(fromStoredForm(this.cache.get(FQN_TICKET, ticketId)));
         } catch (final CacheException e) {
             log.error(e.getMessage(), e);
             return null;
@@ -88,7 +98,7 @@ public final class JBossCacheTicketRegistry extends AbstractDistributedTicketReg
 
     public Collection<Ticket> getTickets() {
         try {
-            final Node<String, Ticket> node = this.cache.getNode(FQN_TICKET);
+            final Node<String, Object> node = this.cache.getNode(FQN_TICKET);
 
             if (node == null) {
                 return Collections.emptyList();
@@ -98,7 +108,7 @@ public final class JBossCacheTicketRegistry extends AbstractDistributedTicketReg
             final List<Ticket> list = new ArrayList<Ticket>();
 
             for (final String key : keys) {
-                list.add(node.get(key));
+                list.add(fromStoredForm(node.get(key)));
             }
 
             return list;
@@ -107,10 +117,56 @@ public final class JBossCacheTicketRegistry extends AbstractDistributedTicketReg
         }
     }
 
-    public void setCache(final Cache<String, Ticket> cache) {
+    /**
+     * Only the keys are copied up front; each ticket is fetched as it is
+     * visited, so tickets removed in the meantime are skipped.
+     */
+    public void iterateTickets(final Class<? extends Ticket> type, final int pageSize, final TicketCallback callback) {
+        try {
+            final Node<String, Object> node = this.cache.getNode(FQN_TICKET);
+
+            if (node == null) {
+                return;
+            }
+
+            for (final String key : new ArrayList<String>(node.getKeys())) {
+                final Ticket ticket = fromStoredForm(node.get(key));
+
+                if (ticket != null && isOfType(type, ticket) && !callback.doWithTicket(ticket)) {
+                    return;
+                }
+            }
+        } catch (final CacheException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private Object toStoredForm(final Ticket ticket) {
+        return this.ticketSerializer == null ? ticket : this.ticketSerializer.serialize(ticket);
+    }
+
+    private Ticket fromStoredForm(final Object value) {
+        return value == null || value instanceof Ticket ? (Ticket) value : this.ticketSerializer.deserialize((byte[]) value);
+    }
+
+    public void setCache(final Cache<String, Object> cache) {
         this.cache = cache;
     }
 
+    /**
+     * @param ticketSerializer the format tickets are stored in.  Without one
+     * the tickets themselves are put in the cache and JBoss Cache serializes
+     * them when it replicates.
+     */
+    public void setTicketSerializer(final TicketSerializer ticketSerializer) {
+        this.ticketSerializer = ticketSerializer;
+    }
+
+    @Override
+    protected TicketSerializer getTicketSerializer() {
+        return this.ticketSerializer;
+    }
+
     @Override
     protected boolean needsCallback() {
         return true;
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring placing each node at 160 points, as computed by
+ * libketama, so adding or removing a node only moves the keys next to its
+ * points.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+final class KetamaNodeRing {
+
+    private static final int DIGESTS_PER_NODE = 40;
+
+    private final SortedMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+    private final int nodeCount;
+
+    /**
+     * @param nodes the names of the nodes, as host:port.
+     */
+    public KetamaNodeRing(final List<String> nodes) {
+        this.nodeCount = nodes.size();
+
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < DIGESTS_PER_NODE; i++) {
+                final byte[] digest = md5(nodes.get(node) + "-" + i);
+
+                // each digest yields four points
+                for (int h = 0; h < 4; h++) {
+                    this.ring.put(Long.valueOf(hash(digest, h)), Integer.valueOf(node));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return every node, in the order a key is placed on them.
+     */
+    public List<Integer> getNodes(final String key) {
+        final List<Integer> nodes = new ArrayList<Integer>(this.nodeCount);
+        final Long hash = Long.valueOf(hash(md5(key), 0));
+
+        collect(this.ring.tailMap(hash).values().iterator(), nodes);
+        collect(this.ring.values().iterator(), nodes);
+        return nodes;
+    }
+
+    private void collect(final Iterator<Integer> points, final List<Integer> nodes) {
+        while (nodes.size() < this.nodeCount && points.hasNext()) {
+            final Integer node = points.next();
+
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+    }
+
+    private static long hash(final byte[] digest, final int h) {
+        return ((long) (digest[3 + h * 4] & 0xFF) << 24)
+            | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+            | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+            | (digest[h * 4] & 0xFF);
+    }
+
+    private static byte[] md5(final String value) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
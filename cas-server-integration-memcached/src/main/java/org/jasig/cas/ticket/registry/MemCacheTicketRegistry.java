@@ -8,16 +8,20 @@ package org.jasig.cas.ticket.registry;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.Ticket;
 import org.jasig.cas.ticket.TicketGrantingTicket;
-import org.springframework.beans.factory.DisposableBean;
 
 import javax.validation.constraints.Min;
 
@@ -29,9 +33,17 @@ import javax.validation.constraints.Min;
  * @since 3.3
  *
  */
-public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegistry implements DisposableBean {
+public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegistry implements TicketRegistryStatistics {
 	
+	/** Null when tickets are replicated. */
 	private final MemcachedClient client;
+
+	private final ReplicatedMemcachedClient replicatedClient;
+
+	/** The client's own transcoder, unless a TicketSerializer was set. */
+	private Transcoder<Object> transcoder;
+
+	private TicketSerializer ticketSerializer;
 	
 	@Min(0)
 	private final int tgtTimeout;
@@ -40,6 +52,13 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 	private final int stTimeout;
 	
 	private boolean synchronizeUpdatesToRegistry = false;
+
+	/** Tickets this node added within their lifetime, less the ones it deleted. */
+	private final SlidingWindowCounter ticketGrantingTickets;
+
+	private final SlidingWindowCounter serviceTickets;
+
+	private String serviceTicketPrefix = ServiceTicket.PREFIX;
 	
 	/**
 	 * Host names should be given in a list of the format: &lt;hostname&gt;:&lt;port&gt;
@@ -49,8 +68,27 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 	 * @param serviceTicketTimeOut
 	 */
 	public MemCacheTicketRegistry(final String[] hostnames, final int ticketGrantingTicketTimeOut, final int serviceTicketTimeOut) {
+		this(hostnames, ticketGrantingTicketTimeOut, serviceTicketTimeOut, 0);
+	}
+
+	/**
+	 * Stores every ticket on several of the memcached servers, chosen by
+	 * consistent hashing, so losing a server loses no tickets and adding one
+	 * only moves the tickets next to it on the hash ring.  Tickets are read
+	 * from the first live server that has them and copied to the servers
+	 * that missed them.
+	 * 
+	 * @param hostnames
+	 * @param ticketGrantingTicketTimeOut
+	 * @param serviceTicketTimeOut
+	 * @param replicas the number of servers each ticket is stored on.  0
+	 * stores each ticket on one server, as chosen by the memcached client.
+	 */
+	public MemCacheTicketRegistry(final String[] hostnames, final int ticketGrantingTicketTimeOut, final int serviceTicketTimeOut, final int replicas) {
 		this.tgtTimeout = ticketGrantingTicketTimeOut;
 		this.stTimeout = serviceTicketTimeOut;
+		this.ticketGrantingTickets = new SlidingWindowCounter(ticketGrantingTicketTimeOut * 1000L);
+		this.serviceTickets = new SlidingWindowCounter(serviceTicketTimeOut * 1000L);
 		final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
 		
 		for (final String hostname : hostnames) {
@@ -59,7 +97,19 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 		}
 		
 		try {
-			this.client = new MemcachedClient(addresses);
+			if (replicas > 0) {
+				this.client = null;
+				this.replicatedClient = new ReplicatedMemcachedClient(Arrays.asList(hostnames), addresses, replicas, new ReplicatedMemcachedClient.RepairExpiration() {
+					public int getExpiration(final Object value) {
+						return value instanceof ServiceTicket ? serviceTicketTimeOut : ticketGrantingTicketTimeOut;
+					}
+				});
+				this.transcoder = this.replicatedClient.getTranscoder();
+			} else {
+				this.client = new MemcachedClient(addresses);
+				this.replicatedClient = null;
+				this.transcoder = this.client.getTranscoder();
+			}
 		} catch (final IOException e) {
 			throw new IllegalStateException(e);
 		}
@@ -87,30 +137,51 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 	    }
 	}
 
+	private Future<Boolean> add(final String key, final int exp, final Ticket ticket) {
+		return this.replicatedClient != null ? this.replicatedClient.add(key, exp, ticket, this.transcoder) : this.client.add(key, exp, ticket, this.transcoder);
+	}
+
+	private Future<Boolean> replace(final String key, final int exp, final Ticket ticket) {
+		return this.replicatedClient != null ? this.replicatedClient.replace(key, exp, ticket, this.transcoder) : this.client.replace(key, exp, ticket, this.transcoder);
+	}
+
 	protected void updateTicket(final Ticket ticket) {
 		if (ticket instanceof TicketGrantingTicket) {
-			handleSynchronousRequest(this.client.replace(ticket.getId(), this.tgtTimeout, ticket));
+			handleSynchronousRequest(replace(ticket.getId(), this.tgtTimeout, ticket));
 		}
 		
 		if (ticket instanceof ServiceTicket) {
-			handleSynchronousRequest(this.client.replace(ticket.getId(), this.stTimeout, ticket));
+			handleSynchronousRequest(replace(ticket.getId(), this.stTimeout, ticket));
 		}
 	}
 
 	public void addTicket(final Ticket ticket) {
 		if (ticket instanceof TicketGrantingTicket) {
-		    handleSynchronousRequest(this.client.add(ticket.getId(), this.tgtTimeout, ticket));
+		    handleSynchronousRequest(add(ticket.getId(), this.tgtTimeout, ticket));
+		    this.ticketGrantingTickets.add(1);
 		}
 		
 		if (ticket instanceof ServiceTicket) {
-		    handleSynchronousRequest(this.client.add(ticket.getId(), this.stTimeout, ticket));
+		    handleSynchronousRequest(add(ticket.getId(), this.stTimeout, ticket));
+		    this.serviceTickets.add(1);
 		}
+		ticketAdded(ticket);
 	}
 
 	public boolean deleteTicket(final String ticketId) {
-		Future<Boolean> f= this.client.delete(ticketId);
+		evictTicket(ticketId);
+		Future<Boolean> f = this.replicatedClient != null ? this.replicatedClient.delete(ticketId) : this.client.delete(ticketId);
 		try {
-			return f.get().booleanValue();
+			final boolean deleted = f.get().booleanValue();
+			if (deleted) {
+				// we only have the id, so the type is guessed from its prefix
+				if (ticketId.startsWith(this.serviceTicketPrefix)) {
+					this.serviceTickets.add(-1);
+				} else {
+					this.ticketGrantingTickets.add(-1);
+				}
+			}
+			return deleted;
 		} catch (final Exception e) {
 			log.error(e.getMessage(),e);
 			return false;
@@ -118,7 +189,8 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 	}
 
 	public Ticket getTicket(final String ticketId) {
-		final Ticket t = (Ticket) this.client.get(ticketId);
+		ticketRetrieved();
+		final Ticket t = (Ticket) (this.replicatedClient != null ? this.replicatedClient.get(ticketId, this.transcoder) : this.client.get(ticketId, this.transcoder));
 		if (t == null) {
 			return null;
 		}
@@ -126,6 +198,24 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 		return getProxiedTicketInstance(t);
 	}
 
+	/**
+	 * Fetches the tickets with a single multi-get.
+	 */
+	@Override
+	public Map<String, Ticket> getTickets(final Collection<String> ticketIds) {
+		final Map<String, Object> values = this.replicatedClient != null ? this.replicatedClient.getBulk(ticketIds, this.transcoder) : this.client.getBulk(ticketIds, this.transcoder);
+		final Map<String, Ticket> tickets = new HashMap<String, Ticket>();
+
+		for (final String ticketId : ticketIds) {
+			ticketRetrieved();
+			final Ticket t = (Ticket) values.get(ticketId);
+			if (t != null) {
+				tickets.put(ticketId, getProxiedTicketInstance(t));
+			}
+		}
+		return tickets;
+	}
+
 	/**
 	 * This operation is not supported.
 	 * 
@@ -136,13 +226,85 @@ public final class MemCacheTicketRegistry extends AbstractDistributedTicketRegis
 	}
 
 	public void destroy() throws Exception {
-		this.client.shutdown();
+		super.destroy();
+		if (this.replicatedClient != null) {
+			this.replicatedClient.shutdown();
+		} else {
+			this.client.shutdown();
+		}
 	}
 	
 	public void setSynchronizeUpdatesToRegistry(final boolean b) {
 	    this.synchronizeUpdatesToRegistry = b;
 	}
 
+	/**
+	 * @param readTimeout the time in milliseconds a replica may take to
+	 * answer a read before it is skipped.  Defaults to one second.
+	 */
+	public void setReplicaReadTimeout(final long readTimeout) {
+		if (this.replicatedClient != null) {
+			this.replicatedClient.setReadTimeout(readTimeout);
+		}
+	}
+
+	/**
+	 * @param retryInterval the time in milliseconds a failed replica is
+	 * skipped for.  Defaults to 30 seconds.
+	 */
+	public void setReplicaRetryInterval(final long retryInterval) {
+		if (this.replicatedClient != null) {
+			this.replicatedClient.setRetryInterval(retryInterval);
+		}
+	}
+
+	/**
+	 * @return the servers tickets are currently read from and written to,
+	 * when tickets are replicated.
+	 */
+	public List<String> getLiveReplicas() {
+		return this.replicatedClient != null ? this.replicatedClient.getLiveNodes() : Collections.<String>emptyList();
+	}
+
+	/**
+	 * @param ticketSerializer the format tickets are stored in.  Without one
+	 * the memcached client serializes them itself.  Tickets stored by the
+	 * client are still read after the switch.
+	 */
+	public void setTicketSerializer(final TicketSerializer ticketSerializer) {
+		this.ticketSerializer = ticketSerializer;
+		this.transcoder = new TicketSerializerTranscoder(ticketSerializer, this.replicatedClient != null ? this.replicatedClient.getTranscoder() : this.client.getTranscoder());
+	}
+
+	/**
+	 * Memcached cannot be counted, so this is an estimate based on the tickets
+	 * this node added and deleted within the ticket lifetime.
+	 */
+	public long getTicketGrantingTicketCount() {
+		return this.ticketGrantingTickets.sum();
+	}
+
+	/**
+	 * Memcached cannot be counted, so this is an estimate based on the tickets
+	 * this node added and deleted within the ticket lifetime.
+	 */
+	public long getServiceTicketCount() {
+		return this.serviceTickets.sum();
+	}
+
+	/**
+	 * @param serviceTicketPrefix the prefix of ServiceTicket ids, used to tell
+	 * which count a deleted ticket belongs to.  Defaults to "ST".
+	 */
+	public void setServiceTicketPrefix(final String serviceTicketPrefix) {
+		this.serviceTicketPrefix = serviceTicketPrefix;
+	}
+
+    @Override
+    protected TicketSerializer getTicketSerializer() {
+        return this.ticketSerializer;
+    }
+
     @Override
     protected boolean needsCallback() {
         return true;
@@ -0,0 +1,605 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores every key on several memcached nodes, chosen by consistent hashing.
+ * <p>
+ * Each node has its own client.  A key is written to the first live nodes
+ * in its order on the ring, without waiting for them, and read from the
+ * first of them that has it.  Nodes that missed the key are then given a
+ * copy.  A node that fails a read, or whose client has lost its connection,
+ * is skipped until the retry interval has passed, so its keys are read and
+ * written on the nodes next to it on the ring.  As it may have missed
+ * updates and deletes meanwhile, it is flushed before it is used again; its
+ * keys are still on the other replicas.
+ * <p>
+ * A delete waits for every live node.  Until it is done, and for as long as
+ * a read started before it may still be repairing, this client does not
+ * copy the key again.  Other clients may, if one of their reads races the
+ * delete.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+final class ReplicatedMemcachedClient {
+
+    private static final int NEW = 0;
+
+    private static final int LIVE = 1;
+
+    /** Down or disconnected after having been live, so to be flushed. */
+    private static final int STALE = 2;
+
+    private static final int FLUSHING = 3;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final List<String> nodeNames;
+
+    private final MemcachedClient[] clients;
+
+    private final KetamaNodeRing ring;
+
+    private final int replicas;
+
+    /** The time until which each node is skipped. */
+    private final AtomicLongArray downUntil;
+
+    /** Whether each node is new, live, stale or being flushed. */
+    private final AtomicIntegerArray states;
+
+    /** The keys being deleted, and those deleted too recently to be repaired. */
+    private final ConcurrentMap<String, Tombstone> tombstones = new ConcurrentHashMap<String, Tombstone>();
+
+    /** The same tombstones, oldest first, to remove them once they expire. */
+    private final Queue<Tombstone> tombstoneQueue = new ConcurrentLinkedQueue<Tombstone>();
+
+    /** Gives the expiration of the copies made by read repair. */
+    private final RepairExpiration repairExpiration;
+
+    private long readTimeout = 1000;
+
+    private long retryInterval = 30000;
+
+    /**
+     * @param nodeNames the names the nodes are placed on the ring by, as
+     * host:port.
+     * @param addresses the addresses of the same nodes.
+     * @param repairExpiration gives the expiration of the copies made by
+     * read repair, as it would have been given when the value was written.
+     */
+    public ReplicatedMemcachedClient(final List<String> nodeNames, final List<InetSocketAddress> addresses, final int replicas, final RepairExpiration repairExpiration) throws IOException {
+        this.nodeNames = nodeNames;
+        this.clients = new MemcachedClient[addresses.size()];
+        this.downUntil = new AtomicLongArray(addresses.size());
+        this.states = new AtomicIntegerArray(addresses.size());
+        this.replicas = replicas;
+        this.repairExpiration = repairExpiration;
+
+        for (int i = 0; i < addresses.size(); i++) {
+            this.clients[i] = new MemcachedClient(Collections.singletonList(addresses.get(i)));
+        }
+        this.ring = new KetamaNodeRing(this.nodeNames);
+    }
+
+    public Transcoder<Object> getTranscoder() {
+        return this.clients[0].getTranscoder();
+    }
+
+    public Future<Boolean> add(final String key, final int exp, final Object o, final Transcoder<Object> tc) {
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(this.replicas);
+
+        for (final Integer node : getWriteNodes(key)) {
+            futures.add(this.clients[node.intValue()].add(key, exp, o, tc));
+        }
+        return new AnyFuture(futures);
+    }
+
+    public Future<Boolean> replace(final String key, final int exp, final Object o, final Transcoder<Object> tc) {
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(this.replicas);
+
+        for (final Integer node : getWriteNodes(key)) {
+            futures.add(this.clients[node.intValue()].replace(key, exp, o, tc));
+        }
+        return new AnyFuture(futures);
+    }
+
+    /**
+     * Deletes the key from every node it may have been copied to.  The
+     * future returned waits for the live nodes; the others are flushed
+     * before they are used again.
+     */
+    public Future<Boolean> delete(final String key) {
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(this.clients.length);
+
+        for (final Integer node : this.ring.getNodes(key)) {
+            final Future<Boolean> future = this.clients[node.intValue()].delete(key);
+            if (isLive(node.intValue())) {
+                futures.add(future);
+            }
+        }
+
+        final Future<Boolean> deletes = new AllFuture(futures);
+        // a read started before the delete may repair up to a read timeout per replica later
+        addTombstone(new Tombstone(key, deletes, System.currentTimeMillis() + (this.replicas + 1) * this.readTimeout));
+        return deletes;
+    }
+
+    public Object get(final String key, final Transcoder<Object> tc) {
+        final List<Integer> missed = new ArrayList<Integer>(this.replicas);
+
+        for (final Integer node : getWriteNodes(key)) {
+            final Object value = read(node.intValue(), key, tc);
+
+            if (value != null) {
+                for (final Integer m : missed) {
+                    repair(m.intValue(), key, value, tc);
+                }
+                return value;
+            }
+            if (isLive(node.intValue())) {
+                missed.add(node);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads each key from its first live node, with one multi-get per node,
+     * and reads the keys not found there from their next node.
+     */
+    public Map<String, Object> getBulk(final Collection<String> keys, final Transcoder<Object> tc) {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        final Map<String, List<Integer>> remaining = new HashMap<String, List<Integer>>();
+        final Map<String, List<Integer>> missed = new HashMap<String, List<Integer>>();
+
+        for (final String key : keys) {
+            remaining.put(key, new ArrayList<Integer>(getWriteNodes(key)));
+            missed.put(key, new ArrayList<Integer>(this.replicas));
+        }
+
+        for (int round = 0; round < this.replicas && !remaining.isEmpty(); round++) {
+            final Map<Integer, List<String>> byNode = new HashMap<Integer, List<String>>();
+
+            for (final Map.Entry<String, List<Integer>> entry : remaining.entrySet()) {
+                if (entry.getValue().size() > round) {
+                    final Integer node = entry.getValue().get(round);
+                    List<String> nodeKeys = byNode.get(node);
+                    if (nodeKeys == null) {
+                        nodeKeys = new ArrayList<String>();
+                        byNode.put(node, nodeKeys);
+                    }
+                    nodeKeys.add(entry.getKey());
+                }
+            }
+
+            for (final Map.Entry<Integer, List<String>> entry : byNode.entrySet()) {
+                final int node = entry.getKey().intValue();
+                final Map<String, Object> found = readBulk(node, entry.getValue(), tc);
+
+                for (final String key : entry.getValue()) {
+                    final Object value = found == null ? null : found.get(key);
+
+                    if (value != null) {
+                        values.put(key, value);
+                        remaining.remove(key);
+                        for (final Integer m : missed.get(key)) {
+                            repair(m.intValue(), key, value, tc);
+                        }
+                    } else if (found != null) {
+                        missed.get(key).add(entry.getKey());
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    public void shutdown() {
+        for (final MemcachedClient client : this.clients) {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * @return the nodes currently read from and written to.
+     */
+    public List<String> getLiveNodes() {
+        final List<String> live = new ArrayList<String>();
+
+        for (int i = 0; i < this.clients.length; i++) {
+            if (isLive(i)) {
+                live.add(this.nodeNames.get(i));
+            }
+        }
+        return live;
+    }
+
+    public void setReadTimeout(final long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setRetryInterval(final long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * @return the first live nodes of the key on the ring, as many as there
+     * are replicas.  If none is live, such as while the clients are still
+     * connecting, the first nodes regardless.
+     */
+    private List<Integer> getWriteNodes(final String key) {
+        final List<Integer> ordered = this.ring.getNodes(key);
+        final List<Integer> nodes = new ArrayList<Integer>(this.replicas);
+
+        for (final Integer node : ordered) {
+            if (nodes.size() == this.replicas) {
+                break;
+            }
+            if (isLive(node.intValue())) {
+                nodes.add(node);
+            }
+        }
+        return nodes.isEmpty() ? ordered.subList(0, Math.min(this.replicas, ordered.size())) : nodes;
+    }
+
+    /**
+     * @return whether the node is connected and not skipped.  A node coming
+     * back is flushed first, and is not live until that is done.
+     */
+    private boolean isLive(final int node) {
+        if (System.currentTimeMillis() < this.downUntil.get(node)) {
+            return false;
+        }
+
+        if (this.clients[node].getAvailableServers().isEmpty()) {
+            this.states.compareAndSet(node, LIVE, STALE);
+            return false;
+        }
+
+        switch (this.states.get(node)) {
+            case LIVE:
+                return true;
+            case NEW:
+                this.states.compareAndSet(node, NEW, LIVE);
+                return true;
+            case STALE:
+                return this.states.compareAndSet(node, STALE, FLUSHING) && flush(node);
+            default:
+                return false;
+        }
+    }
+
+    private boolean flush(final int node) {
+        log.info("Flushing memcached node " + this.nodeNames.get(node) + " as it may have missed changes while it was down.");
+        try {
+            if (Boolean.TRUE.equals(this.clients[node].flush().get(this.readTimeout, TimeUnit.MILLISECONDS))) {
+                this.states.set(node, LIVE);
+                return true;
+            }
+            markDown(node, null);
+        } catch (final Exception e) {
+            markDown(node, e);
+        }
+        return false;
+    }
+
+    private void markDown(final int node, final Exception e) {
+        this.downUntil.set(node, System.currentTimeMillis() + this.retryInterval);
+        this.states.set(node, STALE);
+        log.warn("memcached node " + this.nodeNames.get(node) + " failed; skipping it for " + this.retryInterval + " ms.", e);
+    }
+
+    private void addTombstone(final Tombstone tombstone) {
+        final long now = System.currentTimeMillis();
+
+        for (Tombstone oldest = this.tombstoneQueue.peek(); oldest != null && oldest.isExpired(now); oldest = this.tombstoneQueue.peek()) {
+            this.tombstoneQueue.remove(oldest);
+            this.tombstones.remove(oldest.key, oldest);
+        }
+        this.tombstones.put(tombstone.key, tombstone);
+        this.tombstoneQueue.add(tombstone);
+    }
+
+    private boolean isDeleted(final String key) {
+        final Tombstone tombstone = this.tombstones.get(key);
+        return tombstone != null && !tombstone.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the value, or null if the node does not have it or failed.
+     */
+    private Object read(final int node, final String key, final Transcoder<Object> tc) {
+        try {
+            return this.clients[node].asyncGet(key, tc).get(this.readTimeout, TimeUnit.MILLISECONDS);
+        } catch (final Exception e) {
+            markDown(node, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the values found, or null if the node failed.
+     */
+    private Map<String, Object> readBulk(final int node, final Collection<String> keys, final Transcoder<Object> tc) {
+        try {
+            return this.clients[node].asyncGetBulk(keys, tc).get(this.readTimeout, TimeUnit.MILLISECONDS);
+        } catch (final Exception e) {
+            markDown(node, e);
+            return null;
+        }
+    }
+
+    private void repair(final int node, final String key, final Object value, final Transcoder<Object> tc) {
+        if (isDeleted(key)) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Copying [" + key + "] to memcached node " + this.nodeNames.get(node));
+        }
+        // add, so a newer copy written meanwhile is kept
+        this.clients[node].add(key, this.repairExpiration.getExpiration(value), value, tc);
+    }
+
+    /**
+     * A key being deleted, or deleted recently.
+     */
+    private static final class Tombstone {
+
+        private final String key;
+
+        private final Future<Boolean> deletes;
+
+        /** The time until which the key is not repaired, even once deleted. */
+        private final long expires;
+
+        private Tombstone(final String key, final Future<Boolean> deletes, final long expires) {
+            this.key = key;
+            this.deletes = deletes;
+            this.expires = expires;
+        }
+
+        private boolean isExpired(final long now) {
+            return now >= this.expires && this.deletes.isDone();
+        }
+    }
+
+    /**
+     * Strategy giving the expiration of a value copied by read repair.
+     */
+    interface RepairExpiration {
+
+        /**
+         * @return the expiration in seconds, as given to memcached.
+         */
+        int getExpiration(Object value);
+    }
+
+    /**
+     * True as soon as any of the operations succeeded, whether or not the
+     * others have completed; fails only if all of them failed, or if none
+     * succeeded in time.
+     */
+    static final class AnyFuture implements Future<Boolean> {
+
+        private final List<Future<Boolean>> futures;
+
+        AnyFuture(final List<Future<Boolean>> futures) {
+            this.futures = futures;
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = false;
+            for (final Future<Boolean> f : this.futures) {
+                cancelled |= f.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        public boolean isCancelled() {
+            for (final Future<Boolean> f : this.futures) {
+                if (!f.isCancelled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isDone() {
+            for (final Future<Boolean> f : this.futures) {
+                if (!f.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Boolean get() throws InterruptedException, ExecutionException {
+            ExecutionException failure = null;
+            int failures = 0;
+
+            for (final Future<Boolean> f : this.futures) {
+                if (hasSucceeded()) {
+                    return Boolean.TRUE;
+                }
+                try {
+                    if (Boolean.TRUE.equals(f.get())) {
+                        return Boolean.TRUE;
+                    }
+                } catch (final ExecutionException e) {
+                    failure = e;
+                    failures++;
+                }
+            }
+            return check(failure, failures);
+        }
+
+        public Boolean get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            ExecutionException failure = null;
+            TimeoutException timedOut = null;
+            int failures = 0;
+
+            for (final Future<Boolean> f : this.futures) {
+                if (hasSucceeded()) {
+                    return Boolean.TRUE;
+                }
+                try {
+                    if (Boolean.TRUE.equals(f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))) {
+                        return Boolean.TRUE;
+                    }
+                } catch (final ExecutionException e) {
+                    failure = e;
+                    failures++;
+                } catch (final TimeoutException e) {
+                    timedOut = e;
+                }
+            }
+            if (hasSucceeded()) {
+                return Boolean.TRUE;
+            }
+            if (timedOut != null) {
+                throw timedOut;
+            }
+            return check(failure, failures);
+        }
+
+        /**
+         * @return whether an operation that has already completed succeeded,
+         * without waiting for the others.
+         */
+        private boolean hasSucceeded() throws InterruptedException {
+            for (final Future<Boolean> f : this.futures) {
+                if (f.isDone() && !f.isCancelled()) {
+                    try {
+                        if (Boolean.TRUE.equals(f.get())) {
+                            return true;
+                        }
+                    } catch (final ExecutionException e) {
+                        // counted when it is waited for
+                    }
+                }
+            }
+            return false;
+        }
+
+        private Boolean check(final ExecutionException failure, final int failures) throws ExecutionException {
+            if (failure != null && failures == this.futures.size()) {
+                throw failure;
+            }
+            return Boolean.FALSE;
+        }
+    }
+
+    /**
+     * Done once all of the operations are: true if any of them succeeded,
+     * failing only if all of them failed.
+     */
+    static final class AllFuture implements Future<Boolean> {
+
+        private final List<Future<Boolean>> futures;
+
+        AllFuture(final List<Future<Boolean>> futures) {
+            this.futures = futures;
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = false;
+            for (final Future<Boolean> f : this.futures) {
+                cancelled |= f.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        public boolean isCancelled() {
+            for (final Future<Boolean> f : this.futures) {
+                if (!f.isCancelled()) {
+                    return false;
+                }
+            }
+            return !this.futures.isEmpty();
+        }
+
+        public boolean isDone() {
+            for (final Future<Boolean> f : this.futures) {
+                if (!f.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Boolean get() throws InterruptedException, ExecutionException {
+            boolean succeeded = false;
+            ExecutionException failure = null;
+            int failures = 0;
+
+            for (final Future<Boolean> f : this.futures) {
+                try {
+                    succeeded |= Boolean.TRUE.equals(f.get());
+                } catch (final ExecutionException e) {
+                    failure = e;
+                    failures++;
+                }
+            }
+            return result(succeeded, failure, failures);
+        }
+
+        public Boolean get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            boolean succeeded = false;
+            ExecutionException failure = null;
+            int failures = 0;
+
+            for (final Future<Boolean> f : this.futures) {
+                try {
+                    succeeded |= Boolean.TRUE.equals(f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (final ExecutionException e) {
+                    failure = e;
+                    failures++;
+                }
+            }
+            return result(succeeded, failure, failures);
+        }
+
+        private Boolean result(final boolean succeeded, final ExecutionException failure, final int failures) throws ExecutionException {
+            if (succeeded) {
+                return Boolean.TRUE;
+            }
+            if (failure != null && failures == this.futures.size()) {
+                throw failure;
+            }
+            return Boolean.FALSE;
+        }
+    }
+}
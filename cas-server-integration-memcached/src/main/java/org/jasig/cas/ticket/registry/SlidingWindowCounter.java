@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate count of the events of a trailing time window.  The window is
+ * split into a fixed number of slots that are reused once they fall out of
+ * the window.  Updates racing with the reset of a slot can be lost, which is
+ * acceptable for statistics.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+final class SlidingWindowCounter {
+
+    private static final int SLOTS = 60;
+
+    private final long slotInMilliSeconds;
+
+    /** The number of the slot each cell currently counts for. */
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+
+    public SlidingWindowCounter(final long windowInMilliSeconds) {
+        this.slotInMilliSeconds = Math.max(1, (windowInMilliSeconds + SLOTS - 1) / SLOTS);
+    }
+
+    public void add(final long delta) {
+        final long slot = System.currentTimeMillis() / this.slotInMilliSeconds;
+        final int i = (int) (slot % SLOTS);
+        final long current = this.slots.get(i);
+
+        if (current != slot && this.slots.compareAndSet(i, current, slot)) {
+            this.counts.set(i, 0);
+        }
+        this.counts.addAndGet(i, delta);
+    }
+
+    public long sum() {
+        final long slot = System.currentTimeMillis() / this.slotInMilliSeconds;
+        long sum = 0;
+
+        for (int i = 0; i < SLOTS; i++) {
+            if (slot - this.slots.get(i) < SLOTS) {
+                sum += this.counts.get(i);
+            }
+        }
+        return Math.max(0, sum);
+    }
+}
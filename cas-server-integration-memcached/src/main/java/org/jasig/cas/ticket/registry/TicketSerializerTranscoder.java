@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * Memcached transcoder that stores tickets in the format of a
+ * {@link TicketSerializer}.  Entries stored under other flags, such as those
+ * written by the client's default transcoder before the switch, are handed
+ * to that transcoder.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+final class TicketSerializerTranscoder implements Transcoder<Object> {
+
+    /** Not used by the serializing transcoder of the memcached client. */
+    private static final int FLAGS = 0x4000;
+
+    private static final int MAX_SIZE = 1024 * 1024;
+
+    private final TicketSerializer ticketSerializer;
+
+    private final Transcoder<Object> fallback;
+
+    public TicketSerializerTranscoder(final TicketSerializer ticketSerializer, final Transcoder<Object> fallback) {
+        this.ticketSerializer = ticketSerializer;
+        this.fallback = fallback;
+    }
+
+    public boolean asyncDecode(final CachedData d) {
+        return false;
+    }
+
+    public CachedData encode(final Object o) {
+        return new CachedData(FLAGS, this.ticketSerializer.serialize((Ticket) o), MAX_SIZE);
+    }
+
+    public Object decode(final CachedData d) {
+        if (d.getFlags() != FLAGS) {
+            return this.fallback.decode(d);
+        }
+        return this.ticketSerializer.deserialize(d.getData());
+    }
+
+    public int getMaxSize() {
+        return MAX_SIZE;
+    }
+}
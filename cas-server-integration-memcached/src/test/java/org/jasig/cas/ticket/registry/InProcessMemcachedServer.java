@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stand-in memcached server speaking the text protocol, for tests.  Items
+ * never expire, but the expiration they were stored with is kept.  Stopping it closes every connection, as if the server had
+ * died; starting it again serves on the same port with no items.
+ *
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public final class InProcessMemcachedServer {
+
+    private final Map<String, Item> items = new ConcurrentHashMap<String, Item>();
+
+    private final List<Socket> connections = new CopyOnWriteArrayList<Socket>();
+
+    private ServerSocket serverSocket;
+
+    private int port;
+
+    /** Whether commands wait instead of being answered, as of a hung server. */
+    private volatile boolean paused;
+
+    public synchronized void start() throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), this.port));
+        this.port = this.serverSocket.getLocalPort();
+
+        final ServerSocket s = this.serverSocket;
+        final Thread acceptor = new Thread("memcached-" + this.port) {
+            public void run() {
+                accept(s);
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public synchronized void stop() throws IOException {
+        this.serverSocket.close();
+        for (final Socket socket : this.connections) {
+            socket.close();
+        }
+        this.connections.clear();
+        this.items.clear();
+    }
+
+    /**
+     * @return host:port, as given to the ticket registry.
+     */
+    public String getAddress() {
+        return "127.0.0.1:" + this.port;
+    }
+
+    public boolean contains(final String key) {
+        return this.items.containsKey(key);
+    }
+
+    public void remove(final String key) {
+        this.items.remove(key);
+    }
+
+    /**
+     * @return the item stored under the key, to store it again later, or
+     * null if there is none.
+     */
+    public Object getItem(final String key) {
+        return this.items.get(key);
+    }
+
+    public void putItem(final String key, final Object item) {
+        this.items.put(key, (Item) item);
+    }
+
+    /**
+     * @param paused whether commands wait, unanswered, until the server is
+     * no longer paused.
+     */
+    public void setPaused(final boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * @return the expiration the item was stored with, or -1 if there is no
+     * such item.
+     */
+    public int getExpiration(final String key) {
+        final Item item = this.items.get(key);
+        return item == null ? -1 : item.expiration;
+    }
+
+    private void accept(final ServerSocket s) {
+        while (!s.isClosed()) {
+            try {
+                final Socket socket = s.accept();
+                this.connections.add(socket);
+                final Thread handler = new Thread("memcached-" + this.port + "-connection") {
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            } catch (final IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+
+            for (String line = readLine(in); line != null; line = readLine(in)) {
+                final String[] args = line.split(" ");
+                final String command = args[0];
+
+                while (this.paused) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if ("get".equals(command) || "gets".equals(command)) {
+                    for (int i = 1; i < args.length; i++) {
+                        final Item item = this.items.get(args[i]);
+                        if (item != null) {
+                            write(out, "VALUE " + args[i] + " " + item.flags + " " + item.data.length);
+                            out.write(item.data);
+                            write(out, "");
+                        }
+                    }
+                    write(out, "END");
+                } else if ("set".equals(command) || "add".equals(command) || "replace".equals(command)) {
+                    final byte[] data = new byte[Integer.parseInt(args[4])];
+                    for (int n = 0; n < data.length;) {
+                        final int read = in.read(data, n, data.length - n);
+                        if (read < 0) {
+                            return;
+                        }
+                        n += read;
+                    }
+                    readLine(in);
+                    write(out, store(command, args[1], new Item(Integer.parseInt(args[2]), Integer.parseInt(args[3]), data)) ? "STORED" : "NOT_STORED");
+                } else if ("delete".equals(command)) {
+                    write(out, this.items.remove(args[1]) != null ? "DELETED" : "NOT_FOUND");
+                } else if ("flush_all".equals(command)) {
+                    this.items.clear();
+                    write(out, "OK");
+                } else if ("version".equals(command)) {
+                    write(out, "VERSION 1.4.5");
+                } else if ("quit".equals(command)) {
+                    break;
+                } else {
+                    write(out, "ERROR");
+                }
+                out.flush();
+            }
+        } catch (final IOException e) {
+            // connection closed
+        } finally {
+            this.connections.remove(socket);
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private boolean store(final String command, final String key, final Item item) {
+        synchronized (this.items) {
+            final boolean exists = this.items.containsKey(key);
+
+            if (("add".equals(command) && exists) || ("replace".equals(command) && !exists)) {
+                return false;
+            }
+            this.items.put(key, item);
+            return true;
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        for (int b = in.read(); b != -1; b = in.read()) {
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                return new String(bytes, 0, bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length, "UTF-8");
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    private static void write(final OutputStream out, final String line) throws IOException {
+        out.write((line + "\r\n").getBytes("UTF-8"));
+    }
+
+    private static final class Item {
+
+        private final int flags;
+
+        private final int expiration;
+
+        private final byte[] data;
+
+        private Item(final int flags, final int expiration, final byte[] data) {
+            this.flags = flags;
+            this.expiration = expiration;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.Arrays;
+
+import org.jasig.cas.TestUtils;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class MemCacheTicketRegistryTests extends TestCase {
+
+    private static final String TICKET_ID = "TGT-1-test";
+
+    private static final String SERVICE_TICKET_ID = "ST-1-test";
+
+    private final InProcessMemcachedServer[] servers = new InProcessMemcachedServer[3];
+
+    private MemCacheTicketRegistry ticketRegistry;
+
+    /** The server the ticket is read from first. */
+    private InProcessMemcachedServer primary;
+
+    private KetamaNodeRing ring;
+
+    protected void setUp() throws Exception {
+        final String[] hostnames = new String[this.servers.length];
+        for (int i = 0; i < this.servers.length; i++) {
+            this.servers[i] = new InProcessMemcachedServer();
+            this.servers[i].start();
+            hostnames[i] = this.servers[i].getAddress();
+        }
+
+        this.ring = new KetamaNodeRing(Arrays.asList(hostnames));
+        this.primary = this.servers[this.ring.getNodes(TICKET_ID).get(0).intValue()];
+        this.ticketRegistry = new MemCacheTicketRegistry(hostnames, 60, 10, 2);
+        this.ticketRegistry.setSynchronizeUpdatesToRegistry(true);
+        this.ticketRegistry.setReplicaReadTimeout(500);
+
+        for (int i = 0; i < 50 && this.ticketRegistry.getLiveReplicas().size() < this.servers.length; i++) {
+            Thread.sleep(100);
+        }
+        this.ticketRegistry.addTicket(new TicketGrantingTicketImpl(TICKET_ID, TestUtils.getAuthentication(), new NeverExpiresExpirationPolicy()));
+        awaitCopies(TICKET_ID);
+    }
+
+    /**
+     * Synchronized writes only wait for the first replica, so waits for the
+     * others.
+     */
+    private void awaitCopies(final String ticketId) throws InterruptedException {
+        for (int i = 0; i < 50 && countCopies(ticketId) < 2; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        this.ticketRegistry.destroy();
+        for (final InProcessMemcachedServer server : this.servers) {
+            server.stop();
+        }
+    }
+
+    private int countCopies() {
+        return countCopies(TICKET_ID);
+    }
+
+    private int countCopies(final String ticketId) {
+        int copies = 0;
+        for (final InProcessMemcachedServer server : this.servers) {
+            if (server.contains(ticketId)) {
+                copies++;
+            }
+        }
+        return copies;
+    }
+
+    public void testTicketsAreStoredOnEachReplica() {
+        assertEquals(2, countCopies());
+    }
+
+    public void testTicketsSurviveTheLossOfAServer() throws Exception {
+        this.primary.stop();
+
+        assertNotNull(this.ticketRegistry.getTicket(TICKET_ID));
+        assertEquals(this.servers.length - 1, this.ticketRegistry.getLiveReplicas().size());
+        assertNotNull(this.ticketRegistry.getTicket(TICKET_ID));
+    }
+
+    public void testMissingCopiesAreRepaired() throws Exception {
+        this.primary.remove(TICKET_ID);
+        assertEquals(1, countCopies());
+
+        assertNotNull(this.ticketRegistry.getTicket(TICKET_ID));
+        awaitCopies(TICKET_ID);
+        assertEquals(2, countCopies());
+    }
+
+    public void testRepairedCopiesExpireLikeTheirTicket() throws Exception {
+        final TicketGrantingTicket ticketGrantingTicket = (TicketGrantingTicket) this.ticketRegistry.getTicket(TICKET_ID);
+        this.ticketRegistry.addTicket(ticketGrantingTicket.grantServiceTicket(SERVICE_TICKET_ID, TestUtils.getService(), new NeverExpiresExpirationPolicy(), false));
+        awaitCopies(SERVICE_TICKET_ID);
+        final InProcessMemcachedServer serviceTicketPrimary = this.servers[this.ring.getNodes(SERVICE_TICKET_ID).get(0).intValue()];
+        serviceTicketPrimary.remove(SERVICE_TICKET_ID);
+
+        assertNotNull(this.ticketRegistry.getTicket(SERVICE_TICKET_ID));
+        awaitCopies(SERVICE_TICKET_ID);
+        assertEquals(10, serviceTicketPrimary.getExpiration(SERVICE_TICKET_ID));
+    }
+
+    public void testTicketsAreDeletedFromEveryReplica() {
+        // the delete returns once every live replica has answered
+        assertTrue(this.ticketRegistry.deleteTicket(TICKET_ID));
+
+        assertEquals(0, countCopies());
+        assertNull(this.ticketRegistry.getTicket(TICKET_ID));
+    }
+
+    public void testDeletedTicketsAreNotRepaired() throws Exception {
+        final InProcessMemcachedServer secondary = this.servers[this.ring.getNodes(TICKET_ID).get(1).intValue()];
+        final Object copy = secondary.getItem(TICKET_ID);
+        assertTrue(this.ticketRegistry.deleteTicket(TICKET_ID));
+
+        // a copy left behind, as if the replica had not seen the delete yet
+        secondary.putItem(TICKET_ID, copy);
+        assertNotNull(this.ticketRegistry.getTicket(TICKET_ID));
+        Thread.sleep(100);
+
+        assertFalse(this.primary.contains(TICKET_ID));
+    }
+
+    public void testServersComingBackAreFlushed() throws Exception {
+        this.ticketRegistry.setReplicaRetryInterval(200);
+        this.primary.setPaused(true);
+        assertNotNull(this.ticketRegistry.getTicket(TICKET_ID));
+        assertEquals(this.servers.length - 1, this.ticketRegistry.getLiveReplicas().size());
+
+        // a copy the server should not have, as of a change it missed
+        this.primary.putItem("TGT-2-test", this.primary.getItem(TICKET_ID));
+        this.primary.setPaused(false);
+        for (int i = 0; i < 50 && this.ticketRegistry.getLiveReplicas().size() < this.servers.length; i++) {
+            Thread.sleep(100);
+        }
+
+        assertEquals(this.servers.length, this.ticketRegistry.getLiveReplicas().size());
+        assertFalse(this.primary.contains("TGT-2-test"));
+        assertNotNull(this.ticketRegistry.getTicket(TICKET_ID));
+    }
+}
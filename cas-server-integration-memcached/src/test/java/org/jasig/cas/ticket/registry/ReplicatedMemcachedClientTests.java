@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 The JA-SIG Collaborative. All rights reserved. See license
+ * distributed with this file and available online at
+ * http://www.ja-sig.org/products/cas/overview/license/
+ */
+package org.jasig.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ * @version $Revision$ $Date$
+ * @since 3.4.9
+ */
+public class ReplicatedMemcachedClientTests extends TestCase {
+
+    private final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+    private FutureTask<Boolean> newFuture(final Boolean result) {
+        final FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                if (result == null) {
+                    throw new IllegalStateException("failed");
+                }
+                return result;
+            }
+        });
+        this.futures.add(future);
+        return future;
+    }
+
+    public void testSuccessIsReturnedWhileAnotherReplicaIsPending() throws Exception {
+        newFuture(Boolean.TRUE);
+        newFuture(Boolean.TRUE).run();
+
+        assertEquals(Boolean.TRUE, new ReplicatedMemcachedClient.AnyFuture(this.futures).get(10, TimeUnit.MILLISECONDS));
+    }
+
+    public void testNoSuccessInTimeTimesOut() throws Exception {
+        newFuture(Boolean.TRUE);
+        newFuture(Boolean.FALSE).run();
+
+        try {
+            new ReplicatedMemcachedClient.AnyFuture(this.futures).get(10, TimeUnit.MILLISECONDS);
+            fail("TimeoutException expected.");
+        } catch (final TimeoutException e) {
+            // expected
+        }
+    }
+
+    public void testFailsOnlyIfEveryReplicaFailed() throws Exception {
+        newFuture(null).run();
+        newFuture(Boolean.FALSE).run();
+        assertEquals(Boolean.FALSE, new ReplicatedMemcachedClient.AnyFuture(this.futures).get());
+
+        this.futures.clear();
+        newFuture(null).run();
+        newFuture(null).run();
+        try {
+            new ReplicatedMemcachedClient.AnyFuture(this.futures).get();
+            fail("ExecutionException expected.");
+        } catch (final ExecutionException e) {
+            // expected
+        }
+    }
+
+    public void testAllWaitsForEveryReplica() throws Exception {
+        newFuture(Boolean.TRUE).run();
+        newFuture(Boolean.FALSE);
+
+        try {
+            new ReplicatedMemcachedClient.AllFuture(this.futures).get(10, TimeUnit.MILLISECONDS);
+            fail("TimeoutException expected.");
+        } catch (final TimeoutException e) {
+            // expected
+        }
+    }
+
+    public void testAllSucceedsIfAnyReplicaSucceeded() throws Exception {
+        newFuture(null).run();
+        newFuture(Boolean.FALSE).run();
+        newFuture(Boolean.TRUE).run();
+        assertEquals(Boolean.TRUE, new ReplicatedMemcachedClient.AllFuture(this.futures).get());
+
+        this.futures.clear();
+        newFuture(null).run();
+        newFuture(Boolean.FALSE).run();
+        assertEquals(Boolean.FALSE, new ReplicatedMemcachedClient.AllFuture(this.futures).get());
+
+        this.futures.clear();
+        newFuture(null).run();
+        newFuture(null).run();
+        try {
+            new ReplicatedMemcachedClient.AllFuture(this.futures).get();
+            fail("ExecutionException expected.");
+        } catch (final ExecutionException e) {
+            // expected
+        }
+    }
+}
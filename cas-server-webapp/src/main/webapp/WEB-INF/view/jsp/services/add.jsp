@@ -64,6 +64,11 @@
 					<form:checkbox path="anonymousAccess" value="true" cssClass="check" />
 					<label for="anonymousAccess1" id="anonymousAccess-l" class="postField"><spring:message code="management.services.add.property.status.anonymousAccess" /></label>
 				</span>
+
+				<span class="oneChoice">
+					<form:checkbox path="logoutCoalescingEnabled" value="true" cssClass="check" />
+					<label for="logoutCoalescingEnabled1" id="logoutCoalescingEnabled-l" class="postField"><spring:message code="management.services.add.property.status.logoutCoalescingEnabled" /></label>
+				</span>
 			</span>
 			<br/>
 		</span>
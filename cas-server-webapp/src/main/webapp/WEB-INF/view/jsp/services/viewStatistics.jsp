@@ -50,22 +50,49 @@
         </tr>
     </thead>
     <tbody>
-        <tr>
-            <td>Unexpired TGTs</td>
-            <td>${unexpiredTgts}</td>
-        </tr>
-        <tr>
-            <td>Unexpired STs</td>
-            <td>${unexpiredSts}</td>
-        </tr>
-        <tr>
-            <td>Expired TGTs</td>
-            <td>${expiredTgts}</td>
-        </tr>
-        <tr>
-            <td>Expired STs</td>
-            <td>${expiredSts}</td>
-        </tr>
+        <c:choose>
+            <c:when test="${not empty tgtCount}">
+                <%-- counted as tickets are added and deleted, without reading them, so expired tickets are included until the registry cleaner removes them --%>
+                <tr>
+                    <td>TGTs (expired or not)</td>
+                    <td>${tgtCount}</td>
+                </tr>
+                <tr>
+                    <td>STs (expired or not)</td>
+                    <td>${stCount}</td>
+                </tr>
+                <tr>
+                    <td>Tickets Added</td>
+                    <td><fmt:formatNumber value="${addRate}" maxFractionDigits="2" /> per second</td>
+                </tr>
+                <tr>
+                    <td>Tickets Deleted</td>
+                    <td><fmt:formatNumber value="${deleteRate}" maxFractionDigits="2" /> per second</td>
+                </tr>
+                <tr>
+                    <td>Ticket Lookups</td>
+                    <td><fmt:formatNumber value="${lookupRate}" maxFractionDigits="2" /> per second</td>
+                </tr>
+            </c:when>
+            <c:otherwise>
+                <tr>
+                    <td>Unexpired TGTs</td>
+                    <td>${unexpiredTgts}</td>
+                </tr>
+                <tr>
+                    <td>Unexpired STs</td>
+                    <td>${unexpiredSts}</td>
+                </tr>
+                <tr>
+                    <td>Expired TGTs</td>
+                    <td>${expiredTgts}</td>
+                </tr>
+                <tr>
+                    <td>Expired STs</td>
+                    <td>${expiredSts}</td>
+                </tr>
+            </c:otherwise>
+        </c:choose>
     </tbody>
 </table>
 